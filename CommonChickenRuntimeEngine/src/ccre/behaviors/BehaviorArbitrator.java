@@ -25,6 +25,7 @@ import ccre.channel.EventCell;
 import ccre.channel.EventInput;
 import ccre.channel.EventOutput;
 import ccre.channel.FloatInput;
+import ccre.channel.Transaction;
 import ccre.cluck.Cluck;
 import ccre.discrete.DerivedDiscreteInput;
 import ccre.discrete.DiscreteInput;
@@ -104,7 +105,8 @@ public class BehaviorArbitrator implements RConfable {
             return;
         }
         active = behavior;
-        onActiveUpdateCell.event();
+        // switch every arbitrated channel before anything downstream updates
+        Transaction.run(onActiveUpdateCell);
     }
 
     /**
@@ -22,6 +22,7 @@ import java.util.Iterator;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
 
 /**
  * An UpdatingInput that simplifies updating sending to simply calling
@@ -37,13 +38,117 @@ public abstract class AbstractUpdatingInput implements UpdatingInput {
      * updates.
      */
     private final CopyOnWriteArrayList<EventOutput> consumers = new CopyOnWriteArrayList<>();
+    /**
+     * The per-input update rate limit: zero to use the default limit, negative
+     * for no limit, or positive for a specific number of updates per second.
+     */
+    private transient int updateRateLimit;
+    private transient UpdateGovernor governor;
+    private static int defaultUpdateRateLimit = 0;
+
+    /**
+     * Set the update rate limit applied to every AbstractUpdatingInput that
+     * does not have its own limit set by {@link #limitUpdateRate(int)}. Zero,
+     * the default, disables the limit.
+     *
+     * @param maxPerSecond the maximum number of propagations per second, or
+     * zero for no limit.
+     * @see #limitUpdateRate(int)
+     */
+    @SetupPhase
+    public static void setDefaultUpdateRateLimit(int maxPerSecond) {
+        if (maxPerSecond < 0) {
+            throw new IllegalArgumentException("Update rate limit cannot be negative: " + maxPerSecond);
+        }
+        defaultUpdateRateLimit = maxPerSecond;
+    }
+
+    /**
+     * Get the update rate limit applied to inputs without their own limit.
+     *
+     * @return the maximum number of propagations per second, or zero for no
+     * limit.
+     */
+    public static int getDefaultUpdateRateLimit() {
+        return defaultUpdateRateLimit;
+    }
+
+    /**
+     * Limit how quickly this input can propagate updates to its listeners.
+     *
+     * If more than <code>maxPerSecond</code> updates occur within a second,
+     * the input is considered to be in an update storm: a warning is logged
+     * (once per input), and further updates are coalesced so that listeners
+     * are notified at most once per <code>1/maxPerSecond</code> seconds, from
+     * the {@link ccre.scheduler.Scheduler} thread. Once the storm passes,
+     * updates propagate immediately again.
+     *
+     * This protects the rest of the system from feedback loops and noisy
+     * sensors, at the cost of delaying notifications during a storm.
+     *
+     * @param maxPerSecond the maximum number of propagations per second, or
+     * zero for no limit, overriding the default limit.
+     * @see #setDefaultUpdateRateLimit(int)
+     */
+    @SetupPhase
+    public synchronized void limitUpdateRate(int maxPerSecond) {
+        if (maxPerSecond < 0) {
+            throw new IllegalArgumentException("Update rate limit cannot be negative: " + maxPerSecond);
+        }
+        updateRateLimit = maxPerSecond == 0 ? -1 : maxPerSecond;
+        governor = null;
+    }
 
     /**
      * Tell all of the listeners that whatever this UpdatingInput represents has
      * updated.
+     *
+     * If this is called inside a {@link Transaction}, the notification is
+     * deferred until the transaction commits, and coalesced with any other
+     * notifications from this input during the transaction.
+     *
+     * If an update rate limit applies to this input, the notification may be
+     * deferred and coalesced with others. See {@link #limitUpdateRate(int)}.
      */
     @FlowPhase
     protected final void perform() {
+        if (!Transaction.defer(this)) {
+            performUndeferred();
+        }
+    }
+
+    /**
+     * Tell all of the listeners that whatever this UpdatingInput represents has
+     * updated, right away, even inside a {@link Transaction}. This is for
+     * inputs where every update matters and their order must be kept, such as
+     * state machine transitions. Any channels updated by the listeners are
+     * still deferred as usual.
+     *
+     * If an update rate limit applies to this input, the notification may be
+     * deferred and coalesced with others. See {@link #limitUpdateRate(int)}.
+     */
+    @FlowPhase
+    protected final void performImmediately() {
+        performUndeferred();
+    }
+
+    @FlowPhase
+    final void performUndeferred() {
+        int limit = updateRateLimit == 0 ? defaultUpdateRateLimit : updateRateLimit;
+        if (limit > 0) {
+            UpdateGovernor g = governor;
+            if (g == null || g.maxPerSecond != limit) {
+                g = governor = new UpdateGovernor(this, limit);
+            }
+            if (!g.admit()) {
+                return;
+            }
+        }
+        propagate();
+    }
+
+    @FlowPhase
+    final void propagate() {
         for (Iterator<EventOutput> iterator = consumers.iterator(); iterator.hasNext();) {
             EventOutput output = iterator.next();
             try {
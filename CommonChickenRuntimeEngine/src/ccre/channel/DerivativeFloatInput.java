@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import ccre.scheduler.Scheduler;
+import ccre.time.Time;
+import ccre.verifier.FlowPhase;
+
+/**
+ * The implementation of {@link FloatInput#derivative(int)}, as a single node.
+ *
+ * The derivative is computed from each pair of consecutive samples. A sample is
+ * taken whenever the source updates, and also whenever the source goes a full
+ * timeout without updating, so that the derivative can return to zero once the
+ * source has stopped changing. Only the first timeout after a burst of updates
+ * is actually scheduled; later ones are accounted for when the next update
+ * arrives.
+ *
+ * @author skeggsc
+ */
+final class DerivativeFloatInput extends AbstractUpdatingInput implements FloatInput {
+
+    private static final long serialVersionUID = 2417606003213802839L;
+    // not zero because then FakeTime might break...
+    private static final long UNINITIALIZED = -1;
+
+    private final FloatInput source;
+    private final long timeoutNanos;
+    private final EventOutput timeout = this::timeout;
+    private float value, lastValue;
+    private long lastSampleNanos = UNINITIALIZED, deadlineNanos;
+    private boolean armed, idle;
+
+    /**
+     * Create a new derivative of the specified input.
+     *
+     * @param source the input to differentiate.
+     * @param millis the number of milliseconds without an update after which
+     * to take another sample, or zero to only sample on updates.
+     */
+    DerivativeFloatInput(FloatInput source, int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Derivative timeout cannot be negative: " + millis);
+        }
+        this.source = source;
+        this.timeoutNanos = millis * Time.NANOSECONDS_PER_MILLISECOND;
+        source.onUpdate(this::update);
+    }
+
+    @Override
+    public synchronized float get() {
+        return value;
+    }
+
+    @FlowPhase
+    private synchronized void update() {
+        long now = Time.currentTimeNanos();
+        if (idle) {
+            // account for the timeout samples that would have been taken while
+            // idle; the value can't have changed, since there was no update.
+            lastSampleNanos += (now - lastSampleNanos - 1) / timeoutNanos * timeoutNanos;
+            idle = false;
+        }
+        sample(source.get(), now);
+        if (timeoutNanos > 0) {
+            deadlineNanos = now + timeoutNanos;
+            if (!armed) {
+                armed = true;
+                Scheduler.scheduleAt("derivative", deadlineNanos, timeout);
+            }
+        }
+    }
+
+    @FlowPhase
+    private synchronized void timeout() {
+        if (Time.currentTimeNanos() < deadlineNanos) {
+            // updated since this was scheduled, so wait until the new deadline
+            Scheduler.scheduleAt("derivative", deadlineNanos, timeout);
+            return;
+        }
+        armed = false;
+        sample(source.get(), Time.currentTimeNanos());
+        idle = true;
+    }
+
+    @FlowPhase
+    private void sample(float sample, long now) {
+        if (lastSampleNanos == UNINITIALIZED) {
+            lastValue = sample;
+            lastSampleNanos = now;
+            return;
+        }
+        if (lastSampleNanos == now) {
+            return; // extremely unlikely... but just in case.
+        }
+        float derivative = Time.NANOSECONDS_PER_SECOND * (sample - lastValue) / (now - lastSampleNanos);
+        lastValue = sample;
+        lastSampleNanos = now;
+        if (Float.floatToIntBits(derivative) != Float.floatToIntBits(value)) {
+            value = derivative;
+            perform();
+        }
+    }
+}
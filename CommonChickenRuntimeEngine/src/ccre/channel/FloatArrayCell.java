@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import java.io.Serializable;
+
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
+
+/**
+ * A virtual node that holds a fixed-size group of floats in a single primitive
+ * array. You can modify any of its values, read them, and subscribe to changes.
+ * Listeners are notified once per change, no matter how many values were
+ * modified by that change.
+ *
+ * @author skeggsc
+ */
+public class FloatArrayCell extends AbstractUpdatingInput implements FloatVectorInput, Serializable {
+
+    private static final long serialVersionUID = -2717316021874359217L;
+
+    private final float[] values;
+
+    /**
+     * Create a new FloatArrayCell with the specified number of elements, all
+     * of which default to zero.
+     *
+     * @param size the number of elements.
+     */
+    public FloatArrayCell(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("FloatArrayCell must have at least one element: " + size);
+        }
+        this.values = new float[size];
+    }
+
+    /**
+     * Create a new FloatArrayCell with the specified default values. The array
+     * is copied.
+     *
+     * @param values the default values.
+     */
+    public FloatArrayCell(float... values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("FloatArrayCell must have at least one element!");
+        }
+        this.values = values.clone();
+    }
+
+    @Override
+    public final int size() {
+        return values.length;
+    }
+
+    @Override
+    public final synchronized float get(int index) {
+        return values[index];
+    }
+
+    @Override
+    public final synchronized void copyTo(float[] target) {
+        System.arraycopy(values, 0, target, 0, values.length);
+    }
+
+    /**
+     * Sets the specified element of this cell. If the value changed, the
+     * listeners will be notified.
+     *
+     * @param index the index of the element.
+     * @param value the new value.
+     */
+    @FlowPhase
+    public final synchronized void set(int index, float value) {
+        if (Float.floatToIntBits(values[index]) != Float.floatToIntBits(value)) {
+            values[index] = value;
+            perform();
+        }
+    }
+
+    /**
+     * Sets all of the elements of this cell at once. If any value changed, the
+     * listeners will be notified exactly once.
+     *
+     * @param newValues the new values, which must be at least as long as this
+     * cell.
+     */
+    @FlowPhase
+    public final synchronized void set(float[] newValues) {
+        if (newValues.length < values.length) {
+            throw new IllegalArgumentException("Not enough values: " + newValues.length + " < " + values.length);
+        }
+        boolean changed = false;
+        for (int i = 0; i < values.length; i++) {
+            if (Float.floatToIntBits(values[i]) != Float.floatToIntBits(newValues[i])) {
+                values[i] = newValues[i];
+                changed = true;
+            }
+        }
+        if (changed) {
+            perform();
+        }
+    }
+
+    /**
+     * Provides a FloatOutput that sets the specified element of this cell.
+     *
+     * @param index the index of the element.
+     * @return the FloatOutput for that element.
+     */
+    @SetupPhase
+    public FloatOutput slot(int index) {
+        if (index < 0 || index >= values.length) {
+            throw new IndexOutOfBoundsException("Index out of range: " + index);
+        }
+        return value -> set(index, value);
+    }
+}
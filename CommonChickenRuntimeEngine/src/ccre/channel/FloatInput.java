@@ -18,7 +18,8 @@
  */
 package ccre.channel;
 
-import ccre.timers.PauseTimer;
+import java.util.Arrays;
+
 import ccre.util.Utils;
 import ccre.verifier.FlowPhase;
 import ccre.verifier.SetupPhase;
@@ -667,7 +668,8 @@ public interface FloatInput extends UpdatingInput {
     }
 
     /**
-     * Provides a version of this FloatInput with ramping applied.
+     * Provides a version of this FloatInput with ramping applied. The ramped
+     * value starts at the current value of this FloatInput.
      *
      * @param limit the maximum delta value per time when
      * <code>updateWhen</code> is fired.
@@ -679,13 +681,22 @@ public interface FloatInput extends UpdatingInput {
         if (updateWhen == null) {
             throw new NullPointerException();
         }
-        FloatCell temp = new FloatCell();
-        updateWhen.send(this.createRampingEvent(limit, temp));
-        return temp;
+        if (Float.isNaN(limit)) {
+            throw new IllegalArgumentException("Ramping rate cannot be NaN!");
+        }
+        SampledFloatInput ramped = new SampledFloatInput(this, get()) {
+            @Override
+            protected float step(float previous, float sample) {
+                return Float.isNaN(previous) ? sample : Utils.updateRamping(previous, sample, limit);
+            }
+        };
+        updateWhen.send(ramped);
+        return ramped;
     }
 
     /**
-     * Provides a version of this FloatInput with ramping applied.
+     * Provides a version of this FloatInput with ramping applied. The ramped
+     * value starts at the current value of this FloatInput.
      *
      * @param limit the maximum delta value per time when
      * <code>updateWhen</code> is fired.
@@ -697,9 +708,14 @@ public interface FloatInput extends UpdatingInput {
         if (limit == null || updateWhen == null) {
             throw new NullPointerException();
         }
-        FloatCell temp = new FloatCell();
-        updateWhen.send(this.createRampingEvent(limit, temp));
-        return temp;
+        SampledFloatInput ramped = new SampledFloatInput(this, get()) {
+            @Override
+            protected float step(float previous, float sample) {
+                return Float.isNaN(previous) ? sample : Utils.updateRamping(previous, sample, limit.get());
+            }
+        };
+        updateWhen.send(ramped);
+        return ramped;
     }
 
     /**
@@ -715,7 +731,22 @@ public interface FloatInput extends UpdatingInput {
         if (Float.isNaN(limit)) {
             throw new IllegalArgumentException("Ramping rate cannot be NaN!");
         }
-        return createRampingEvent(FloatInput.always(limit), target);
+        if (target == null) {
+            throw new NullPointerException();
+        }
+        return new EventOutput() {
+            private float last = get();
+
+            @Override
+            public void event() {
+                if (Float.isNaN(last)) {
+                    last = get();
+                } else {
+                    last = Utils.updateRamping(last, get(), limit);
+                }
+                target.set(last);
+            }
+        };
     }
 
     /**
@@ -758,10 +789,7 @@ public interface FloatInput extends UpdatingInput {
     @Deprecated
     @SetupPhase
     public default FloatInput derivative() {
-        FloatCell out = new FloatCell();
-        FloatOutput deriv = out.viaDerivative();
-        onUpdate(() -> deriv.set(get()));
-        return out;
+        return new DerivativeFloatInput(this, 0);
     }
 
     /**
@@ -780,15 +808,7 @@ public interface FloatInput extends UpdatingInput {
      */
     @SetupPhase
     public default FloatInput derivative(int millis) {
-        FloatCell out = new FloatCell();
-        FloatOutput deriv = out.viaDerivative();
-        PauseTimer t = new PauseTimer("derivative", FloatInput.always(millis / 1000f));
-
-        EventOutput update = t.combine(deriv.eventSet(this));
-
-        t.triggerAtEnd(update);
-        onUpdate(update);
-        return out;
+        return new DerivativeFloatInput(this, millis);
     }
 
     /**
@@ -865,5 +885,133 @@ public interface FloatInput extends UpdatingInput {
         return FloatFilter.absolute.wrap(this);
     }
 
+    /**
+     * Provides a low-pass filtered version of this FloatInput, using
+     * exponential smoothing. Whenever <code>updateWhen</code> is fired, the
+     * result moves <code>alpha</code> of the way from its current value to the
+     * current value of this FloatInput. The result starts at the current value
+     * of this FloatInput.
+     *
+     * @param alpha the smoothing factor, greater than zero and at most one.
+     * Smaller values smooth more.
+     * @param updateWhen when to take a sample.
+     * @return the smoothed version of this FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput lowPass(final float alpha, EventInput updateWhen) {
+        if (updateWhen == null) {
+            throw new NullPointerException();
+        }
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("Smoothing factor must be in (0, 1]: " + alpha);
+        }
+        SampledFloatInput smoothed = new SampledFloatInput(this, get()) {
+            @Override
+            protected float step(float previous, float sample) {
+                return Float.isNaN(previous) ? sample : previous + alpha * (sample - previous);
+            }
+        };
+        updateWhen.send(smoothed);
+        return smoothed;
+    }
+
+    /**
+     * Provides a version of this FloatInput that is the average of the last
+     * <code>samples</code> values of this FloatInput, sampled whenever
+     * <code>updateWhen</code> is fired. Until enough samples have been taken,
+     * the window is filled with the value at the time of this call.
+     *
+     * @param samples the number of samples to average.
+     * @param updateWhen when to take a sample.
+     * @return the averaged version of this FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput movingAverage(final int samples, EventInput updateWhen) {
+        if (updateWhen == null) {
+            throw new NullPointerException();
+        }
+        if (samples <= 0) {
+            throw new IllegalArgumentException("Must average at least one sample: " + samples);
+        }
+        final float initial = get();
+        SampledFloatInput averaged = new SampledFloatInput(this, initial) {
+            private final float[] window = new float[samples];
+            private int next;
+
+            {
+                Arrays.fill(window, initial);
+            }
+
+            @Override
+            protected float step(float previous, float sample) {
+                window[next] = sample;
+                next = (next + 1) % window.length;
+                float total = 0;
+                for (int i = 0; i < window.length; i++) {
+                    total += window[i];
+                }
+                return total / window.length;
+            }
+        };
+        updateWhen.send(averaged);
+        return averaged;
+    }
+
+    /**
+     * Provides a version of this FloatInput that is the median of the last
+     * <code>samples</code> values of this FloatInput, sampled whenever
+     * <code>updateWhen</code> is fired. This rejects occasional spikes much
+     * better than an average. Until enough samples have been taken, the window
+     * is filled with the value at the time of this call. For an even number of
+     * samples, the result is the mean of the two middle samples.
+     *
+     * @param samples the number of samples to take the median of.
+     * @param updateWhen when to take a sample.
+     * @return the median-filtered version of this FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput median(final int samples, EventInput updateWhen) {
+        if (updateWhen == null) {
+            throw new NullPointerException();
+        }
+        if (samples <= 0) {
+            throw new IllegalArgumentException("Must take the median of at least one sample: " + samples);
+        }
+        final float initial = get();
+        SampledFloatInput filtered = new SampledFloatInput(this, initial) {
+            private final float[] window = new float[samples];
+            private final float[] sorted = new float[samples];
+            private int next;
+
+            {
+                Arrays.fill(window, initial);
+            }
+
+            @Override
+            protected float step(float previous, float sample) {
+                window[next] = sample;
+                next = (next + 1) % window.length;
+                // insertion sort: the window is small, and this doesn't allocate
+                for (int i = 0; i < window.length; i++) {
+                    float value = window[i];
+                    int j = i;
+                    while (j > 0 && Float.compare(sorted[j - 1], value) > 0) {
+                        sorted[j] = sorted[j - 1];
+                        j--;
+                    }
+                    sorted[j] = value;
+                }
+                int middle = sorted.length / 2;
+                if (sorted.length % 2 == 1) {
+                    return sorted[middle];
+                } else {
+                    return (sorted[middle - 1] + sorted[middle]) / 2;
+                }
+            }
+        };
+        updateWhen.send(filtered);
+        return filtered;
+    }
+
     // TODO: integrals!
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
+
+/**
+ * A FloatVectorInput is a fixed-size group of float values that updates as a
+ * single unit. This is useful for wide groups of sensors, such as all of the
+ * PDP channel currents, where building a tree of
+ * {@link FloatInput#plus(FloatInput)} nodes would create a node and a listener
+ * list for every intermediate result.
+ *
+ * A FloatVectorInput acts as an UpdatingInput that updates when any of its
+ * values change. The bulk operations provided here, such as {@link #sum()} and
+ * {@link #mean()}, each produce a single node that loops over the values.
+ *
+ * @author skeggsc
+ */
+public interface FloatVectorInput extends UpdatingInput {
+
+    /**
+     * Gathers the specified FloatInputs into a single FloatVectorInput. Each
+     * FloatInput gets exactly one listener, which writes into its slot.
+     *
+     * @param inputs the FloatInputs to gather, in order.
+     * @return the gathered FloatVectorInput.
+     */
+    @SetupPhase
+    public static FloatVectorInput of(FloatInput... inputs) {
+        if (inputs.length == 0) {
+            throw new IllegalArgumentException("Must be at least one input!");
+        }
+        FloatArrayCell cell = new FloatArrayCell(inputs.length);
+        for (int i = 0; i < inputs.length; i++) {
+            if (inputs[i] == null) {
+                throw new NullPointerException();
+            }
+            inputs[i].send(cell.slot(i));
+        }
+        return cell;
+    }
+
+    /**
+     * Gets the number of values in this vector. This never changes.
+     *
+     * @return the number of values.
+     */
+    public int size();
+
+    /**
+     * Gets the current value of the specified element of this vector.
+     *
+     * @param index the index of the element.
+     * @return the current value.
+     * @throws IndexOutOfBoundsException if the index is not within the vector.
+     */
+    @FlowPhase
+    public float get(int index);
+
+    /**
+     * Copies the current values of this vector into the start of the specified
+     * array, which must have room for at least {@link #size()} values.
+     *
+     * Implementations should make sure that the copied values are a consistent
+     * snapshot.
+     *
+     * @param target the array to copy into.
+     */
+    @FlowPhase
+    public default void copyTo(float[] target) {
+        int size = size();
+        if (target.length < size) {
+            throw new IllegalArgumentException("Target array is too small: " + target.length + " < " + size);
+        }
+        for (int i = 0; i < size; i++) {
+            target[i] = get(i);
+        }
+    }
+
+    /**
+     * Provides a FloatInput whose value is the specified element of this
+     * vector.
+     *
+     * @param index the index of the element.
+     * @return the FloatInput for that element.
+     */
+    @SetupPhase
+    public default FloatInput element(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index out of range: " + index);
+        }
+        return new DerivedFloatInput(this) {
+            @Override
+            protected float apply() {
+                return FloatVectorInput.this.get(index);
+            }
+        };
+    }
+
+    /**
+     * Provides a FloatInput whose value is the sum of all of the values of this
+     * vector.
+     *
+     * @return the sum as a FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput sum() {
+        final float[] scratch = new float[size()];
+        return new DerivedFloatInput(this) {
+            @Override
+            protected float apply() {
+                copyTo(scratch);
+                float total = 0;
+                for (int i = 0; i < scratch.length; i++) {
+                    total += scratch[i];
+                }
+                return total;
+            }
+        };
+    }
+
+    /**
+     * Provides a FloatInput whose value is the arithmetic mean of all of the
+     * values of this vector.
+     *
+     * @return the mean as a FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput mean() {
+        final float[] scratch = new float[size()];
+        return new DerivedFloatInput(this) {
+            @Override
+            protected float apply() {
+                copyTo(scratch);
+                float total = 0;
+                for (int i = 0; i < scratch.length; i++) {
+                    total += scratch[i];
+                }
+                return total / scratch.length;
+            }
+        };
+    }
+
+    /**
+     * Provides a FloatInput whose value is the largest of all of the values of
+     * this vector. If any value is NaN, the result is NaN.
+     *
+     * @return the maximum as a FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput max() {
+        final float[] scratch = new float[size()];
+        return new DerivedFloatInput(this) {
+            @Override
+            protected float apply() {
+                copyTo(scratch);
+                float max = Float.NEGATIVE_INFINITY;
+                for (int i = 0; i < scratch.length; i++) {
+                    max = Math.max(max, scratch[i]);
+                }
+                return max;
+            }
+        };
+    }
+
+    /**
+     * Provides a FloatInput whose value is the smallest of all of the values of
+     * this vector. If any value is NaN, the result is NaN.
+     *
+     * @return the minimum as a FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput min() {
+        final float[] scratch = new float[size()];
+        return new DerivedFloatInput(this) {
+            @Override
+            protected float apply() {
+                copyTo(scratch);
+                float min = Float.POSITIVE_INFINITY;
+                for (int i = 0; i < scratch.length; i++) {
+                    min = Math.min(min, scratch[i]);
+                }
+                return min;
+            }
+        };
+    }
+
+    /**
+     * Provides a FloatInput whose value is the dot product of this vector and
+     * the specified weights. The weights are copied, so later changes to the
+     * array have no effect.
+     *
+     * @param weights the weights, which must be the same length as this
+     * vector.
+     * @return the dot product as a FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput dot(float... weights) {
+        if (weights.length != size()) {
+            throw new IllegalArgumentException("Weight count does not match vector size: " + weights.length + " != " + size());
+        }
+        final float[] weightsCopy = weights.clone();
+        final float[] scratch = new float[size()];
+        return new DerivedFloatInput(this) {
+            @Override
+            protected float apply() {
+                copyTo(scratch);
+                float total = 0;
+                for (int i = 0; i < scratch.length; i++) {
+                    total += scratch[i] * weightsCopy[i];
+                }
+                return total;
+            }
+        };
+    }
+
+    /**
+     * Provides a FloatInput whose value is the dot product of this vector and
+     * the other vector.
+     *
+     * @param other the other vector, which must be the same size as this
+     * vector.
+     * @return the dot product as a FloatInput.
+     */
+    @SetupPhase
+    public default FloatInput dot(FloatVectorInput other) {
+        if (other.size() != size()) {
+            throw new IllegalArgumentException("Vector sizes do not match: " + other.size() + " != " + size());
+        }
+        final float[] scratch = new float[size()], scratchOther = new float[size()];
+        return new DerivedFloatInput(this, other) {
+            @Override
+            protected float apply() {
+                copyTo(scratch);
+                other.copyTo(scratchOther);
+                float total = 0;
+                for (int i = 0; i < scratch.length; i++) {
+                    total += scratch[i] * scratchOther[i];
+                }
+                return total;
+            }
+        };
+    }
+
+    /**
+     * Provides a FloatVectorInput whose values are the values of this vector,
+     * each passed through the specified filter. The result updates as a single
+     * unit whenever this vector updates.
+     *
+     * @param filter the filter to apply to each element.
+     * @return the filtered vector.
+     */
+    @SetupPhase
+    public default FloatVectorInput map(FloatFilter filter) {
+        if (filter == null) {
+            throw new NullPointerException();
+        }
+        final float[] scratch = new float[size()];
+        FloatArrayCell out = new FloatArrayCell(size());
+        EventOutput update = () -> {
+            copyTo(scratch);
+            for (int i = 0; i < scratch.length; i++) {
+                scratch[i] = filter.filter(scratch[i]);
+            }
+            out.set(scratch);
+        };
+        update.event();
+        onUpdate(update);
+        return out;
+    }
+}
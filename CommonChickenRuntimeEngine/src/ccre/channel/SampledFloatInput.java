@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import ccre.verifier.FlowPhase;
+
+/**
+ * A single stateful node that samples a FloatInput whenever it is fired, and
+ * computes its own value from the previous value and the new sample. This is
+ * the basis of ramping and of the smoothing filters on {@link FloatInput}.
+ *
+ * Subclasses keep all of their state in fields, usually in preallocated
+ * primitive arrays, so that sampling doesn't allocate.
+ *
+ * @author skeggsc
+ */
+abstract class SampledFloatInput extends AbstractUpdatingInput implements FloatInput, EventOutput {
+
+    private static final long serialVersionUID = -6391828370372245165L;
+
+    /**
+     * The input being sampled.
+     */
+    protected final FloatInput source;
+    private float value;
+
+    /**
+     * Creates a new SampledFloatInput. It will not sample anything until it is
+     * fired, usually by registering it with an EventInput.
+     *
+     * @param source the input to sample.
+     * @param initial the initial value of this input.
+     */
+    SampledFloatInput(FloatInput source, float initial) {
+        if (source == null) {
+            throw new NullPointerException();
+        }
+        this.source = source;
+        this.value = initial;
+    }
+
+    @Override
+    public final synchronized float get() {
+        return value;
+    }
+
+    @Override
+    public final synchronized void event() {
+        float newValue = step(value, source.get());
+        if (Float.floatToIntBits(newValue) != Float.floatToIntBits(value)) {
+            value = newValue;
+            perform();
+        }
+    }
+
+    /**
+     * Compute the next value of this input. This is called with the lock held.
+     *
+     * @param previous the current value of this input.
+     * @param sample the value just sampled from the source.
+     * @return the new value of this input.
+     */
+    @FlowPhase
+    protected abstract float step(float previous, float sample);
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ccre.verifier.FlowPhase;
+
+/**
+ * A batch of updates to multiple channels. While a transaction is open on a
+ * thread, any {@link AbstractUpdatingInput} (such as a {@link FloatCell}) that
+ * changes on that thread does not notify its listeners immediately. Instead,
+ * it is queued, and when the outermost transaction commits, each queued input
+ * notifies its listeners exactly once.
+ *
+ * Notifications caused by the commit itself are also queued and flushed in
+ * order, so that each affected node downstream of the transaction propagates
+ * once, after all of the values set inside the transaction are visible. This
+ * means that consumers never observe a mix of old and new values, such as a
+ * left drive motor that has been updated when the right motor has not.
+ *
+ * Because notifications are coalesced, an {@link EventCell} fired several
+ * times inside a transaction will only fire its listeners once.
+ *
+ * Transactions are per-thread, may be nested, and must be committed on the
+ * same thread that began them:
+ *
+ * <code>Transaction t = Transaction.begin();<br>try {<br>&nbsp;&nbsp;&nbsp;&nbsp;left.set(l);<br>&nbsp;&nbsp;&nbsp;&nbsp;right.set(r);<br>} finally {<br>&nbsp;&nbsp;&nbsp;&nbsp;t.commit();<br>}</code>
+ *
+ * or, equivalently, using {@link #run(EventOutput)}.
+ *
+ * @author skeggsc
+ */
+public final class Transaction {
+
+    private static final ThreadLocal<Transaction> current = ThreadLocal.withInitial(Transaction::new);
+    /**
+     * The number of threads with an open transaction, so that the common case
+     * of no open transactions doesn't need to look at the thread-local.
+     */
+    private static final AtomicInteger open = new AtomicInteger();
+
+    private final Thread owner = Thread.currentThread();
+    private final ArrayList<AbstractUpdatingInput> pending = new ArrayList<>();
+    private final Set<AbstractUpdatingInput> queued = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int depth;
+    private boolean flushing;
+
+    private Transaction() {
+    }
+
+    /**
+     * Begin a transaction on the current thread, or a nested transaction if
+     * one is already open. The transaction MUST be committed with
+     * {@link #commit()}, preferably in a finally block.
+     *
+     * @return the transaction to commit.
+     */
+    @FlowPhase
+    public static Transaction begin() {
+        Transaction t = current.get();
+        if (t.depth++ == 0 && !t.flushing) {
+            open.incrementAndGet();
+        }
+        return t;
+    }
+
+    /**
+     * Run <code>body</code> inside a transaction, and then commit it. The
+     * transaction is committed even if <code>body</code> throws an exception.
+     *
+     * @param body the updates to perform inside the transaction.
+     */
+    @FlowPhase
+    public static void run(EventOutput body) {
+        Transaction t = begin();
+        try {
+            body.event();
+        } catch (Throwable thr) {
+            try {
+                t.commit();
+            } catch (Throwable thr2) {
+                thr.addSuppressed(thr2);
+            }
+            throw thr;
+        }
+        t.commit();
+    }
+
+    /**
+     * Checks whether or not a transaction is open on the current thread.
+     *
+     * @return true if updates on this thread are currently being deferred.
+     */
+    @FlowPhase
+    public static boolean isOpen() {
+        if (open.get() == 0) {
+            return false;
+        }
+        Transaction t = current.get();
+        return t.depth > 0 || t.flushing;
+    }
+
+    @FlowPhase
+    static boolean defer(AbstractUpdatingInput input) {
+        if (open.get() == 0) {
+            return false;
+        }
+        Transaction t = current.get();
+        if (t.depth == 0 && !t.flushing) {
+            return false;
+        }
+        if (t.queued.add(input)) {
+            t.pending.add(input);
+        }
+        return true;
+    }
+
+    /**
+     * Commit this transaction. If this is the outermost transaction on this
+     * thread, every input updated during the transaction notifies its
+     * listeners once, and so on downstream.
+     *
+     * If any listener throws an exception, the remaining listeners are still
+     * notified, and the first exception is rethrown afterwards with any others
+     * attached as suppressed exceptions.
+     *
+     * @throws IllegalStateException if this transaction is not open on the
+     * current thread.
+     */
+    @FlowPhase
+    public void commit() throws IllegalStateException {
+        if (Thread.currentThread() != owner || depth <= 0) {
+            throw new IllegalStateException("Transaction is not open on this thread!");
+        }
+        if (--depth > 0 || flushing) {
+            return;
+        }
+        flushing = true;
+        Throwable failure = null;
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                AbstractUpdatingInput input = pending.get(i);
+                queued.remove(input);
+                try {
+                    input.performUndeferred();
+                } catch (Throwable thr) {
+                    if (failure == null) {
+                        failure = thr;
+                    } else {
+                        failure.addSuppressed(thr);
+                    }
+                }
+            }
+        } finally {
+            pending.clear();
+            queued.clear();
+            flushing = false;
+            open.decrementAndGet();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException("Exception during transaction commit", failure);
+        }
+    }
+}
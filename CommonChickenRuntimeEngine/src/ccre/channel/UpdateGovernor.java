@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import ccre.log.Logger;
+import ccre.scheduler.Scheduler;
+import ccre.time.Time;
+import ccre.verifier.FlowPhase;
+
+/**
+ * The rate governor behind {@link AbstractUpdatingInput#limitUpdateRate(int)}.
+ *
+ * Updates are counted over one-second windows. As long as a window stays
+ * within budget, updates propagate immediately. Once a window goes over
+ * budget, further updates are coalesced: they mark the input as pending, and a
+ * flush scheduled once per period propagates at most once. The governor
+ * returns to immediate propagation once a flush finds nothing pending.
+ *
+ * The first storm on each input is reported through the {@link Logger}.
+ *
+ * @author skeggsc
+ */
+final class UpdateGovernor {
+
+    private static final long WINDOW_NANOS = Time.NANOSECONDS_PER_SECOND;
+
+    private final AbstractUpdatingInput target;
+    final int maxPerSecond;
+    private final long periodNanos;
+    private final EventOutput flush = this::flush;
+
+    private long windowStart;
+    private int windowCount;
+    private boolean pending, scheduled, reported;
+
+    UpdateGovernor(AbstractUpdatingInput target, int maxPerSecond) {
+        if (maxPerSecond <= 0) {
+            throw new IllegalArgumentException("Update rate limit must be positive: " + maxPerSecond);
+        }
+        this.target = target;
+        this.maxPerSecond = maxPerSecond;
+        this.periodNanos = Math.max(1, WINDOW_NANOS / maxPerSecond);
+        this.windowStart = Time.currentTimeNanos();
+    }
+
+    /**
+     * Count one update, and decide whether or not it should propagate now.
+     *
+     * @return true if the caller should propagate immediately, or false if the
+     * update has been deferred to a scheduled flush.
+     */
+    @FlowPhase
+    boolean admit() {
+        boolean report;
+        synchronized (this) {
+            long now = Time.currentTimeNanos();
+            if (now - windowStart >= WINDOW_NANOS) {
+                windowStart = now;
+                windowCount = 0;
+            }
+            if (windowCount < Integer.MAX_VALUE) {
+                windowCount++;
+            }
+            if (!scheduled && windowCount <= maxPerSecond) {
+                return true;
+            }
+            pending = true;
+            if (!scheduled) {
+                scheduled = true;
+                Scheduler.scheduleNanos("update-governor", periodNanos, flush);
+            }
+            report = !reported;
+            reported = true;
+        }
+        if (report) {
+            Logger.warning("Update storm on " + target + ": more than " + maxPerSecond + " updates per second; coalescing further updates.");
+        }
+        return false;
+    }
+
+    @FlowPhase
+    private void flush() {
+        synchronized (this) {
+            if (!pending) {
+                scheduled = false;
+                return;
+            }
+            pending = false;
+            Scheduler.scheduleNanos("update-governor", periodNanos, flush);
+        }
+        target.propagate();
+    }
+}
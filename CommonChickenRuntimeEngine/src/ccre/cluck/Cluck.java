@@ -29,6 +29,7 @@ import ccre.channel.EventOutput;
 import ccre.channel.FloatIO;
 import ccre.channel.FloatInput;
 import ccre.channel.FloatOutput;
+import ccre.cluck.shm.CluckSharedMemoryServer;
 import ccre.cluck.tcp.CluckTCPClient;
 import ccre.cluck.tcp.CluckTCPServer;
 import ccre.log.LoggingTarget;
@@ -97,6 +98,20 @@ public final class Cluck {
         return server;
     }
 
+    /**
+     * Set up a shared-memory server for the specified port, so that clients on
+     * this machine that connect to the port can skip the TCP stack.
+     *
+     * @param port the port number that clients will connect to.
+     * @return the server that was set up.
+     */
+    @SetupPhase
+    public static synchronized CluckSharedMemoryServer setupSharedMemoryServer(int port) {
+        CluckSharedMemoryServer server = new CluckSharedMemoryServer(node, port);
+        server.start();
+        return server;
+    }
+
     /**
      * Set up a client pointing at the specified remote address, with the
      * specified name for this link and hint for what the remote end should call
@@ -268,6 +283,19 @@ public final class Cluck {
         CluckPublisher.publish(node, name, input);
     }
 
+    /**
+     * Publish a FloatInput on the network, limiting how often its value is
+     * sent to each client by the specified policy.
+     *
+     * @param name The name for the FloatInput.
+     * @param input The FloatInput.
+     * @param policy The policy to apply to every client.
+     */
+    @SetupPhase
+    public static void publish(String name, FloatInput input, FloatPublishPolicy policy) {
+        CluckPublisher.publish(node, name, input, policy);
+    }
+
     /**
      * Subscribe to a FloatInput from the network at the specified path.
      *
@@ -282,6 +310,49 @@ public final class Cluck {
         return CluckPublisher.subscribeFI(node, path, subscribeByDefault);
     }
 
+    /**
+     * Subscribe to a FloatInput from the network at the specified path, and
+     * ask the publisher to limit how often it sends updates by the specified
+     * policy.
+     *
+     * @param path The path to subscribe to.
+     * @param subscribeByDefault Should this request the value from the remote
+     * by default, as opposed to waiting until this is needed. If this is false,
+     * then <code>get()</code> won't work until you run <code>send()</code> or
+     * <code>onUpdate</code>.
+     * @param policy The policy to request.
+     * @return the FloatInput.
+     */
+    @SetupPhase
+    public static FloatInput subscribeFI(String path, boolean subscribeByDefault, FloatPublishPolicy policy) {
+        return CluckPublisher.subscribeFI(node, path, subscribeByDefault, policy);
+    }
+
+    /**
+     * Create a bundle that will be published under the specified name, which
+     * sends all of its changed values together at the specified period. Add
+     * entries to it, and then call {@link PublishedBundle#publish()}.
+     *
+     * @param name The name for the bundle.
+     * @param periodMillis How often to send frames to subscribers.
+     * @return the unpublished bundle.
+     */
+    @SetupPhase
+    public static PublishedBundle publishBundle(String name, int periodMillis) {
+        return new PublishedBundle(node, name, periodMillis);
+    }
+
+    /**
+     * Subscribe to a bundle from the network at the specified path.
+     *
+     * @param path The path to subscribe to.
+     * @return the subscription, which provides the individual values.
+     */
+    @SetupPhase
+    public static SubscribedBundle subscribeBundle(String path) {
+        return new SubscribedBundle(node, path);
+    }
+
     /**
      * Subscribe to a FloatIO from the network at the specified path.
      *
@@ -115,11 +115,38 @@ public class CluckConstants {
      * The ID representing an InputStream subscribe message.
      */
     public static final byte RMT_INPUTSTREAM = 19;
+    /**
+     * The ID representing a batch of logging messages sent to a LoggingTarget.
+     */
+    public static final byte RMT_LOGBATCH = 20;
+    /**
+     * The ID representing a remote procedure invocation with a streamed reply.
+     */
+    public static final byte RMT_INVOKE_STREAM = 21;
+    /**
+     * The ID representing a chunk of a streamed reply to a remote procedure
+     * invocation.
+     */
+    public static final byte RMT_INVOKE_STREAM_DATA = 22;
+    /**
+     * The ID representing a grant of credit for more chunks of a streamed
+     * reply, or the cancellation of that reply.
+     */
+    public static final byte RMT_INVOKE_STREAM_CREDIT = 23;
+    /**
+     * The ID representing a subscription to a bundle of values.
+     */
+    public static final byte RMT_BUNDLE = 24;
+    /**
+     * The ID representing a frame of values, or the layout of those values,
+     * sent to a bundle subscriber.
+     */
+    public static final byte RMT_BUNDLERESP = 25;
     /**
      * The total number of used RMTs.
      */
-    public static final byte COUNT_RMTS = 20;
-    private static final String[] remoteNames = new String[] { "Ping", "EventOutput", "EventInput", "EventInputResponse", "LogTarget", "BooleanInput", "BooleanInputResponse", "BooleanOutput", "FloatInput", "FloatInputResponse", "FloatOutput", "OutputStream", "Notify", "RemoteProcedure", "RemoteProcedureReply", "NonexistenceNotification", "LEGACY_EventInputUnsubscription", "LEGACY_BooleanInputUnsubscription", "LEGACY_FloatInputUnsubscription", "InputStream" };
+    public static final byte COUNT_RMTS = 26;
+    private static final String[] remoteNames = new String[] { "Ping", "EventOutput", "EventInput", "EventInputResponse", "LogTarget", "BooleanInput", "BooleanInputResponse", "BooleanOutput", "FloatInput", "FloatInputResponse", "FloatOutput", "OutputStream", "Notify", "RemoteProcedure", "RemoteProcedureReply", "NonexistenceNotification", "LEGACY_EventInputUnsubscription", "LEGACY_BooleanInputUnsubscription", "LEGACY_FloatInputUnsubscription", "InputStream", "LogBatch", "RemoteProcedureStream", "RemoteProcedureStreamData", "RemoteProcedureStreamCredit", "Bundle", "BundleResponse" };
 
     /**
      * Convert an RMT ID to a string.
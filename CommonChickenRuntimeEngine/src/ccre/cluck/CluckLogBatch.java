@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import java.util.Arrays;
+
+import ccre.log.LogLevel;
+import ccre.log.Logger;
+import ccre.log.LoggingTarget;
+import ccre.util.Utils;
+
+/**
+ * An accumulator for batches of logging messages sent to a published
+ * {@link LoggingTarget}, so that many messages can be sent as a single Cluck
+ * message. A batch is encoded once, and the same frame can then be sent to any
+ * number of remotes.
+ *
+ * Each record in a batch has the same layout as an individual
+ * {@link CluckConstants#RMT_LOGTARGET} message, minus the RMT byte: the level,
+ * the lengths of the message and extended message, and then their UTF-8
+ * bytes. A batch frame is {@link CluckConstants#RMT_LOGBATCH}, a four-byte
+ * record count, and then the records.
+ *
+ * Older peers reject batch frames, so a sender should only send them to
+ * remotes that have answered a {@link #encodeQuery() query} with
+ * {@link #isSupported(byte[]) support}. Both are sent as
+ * {@link CluckConstants#RMT_NEGATIVE_ACK} messages, which older peers ignore.
+ *
+ * This class is not thread-safe.
+ *
+ * @author skeggsc
+ */
+public final class CluckLogBatch {
+
+    private static final int HEADER_LENGTH = 5, RECORD_HEADER_LENGTH = 9;
+    private static final byte CONTROL_BATCHING = 0x62, CONTROL_QUERY = 1, CONTROL_SUPPORTED = 2;
+
+    private byte[] buffer;
+    private int length = HEADER_LENGTH, count;
+
+    /**
+     * Create a new empty batch.
+     *
+     * @param initialCapacity the initial size of the buffer, in bytes.
+     */
+    public CluckLogBatch(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, HEADER_LENGTH + RECORD_HEADER_LENGTH)];
+    }
+
+    /**
+     * Add a message to this batch.
+     *
+     * @param level the level of the message.
+     * @param message the message.
+     * @param extended the extended message, or null.
+     */
+    public void add(LogLevel level, String message, String extended) {
+        byte[] msg = Utils.getBytes(message);
+        byte[] ext = extended == null ? new byte[0] : Utils.getBytes(extended);
+        int needed = length + RECORD_HEADER_LENGTH + msg.length + ext.length;
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+        }
+        length = putRecord(buffer, length, level, msg, ext);
+        count++;
+    }
+
+    /**
+     * @return the number of messages in this batch.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return the size, in bytes, that the frame for this batch would have.
+     */
+    public int size() {
+        return length;
+    }
+
+    /**
+     * Encode this batch as a frame and reset it to be empty.
+     *
+     * @return the encoded frame, or null if the batch was empty.
+     */
+    public byte[] take() {
+        if (count == 0) {
+            return null;
+        }
+        byte[] frame = Arrays.copyOf(buffer, length);
+        frame[0] = CluckConstants.RMT_LOGBATCH;
+        putInt(frame, 1, count);
+        length = HEADER_LENGTH;
+        count = 0;
+        return frame;
+    }
+
+    /**
+     * Encode a single logging message, as sent to a published LoggingTarget.
+     *
+     * @param level the level of the message.
+     * @param message the message.
+     * @param extended the extended message, or null.
+     * @return the encoded message.
+     */
+    public static byte[] encodeSingle(LogLevel level, String message, String extended) {
+        byte[] msg = Utils.getBytes(message);
+        byte[] ext = extended == null ? new byte[0] : Utils.getBytes(extended);
+        byte[] out = new byte[1 + RECORD_HEADER_LENGTH + msg.length + ext.length];
+        out[0] = CluckConstants.RMT_LOGTARGET;
+        putRecord(out, 1, level, msg, ext);
+        return out;
+    }
+
+    /**
+     * Encode a query asking whether a published LoggingTarget accepts batch
+     * frames. Targets that do will reply with a message accepted by
+     * {@link #isSupported(byte[])}, and older targets will ignore it.
+     *
+     * @return the encoded query.
+     */
+    public static byte[] encodeQuery() {
+        return new byte[] { CluckConstants.RMT_NEGATIVE_ACK, CONTROL_BATCHING, CONTROL_QUERY };
+    }
+
+    /**
+     * Check whether a message is a query from {@link #encodeQuery()}.
+     *
+     * @param data the message.
+     * @return true if it is a query.
+     */
+    public static boolean isQuery(byte[] data) {
+        return data.length == 3 && data[0] == CluckConstants.RMT_NEGATIVE_ACK && data[1] == CONTROL_BATCHING && data[2] == CONTROL_QUERY;
+    }
+
+    /**
+     * Encode the reply to a query, which says that batch frames are accepted.
+     *
+     * @return the encoded reply.
+     */
+    public static byte[] encodeSupported() {
+        return new byte[] { CluckConstants.RMT_NEGATIVE_ACK, CONTROL_BATCHING, CONTROL_SUPPORTED };
+    }
+
+    /**
+     * Check whether a message is a reply from {@link #encodeSupported()}.
+     *
+     * @param data the message.
+     * @return true if the sender accepts batch frames.
+     */
+    public static boolean isSupported(byte[] data) {
+        return data.length == 3 && data[0] == CluckConstants.RMT_NEGATIVE_ACK && data[1] == CONTROL_BATCHING && data[2] == CONTROL_SUPPORTED;
+    }
+
+    /**
+     * Decode a batch frame and deliver each of its messages to a target. An
+     * empty extended message is delivered as null.
+     *
+     * @param frame the frame, including the RMT byte.
+     * @param target the target to deliver to.
+     * @return true if the frame was valid. If it was not, messages before the
+     * problem may still have been delivered.
+     */
+    public static boolean decode(byte[] frame, LoggingTarget target) {
+        if (frame.length < HEADER_LENGTH || frame[0] != CluckConstants.RMT_LOGBATCH) {
+            return false;
+        }
+        int remaining = Utils.bytesToInt(frame, 1);
+        int offset = HEADER_LENGTH;
+        while (remaining-- > 0) {
+            if (!decodeRecord(frame, offset, target)) {
+                return false;
+            }
+            offset += RECORD_HEADER_LENGTH + Utils.bytesToInt(frame, offset + 1) + Utils.bytesToInt(frame, offset + 5);
+        }
+        return offset == frame.length;
+    }
+
+    /**
+     * Decode one record and deliver it to a target.
+     *
+     * @param data the array containing the record.
+     * @param offset the offset of the record's level byte.
+     * @param target the target to deliver to.
+     * @return true if the record was valid.
+     */
+    static boolean decodeRecord(byte[] data, int offset, LoggingTarget target) {
+        if (offset < 0 || data.length - offset < RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        int len1 = Utils.bytesToInt(data, offset + 1);
+        int len2 = Utils.bytesToInt(data, offset + 5);
+        int start = offset + RECORD_HEADER_LENGTH;
+        if (len1 < 0 || len2 < 0 || (long) start + len1 + len2 > data.length) {
+            return false;
+        }
+        LogLevel level;
+        try {
+            level = LogLevel.fromByte(data[offset]);
+        } catch (IllegalArgumentException ex) {
+            Logger.warning("Bad logging level received by Logging Target: " + data[offset]);
+            return false;
+        }
+        String message = Utils.fromBytes(data, start, len1);
+        String extended = len2 == 0 ? null : Utils.fromBytes(data, start + len1, len2);
+        target.log(level, message, extended);
+        return true;
+    }
+
+    private static int putRecord(byte[] out, int offset, LogLevel level, byte[] msg, byte[] ext) {
+        out[offset] = LogLevel.toByte(level);
+        putInt(out, offset + 1, msg.length);
+        putInt(out, offset + 5, ext.length);
+        System.arraycopy(msg, 0, out, offset + RECORD_HEADER_LENGTH, msg.length);
+        System.arraycopy(ext, 0, out, offset + RECORD_HEADER_LENGTH + msg.length, ext.length);
+        return offset + RECORD_HEADER_LENGTH + msg.length + ext.length;
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >> 24);
+        out[offset + 1] = (byte) (value >> 16);
+        out[offset + 2] = (byte) (value >> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import ccre.channel.BooleanCell;
@@ -45,6 +46,8 @@ import ccre.log.LoggingTarget;
 import ccre.rconf.RConf;
 import ccre.rconf.RConf.Entry;
 import ccre.rconf.RConfable;
+import ccre.scheduler.Scheduler;
+import ccre.time.Time;
 import ccre.util.UniqueIds;
 import ccre.util.Utils;
 import ccre.verifier.SetupPhase;
@@ -190,18 +193,27 @@ public class CluckPublisher {
         if (lt == null) {
             throw new NullPointerException();
         }
-        new CluckRMTSubscriber(node, CluckConstants.RMT_LOGTARGET, 10) {
+        new CluckSubscriber(node) {
             @Override
-            protected void receiveValid(String source, byte[] data) {
-                int len1 = Utils.bytesToInt(data, 2);
-                int len2 = Utils.bytesToInt(data, 6);
-                if (len1 + len2 + 10 != data.length) {
-                    Logger.warning("Bad data length to Logging Target!");
-                    return;
+            protected void receive(String source, byte[] data) {
+                if (CluckLogBatch.isQuery(data)) {
+                    node.transmit(source, name, CluckLogBatch.encodeSupported());
+                } else if (data.length > 0 && data[0] == CluckConstants.RMT_LOGBATCH) {
+                    if (!CluckLogBatch.decode(data, lt)) {
+                        Logger.warning("Bad data in batch to Logging Target!");
+                    }
+                } else if (requireRMT(source, data, CluckConstants.RMT_LOGTARGET, 10)) {
+                    int len1 = Utils.bytesToInt(data, 2);
+                    int len2 = Utils.bytesToInt(data, 6);
+                    if (len1 + len2 + 10 != data.length || !CluckLogBatch.decodeRecord(data, 1, lt)) {
+                        Logger.warning("Bad data length to Logging Target!");
+                    }
                 }
-                String message = Utils.fromBytes(data, 10, len1);
-                String extended = len2 == 0 ? null : Utils.fromBytes(data, 10 + len1, len2);
-                lt.log(LogLevel.fromByte(data[1]), message, extended);
+            }
+
+            @Override
+            protected void receiveBroadcast(String source, byte[] data) {
+                defaultBroadcastHandle(source, data, CluckConstants.RMT_LOGTARGET);
             }
         }.attach(name);
     }
@@ -324,21 +336,48 @@ public class CluckPublisher {
      */
     @SetupPhase
     public static void publish(final CluckNode node, final String name, final FloatInput input) {
-        final CopyOnWriteArrayList<String> remotes = new CopyOnWriteArrayList<String>();
-        input.send(new FloatInputPublishListener(remotes, name, node));
+        publish(node, name, input, FloatPublishPolicy.EVERY_CHANGE);
+    }
+
+    /**
+     * Publish a FloatInput on the network, limiting how often its value is
+     * sent to each client by the specified policy. This will send values to
+     * clients when they connect.
+     *
+     * Clients can request stricter policies when subscribing, but not more
+     * lenient ones.
+     *
+     * @param node The node to publish on.
+     * @param name The name for the FloatInput.
+     * @param input The FloatInput.
+     * @param policy The policy to apply to every client.
+     */
+    @SetupPhase
+    public static void publish(final CluckNode node, final String name, final FloatInput input, final FloatPublishPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException();
+        }
+        final ConcurrentHashMap<String, FloatRemote> remotes = new ConcurrentHashMap<String, FloatRemote>();
+        input.send(new FloatInputPublishListener(remotes));
         new CluckSubscriber(node) {
             @Override
             protected void receive(String src, byte[] data) {
                 if (data.length != 0 && (data[0] == CluckConstants.RMT_NEGATIVE_ACK || data[0] == CluckConstants.RMT_LEGACY_FLOATINPUT_UNSUB)) {
-                    if (remotes.remove(src)) {
+                    FloatRemote remote = remotes.remove(src);
+                    if (remote != null) {
+                        remote.close();
                         Logger.warning("Connection cancelled to " + src + " on " + name);
                     } else {
                         Logger.warning("Received cancellation to nonexistent " + src + " on " + name);
                     }
                 } else if (requireRMT(src, data, CluckConstants.RMT_FLOATINPUT)) {
-                    remotes.add(src);
-                    int iver = Float.floatToIntBits(input.get());
-                    node.transmit(src, name, new byte[] { CluckConstants.RMT_FLOATINPUTRESP, (byte) (iver >> 24), (byte) (iver >> 16), (byte) (iver >> 8), (byte) iver });
+                    FloatRemote remote = new FloatRemote(node, name, src, policy.combine(FloatPublishPolicy.decode(data, 1)));
+                    FloatRemote old = remotes.put(src, remote);
+                    if (old != null) {
+                        // resubscription, possibly with a different policy
+                        old.close();
+                    }
+                    remote.start(input.get());
                 }
             }
 
@@ -362,10 +401,30 @@ public class CluckPublisher {
      */
     @SetupPhase
     public static FloatInput subscribeFI(final CluckNode node, final String path, final boolean subscribeByDefault) {
-        if (node == null || path == null) {
+        return subscribeFI(node, path, subscribeByDefault, FloatPublishPolicy.EVERY_CHANGE);
+    }
+
+    /**
+     * Subscribe to a FloatInput from the network at the specified path, and
+     * ask the publisher to limit how often it sends updates by the specified
+     * policy. Publishers from before policies were supported will ignore the
+     * request and send every change.
+     *
+     * @param node The node to subscribe from.
+     * @param path The path to subscribe to.
+     * @param subscribeByDefault Should this request the value from the remote
+     * by default, as opposed to waiting until this is needed. If this is false,
+     * then <code>get()</code> won't work until you run <code>send()</code> or
+     * <code>onUpdate</code>.
+     * @param policy The policy to request.
+     * @return the FloatInput.
+     */
+    @SetupPhase
+    public static FloatInput subscribeFI(final CluckNode node, final String path, final boolean subscribeByDefault, final FloatPublishPolicy policy) {
+        if (node == null || path == null || policy == null) {
             throw new NullPointerException();
         }
-        final SubscribedFloatInput result = new SubscribedFloatInput(node, path, subscribeByDefault);
+        final SubscribedFloatInput result = new SubscribedFloatInput(node, path, subscribeByDefault, policy);
         new FloatInputReceiver(node, result, path).attach();
         return result;
     }
@@ -629,16 +688,68 @@ public class CluckPublisher {
     /**
      * Publish an RConfable device on the network.
      *
+     * Clients that support it receive only the entries that changed since
+     * their last query, and are notified when the entries change, so that idle
+     * clients cause no network traffic. See {@link VersionedRConf}.
+     *
      * @param node The node to publish on.
      * @param name The name for the RConfable.
      * @param device The RConfable.
      */
     @SetupPhase
-    public static void publishRConf(CluckNode node, String name, final RConfable device) {
+    public static void publishRConf(final CluckNode node, String name, final RConfable device) {
+        final VersionedRConf versions = new VersionedRConf(device);
+        final String changesName = name + "-rconfv";
+        final CopyOnWriteArrayList<String> watchers = new CopyOnWriteArrayList<String>();
+        versions.getChanges().send(() -> {
+            for (String remote : watchers) {
+                node.transmit(remote, changesName, new byte[] { CluckConstants.RMT_EVENTINPUTRESP });
+            }
+        });
+        new CluckSubscriber(node) {
+            @Override
+            protected void receive(String src, byte[] data) {
+                if (data.length != 0 && (data[0] == CluckConstants.RMT_NEGATIVE_ACK || data[0] == CluckConstants.RMT_LEGACY_EVENTINPUT_UNSUB)) {
+                    synchronized (watchers) {
+                        if (watchers.remove(src)) {
+                            Logger.warning("Connection cancelled to " + src + " on " + changesName);
+                        } else {
+                            Logger.warning("Received cancellation to nonexistent " + src + " on " + changesName);
+                        }
+                        versions.setWatched(!watchers.isEmpty());
+                    }
+                } else if (requireRMT(src, data, CluckConstants.RMT_EVENTINPUT)) {
+                    synchronized (watchers) {
+                        if (watchers.addIfAbsent(src)) {
+                            versions.setWatched(true);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            protected void receiveBroadcast(String source, byte[] data) {
+                defaultBroadcastHandle(source, data, CluckConstants.RMT_EVENTINPUT);
+            }
+        }.attach(changesName);
         node.getRPCManager().publish(name + "-rpcq", new RemoteProcedure() {
             @Override
             public void invoke(byte[] in, OutputStream out) {
                 try {
+                    if (in.length != 0 && in[0] == VersionedRConf.REQUEST_DELTA) {
+                        try {
+                            versions.refresh();
+                        } catch (InterruptedException e1) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        try {
+                            out.write(versions.encodeDelta(in));
+                        } catch (IOException e) {
+                            Logger.warning("IOException during response to RConf query!", e);
+                        }
+                        return;
+                    }
                     RConf.Entry[] data;
                     try {
                         data = device.queryRConf();
@@ -685,6 +796,10 @@ public class CluckPublisher {
                         boolean success;
                         try {
                             success = device.signalRConf(((in[0] & 0xFF) << 8) | (in[1] & 0xFF), data);
+                            if (!watchers.isEmpty()) {
+                                // let watchers see the effect right away
+                                versions.refresh();
+                            }
                         } catch (InterruptedException ex) {
                             throw ex;
                         } catch (Throwable thr) {
@@ -722,7 +837,7 @@ public class CluckPublisher {
     public static RConfable subscribeRConf(CluckNode node, String path, final int timeout) {
         final RemoteProcedure query = node.getRPCManager().subscribe(path + "-rpcq", timeout);
         final RemoteProcedure signal = node.getRPCManager().subscribe(path + "-rpcs", timeout);
-        return new SubscribedRConfable(query, timeout, signal);
+        return new SubscribedRConfable(query, timeout, signal, node, path);
     }
 
     private CluckPublisher() {
@@ -733,11 +848,50 @@ public class CluckPublisher {
         private final RemoteProcedure query;
         private final int timeout;
         private final RemoteProcedure signal;
+        private final CluckNode node;
+        private final String path;
+        // the entries, epoch, and version from the last delta response
+        private transient RConf.Entry[] cached;
+        private transient int[] epochAndVersion;
+        private transient EventInput changes;
 
-        private SubscribedRConfable(RemoteProcedure query, int timeout, RemoteProcedure signal) {
+        private SubscribedRConfable(RemoteProcedure query, int timeout, RemoteProcedure signal, CluckNode node, String path) {
             this.query = query;
             this.timeout = timeout;
             this.signal = signal;
+            this.node = node;
+            this.path = path;
+        }
+
+        @Override
+        public synchronized EventInput getRConfChanges() {
+            // only servers that send deltas also announce changes
+            if (cached == null || node == null) {
+                return null;
+            }
+            if (changes == null) {
+                changes = subscribeEI(node, path + "-rconfv");
+            }
+            return changes;
+        }
+
+        private synchronized byte[] deltaRequest() {
+            if (epochAndVersion == null) {
+                epochAndVersion = new int[2];
+            }
+            return VersionedRConf.request(epochAndVersion[0], epochAndVersion[1]);
+        }
+
+        private synchronized Entry[] applyDelta(byte[] response) {
+            Entry[] out = VersionedRConf.applyDelta(response, cached == null ? new Entry[0] : cached, epochAndVersion);
+            if (out == null) {
+                Logger.warning("Malformed RConf delta response!");
+                // start over with a full response next time
+                epochAndVersion[0] = epochAndVersion[1] = 0;
+                return null;
+            }
+            cached = out;
+            return out.clone();
         }
 
         @Override
@@ -761,10 +915,13 @@ public class CluckPublisher {
 
         @Override
         public Entry[] queryRConf() throws InterruptedException {
-            byte[] data = SimpleProcedure.invoke(query, new byte[0], timeout);
+            byte[] data = SimpleProcedure.invoke(query, deltaRequest(), timeout);
             if (data == SimpleProcedure.TIMED_OUT) {
                 return null;
             }
+            if (VersionedRConf.isDelta(data)) {
+                return applyDelta(data);
+            }
             if (data.length < 2) {
                 Logger.warning("Too-short (1) RConf query response!");
                 return null;
@@ -798,22 +955,117 @@ public class CluckPublisher {
 
     private static final class FloatInputPublishListener implements FloatOutput {
         private static final long serialVersionUID = 1432024738866192130L;
-        private final CopyOnWriteArrayList<String> remotes;
-        private final String name;
-        private final CluckNode node;
+        private final ConcurrentHashMap<String, FloatRemote> remotes;
 
-        private FloatInputPublishListener(CopyOnWriteArrayList<String> remotes, String name, CluckNode node) {
+        private FloatInputPublishListener(ConcurrentHashMap<String, FloatRemote> remotes) {
             this.remotes = remotes;
-            this.name = name;
-            this.node = node;
         }
 
         @Override
         public void set(float value) {
-            for (String remote : remotes) {
-                int iver = Float.floatToIntBits(value);
-                node.transmit(remote, name, new byte[] { CluckConstants.RMT_FLOATINPUTRESP, (byte) (iver >> 24), (byte) (iver >> 16), (byte) (iver >> 8), (byte) iver });
+            for (FloatRemote remote : remotes.values()) {
+                remote.update(value);
+            }
+        }
+    }
+
+    /**
+     * The state of a single subscriber to a published FloatInput, which
+     * applies the subscriber's policy before anything is sent to it.
+     */
+    private static final class FloatRemote implements Serializable {
+        private static final long serialVersionUID = -4319574408632071046L;
+        private final CluckNode node;
+        private final String name;
+        private final String remote;
+        private final FloatPublishPolicy policy;
+        private float latest, lastSent;
+        private long lastSentAt, nextSampleAt;
+        private boolean flushScheduled, closed;
+
+        FloatRemote(CluckNode node, String name, String remote, FloatPublishPolicy policy) {
+            this.node = node;
+            this.name = name;
+            this.remote = remote;
+            this.policy = policy;
+        }
+
+        void start(float value) {
+            float initial;
+            synchronized (this) {
+                initial = latest = lastSent = policy.applyDeadband(value);
+                lastSentAt = Time.currentTimeNanos();
+                if (policy.getSamplePeriodMillis() != 0) {
+                    nextSampleAt = lastSentAt + policy.getSamplePeriodMillis() * Time.NANOSECONDS_PER_MILLISECOND;
+                    Scheduler.scheduleAt("cluck-publish-sample", nextSampleAt, this::sample);
+                }
             }
+            transmit(initial);
+        }
+
+        void update(float value) {
+            if (policy.isEveryChange()) {
+                // fast path, with the same behavior as before policies
+                transmit(value);
+                return;
+            }
+            float toSend;
+            synchronized (this) {
+                latest = policy.applyDeadband(value);
+                if (closed || flushScheduled || policy.getSamplePeriodMillis() != 0 || !policy.isSignificant(lastSent, latest)) {
+                    // either dropped, or sent later by the flush or sampler
+                    return;
+                }
+                long now = Time.currentTimeNanos();
+                long nextAllowed = lastSentAt + policy.getMinIntervalMillis() * Time.NANOSECONDS_PER_MILLISECOND;
+                if (now < nextAllowed) {
+                    flushScheduled = true;
+                    Scheduler.scheduleAt("cluck-publish-flush", nextAllowed, this::flush);
+                    return;
+                }
+                toSend = lastSent = latest;
+                lastSentAt = now;
+            }
+            transmit(toSend);
+        }
+
+        private void flush() {
+            synchronized (this) {
+                flushScheduled = false;
+            }
+            sendIfSignificant();
+        }
+
+        private void sample() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                nextSampleAt += policy.getSamplePeriodMillis() * Time.NANOSECONDS_PER_MILLISECOND;
+                Scheduler.scheduleAt("cluck-publish-sample", nextSampleAt, this::sample);
+            }
+            sendIfSignificant();
+        }
+
+        private void sendIfSignificant() {
+            float toSend;
+            synchronized (this) {
+                if (closed || !policy.isSignificant(lastSent, latest)) {
+                    return;
+                }
+                toSend = lastSent = latest;
+                lastSentAt = Time.currentTimeNanos();
+            }
+            transmit(toSend);
+        }
+
+        private void transmit(float value) {
+            int iver = Float.floatToIntBits(value);
+            node.transmit(remote, name, new byte[] { CluckConstants.RMT_FLOATINPUTRESP, (byte) (iver >> 24), (byte) (iver >> 16), (byte) (iver >> 8), (byte) iver });
+        }
+
+        synchronized void close() {
+            closed = true;
         }
     }
 
@@ -858,24 +1110,7 @@ public class CluckPublisher {
         @Override
         public void log(LogLevel level, String message, String extended) {
             try {
-                byte[] msg = message.getBytes("UTF-8");
-                byte[] ext = extended == null ? new byte[0] : extended.getBytes("UTF-8");
-                byte[] out = new byte[10 + msg.length + ext.length];
-                out[0] = CluckConstants.RMT_LOGTARGET;
-                out[1] = LogLevel.toByte(level);
-                int lm = msg.length;
-                out[2] = (byte) (lm >> 24);
-                out[3] = (byte) (lm >> 16);
-                out[4] = (byte) (lm >> 8);
-                out[5] = (byte) (lm);
-                int le = ext.length;
-                out[6] = (byte) (le >> 24);
-                out[7] = (byte) (le >> 16);
-                out[8] = (byte) (le >> 8);
-                out[9] = (byte) (le);
-                System.arraycopy(msg, 0, out, 10, msg.length);
-                System.arraycopy(ext, 0, out, 10 + msg.length, ext.length);
-                node.transmit(path, null, out);
+                node.transmit(path, null, CluckLogBatch.encodeSingle(level, message, extended));
             } catch (Throwable thr) {
                 // We use System.currentTimeMillis() instead of
                 // Time.currentTimeMillis() because this is only to prevent
@@ -897,25 +1132,38 @@ public class CluckPublisher {
         private final String path;
         private transient String linkName;
         private final boolean canUnsubscribe;
+        private final FloatPublishPolicy policy;
 
-        SubscribedFloatInput(CluckNode node, String path, boolean subscribeByDefault) {
+        SubscribedFloatInput(CluckNode node, String path, boolean subscribeByDefault, FloatPublishPolicy policy) {
             super(Float.NaN);
             this.sent = subscribeByDefault;
             this.node = node;
             this.path = path;
+            this.policy = policy;
             generateLinkName();
             this.canUnsubscribe = !subscribeByDefault;
             if (subscribeByDefault) {
-                node.transmit(path, linkName, new byte[] { CluckConstants.RMT_FLOATINPUT });
+                node.transmit(path, linkName, getSubscribeMessage());
             }
         }
 
+        byte[] getSubscribeMessage() {
+            if (policy == null || policy.isEveryChange()) {
+                // the same as before policies, for older publishers
+                return new byte[] { CluckConstants.RMT_FLOATINPUT };
+            }
+            byte[] out = new byte[1 + FloatPublishPolicy.ENCODED_LENGTH];
+            out[0] = CluckConstants.RMT_FLOATINPUT;
+            policy.encode(out, 1);
+            return out;
+        }
+
         @Override
         public synchronized CancelOutput onUpdate(EventOutput out) {
             CancelOutput base = super.onUpdate(out);
             if (!sent) {
                 sent = true;
-                node.transmit(path, linkName, new byte[] { CluckConstants.RMT_FLOATINPUT });
+                node.transmit(path, linkName, getSubscribeMessage());
             }
             return base.combine(() -> {
                 synchronized (SubscribedFloatInput.this) {
@@ -973,7 +1221,7 @@ public class CluckPublisher {
         protected void receiveBroadcast(String source, byte[] data) {
             if (data.length == 1 && data[0] == CluckConstants.RMT_NOTIFY) {
                 if (result.shouldResend()) {
-                    node.transmit(path, linkName, new byte[] { CluckConstants.RMT_FLOATINPUT });
+                    node.transmit(path, linkName, result.getSubscribeMessage());
                 }
             }
         }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import java.io.Serializable;
+
+import ccre.log.Logger;
+import ccre.util.Utils;
+
+/**
+ * A policy for how often a published FloatInput sends its value to each
+ * subscriber. Policies are applied by the publisher before the value is sent
+ * to each remote, so a noisy input doesn't flood the network with updates
+ * that nobody needs.
+ *
+ * A publication can have a policy, and each subscriber can request a policy
+ * when it subscribes. The stricter limit of the two is used for each setting.
+ *
+ * Policies are immutable: the <code>with</code> methods return modified
+ * copies.
+ *
+ * @author skeggsc
+ */
+public final class FloatPublishPolicy implements Serializable {
+
+    private static final long serialVersionUID = -2961047617344392307L;
+
+    /**
+     * The policy that sends every change immediately, which is how
+     * FloatInputs have always been published.
+     */
+    public static final FloatPublishPolicy EVERY_CHANGE = new FloatPublishPolicy(0, 0, 0, 0);
+
+    /**
+     * The length of an encoded policy.
+     */
+    static final int ENCODED_LENGTH = 16;
+
+    private final int minIntervalMillis;
+    private final float minDelta;
+    private final float deadband;
+    private final int samplePeriodMillis;
+
+    private FloatPublishPolicy(int minIntervalMillis, float minDelta, float deadband, int samplePeriodMillis) {
+        if (minIntervalMillis < 0 || samplePeriodMillis < 0) {
+            throw new IllegalArgumentException("Intervals must be nonnegative!");
+        }
+        if (!(minDelta >= 0) || !(deadband >= 0)) {
+            throw new IllegalArgumentException("Deltas must be nonnegative!");
+        }
+        this.minIntervalMillis = minIntervalMillis;
+        this.minDelta = minDelta;
+        this.deadband = deadband;
+        this.samplePeriodMillis = samplePeriodMillis;
+    }
+
+    /**
+     * Limit the rate at which updates are sent. If the value changes again
+     * too soon after an update, the newest value is held back until the rate
+     * allows it to be sent.
+     *
+     * @param maxRateHz the maximum number of updates per second, or zero for
+     * no limit.
+     * @return the modified policy.
+     */
+    public FloatPublishPolicy withMaxRate(float maxRateHz) {
+        if (!(maxRateHz >= 0)) {
+            throw new IllegalArgumentException("Rate must be nonnegative!");
+        }
+        return new FloatPublishPolicy(maxRateHz == 0 ? 0 : (int) Math.ceil(1000 / maxRateHz), minDelta, deadband, samplePeriodMillis);
+    }
+
+    /**
+     * Only send updates that differ from the last value sent by at least the
+     * specified amount. Smaller changes are dropped, but they still count once
+     * they add up.
+     *
+     * @param minDelta the minimum change to send, or zero for any change.
+     * @return the modified policy.
+     */
+    public FloatPublishPolicy withMinDelta(float minDelta) {
+        return new FloatPublishPolicy(minIntervalMillis, minDelta, deadband, samplePeriodMillis);
+    }
+
+    /**
+     * Send values within the specified distance of zero as exactly zero, like
+     * {@link ccre.channel.FloatInput#deadzone(float)}, so that a sensor
+     * resting near zero doesn't keep sending updates.
+     *
+     * @param deadband the distance from zero, or zero for no deadband.
+     * @return the modified policy.
+     */
+    public FloatPublishPolicy withDeadband(float deadband) {
+        return new FloatPublishPolicy(minIntervalMillis, minDelta, deadband, samplePeriodMillis);
+    }
+
+    /**
+     * Instead of sending changes as they happen, sample the value at the
+     * specified period and send it if it has changed since it was last sent.
+     *
+     * @param samplePeriodMillis the period, or zero to send changes as they
+     * happen.
+     * @return the modified policy.
+     */
+    public FloatPublishPolicy withSamplePeriod(int samplePeriodMillis) {
+        return new FloatPublishPolicy(minIntervalMillis, minDelta, deadband, samplePeriodMillis);
+    }
+
+    /**
+     * @return the minimum time between updates, in milliseconds.
+     */
+    public int getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    /**
+     * @return the minimum change between updates.
+     */
+    public float getMinDelta() {
+        return minDelta;
+    }
+
+    /**
+     * @return the distance from zero within which values are sent as zero.
+     */
+    public float getDeadband() {
+        return deadband;
+    }
+
+    /**
+     * @return the sampling period in milliseconds, or zero if changes are sent
+     * as they happen.
+     */
+    public int getSamplePeriodMillis() {
+        return samplePeriodMillis;
+    }
+
+    /**
+     * Combine this policy with another, by taking the stricter limit for each
+     * setting.
+     *
+     * @param other the other policy.
+     * @return the combined policy.
+     */
+    public FloatPublishPolicy combine(FloatPublishPolicy other) {
+        if (other == EVERY_CHANGE) {
+            return this;
+        } else if (this == EVERY_CHANGE) {
+            return other;
+        }
+        return new FloatPublishPolicy(Math.max(minIntervalMillis, other.minIntervalMillis), Math.max(minDelta, other.minDelta), Math.max(deadband, other.deadband), Math.max(samplePeriodMillis, other.samplePeriodMillis));
+    }
+
+    /**
+     * @return true if this policy sends every change immediately.
+     */
+    public boolean isEveryChange() {
+        return minIntervalMillis == 0 && minDelta == 0 && deadband == 0 && samplePeriodMillis == 0;
+    }
+
+    /**
+     * Apply the deadband of this policy to a value.
+     *
+     * @param value the value.
+     * @return the value to send.
+     */
+    float applyDeadband(float value) {
+        return Math.abs(value) < deadband ? 0 : value;
+    }
+
+    /**
+     * Check if a change is large enough to send under this policy.
+     *
+     * @param last the last value sent.
+     * @param value the new value.
+     * @return true if the change should be sent.
+     */
+    boolean isSignificant(float last, float value) {
+        if (Float.floatToIntBits(last) == Float.floatToIntBits(value)) {
+            return false;
+        }
+        // changes to or from NaN or infinity always count
+        return !(Math.abs(value - last) < minDelta);
+    }
+
+    /**
+     * Encode this policy into <code>out</code>, starting at
+     * <code>offset</code>.
+     *
+     * @param out the array to encode into.
+     * @param offset the offset to start at.
+     */
+    void encode(byte[] out, int offset) {
+        int bits = Float.floatToIntBits(minDelta), dbits = Float.floatToIntBits(deadband);
+        int[] words = { minIntervalMillis, bits, dbits, samplePeriodMillis };
+        for (int i = 0; i < words.length; i++) {
+            out[offset + i * 4] = (byte) (words[i] >> 24);
+            out[offset + i * 4 + 1] = (byte) (words[i] >> 16);
+            out[offset + i * 4 + 2] = (byte) (words[i] >> 8);
+            out[offset + i * 4 + 3] = (byte) words[i];
+        }
+    }
+
+    /**
+     * Decode a policy from <code>data</code>, starting at <code>offset</code>.
+     * If there is no policy there, or it is malformed, the policy that sends
+     * every change is returned.
+     *
+     * @param data the array to decode from.
+     * @param offset the offset to start at.
+     * @return the decoded policy.
+     */
+    static FloatPublishPolicy decode(byte[] data, int offset) {
+        if (data.length == offset) {
+            return EVERY_CHANGE;
+        }
+        if (data.length - offset < ENCODED_LENGTH) {
+            Logger.warning("Too-short publish policy: " + (data.length - offset) + " bytes");
+            return EVERY_CHANGE;
+        }
+        int minInterval = Utils.bytesToInt(data, offset), samplePeriod = Utils.bytesToInt(data, offset + 12);
+        float minDelta = Utils.bytesToFloat(data, offset + 4), deadband = Utils.bytesToFloat(data, offset + 8);
+        try {
+            FloatPublishPolicy policy = new FloatPublishPolicy(minInterval, minDelta, deadband, samplePeriod);
+            return policy.isEveryChange() ? EVERY_CHANGE : policy;
+        } catch (IllegalArgumentException ex) {
+            Logger.warning("Invalid publish policy: " + ex.getMessage());
+            return EVERY_CHANGE;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FloatPublishPolicy)) {
+            return false;
+        }
+        FloatPublishPolicy p = (FloatPublishPolicy) o;
+        return minIntervalMillis == p.minIntervalMillis && Float.floatToIntBits(minDelta) == Float.floatToIntBits(p.minDelta) && Float.floatToIntBits(deadband) == Float.floatToIntBits(p.deadband) && samplePeriodMillis == p.samplePeriodMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((minIntervalMillis * 31 + Float.floatToIntBits(minDelta)) * 31 + Float.floatToIntBits(deadband)) * 31 + samplePeriodMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "[FloatPublishPolicy interval=" + minIntervalMillis + "ms delta=" + minDelta + " deadband=" + deadband + " sample=" + samplePeriodMillis + "ms]";
+    }
+
+    private Object readResolve() {
+        return isEveryChange() ? EVERY_CHANGE : this;
+    }
+}
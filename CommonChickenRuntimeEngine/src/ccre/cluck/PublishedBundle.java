@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ccre.channel.BooleanInput;
+import ccre.channel.FloatInput;
+import ccre.log.Logger;
+import ccre.scheduler.Scheduler;
+import ccre.time.Time;
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
+
+/**
+ * A named group of FloatInputs and BooleanInputs, published together as a
+ * single Cluck channel. Instead of sending each value separately whenever it
+ * changes, the bundle periodically sends each subscriber one frame with every
+ * value that has changed since the last frame. This cuts down the number of
+ * messages for dashboards that watch many values at once.
+ *
+ * Subscribe with {@link SubscribedBundle}.
+ *
+ * A new subscriber first receives a schema frame, which lists the type and
+ * name of each entry, and then a frame with every value. Each value frame is
+ * {@link CluckConstants#RMT_BUNDLERESP}, {@link #FRAME_VALUES}, the schema ID,
+ * a bitmask of which entries are included, each included float as four bytes,
+ * and then each included boolean as one bit.
+ *
+ * @author skeggsc
+ */
+public final class PublishedBundle {
+
+    static final byte FRAME_SCHEMA = 0, FRAME_VALUES = 1;
+    static final byte TYPE_FLOAT = 0, TYPE_BOOLEAN = 1;
+
+    private final CluckNode node;
+    private final String name;
+    private final int periodMillis;
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<Object> inputs = new ArrayList<>();
+    private boolean published;
+
+    private byte[] types;
+    private byte[] schemaFrame;
+    private int schemaId;
+    private int[] values;
+    private final ArrayList<String> remotes = new ArrayList<>();
+    private final ArrayList<String> newRemotes = new ArrayList<>();
+
+    /**
+     * Create a new bundle, which will be published on <code>node</code> under
+     * <code>name</code> once all of its entries are added.
+     *
+     * @param node the node to publish on.
+     * @param name the name to publish under.
+     * @param periodMillis how often to send frames to subscribers.
+     */
+    public PublishedBundle(CluckNode node, String name, int periodMillis) {
+        if (node == null || name == null) {
+            throw new NullPointerException();
+        }
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Bundle period must be positive!");
+        }
+        this.node = node;
+        this.name = name;
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Add a FloatInput to this bundle.
+     *
+     * @param entryName the name of the entry within the bundle.
+     * @param input the input to publish.
+     * @return this bundle, for chaining.
+     */
+    @SetupPhase
+    public PublishedBundle add(String entryName, FloatInput input) {
+        addEntry(entryName, input);
+        return this;
+    }
+
+    /**
+     * Add a BooleanInput to this bundle.
+     *
+     * @param entryName the name of the entry within the bundle.
+     * @param input the input to publish.
+     * @return this bundle, for chaining.
+     */
+    @SetupPhase
+    public PublishedBundle add(String entryName, BooleanInput input) {
+        addEntry(entryName, input);
+        return this;
+    }
+
+    private synchronized void addEntry(String entryName, Object input) {
+        if (entryName == null || input == null) {
+            throw new NullPointerException();
+        }
+        if (published) {
+            throw new IllegalStateException("Bundle already published!");
+        }
+        if (names.contains(entryName)) {
+            throw new IllegalArgumentException("Duplicate bundle entry: " + entryName);
+        }
+        if (names.size() >= 0xFFFF) {
+            throw new IllegalStateException("Too many bundle entries!");
+        }
+        names.add(entryName);
+        inputs.add(input);
+    }
+
+    /**
+     * Publish this bundle. No more entries can be added afterwards.
+     */
+    @SetupPhase
+    public synchronized void publish() {
+        if (published) {
+            throw new IllegalStateException("Bundle already published!");
+        }
+        published = true;
+        types = new byte[names.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = inputs.get(i) instanceof FloatInput ? TYPE_FLOAT : TYPE_BOOLEAN;
+        }
+        buildSchema();
+        values = sample();
+        new CluckRMTSubscriber(node, CluckConstants.RMT_BUNDLE) {
+            @Override
+            protected void receiveValid(String source, byte[] data) {
+                addRemote(source);
+            }
+
+            @Override
+            protected void receiveInvalid(String source, byte[] data) {
+                if (data.length != 0 && data[0] == CluckConstants.RMT_NEGATIVE_ACK) {
+                    removeRemote(source);
+                }
+            }
+
+            @Override
+            protected void receiveBroadcast(String source, byte[] data) {
+                defaultBroadcastHandle(source, data, CluckConstants.RMT_BUNDLE);
+            }
+        }.attach(name);
+        Scheduler.scheduleFixedRateNanos("cluck-bundle", periodMillis * Time.NANOSECONDS_PER_MILLISECOND, this::tick);
+    }
+
+    private void buildSchema() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(names.size() >> 8);
+        body.write(names.size());
+        for (int i = 0; i < types.length; i++) {
+            byte[] encoded = names.get(i).getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > 0xFFFF) {
+                throw new IllegalArgumentException("Bundle entry name too long!");
+            }
+            body.write(types[i]);
+            body.write(encoded.length >> 8);
+            body.write(encoded.length);
+            body.write(encoded, 0, encoded.length);
+        }
+        byte[] bytes = body.toByteArray();
+        schemaId = Arrays.hashCode(bytes);
+        schemaFrame = new byte[6 + bytes.length];
+        schemaFrame[0] = CluckConstants.RMT_BUNDLERESP;
+        schemaFrame[1] = FRAME_SCHEMA;
+        putInt(schemaFrame, 2, schemaId);
+        System.arraycopy(bytes, 0, schemaFrame, 6, bytes.length);
+    }
+
+    @FlowPhase
+    private synchronized void addRemote(String source) {
+        // a repeated subscription gets a fresh schema and full frame
+        remotes.remove(source);
+        if (!newRemotes.contains(source)) {
+            newRemotes.add(source);
+        }
+    }
+
+    @FlowPhase
+    private synchronized void removeRemote(String source) {
+        if (remotes.remove(source) | newRemotes.remove(source)) {
+            Logger.warning("Connection cancelled to " + source + " on " + name);
+        }
+    }
+
+    @FlowPhase
+    private int[] sample() {
+        int[] out = new int[types.length];
+        for (int i = 0; i < out.length; i++) {
+            if (types[i] == TYPE_FLOAT) {
+                out[i] = Float.floatToIntBits(((FloatInput) inputs.get(i)).get());
+            } else {
+                out[i] = ((BooleanInput) inputs.get(i)).get() ? 1 : 0;
+            }
+        }
+        return out;
+    }
+
+    @FlowPhase
+    private void tick() {
+        String[] existing, fresh;
+        byte[] delta, full;
+        synchronized (this) {
+            if (remotes.isEmpty() && newRemotes.isEmpty()) {
+                return;
+            }
+            int[] current = sample();
+            boolean[] changed = new boolean[current.length];
+            boolean any = false;
+            for (int i = 0; i < current.length; i++) {
+                changed[i] = current[i] != values[i];
+                any |= changed[i];
+            }
+            delta = any ? encodeValues(current, changed) : null;
+            if (newRemotes.isEmpty()) {
+                full = null;
+            } else {
+                boolean[] all = new boolean[current.length];
+                Arrays.fill(all, true);
+                full = encodeValues(current, all);
+            }
+            values = current;
+            existing = remotes.toArray(new String[remotes.size()]);
+            fresh = newRemotes.toArray(new String[newRemotes.size()]);
+            remotes.addAll(newRemotes);
+            newRemotes.clear();
+        }
+        if (delta != null) {
+            for (String remote : existing) {
+                node.transmit(remote, name, delta);
+            }
+        }
+        for (String remote : fresh) {
+            node.transmit(remote, name, schemaFrame);
+            node.transmit(remote, name, full);
+        }
+    }
+
+    private byte[] encodeValues(int[] current, boolean[] include) {
+        int floats = 0, booleans = 0;
+        for (int i = 0; i < include.length; i++) {
+            if (include[i]) {
+                if (types[i] == TYPE_FLOAT) {
+                    floats++;
+                } else {
+                    booleans++;
+                }
+            }
+        }
+        int maskLength = (include.length + 7) / 8;
+        byte[] out = new byte[6 + maskLength + floats * 4 + (booleans + 7) / 8];
+        out[0] = CluckConstants.RMT_BUNDLERESP;
+        out[1] = FRAME_VALUES;
+        putInt(out, 2, schemaId);
+        int floatPtr = 6 + maskLength, boolBit = (floatPtr + floats * 4) * 8;
+        for (int i = 0; i < include.length; i++) {
+            if (!include[i]) {
+                continue;
+            }
+            out[6 + i / 8] |= 1 << (i % 8);
+            if (types[i] == TYPE_FLOAT) {
+                putInt(out, floatPtr, current[i]);
+                floatPtr += 4;
+            } else {
+                if (current[i] != 0) {
+                    out[boolBit / 8] |= 1 << (boolBit % 8);
+                }
+                boolBit++;
+            }
+        }
+        return out;
+    }
+
+    static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >> 24);
+        out[offset + 1] = (byte) (value >> 16);
+        out[offset + 2] = (byte) (value >> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
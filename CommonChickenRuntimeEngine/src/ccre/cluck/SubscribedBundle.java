@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import ccre.channel.BooleanCell;
+import ccre.channel.BooleanInput;
+import ccre.channel.FloatCell;
+import ccre.channel.FloatInput;
+import ccre.log.Logger;
+import ccre.util.UniqueIds;
+import ccre.util.Utils;
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
+
+/**
+ * A subscription to a {@link PublishedBundle}, which unpacks each frame into
+ * individual FloatInputs and BooleanInputs.
+ *
+ * Entries can be requested before the bundle's schema has arrived. Until then,
+ * and for entries that the bundle doesn't have, floats are NaN and booleans
+ * are false.
+ *
+ * @author skeggsc
+ */
+public final class SubscribedBundle {
+
+    private final CluckNode node;
+    private final String path;
+    private final String linkName;
+    private final HashMap<String, FloatCell> floats = new HashMap<>();
+    private final HashMap<String, BooleanCell> booleans = new HashMap<>();
+    // indexed by entry; null until the schema arrives
+    private Object[] cells;
+    private byte[] types;
+    private int schemaId;
+
+    /**
+     * Subscribe to the bundle at the specified path.
+     *
+     * @param node the node to subscribe from.
+     * @param path the path of the bundle.
+     */
+    @SetupPhase
+    public SubscribedBundle(CluckNode node, String path) {
+        if (node == null || path == null) {
+            throw new NullPointerException();
+        }
+        this.node = node;
+        this.path = path;
+        this.linkName = UniqueIds.global.nextHexId("srcBundle");
+        new CluckRMTSubscriber(node, CluckConstants.RMT_BUNDLERESP, 2) {
+            @Override
+            protected void receiveValid(String source, byte[] data) {
+                if (!SubscribedBundle.this.path.equals(source)) {
+                    Logger.warning("Bad source to " + linkName + ": " + source + " instead of " + SubscribedBundle.this.path);
+                } else if (data[1] == PublishedBundle.FRAME_SCHEMA) {
+                    receiveSchema(data);
+                } else if (data[1] == PublishedBundle.FRAME_VALUES) {
+                    receiveValues(data);
+                } else {
+                    Logger.warning("Unknown bundle frame type: " + data[1]);
+                }
+            }
+
+            @Override
+            protected void receiveBroadcast(String source, byte[] data) {
+                if (data.length == 1 && data[0] == CluckConstants.RMT_NOTIFY) {
+                    subscribe();
+                }
+            }
+        }.attach(linkName);
+        subscribe();
+    }
+
+    @FlowPhase
+    private void subscribe() {
+        node.transmit(path, linkName, new byte[] { CluckConstants.RMT_BUNDLE });
+    }
+
+    /**
+     * Get a FloatInput for the specified entry of the bundle.
+     *
+     * @param entryName the name of the entry.
+     * @return the FloatInput.
+     */
+    public synchronized FloatInput subscribeFI(String entryName) {
+        if (entryName == null) {
+            throw new NullPointerException();
+        }
+        FloatCell cell = floats.get(entryName);
+        if (cell == null) {
+            cell = new FloatCell(Float.NaN);
+            floats.put(entryName, cell);
+        }
+        return cell.asInput();
+    }
+
+    /**
+     * Get a BooleanInput for the specified entry of the bundle.
+     *
+     * @param entryName the name of the entry.
+     * @return the BooleanInput.
+     */
+    public synchronized BooleanInput subscribeBI(String entryName) {
+        if (entryName == null) {
+            throw new NullPointerException();
+        }
+        BooleanCell cell = booleans.get(entryName);
+        if (cell == null) {
+            cell = new BooleanCell();
+            booleans.put(entryName, cell);
+        }
+        return cell.asInput();
+    }
+
+    @FlowPhase
+    private synchronized void receiveSchema(byte[] data) {
+        if (data.length < 8) {
+            Logger.warning("Too-short bundle schema from " + path);
+            return;
+        }
+        int count = ((data[6] & 0xFF) << 8) | (data[7] & 0xFF);
+        byte[] newTypes = new byte[count];
+        Object[] newCells = new Object[count];
+        int ptr = 8;
+        for (int i = 0; i < count; i++) {
+            if (data.length - ptr < 3) {
+                Logger.warning("Too-short bundle schema from " + path);
+                return;
+            }
+            newTypes[i] = data[ptr];
+            int length = ((data[ptr + 1] & 0xFF) << 8) | (data[ptr + 2] & 0xFF);
+            ptr += 3;
+            if (data.length - ptr < length) {
+                Logger.warning("Too-short bundle schema from " + path);
+                return;
+            }
+            String entryName = new String(data, ptr, length, StandardCharsets.UTF_8);
+            ptr += length;
+            if (newTypes[i] == PublishedBundle.TYPE_FLOAT) {
+                subscribeFI(entryName);
+                newCells[i] = floats.get(entryName);
+            } else if (newTypes[i] == PublishedBundle.TYPE_BOOLEAN) {
+                subscribeBI(entryName);
+                newCells[i] = booleans.get(entryName);
+            } else {
+                Logger.warning("Unknown bundle entry type " + newTypes[i] + " for " + entryName + " in " + path);
+            }
+        }
+        types = newTypes;
+        cells = newCells;
+        schemaId = Utils.bytesToInt(data, 2);
+    }
+
+    @FlowPhase
+    private void receiveValues(byte[] data) {
+        FloatCell[] floatTargets;
+        float[] floatValues;
+        BooleanCell[] boolTargets;
+        boolean[] boolValues;
+        int floatCount = 0, boolCount = 0;
+        synchronized (this) {
+            if (data.length < 6) {
+                Logger.warning("Too-short bundle frame from " + path);
+                return;
+            }
+            if (cells == null || Utils.bytesToInt(data, 2) != schemaId) {
+                // we missed the schema, or the bundle changed
+                subscribe();
+                return;
+            }
+            int maskLength = (cells.length + 7) / 8;
+            if (data.length < 6 + maskLength) {
+                Logger.warning("Too-short bundle frame from " + path);
+                return;
+            }
+            floatTargets = new FloatCell[cells.length];
+            floatValues = new float[cells.length];
+            boolTargets = new BooleanCell[cells.length];
+            boolValues = new boolean[cells.length];
+            int floatPtr = 6 + maskLength;
+            for (int i = 0; i < cells.length; i++) {
+                if ((data[6 + i / 8] & (1 << (i % 8))) != 0 && types[i] == PublishedBundle.TYPE_FLOAT) {
+                    if (data.length < floatPtr + 4) {
+                        Logger.warning("Too-short bundle frame from " + path);
+                        return;
+                    }
+                    floatTargets[floatCount] = (FloatCell) cells[i];
+                    floatValues[floatCount++] = Utils.bytesToFloat(data, floatPtr);
+                    floatPtr += 4;
+                }
+            }
+            int boolBit = floatPtr * 8;
+            for (int i = 0; i < cells.length; i++) {
+                if ((data[6 + i / 8] & (1 << (i % 8))) != 0 && types[i] == PublishedBundle.TYPE_BOOLEAN) {
+                    if (data.length <= boolBit / 8) {
+                        Logger.warning("Too-short bundle frame from " + path);
+                        return;
+                    }
+                    boolTargets[boolCount] = (BooleanCell) cells[i];
+                    boolValues[boolCount++] = (data[boolBit / 8] & (1 << (boolBit % 8))) != 0;
+                    boolBit++;
+                }
+            }
+        }
+        // update outside of the lock, since listeners can do anything
+        for (int i = 0; i < floatCount; i++) {
+            floatTargets[i].set(floatValues[i]);
+        }
+        for (int i = 0; i < boolCount; i++) {
+            boolTargets[i].set(boolValues[i]);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import ccre.channel.CancelOutput;
+import ccre.channel.EventCell;
+import ccre.log.Logger;
+import ccre.rconf.RConf;
+import ccre.rconf.RConf.Entry;
+import ccre.rconf.RConfable;
+import ccre.scheduler.Scheduler;
+import ccre.time.Time;
+import ccre.util.Utils;
+
+/**
+ * The versioned snapshot of a published {@link RConfable}, used to answer
+ * queries with only the entries that changed since the version the client
+ * already has.
+ *
+ * Each refresh queries the device and compares the result to the previous
+ * entries; if anything changed, the version is incremented and each changed
+ * entry is stamped with it. While any client is watching for changes, the
+ * device is refreshed locally at the rate given by its
+ * {@link RConf#F_AUTO_REFRESH} entry, and watchers are notified only when
+ * something actually changed.
+ *
+ * A delta request is [REQUEST_DELTA][epoch (int)][version (int)], and a delta
+ * response is [0xFF][0xFF][epoch][version][count (short)][changed (short)]
+ * followed by each changed entry as [index (short)][length (int)][type]
+ * [contents...]. The leading 0xFF bytes can never start a full response,
+ * whose count is at most {@link Short#MAX_VALUE}. The epoch identifies this
+ * instance, so that a client never applies a delta against versions from a
+ * previous run of the server.
+ *
+ * @author skeggsc
+ */
+final class VersionedRConf {
+
+    static final byte REQUEST_DELTA = 1;
+    static final int REQUEST_LENGTH = 9;
+    private static final int MIN_POLL_MILLIS = 10;
+
+    private final RConfable device;
+    private final int epoch;
+    private final EventCell changes = new EventCell();
+    // held for a whole refresh, so that concurrent refreshes (from the poller
+    // and from queries and signals) can't apply their snapshots out of order
+    private final Object refreshLock = new Object();
+    private Entry[] entries = new Entry[0];
+    private int[] entryVersions = new int[0];
+    private int version = 0;
+    private boolean watched;
+    private int pollMillis;
+    private CancelOutput poller;
+
+    VersionedRConf(RConfable device) {
+        this.device = device;
+        int e;
+        do {
+            e = new Random().nextInt();
+        } while (e == 0);
+        this.epoch = e;
+    }
+
+    /**
+     * @return an EventCell that fires whenever the version changes.
+     */
+    EventCell getChanges() {
+        return changes;
+    }
+
+    synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Query the device, and update the version if its entries changed.
+     *
+     * @return true if the entries changed.
+     * @throws InterruptedException if the query was interrupted.
+     */
+    boolean refresh() throws InterruptedException {
+        synchronized (refreshLock) {
+            Entry[] fresh = device.queryRConf();
+            if (fresh == null) {
+                return false;
+            }
+            if (fresh.length > Short.MAX_VALUE) {
+                Logger.warning("Too many fields in RConf query response!");
+                fresh = Arrays.copyOf(fresh, Short.MAX_VALUE);
+            }
+            boolean changed;
+            synchronized (this) {
+                changed = fresh.length != entries.length;
+                int[] versions = Arrays.copyOf(entryVersions, fresh.length);
+                for (int i = 0; i < fresh.length; i++) {
+                    if (i >= entries.length || fresh[i].type != entries[i].type || !Arrays.equals(fresh[i].contents, entries[i].contents)) {
+                        changed = true;
+                        versions[i] = version + 1;
+                    }
+                }
+                if (changed) {
+                    version++;
+                    entryVersions = versions;
+                }
+                entries = fresh;
+                updatePolling();
+            }
+            if (changed) {
+                changes.event();
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Set whether any client is currently watching for changes, which
+     * determines whether the device is polled locally.
+     *
+     * @param watched whether anyone is watching.
+     */
+    synchronized void setWatched(boolean watched) {
+        this.watched = watched;
+        updatePolling();
+    }
+
+    // the caller must hold the lock
+    private void updatePolling() {
+        int millis = 0;
+        if (watched) {
+            for (Entry e : entries) {
+                if (e.type == RConf.F_AUTO_REFRESH) {
+                    Integer value = e.parseInteger();
+                    if (value != null) {
+                        millis = Math.max(value, MIN_POLL_MILLIS);
+                    }
+                }
+            }
+        }
+        if (millis == pollMillis) {
+            return;
+        }
+        if (poller != null) {
+            poller.cancel();
+            poller = null;
+        }
+        pollMillis = millis;
+        if (millis != 0) {
+            poller = Scheduler.schedulePeriodicNanos("rconf-poll", millis * Time.NANOSECONDS_PER_MILLISECOND, () -> {
+                try {
+                    refresh();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+    }
+
+    /**
+     * Encode every entry that changed since the specified version.
+     *
+     * @param request the delta request from the client.
+     * @return the delta response.
+     */
+    synchronized byte[] encodeDelta(byte[] request) {
+        int since = 0;
+        if (request.length >= REQUEST_LENGTH && Utils.bytesToInt(request, 1) == epoch) {
+            since = Utils.bytesToInt(request, 5);
+            if (since < 0 || since > version) {
+                since = 0;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xFF);
+        writeInt(out, epoch);
+        writeInt(out, version);
+        writeShort(out, entries.length);
+        int changed = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (entryVersions[i] > since) {
+                changed++;
+            }
+        }
+        writeShort(out, changed);
+        for (int i = 0; i < entries.length; i++) {
+            if (entryVersions[i] > since) {
+                writeShort(out, i);
+                // plus one for the type header
+                writeInt(out, entries[i].contents.length + 1);
+                out.write(entries[i].type);
+                out.write(entries[i].contents, 0, entries[i].contents.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    /**
+     * Build a delta request for the specified epoch and version.
+     *
+     * @param epoch the epoch of the entries the client has, or zero.
+     * @param version the version of the entries the client has, or zero.
+     * @return the request.
+     */
+    static byte[] request(int epoch, int version) {
+        return new byte[] { REQUEST_DELTA, (byte) (epoch >> 24), (byte) (epoch >> 16), (byte) (epoch >> 8), (byte) epoch, (byte) (version >> 24), (byte) (version >> 16), (byte) (version >> 8), (byte) version };
+    }
+
+    /**
+     * @param response a response to a query.
+     * @return true if the response is a delta, rather than a full response
+     * from a server that does not support deltas.
+     */
+    static boolean isDelta(byte[] response) {
+        return response.length >= 2 && response[0] == (byte) 0xFF && response[1] == (byte) 0xFF;
+    }
+
+    /**
+     * Apply a delta response to the entries that a client already has.
+     *
+     * @param response the delta response.
+     * @param previous the entries from the epoch and version that were
+     * requested.
+     * @param epochAndVersion an array that the new epoch and version are
+     * stored into.
+     * @return the new entries, or null if the response was malformed. If the
+     * response is older than the current version, previous is returned.
+     */
+    static Entry[] applyDelta(byte[] response, Entry[] previous, int[] epochAndVersion) {
+        if (response.length < 14 || !isDelta(response)) {
+            return null;
+        }
+        int newEpoch = Utils.bytesToInt(response, 2), newVersion = Utils.bytesToInt(response, 6);
+        int count = ((response[10] & 0xFF) << 8) | (response[11] & 0xFF);
+        int changed = ((response[12] & 0xFF) << 8) | (response[13] & 0xFF);
+        if (newEpoch == epochAndVersion[0] && newVersion < epochAndVersion[1]) {
+            // a stale response that raced with a newer one
+            return previous;
+        }
+        Entry[] out = Arrays.copyOf(previous, count);
+        if (newEpoch != epochAndVersion[0]) {
+            Arrays.fill(out, null);
+        }
+        int ptr = 14;
+        for (int i = 0; i < changed; i++) {
+            if (response.length - ptr < 7) {
+                return null;
+            }
+            int index = ((response[ptr] & 0xFF) << 8) | (response[ptr + 1] & 0xFF);
+            int len = Utils.bytesToInt(response, ptr + 2);
+            ptr += 6;
+            if (index >= count || len < 1 || response.length - ptr < len) {
+                return null;
+            }
+            out[index] = new Entry(response[ptr], Arrays.copyOfRange(response, ptr + 1, ptr + len));
+            ptr += len;
+        }
+        if (ptr != response.length) {
+            return null;
+        }
+        for (Entry e : out) {
+            if (e == null) {
+                // an entry was missing from the delta
+                return null;
+            }
+        }
+        epochAndVersion[0] = newEpoch;
+        epochAndVersion[1] = newVersion;
+        return out;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.rpc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import ccre.cluck.CluckConstants;
+import ccre.cluck.CluckNode;
+import ccre.log.Logger;
+import ccre.time.Time;
+
+/**
+ * The output stream handed to a published {@link RemoteProcedure} when the
+ * caller asked for a streamed reply.
+ *
+ * Written data is sent in chunks of up to {@link #CHUNK_SIZE} bytes. Each chunk
+ * uses up one credit, and the caller grants another credit each time it takes
+ * a chunk, so at most a window's worth of chunks are ever in flight. When no
+ * credit is left, writes block until the caller catches up, for up to the
+ * caller's timeout.
+ *
+ * A chunk message is [RMT_INVOKE_STREAM_DATA][flags][data...], where the flags
+ * mark the last chunk or an aborted reply.
+ *
+ * @author skeggsc
+ */
+final class ChunkedReplyStream extends OutputStream {
+
+    /**
+     * The maximum number of bytes of data in each chunk.
+     */
+    static final int CHUNK_SIZE = 4096;
+    static final byte FLAG_LAST = 1, FLAG_ABORTED = 2;
+
+    private final CluckNode node;
+    private final String destination, source;
+    private final long stallTimeout;
+    private final Runnable onDone;
+    // two bytes of header, followed by data
+    private final byte[] buffer = new byte[2 + CHUNK_SIZE];
+    private int count = 2;
+    private int credits;
+    private boolean cancelled, closed;
+
+    ChunkedReplyStream(CluckNode node, String destination, String source, int window, long stallTimeout, Runnable onDone) {
+        this.node = node;
+        this.destination = destination;
+        this.source = source;
+        this.credits = window;
+        this.stallTimeout = stallTimeout;
+        this.onDone = onDone;
+    }
+
+    /**
+     * Grant more credit to this stream, or cancel it.
+     *
+     * @param count the number of chunks that may be sent, or a negative number
+     * to cancel the reply.
+     */
+    synchronized void grant(int count) {
+        if (count < 0) {
+            cancelled = true;
+            onDone.run();
+        } else {
+            credits += count;
+        }
+        notifyAll();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (cancelled) {
+            throw new IOException("Streamed reply cancelled by the caller");
+        }
+        if (closed) {
+            throw new IOException("Streamed reply already closed");
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            sendChunk(false);
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            if (count == buffer.length) {
+                sendChunk(false);
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        if (count > 2) {
+            sendChunk(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed || cancelled) {
+            return;
+        }
+        sendChunk(true);
+        closed = true;
+        onDone.run();
+    }
+
+    /**
+     * End this reply once the procedure has returned, if it has not already
+     * ended: by closing it if the procedure returned normally, or by aborting
+     * it otherwise.
+     *
+     * @param completed true if the procedure returned normally.
+     */
+    synchronized void finish(boolean completed) {
+        if (closed || cancelled) {
+            return;
+        }
+        if (!completed) {
+            abort();
+            return;
+        }
+        try {
+            close();
+        } catch (IOException ex) {
+            Logger.warning("Streamed reply ended early: " + ex);
+        }
+    }
+
+    // the caller must hold the lock
+    private void sendChunk(boolean last) throws IOException {
+        // an empty final chunk is only a marker, and needs no credit
+        if (!last || count > 2) {
+            long endAt = Time.currentTimeMillis() + stallTimeout;
+            while (credits == 0 && !cancelled) {
+                long now = Time.currentTimeMillis();
+                if (now >= endAt) {
+                    abort();
+                    throw new InterruptedIOException("Caller stopped accepting the streamed reply");
+                }
+                try {
+                    Time.wait(this, endAt - now);
+                } catch (InterruptedException ex) {
+                    abort();
+                    throw new InterruptedIOException("Interrupted while sending a streamed reply");
+                }
+            }
+            ensureOpen();
+            credits--;
+        }
+        buffer[0] = CluckConstants.RMT_INVOKE_STREAM_DATA;
+        buffer[1] = last ? FLAG_LAST : 0;
+        node.transmit(destination, source, Arrays.copyOf(buffer, count));
+        count = 2;
+    }
+
+    private void abort() {
+        cancelled = true;
+        node.transmit(destination, source, new byte[] { CluckConstants.RMT_INVOKE_STREAM_DATA, FLAG_ABORTED });
+        onDone.run();
+    }
+}
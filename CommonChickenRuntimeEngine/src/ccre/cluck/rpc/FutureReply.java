@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.rpc;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import ccre.channel.EventOutput;
+
+/**
+ * The output stream handed to a {@link RemoteProcedure} by
+ * {@link SimpleProcedure#invokeAsync(RemoteProcedure, byte[], int)}. Closing
+ * the stream completes the future with everything written to it, and cancels
+ * any pending timeout.
+ *
+ * @author skeggsc
+ */
+final class FutureReply extends ByteArrayOutputStream {
+
+    final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+    private volatile EventOutput cancelTimeout;
+
+    void setTimeout(EventOutput cancelTimeout) {
+        this.cancelTimeout = cancelTimeout;
+        if (future.isDone()) {
+            cancelTimeout.event();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (future.complete(toByteArray())) {
+            EventOutput cancel = cancelTimeout;
+            if (cancel != null) {
+                cancel.event();
+            }
+        }
+    }
+
+    /**
+     * Fail the future because no reply arrived in time.
+     */
+    void timedOut() {
+        future.completeExceptionally(new TimeoutException("Remote procedure call timed out"));
+    }
+}
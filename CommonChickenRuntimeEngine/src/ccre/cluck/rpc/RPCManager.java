@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 Cel Skeggs
+ * Copyright 2014-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -20,23 +20,37 @@ package ccre.cluck.rpc;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import ccre.channel.EventOutput;
 import ccre.cluck.CluckConstants;
 import ccre.cluck.CluckNode;
 import ccre.cluck.CluckSubscriber;
 import ccre.log.Logger;
+import ccre.scheduler.Scheduler;
 import ccre.time.Time;
 import ccre.util.UniqueIds;
-import ccre.verifier.FlowPhase;
+import ccre.util.Utils;
 import ccre.verifier.SetupPhase;
 
 /**
  * A manager for the RPC subsystem in Cluck.
  *
+ * Each call to a subscribed procedure gets its own binding, so any number of
+ * calls can be in flight at once. Each binding has a timeout scheduled on the
+ * {@link Scheduler}, which is cancelled when the reply arrives.
+ *
+ * Replies can also be streamed, for procedures that return large amounts of
+ * data: see {@link #invokeStreaming(String, byte[], int)}.
+ *
  * @author skeggsc
  */
 public final class RPCManager implements Serializable {
@@ -48,8 +62,47 @@ public final class RPCManager implements Serializable {
      * subscribing to RemoteProcedures.
      */
     private final String localRPCBinding;
-    private final HashMap<String, OutputStream> bindings = new HashMap<String, OutputStream>();
-    private final HashMap<String, Long> timeouts = new HashMap<String, Long>();
+    private final ConcurrentHashMap<String, PendingCall> bindings = new ConcurrentHashMap<String, PendingCall>();
+    private final ConcurrentHashMap<String, StreamedReplyInput> streams = new ConcurrentHashMap<String, StreamedReplyInput>();
+
+    /**
+     * The number of chunks of a streamed reply that may be in flight at once.
+     */
+    public static final int STREAM_WINDOW = 8;
+    /**
+     * The number of streamed invocations that may run at once. Beyond this,
+     * up to {@link #MAX_QUEUED_STREAMS} wait for a thread, and any more are
+     * aborted, so that remote callers can't create unlimited threads.
+     */
+    static final int MAX_STREAM_THREADS = 4, MAX_QUEUED_STREAMS = 16;
+    private final ThreadPoolExecutor streamWorkers;
+
+    private final class PendingCall implements EventOutput {
+        private final String localname;
+        private final OutputStream out;
+        private volatile EventOutput cancelTimeout;
+
+        PendingCall(String localname, OutputStream out) {
+            this.localname = localname;
+            this.out = out;
+        }
+
+        // the timeout
+        @Override
+        public void event() {
+            if (bindings.remove(localname, this)) {
+                if (out instanceof FutureReply) {
+                    ((FutureReply) out).timedOut();
+                } else {
+                    try {
+                        out.close();
+                    } catch (IOException ex) {
+                        Logger.warning("Exception during timeout close!", ex);
+                    }
+                }
+            }
+        }
+    }
 
     /**
      * Create a new RPCManager for the specified node.
@@ -59,8 +112,15 @@ public final class RPCManager implements Serializable {
     public RPCManager(CluckNode node) {
         this.node = node;
         localRPCBinding = UniqueIds.global.nextHexId("rpc-endpoint");
-        final HashMap<String, OutputStream> localBindings = this.bindings;
-        final HashMap<String, Long> localTimeouts = this.timeouts;
+        streamWorkers = new ThreadPoolExecutor(MAX_STREAM_THREADS, MAX_STREAM_THREADS, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_STREAMS), (r) -> {
+            Thread thread = new Thread(r, UniqueIds.global.nextHexId("RPC-stream"));
+            thread.setDaemon(true);
+            return thread;
+        });
+        // no threads are kept around while nothing is being streamed
+        streamWorkers.allowCoreThreadTimeOut(true);
+        final ConcurrentHashMap<String, PendingCall> localBindings = this.bindings;
+        final ConcurrentHashMap<String, StreamedReplyInput> localStreams = this.streams;
         new CluckSubscriber(node) {
             @Override
             protected void receive(String source, byte[] data) {
@@ -69,25 +129,25 @@ public final class RPCManager implements Serializable {
 
             @Override
             protected void receiveSideChannel(String dest, String source, byte[] data) {
-                if (requireRMT(source, data, CluckConstants.RMT_INVOKE_REPLY)) {
-                    checkRPCTimeouts();
-                    OutputStream stream;
-                    synchronized (RPCManager.this) {
-                        stream = localBindings.get(dest);
-                    }
+                if (data.length >= 2 && data[0] == CluckConstants.RMT_INVOKE_STREAM_DATA) {
+                    StreamedReplyInput stream = localStreams.get(dest);
                     if (stream == null) {
+                        Logger.warning("No RPC stream for: " + dest);
+                    } else {
+                        stream.receive(data);
+                    }
+                } else if (requireRMT(source, data, CluckConstants.RMT_INVOKE_REPLY)) {
+                    PendingCall call = localBindings.remove(dest);
+                    if (call == null) {
                         Logger.warning("No RPC binding for: " + dest);
                     } else {
+                        call.cancelTimeout.event();
                         try {
-                            stream.write(data, 1, data.length - 1);
-                            stream.close();
+                            call.out.write(data, 1, data.length - 1);
+                            call.out.close();
                         } catch (IOException ex) {
                             Logger.warning("Exception in RPC response write!", ex);
                         }
-                        synchronized (RPCManager.this) {
-                            localBindings.remove(dest);
-                            localTimeouts.remove(dest);
-                        }
                     }
                 }
             }
@@ -101,16 +161,50 @@ public final class RPCManager implements Serializable {
     /**
      * Publish a RemoteProcedure on the network.
      *
+     * If the caller asks for a streamed reply, the output given to the
+     * procedure sends data in chunks as it is written, and blocks when the
+     * caller falls too far behind. Streamed invocations are therefore run on
+     * a small pool of threads rather than the thread that received the
+     * request, so that a procedure can write its entire reply from within
+     * invoke without holding up other messages on the same link. A streamed
+     * reply ends when invoke returns: if the procedure hasn't closed it by
+     * then, it is closed for it, or aborted if invoke threw an exception.
+     *
      * @param name The name for the RemoteProcedure.
      * @param proc The RemoteProcedure.
      */
     @SetupPhase
     public void publish(final String name, final RemoteProcedure proc) {
+        final ConcurrentHashMap<String, ChunkedReplyStream> replies = new ConcurrentHashMap<String, ChunkedReplyStream>();
         new CluckSubscriber(node) {
             @Override
             protected void receive(final String source, byte[] data) {
-                if (requireRMT(source, data, CluckConstants.RMT_INVOKE)) {
-                    checkRPCTimeouts();
+                if (data.length > 0 && data[0] == CluckConstants.RMT_INVOKE_STREAM) {
+                    if (data.length < 9) {
+                        Logger.warning("Received too-short message from " + source);
+                        return;
+                    }
+                    int window = Utils.bytesToInt(data, 1), timeout = Utils.bytesToInt(data, 5);
+                    ChunkedReplyStream[] reply = new ChunkedReplyStream[1];
+                    reply[0] = new ChunkedReplyStream(node, source, name, window, timeout, () -> replies.remove(source, reply[0]));
+                    replies.put(source, reply[0]);
+                    final byte[] args = Arrays.copyOfRange(data, 9, data.length);
+                    try {
+                        streamWorkers.execute(() -> invokeStreamed(name, proc, args, reply[0]));
+                    } catch (RejectedExecutionException ex) {
+                        Logger.warning("Too many streamed calls in progress: aborted call to " + name);
+                        reply[0].finish(false);
+                    }
+                } else if (data.length > 0 && data[0] == CluckConstants.RMT_INVOKE_STREAM_CREDIT) {
+                    if (data.length < 5) {
+                        Logger.warning("Received too-short message from " + source);
+                        return;
+                    }
+                    ChunkedReplyStream reply = replies.get(source);
+                    if (reply != null) {
+                        reply.grant(Utils.bytesToInt(data, 1));
+                    }
+                } else if (requireRMT(source, data, CluckConstants.RMT_INVOKE)) {
                     byte[] sdata = new byte[data.length - 1];
                     System.arraycopy(data, 1, sdata, 0, sdata.length);
                     ByteArrayOutputStream baos = new ByteArrayOutputStream() {
@@ -137,31 +231,16 @@ public final class RPCManager implements Serializable {
         }.attach(name);
     }
 
-    /**
-     * Check to see if any RPC calls have timed out and cancel them if they
-     * have. This is only called when another RPC event occurs, so it may take a
-     * while for the timeout to happen.
-     */
-    @FlowPhase
-    void checkRPCTimeouts() {
-        // TODO: use scheduler rather than this hacky thing
-        long now = Time.currentTimeMillis();
-        ArrayList<String> toRemove = new ArrayList<String>();
-        synchronized (this) {
-            for (String key : timeouts.keySet()) {
-                long value = timeouts.get(key);
-                if (value < now) {
-                    toRemove.add(key);
-                }
-            }
-            for (String rmt : toRemove) {
-                timeouts.remove(rmt);
-                try {
-                    bindings.remove(rmt).close();
-                } catch (IOException ex) {
-                    Logger.warning("Exception during timeout close!", ex);
-                }
-            }
+    private static void invokeStreamed(String name, RemoteProcedure proc, byte[] args, ChunkedReplyStream reply) {
+        boolean completed = false;
+        try {
+            proc.invoke(args, reply);
+            completed = true;
+        } catch (RuntimeException ex) {
+            Logger.severe("Exception in streamed invocation of " + name, ex);
+        } finally {
+            // otherwise, the caller's binding and credits would be held forever
+            reply.finish(completed);
         }
     }
 
@@ -178,15 +257,68 @@ public final class RPCManager implements Serializable {
         return new SubscribedProcedure(path, timeoutAfter);
     }
 
+    /**
+     * Invoke a RemoteProcedure on the network at the specified path, and
+     * stream its reply. The reply can be read from the returned InputStream as
+     * soon as the first chunk arrives; chunks are only sent as fast as they
+     * are read, so neither end needs to hold the entire reply in memory.
+     *
+     * Closing the stream before the end of the reply cancels the rest of it.
+     *
+     * @param path The path to the procedure.
+     * @param in The input to pass it.
+     * @param timeoutAfter How long to wait for each chunk of the reply before
+     * the call is canceled due to timeout. This also limits how long the
+     * procedure will wait for the reader to catch up.
+     * @return the stream of the reply.
+     */
+    @SetupPhase
+    public InputStream invokeStreaming(String path, byte[] in, int timeoutAfter) {
+        final String localname = UniqueIds.global.nextHexId(path);
+        StreamedReplyInput[] stream = new StreamedReplyInput[1];
+        stream[0] = new StreamedReplyInput(node, path, localRPCBinding + "/" + localname, timeoutAfter, () -> streams.remove(localname, stream[0]));
+        streams.put(localname, stream[0]);
+        byte[] toSend = new byte[in.length + 9];
+        toSend[0] = CluckConstants.RMT_INVOKE_STREAM;
+        putInt(toSend, 1, STREAM_WINDOW);
+        putInt(toSend, 5, timeoutAfter);
+        System.arraycopy(in, 0, toSend, 9, in.length);
+        node.transmit(path, localRPCBinding + "/" + localname, toSend);
+        return stream[0];
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >> 24);
+        out[offset + 1] = (byte) (value >> 16);
+        out[offset + 2] = (byte) (value >> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    /**
+     * @return the number of streamed replies that have not yet ended.
+     */
+    int getOpenStreamCount() {
+        return streams.size();
+    }
+
     @SetupPhase
     private void putNewInvokeBinding(String path, String localname, long timeoutAfter, OutputStream out, byte[] toSend) {
-        synchronized (this) {
-            timeouts.put(localname, Time.currentTimeMillis() + timeoutAfter);
-            bindings.put(localname, out);
-        }
+        PendingCall call = new PendingCall(localname, out);
+        bindings.put(localname, call);
+        // scheduled before transmitting, so that a reply always finds a
+        // timeout to cancel
+        call.cancelTimeout = Scheduler.scheduleInterruptibleNanos("rpc-timeout", timeoutAfter * Time.NANOSECONDS_PER_MILLISECOND, call);
         node.transmit(path, localRPCBinding + "/" + localname, toSend);
     }
 
+    /**
+     * @return the number of calls to subscribed procedures that are still
+     * waiting for a reply.
+     */
+    int getPendingCallCount() {
+        return bindings.size();
+    }
+
     private class SubscribedProcedure implements RemoteProcedure, Serializable {
 
         private static final long serialVersionUID = 624324992717097477L;
@@ -200,7 +332,6 @@ public final class RPCManager implements Serializable {
 
         @Override
         public void invoke(byte[] in, OutputStream out) {
-            checkRPCTimeouts();
             String localname = UniqueIds.global.nextHexId(path);
             byte[] toSend = new byte[in.length + 1];
             toSend[0] = CluckConstants.RMT_INVOKE;
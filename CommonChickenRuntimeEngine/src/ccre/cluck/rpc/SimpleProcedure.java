@@ -1,5 +1,5 @@
 /*
- * Copyright 2014 Cel Skeggs
+ * Copyright 2014-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -21,9 +21,12 @@ package ccre.cluck.rpc;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 
 import ccre.log.Logger;
+import ccre.scheduler.Scheduler;
 import ccre.time.Time;
+import ccre.verifier.FlowPhase;
 import ccre.verifier.SetupPhase;
 
 /**
@@ -32,9 +35,9 @@ import ccre.verifier.SetupPhase;
  *
  * This is not suitable for blocking invocations!
  *
- * Also in this class is a method that will invoke a procedure with specified
- * arguments and return the data from it, to match the simplicity of a
- * SimpleProcedure.
+ * Also in this class are methods that will invoke a procedure with specified
+ * arguments and return the data from it, either by blocking or as a future, to
+ * match the simplicity of a SimpleProcedure.
  *
  * @author skeggsc
  */
@@ -90,6 +93,31 @@ public abstract class SimpleProcedure implements RemoteProcedure {
         return out.toByteArray();
     }
 
+    /**
+     * Invoke the specified RemoteProcedure with the specified byte array,
+     * without blocking. The returned future completes with the result once the
+     * procedure replies, or completes exceptionally with a
+     * {@link java.util.concurrent.TimeoutException} if the request times out.
+     *
+     * Any number of calls may be in flight at once, including to the same
+     * procedure.
+     *
+     * @param rp The procedure to invoke.
+     * @param in The input to pass it.
+     * @param timeout The maximum number of milliseconds to wait, or zero to
+     * wait only as long as the procedure itself allows.
+     * @return the future result of the procedure.
+     */
+    @FlowPhase
+    public static CompletableFuture<byte[]> invokeAsync(RemoteProcedure rp, byte[] in, int timeout) {
+        final FutureReply reply = new FutureReply();
+        if (timeout > 0) {
+            reply.setTimeout(Scheduler.scheduleInterruptibleNanos("rpc-timeout", timeout * Time.NANOSECONDS_PER_MILLISECOND, reply::timedOut));
+        }
+        rp.invoke(in, reply);
+        return reply.future;
+    }
+
     @Override
     public final void invoke(byte[] in, OutputStream out) {
         try {
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import ccre.cluck.CluckConstants;
+import ccre.cluck.CluckNode;
+import ccre.time.Time;
+
+/**
+ * The input stream returned by
+ * {@link RPCManager#invokeStreaming(String, byte[], int)}, which receives the
+ * chunks sent by a {@link ChunkedReplyStream} and grants a credit back to the
+ * procedure each time it takes one, so that at most a window's worth of chunks
+ * are ever buffered here.
+ *
+ * @author skeggsc
+ */
+final class StreamedReplyInput extends InputStream {
+
+    private final CluckNode node;
+    private final String path, source;
+    private final long stallTimeout;
+    private final Runnable onDone;
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private byte[] current;
+    private int offset;
+    private boolean ended, aborted, closed;
+
+    StreamedReplyInput(CluckNode node, String path, String source, long stallTimeout, Runnable onDone) {
+        this.node = node;
+        this.path = path;
+        this.source = source;
+        this.stallTimeout = stallTimeout;
+        this.onDone = onDone;
+    }
+
+    /**
+     * Accept a chunk message from the procedure.
+     *
+     * @param data the message, starting with RMT_INVOKE_STREAM_DATA.
+     */
+    void receive(byte[] data) {
+        boolean done;
+        synchronized (this) {
+            if (ended || aborted || closed) {
+                return;
+            }
+            if (data.length > 2) {
+                chunks.add(Arrays.copyOfRange(data, 2, data.length));
+            }
+            ended = (data[1] & ChunkedReplyStream.FLAG_LAST) != 0;
+            aborted = (data[1] & ChunkedReplyStream.FLAG_ABORTED) != 0;
+            done = ended || aborted;
+            notifyAll();
+        }
+        if (done) {
+            onDone.run();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        synchronized (this) {
+            ensureCurrent();
+            return current[offset++] & 0xFF;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        synchronized (this) {
+            ensureCurrent();
+            int n = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+    }
+
+    // in case the stream was closed by another thread after fill()
+    private void ensureCurrent() throws IOException {
+        if (current == null) {
+            throw new IOException("Streamed reply already closed");
+        }
+    }
+
+    @Override
+    public synchronized int available() {
+        int count = current == null ? 0 : current.length - offset;
+        for (byte[] chunk : chunks) {
+            count += chunk.length;
+        }
+        return count;
+    }
+
+    /**
+     * Make sure that the current chunk has data left, waiting for the next
+     * chunk if needed.
+     *
+     * @return false if the reply has ended.
+     * @throws IOException if the reply was aborted, timed out, or closed.
+     */
+    private boolean fill() throws IOException {
+        boolean grant, timedOut = false;
+        synchronized (this) {
+            if (current != null && offset < current.length) {
+                return true;
+            }
+            current = null;
+            long endAt = Time.currentTimeMillis() + stallTimeout;
+            while (chunks.isEmpty()) {
+                if (closed) {
+                    throw new IOException("Streamed reply already closed");
+                } else if (aborted) {
+                    throw new IOException("Remote procedure aborted its streamed reply");
+                } else if (ended) {
+                    return false;
+                }
+                long now = Time.currentTimeMillis();
+                if (now >= endAt) {
+                    closed = timedOut = true;
+                    break;
+                }
+                try {
+                    Time.wait(this, endAt - now);
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Interrupted while waiting for a streamed reply");
+                }
+            }
+            if (!timedOut) {
+                current = chunks.remove();
+                offset = 0;
+            }
+            grant = !timedOut && !ended && !aborted;
+        }
+        if (timedOut) {
+            cancel();
+            throw new InterruptedIOException("Streaming remote procedure call timed out");
+        }
+        if (grant) {
+            sendCredit(1);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        boolean cancel;
+        synchronized (this) {
+            cancel = !closed && !ended && !aborted;
+            closed = true;
+            chunks.clear();
+            current = null;
+            notifyAll();
+        }
+        if (cancel) {
+            cancel();
+        }
+    }
+
+    private void cancel() {
+        sendCredit(-1);
+        onDone.run();
+    }
+
+    private void sendCredit(int count) {
+        node.transmit(path, source, new byte[] { CluckConstants.RMT_INVOKE_STREAM_CREDIT, (byte) (count >> 24), (byte) (count >> 16), (byte) (count >> 8), (byte) count });
+    }
+}
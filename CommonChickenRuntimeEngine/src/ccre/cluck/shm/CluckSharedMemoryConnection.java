@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.shm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+import ccre.cluck.CluckLink;
+import ccre.cluck.CluckNode;
+import ccre.log.Logger;
+
+/**
+ * A Cluck connection between two processes on the same machine, over a
+ * {@link SharedMemoryChannel}. Once established, messages are exchanged
+ * entirely through shared memory, without any system calls, and only one
+ * thread (the receiving thread) is needed for each connection.
+ *
+ * Clients connect with {@link #connect(int, String)}, and servers are run by
+ * {@link CluckSharedMemoryServer}.
+ *
+ * @author skeggsc
+ */
+public final class CluckSharedMemoryConnection implements Closeable {
+
+    /**
+     * How long a client waits for the server to accept its connection.
+     */
+    static final int ACCEPT_TIMEOUT_MILLIS = 2000;
+    /**
+     * How often each side updates its heartbeat.
+     */
+    static final long HEARTBEAT_INTERVAL_NANOS = 200 * 1000000L;
+    /**
+     * How long to wait without seeing a heartbeat from the other side before
+     * assuming that it has died. This is longer than the TCP timeout, since
+     * both processes are probably garbage-collecting on the same machine.
+     */
+    static final long TIMEOUT_NANOS = 2000 * 1000000L;
+    /**
+     * How long the receiving thread first sleeps between polls once the
+     * connection has been idle for a while. This doubles for each empty poll,
+     * up to {@link #MAX_IDLE_PARK_NANOS}.
+     */
+    private static final long IDLE_PARK_NANOS = 200 * 1000L;
+    private static final long MAX_IDLE_PARK_NANOS = 10 * 1000000L;
+    private static final int SPIN_POLLS = 100, YIELD_POLLS = 200;
+    /**
+     * How many bytes of messages can wait for space in the ring before further
+     * messages are dropped.
+     */
+    static final int MAX_PENDING_BYTES = 4 * SharedMemoryChannel.RING_CAPACITY;
+
+    // channel files created by this process, deleted on exit if still open
+    private static final Set<File> openFiles = new HashSet<>();
+    private static boolean cleanupRegistered;
+
+    private final SharedMemoryChannel channel;
+    private final boolean isServer;
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private int pendingBytes, dropped;
+    private volatile boolean closed;
+
+    private CluckSharedMemoryConnection(SharedMemoryChannel channel, boolean isServer) {
+        this.channel = channel;
+        this.isServer = isServer;
+    }
+
+    /**
+     * Connect to the shared-memory server for <code>port</code>, and wait for
+     * it to accept the connection.
+     *
+     * @param port the port of the server, as in
+     * {@link CluckSharedMemoryServer#CluckSharedMemoryServer(CluckNode, int)}.
+     * @param remoteNameHint the hint for what the server should call this
+     * link, or null for no hint.
+     * @return the established connection.
+     * @throws IOException if the server is not running or does not accept the
+     * connection.
+     */
+    public static CluckSharedMemoryConnection connect(int port, String remoteNameHint) throws IOException {
+        if (!CluckSharedMemoryServer.isRunning(port)) {
+            throw new IOException("Shared-memory server not running for port " + port);
+        }
+        File file = File.createTempFile("link-", CluckSharedMemoryServer.LINK_SUFFIX, CluckSharedMemoryServer.directoryFor(port));
+        deleteOnExit(file);
+        SharedMemoryChannel channel;
+        try {
+            channel = SharedMemoryChannel.create(file);
+        } catch (IOException ex) {
+            file.delete();
+            throw ex;
+        }
+        CluckSharedMemoryConnection conn = new CluckSharedMemoryConnection(channel, false);
+        try {
+            channel.setHint(remoteNameHint);
+            channel.beat();
+            channel.setState(SharedMemoryChannel.STATE_OPEN);
+            long deadline = System.currentTimeMillis() + ACCEPT_TIMEOUT_MILLIS;
+            while (channel.getPeerState() != SharedMemoryChannel.STATE_OPEN) {
+                if (channel.getPeerState() == SharedMemoryChannel.STATE_CLOSED) {
+                    throw new IOException("Shared-memory server rejected connection");
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Timed out while connecting over shared memory");
+                }
+                Thread.sleep(5);
+            }
+        } catch (IOException | RuntimeException ex) {
+            conn.close();
+            throw ex;
+        } catch (InterruptedException ex) {
+            conn.close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting over shared memory", ex);
+        }
+        return conn;
+    }
+
+    private static void deleteOnExit(File file) {
+        synchronized (openFiles) {
+            // File.deleteOnExit would keep every file ever registered, even
+            // the ones already closed and deleted
+            if (!cleanupRegistered) {
+                cleanupRegistered = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    synchronized (openFiles) {
+                        for (File open : openFiles) {
+                            open.delete();
+                        }
+                    }
+                }, "CluckSharedMemoryCleanup"));
+            }
+            openFiles.add(file);
+        }
+    }
+
+    /**
+     * Accept a connection from a client, as the server.
+     *
+     * @param file the client's channel file.
+     * @return the established connection, or null if the client is not ready
+     * yet.
+     * @throws IOException if the channel file is invalid.
+     */
+    static CluckSharedMemoryConnection accept(File file) throws IOException {
+        SharedMemoryChannel channel = SharedMemoryChannel.open(file);
+        if (channel.getState() != SharedMemoryChannel.STATE_NONE) {
+            throw new IOException("Shared-memory client already accepted by another server: " + file);
+        }
+        int state = channel.getPeerState();
+        if (state == SharedMemoryChannel.STATE_NONE) {
+            return null;
+        } else if (state != SharedMemoryChannel.STATE_OPEN) {
+            throw new IOException("Shared-memory client already closed: " + file);
+        }
+        channel.beat();
+        channel.setState(SharedMemoryChannel.STATE_OPEN);
+        return new CluckSharedMemoryConnection(channel, true);
+    }
+
+    /**
+     * @return the name that the other end of this connection suggests that
+     * this end call it, or null if there is no suggestion.
+     * @throws IOException if the hint is corrupt.
+     */
+    public String getRemoteNameHint() throws IOException {
+        return channel.getPeerHint();
+    }
+
+    /**
+     * Create a link for sending messages over this connection, and add it to
+     * <code>node</code> under <code>linkName</code>.
+     *
+     * @param node the node to attach the link to.
+     * @param linkName the name of the link.
+     * @return the new link, which should be passed to
+     * {@link #receive(CluckNode, String, CluckLink)}.
+     */
+    public CluckLink attach(CluckNode node, String linkName) {
+        CluckLink link = (dest, source, data) -> {
+            if (closed) {
+                return false;
+            }
+            byte[] record = encode(dest, source, data);
+            if (record.length > SharedMemoryChannel.MAX_RECORD_LENGTH) {
+                // it would never fit, and would block everything behind it
+                Logger.warning("[LOCAL] Dropped " + record.length + "-byte message to " + dest + ": too large for shared memory");
+                return true;
+            }
+            synchronized (pending) {
+                if (!pending.isEmpty() || !channel.send(record)) {
+                    if (pendingBytes + record.length > MAX_PENDING_BYTES) {
+                        if (dropped++ == 0) {
+                            Logger.warning("[LOCAL] Shared-memory queue full for " + linkName + ": dropping messages");
+                        }
+                        return !closed;
+                    }
+                    // the receiving thread will send it once there's space
+                    pending.addLast(record);
+                    pendingBytes += record.length;
+                }
+            }
+            return !closed;
+        };
+        node.addOrReplaceLink(link, linkName);
+        return link;
+    }
+
+    /**
+     * Receive messages from the other end of this connection and deliver them
+     * to <code>node</code>, until the connection is closed or the other end
+     * stops responding. The connection is closed when this returns.
+     *
+     * @param node the node to deliver messages to.
+     * @param linkName the name of the link for this connection.
+     * @param denyLink the link returned by {@link #attach(CluckNode, String)},
+     * which messages should not be sent back over.
+     * @throws IOException if the connection is corrupted.
+     */
+    public void receive(CluckNode node, String linkName, CluckLink denyLink) throws IOException {
+        try {
+            long lastBeat = System.nanoTime(), lastPeerChange = lastBeat;
+            long peerBeat = channel.getPeerHeartbeat();
+            int idle = 0;
+            long park = IDLE_PARK_NANOS;
+            while (!closed) {
+                boolean hasPending = flushPending();
+                // checked on every iteration, so that a steady stream of
+                // incoming messages doesn't keep this side from beating
+                long now = System.nanoTime();
+                if (now - lastBeat >= HEARTBEAT_INTERVAL_NANOS) {
+                    lastBeat = now;
+                    channel.beat();
+                    if (channel.getPeerState() == SharedMemoryChannel.STATE_CLOSED) {
+                        Logger.fine("Link closed: " + linkName);
+                        break;
+                    }
+                    long beat = channel.getPeerHeartbeat();
+                    if (beat != peerBeat) {
+                        peerBeat = beat;
+                        lastPeerChange = now;
+                    } else if (now - lastPeerChange > TIMEOUT_NANOS) {
+                        Logger.fine("Link timed out: " + linkName);
+                        break;
+                    }
+                }
+                byte[] record = channel.receive();
+                if (record != null) {
+                    deliver(node, linkName, denyLink, record);
+                    idle = 0;
+                    park = IDLE_PARK_NANOS;
+                    continue;
+                }
+                if (++idle > YIELD_POLLS) {
+                    LockSupport.parkNanos(park);
+                    // the peer may be draining our ring, so don't back off
+                    if (!hasPending) {
+                        park = Math.min(park * 2, MAX_IDLE_PARK_NANOS);
+                    }
+                } else if (idle > SPIN_POLLS) {
+                    Thread.yield();
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private boolean flushPending() {
+        synchronized (pending) {
+            while (!pending.isEmpty() && channel.send(pending.peekFirst())) {
+                pendingBytes -= pending.removeFirst().length;
+            }
+            if (pending.isEmpty() && dropped != 0) {
+                Logger.warning("[LOCAL] Shared-memory queue drained after dropping " + dropped + " messages");
+                dropped = 0;
+            }
+            return !pending.isEmpty();
+        }
+    }
+
+    private static byte[] encode(String dest, String source, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 64);
+        try (DataOutputStream dout = new DataOutputStream(out)) {
+            dout.writeUTF(dest == null ? "" : dest);
+            dout.writeUTF(source == null ? "" : source);
+            dout.write(data);
+        } catch (IOException ex) {
+            throw new RuntimeException("ByteArrayOutputStream should never fail!", ex);
+        }
+        return out.toByteArray();
+    }
+
+    private static void deliver(CluckNode node, String linkName, CluckLink denyLink, byte[] record) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(record);
+        DataInputStream din = new DataInputStream(in);
+        String dest = din.readUTF(), source = din.readUTF();
+        byte[] data = new byte[in.available()];
+        din.readFully(data);
+        node.transmit(dest.isEmpty() ? null : dest, source.isEmpty() ? linkName : linkName + "/" + source, data, denyLink);
+    }
+
+    /**
+     * @return true if this connection has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close this connection. The receiving thread, if any, will stop shortly.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        channel.setState(SharedMemoryChannel.STATE_CLOSED);
+        if (!isServer) {
+            // the client created it, so the client cleans it up
+            channel.getFile().delete();
+            synchronized (openFiles) {
+                openFiles.remove(channel.getFile());
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import ccre.cluck.CluckLink;
+import ccre.cluck.CluckNode;
+import ccre.concurrency.ReporterThread;
+import ccre.log.Logger;
+import ccre.util.UniqueIds;
+
+/**
+ * A server-side handler for Cluck shared-memory connections, which lets other
+ * processes on the same machine reach a node without going through the TCP
+ * stack. Each server is identified by the same port number as the
+ * corresponding TCP server, so that clients can find it from their usual
+ * address.
+ *
+ * Clients announce themselves by creating channel files in the server's
+ * directory, which this thread scans for periodically.
+ *
+ * @author skeggsc
+ */
+public class CluckSharedMemoryServer extends ReporterThread {
+
+    static final String LINK_SUFFIX = ".link";
+    private static final String LOCK_NAME = "server.lock";
+    private static final int SCAN_INTERVAL_MILLIS = 100;
+    /**
+     * How long a channel file can go without being accepted before it is
+     * assumed to be abandoned.
+     */
+    private static final long ABANDON_MILLIS = 10000;
+
+    /**
+     * The shared CluckNode.
+     */
+    public final CluckNode node;
+    private final int port;
+    private final Map<File, Long> unaccepted = new HashMap<>();
+    private final Set<File> accepted = new HashSet<>();
+    private final Object terminateLock = new Object();
+    private boolean terminated;
+
+    /**
+     * Create a new CluckSharedMemoryServer sharing a specified node for a
+     * specified port.
+     *
+     * @param node The node to share.
+     * @param port The port to share it for.
+     */
+    public CluckSharedMemoryServer(CluckNode node, int port) {
+        super("CluckSharedMemoryServer");
+        this.node = node;
+        this.port = port;
+    }
+
+    /**
+     * Stop accepting new connections and release the port. Connections that
+     * are already open are not affected.
+     */
+    public void terminate() {
+        synchronized (terminateLock) {
+            terminated = true;
+            terminateLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of connections currently being handled.
+     */
+    int getConnectionCount() {
+        synchronized (accepted) {
+            return accepted.size();
+        }
+    }
+
+    /**
+     * Get the directory used for shared-memory connections to the server for
+     * <code>port</code>.
+     *
+     * @param port the port of the server.
+     * @return the directory.
+     */
+    static File directoryFor(int port) {
+        return new File(System.getProperty("java.io.tmpdir"), "ccre-cluck-" + port);
+    }
+
+    /**
+     * Check whether a shared-memory server is currently running for
+     * <code>port</code>, in this process or any other.
+     *
+     * @param port the port of the server.
+     * @return true if a server is running.
+     */
+    public static boolean isRunning(int port) {
+        File lockFile = new File(directoryFor(port), LOCK_NAME);
+        if (!lockFile.exists()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw")) {
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException ex) {
+            // held by a server in this process
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void threadBody() throws IOException, InterruptedException {
+        File dir = directoryFor(port);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.warning("Failed to create shared-memory directory " + dir + ".");
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, LOCK_NAME), "rw"); FileChannel lockChannel = raf.getChannel()) {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                lock = null;
+            }
+            if (lock == null) {
+                Logger.warning("Failed to claim shared-memory port " + port + ".");
+                return;
+            }
+            Logger.fine("About to listen over shared memory for " + port);
+            while (true) {
+                scan(dir);
+                synchronized (terminateLock) {
+                    if (!terminated) {
+                        terminateLock.wait(SCAN_INTERVAL_MILLIS);
+                    }
+                    if (terminated) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void scan(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(LINK_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Set<File> present = new HashSet<>();
+        for (File file : files) {
+            present.add(file);
+            synchronized (accepted) {
+                if (accepted.contains(file)) {
+                    continue;
+                }
+            }
+            CluckSharedMemoryConnection conn;
+            try {
+                conn = CluckSharedMemoryConnection.accept(file);
+            } catch (IOException ex) {
+                // either still being created, or left behind by a dead client
+                conn = null;
+            }
+            if (conn != null) {
+                unaccepted.remove(file);
+                handle(file, conn);
+            } else {
+                Long firstSeen = unaccepted.get(file);
+                if (firstSeen == null) {
+                    unaccepted.put(file, now);
+                } else if (now - firstSeen > ABANDON_MILLIS) {
+                    Logger.fine("Discarding abandoned shared-memory link " + file.getName());
+                    file.delete();
+                    unaccepted.remove(file);
+                }
+            }
+        }
+        for (Iterator<File> it = unaccepted.keySet().iterator(); it.hasNext();) {
+            if (!present.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    private void handle(final File file, final CluckSharedMemoryConnection conn) {
+        synchronized (accepted) {
+            accepted.add(file);
+        }
+        new ReporterThread("CluckSharedMemoryServer-client") {
+            @Override
+            protected void threadBody() throws IOException {
+                try {
+                    String linkName = conn.getRemoteNameHint();
+                    if (linkName == null) {
+                        linkName = UniqueIds.global.nextHexId("shmserv");
+                    }
+                    Logger.fine("Client connected over shared memory at " + System.currentTimeMillis() + " named " + linkName);
+                    CluckLink deny = conn.attach(node, linkName);
+                    conn.receive(node, linkName, deny);
+                } finally {
+                    conn.close();
+                    file.delete();
+                    synchronized (accepted) {
+                        accepted.remove(file);
+                    }
+                }
+            }
+        }.start();
+    }
+}
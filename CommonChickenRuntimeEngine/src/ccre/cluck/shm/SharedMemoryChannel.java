@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A memory-mapped file shared between a client and a server process, holding
+ * a small header and two single-producer single-consumer ring buffers, one for
+ * each direction.
+ *
+ * Every word in the header is written by only one of the two sides, so no
+ * atomic operations are needed. Java 8 has no way to order plain accesses to
+ * mapped memory, so a volatile field is used as a fence: this acts as a full
+ * barrier in HotSpot, which is what the rings depend on.
+ *
+ * @author skeggsc
+ */
+final class SharedMemoryChannel {
+    static final int MAGIC = 0x154000CB;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4096;
+    static final int RING_CAPACITY = 1 << 20;
+    static final int FILE_SIZE = HEADER_SIZE + 2 * RING_CAPACITY;
+    /**
+     * The largest record that can ever fit in a ring, after its length.
+     */
+    static final int MAX_RECORD_LENGTH = RING_CAPACITY - 4;
+
+    static final int STATE_NONE = 0, STATE_OPEN = 1, STATE_CLOSED = 2;
+
+    // each side's words are kept on separate cache lines
+    private static final int OFF_MAGIC = 0, OFF_VERSION = 4, OFF_CAPACITY = 8;
+    private static final int OFF_CLIENT_STATE = 64, OFF_CLIENT_HEARTBEAT = 72;
+    private static final int OFF_SERVER_STATE = 128, OFF_SERVER_HEARTBEAT = 136;
+    private static final int OFF_CLIENT_HINT = 256, OFF_SERVER_HINT = 512, HINT_SIZE = 256;
+    // ring zero carries client-to-server messages, and ring one the reverse
+    private static final int OFF_RING = 1024, RING_STRIDE = 256, OFF_HEAD = 0, OFF_TAIL = 128;
+
+    private static volatile int fence;
+
+    private final File file;
+    private final boolean isServer;
+    private final MappedByteBuffer buffer;
+    // only used while holding the send lock, or from the receiving thread
+    private final ByteBuffer sendView, recvView;
+    private final int sendHead, sendTail, sendData, recvHead, recvTail, recvData;
+    private long heartbeat;
+
+    private SharedMemoryChannel(File file, boolean isServer, MappedByteBuffer buffer) {
+        this.file = file;
+        this.isServer = isServer;
+        this.buffer = buffer;
+        buffer.order(ByteOrder.nativeOrder());
+        this.sendView = buffer.duplicate();
+        this.recvView = buffer.duplicate();
+        int sendRing = isServer ? 1 : 0, recvRing = 1 - sendRing;
+        sendHead = OFF_RING + sendRing * RING_STRIDE + OFF_HEAD;
+        sendTail = OFF_RING + sendRing * RING_STRIDE + OFF_TAIL;
+        sendData = HEADER_SIZE + sendRing * RING_CAPACITY;
+        recvHead = OFF_RING + recvRing * RING_STRIDE + OFF_HEAD;
+        recvTail = OFF_RING + recvRing * RING_STRIDE + OFF_TAIL;
+        recvData = HEADER_SIZE + recvRing * RING_CAPACITY;
+    }
+
+    /**
+     * Creates and maps a new channel file, as the client.
+     *
+     * @param file the file, which should be empty.
+     * @return the channel.
+     * @throws IOException if the file cannot be created or mapped.
+     */
+    static SharedMemoryChannel create(File file) throws IOException {
+        SharedMemoryChannel channel = new SharedMemoryChannel(file, false, map(file, true));
+        channel.buffer.putInt(OFF_CAPACITY, RING_CAPACITY);
+        channel.buffer.putInt(OFF_VERSION, VERSION);
+        release();
+        channel.buffer.putInt(OFF_MAGIC, MAGIC);
+        return channel;
+    }
+
+    /**
+     * Maps an existing channel file, as the server.
+     *
+     * @param file the file, as created by a client.
+     * @return the channel.
+     * @throws IOException if the file cannot be mapped, or is not a valid
+     * channel.
+     */
+    static SharedMemoryChannel open(File file) throws IOException {
+        if (file.length() != FILE_SIZE) {
+            throw new IOException("Shared-memory channel is the wrong size: " + file);
+        }
+        SharedMemoryChannel channel = new SharedMemoryChannel(file, true, map(file, false));
+        if (channel.buffer.getInt(OFF_MAGIC) != MAGIC) {
+            throw new IOException("Shared-memory channel is not ready or not valid: " + file);
+        }
+        acquire();
+        if (channel.buffer.getInt(OFF_VERSION) != VERSION || channel.buffer.getInt(OFF_CAPACITY) != RING_CAPACITY) {
+            throw new IOException("Shared-memory channel has an unsupported format: " + file);
+        }
+        return channel;
+    }
+
+    private static MappedByteBuffer map(File file, boolean create) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (create) {
+                raf.setLength(FILE_SIZE);
+            }
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        }
+    }
+
+    private static void release() {
+        fence = 0;
+    }
+
+    private static void acquire() {
+        if (fence != 0) {
+            throw new IllegalStateException();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void setState(int state) {
+        release();
+        buffer.putInt(isServer ? OFF_SERVER_STATE : OFF_CLIENT_STATE, state);
+    }
+
+    int getState() {
+        return buffer.getInt(isServer ? OFF_SERVER_STATE : OFF_CLIENT_STATE);
+    }
+
+    int getPeerState() {
+        int state = buffer.getInt(isServer ? OFF_CLIENT_STATE : OFF_SERVER_STATE);
+        acquire();
+        return state;
+    }
+
+    void beat() {
+        buffer.putLong(isServer ? OFF_SERVER_HEARTBEAT : OFF_CLIENT_HEARTBEAT, ++heartbeat);
+    }
+
+    long getPeerHeartbeat() {
+        return buffer.getLong(isServer ? OFF_CLIENT_HEARTBEAT : OFF_SERVER_HEARTBEAT);
+    }
+
+    void setHint(String hint) {
+        byte[] bytes = (hint == null ? "" : hint).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > HINT_SIZE - 2) {
+            throw new IllegalArgumentException("Link name hint is too long: " + hint);
+        }
+        int offset = isServer ? OFF_SERVER_HINT : OFF_CLIENT_HINT;
+        buffer.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(offset + 2 + i, bytes[i]);
+        }
+    }
+
+    String getPeerHint() throws IOException {
+        int offset = isServer ? OFF_CLIENT_HINT : OFF_SERVER_HINT;
+        int length = buffer.getShort(offset) & 0xFFFF;
+        if (length > HINT_SIZE - 2) {
+            throw new IOException("Link name hint is corrupt!");
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 2 + i);
+        }
+        return length == 0 ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a record into the sending ring, if there is space for it. Must
+     * only be called by one thread at a time.
+     *
+     * @param record the record contents.
+     * @return true if the record was written, or false if the ring is too
+     * full.
+     */
+    boolean send(byte[] record) {
+        long head = buffer.getLong(sendHead);
+        long tail = buffer.getLong(sendTail);
+        acquire();
+        if (4 + record.length > RING_CAPACITY - (head - tail)) {
+            return false;
+        }
+        ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(0, record.length);
+        copyIn(head, length.array());
+        copyIn(head + 4, record);
+        release();
+        buffer.putLong(sendHead, head + 4 + record.length);
+        return true;
+    }
+
+    private void copyIn(long position, byte[] data) {
+        int start = (int) (position % RING_CAPACITY);
+        int first = Math.min(data.length, RING_CAPACITY - start);
+        sendView.position(sendData + start);
+        sendView.put(data, 0, first);
+        if (first < data.length) {
+            sendView.position(sendData);
+            sendView.put(data, first, data.length - first);
+        }
+    }
+
+    /**
+     * Reads the next record from the receiving ring, if any. Must only be
+     * called by one thread at a time.
+     *
+     * @return the record contents, or null if the ring is empty.
+     * @throws IOException if the ring is corrupt.
+     */
+    byte[] receive() throws IOException {
+        long head = buffer.getLong(recvHead);
+        acquire();
+        long tail = buffer.getLong(recvTail);
+        if (head == tail) {
+            return null;
+        }
+        byte[] lengthBytes = new byte[4];
+        copyOut(tail, lengthBytes);
+        int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.nativeOrder()).getInt();
+        if (length < 0 || 4 + (long) length > head - tail) {
+            throw new IOException("Shared-memory ring is corrupt!");
+        }
+        byte[] record = new byte[length];
+        copyOut(tail + 4, record);
+        release();
+        buffer.putLong(recvTail, tail + 4 + length);
+        return record;
+    }
+
+    private void copyOut(long position, byte[] data) {
+        int start = (int) (position % RING_CAPACITY);
+        int first = Math.min(data.length, RING_CAPACITY - start);
+        recvView.position(recvData + start);
+        recvView.get(data, 0, first);
+        if (first < data.length) {
+            recvView.position(recvData);
+            recvView.get(data, first, data.length - first);
+        }
+    }
+}
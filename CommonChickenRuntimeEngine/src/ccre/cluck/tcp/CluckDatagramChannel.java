@@ -0,0 +1,535 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import ccre.cluck.CluckConstants;
+import ccre.cluck.CluckLink;
+import ccre.cluck.CluckNode;
+import ccre.concurrency.ReporterThread;
+import ccre.log.Logger;
+import ccre.net.ClientSocket;
+import ccre.net.DatagramSocket;
+import ccre.net.Network;
+
+/**
+ * A UDP side-channel for a Cluck TCP connection, which carries latest-value
+ * messages (RMT_FLOATINPUTRESP and RMT_BOOLINPUTRESP) so that a lost packet
+ * doesn't hold them up behind everything else queued on the TCP stream. All
+ * other messages still go over TCP.
+ *
+ * The channel is negotiated over the TCP connection, with control messages
+ * addressed to {@link #CONTROL_DESTINATION}. These are RMT_NEGATIVE_ACK
+ * messages, so peers that don't know about datagrams ignore them, just like
+ * keepalives.
+ *
+ * <ol>
+ * <li>Each side sends an offer with its UDP port and a random token.</li>
+ * <li>On receiving an offer, a side probes the offered port with the token.
+ * </li>
+ * <li>On receiving a valid probe, a side confirms it over TCP, after which the
+ * other side starts sending datagrams.</li>
+ * </ol>
+ *
+ * Each datagram carries a sequence number, and any datagram older than the
+ * last one delivered for the same source and destination is dropped. The
+ * receiver acknowledges every datagram, and the sender resends the latest
+ * value for each source and destination until it is acknowledged, so that a
+ * rarely-changing input isn't left wrong by a single lost packet. If too many
+ * resends go unanswered, the sender falls back to TCP for good.
+ *
+ * Whenever the sender switches between TCP and datagrams, it sends a fence
+ * over TCP carrying the next sequence number. Latest-value messages received
+ * over TCP count as having the sequence number of the last fence received, so
+ * values queued on TCP before a switch can't overwrite newer datagrams, and
+ * values sent over TCP after a fallback aren't overwritten by late datagrams.
+ *
+ * @author skeggsc
+ */
+final class CluckDatagramChannel {
+
+    /**
+     * The destination used for control messages over TCP.
+     */
+    static final String CONTROL_DESTINATION = "DATAGRAM";
+    /**
+     * The control message type for a fence, followed by a sequence number.
+     */
+    static final byte CONTROL_FENCE = 0x57;
+    private static final byte CONTROL_OFFER = 0x55, CONTROL_READY = 0x56;
+    private static final byte PACKET_PROBE = 0x50, PACKET_DATA = 0x44, PACKET_ACK = 0x41;
+    private static final int MAX_DATAGRAM = 1400;
+    private static final int PROBE_INTERVAL_MILLIS = 100, PROBE_ATTEMPTS = 10;
+    private static final int RESEND_INTERVAL_MILLIS = 100, MAX_RESENDS = 20;
+
+    private final ClientSocket tcp;
+    private final CluckNode node;
+    private final String linkName;
+    private final long localToken = new Random().nextLong();
+    private CluckLink tcpLink, tcpQueue;
+    private DatagramSocket socket;
+    private boolean offered, confirmed, closed;
+    private long peerToken;
+    private int probesRemaining;
+    private volatile boolean peerReady;
+    private long nextSequence;
+    // whether the last latest-value message went out as a datagram
+    private boolean sentDatagram;
+    private final LinkedHashMap<String, Unacknowledged> unacknowledged = new LinkedHashMap<>();
+    private long lastResendCheck;
+    // guards lastSequences and tcpSequence
+    private final Object receiveLock = new Object();
+    private final HashMap<String, Long> lastSequences = new HashMap<>();
+    private long tcpSequence = Long.MIN_VALUE;
+
+    /**
+     * Create a new datagram channel for the specified connection. Nothing is
+     * negotiated until either {@link #offer()} is called or an offer is
+     * received.
+     *
+     * @param tcp the TCP connection, whose remote host receives datagrams.
+     * @param node the node to deliver received messages to.
+     * @param linkName the link name of the TCP connection.
+     */
+    CluckDatagramChannel(ClientSocket tcp, CluckNode node, String linkName) {
+        this.tcp = tcp;
+        this.node = node;
+        this.linkName = linkName;
+    }
+
+    /**
+     * Set the link to deny broadcasts from received datagrams to, and the link
+     * that puts messages directly onto the TCP send queue, which is used for
+     * control messages and for values that fall back to TCP.
+     *
+     * @param tcpLink the link for the TCP connection.
+     * @param tcpQueue the link that queues messages for the TCP connection.
+     */
+    synchronized void attach(CluckLink tcpLink, CluckLink tcpQueue) {
+        this.tcpLink = tcpLink;
+        this.tcpQueue = tcpQueue;
+    }
+
+    /**
+     * Open this side of the channel and offer it to the remote end.
+     *
+     * @throws IOException if the datagram socket cannot be opened.
+     */
+    void offer() throws IOException {
+        int port;
+        synchronized (this) {
+            if (offered || closed) {
+                return;
+            }
+            offered = true;
+            socket = Network.openDatagram();
+            socket.setSocketTimeout(PROBE_INTERVAL_MILLIS);
+            port = socket.getLocalPort();
+        }
+        new ReporterThread("Cluck-Datagram-" + linkName) {
+            @Override
+            protected void threadBody() throws IOException {
+                receiveLoop();
+            }
+        }.start();
+        sendControl(new byte[] { CluckConstants.RMT_NEGATIVE_ACK, CONTROL_OFFER, (byte) (port >> 8), (byte) port, (byte) (localToken >> 56), (byte) (localToken >> 48), (byte) (localToken >> 40), (byte) (localToken >> 32), (byte) (localToken >> 24), (byte) (localToken >> 16), (byte) (localToken >> 8), (byte) localToken });
+    }
+
+    /**
+     * Check whether a message received over TCP is a control message for this
+     * channel, and handle it if so.
+     *
+     * @param dest the destination of the message.
+     * @param source the source of the message.
+     * @param data the contents of the message.
+     * @return true if the message was a control message, and should not be
+     * delivered.
+     */
+    boolean handleControl(String dest, String source, byte[] data) {
+        if (!CONTROL_DESTINATION.equals(dest) || source != null || data.length < 2 || data[0] != CluckConstants.RMT_NEGATIVE_ACK) {
+            return false;
+        }
+        try {
+            if (data[1] == CONTROL_OFFER && data.length >= 12) {
+                int port = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+                long token = readLong(data, 4);
+                // answer with our own offer, if we haven't already
+                offer();
+                synchronized (this) {
+                    if (closed) {
+                        return true;
+                    }
+                    peerToken = token;
+                    socket.connect(tcp, port);
+                    probesRemaining = PROBE_ATTEMPTS;
+                }
+                sendProbe();
+            } else if (data[1] == CONTROL_FENCE && data.length >= 10) {
+                synchronized (receiveLock) {
+                    tcpSequence = readLong(data, 2);
+                }
+            } else if (data[1] == CONTROL_READY) {
+                if (!peerReady) {
+                    Logger.fine("Sending latest-value messages over UDP on " + linkName);
+                }
+                peerReady = true;
+            }
+        } catch (IOException ex) {
+            Logger.warning("Could not set up datagrams on " + linkName + ": " + ex);
+        }
+        return true;
+    }
+
+    /**
+     * Deliver a message received over TCP. Latest-value messages older than
+     * one already delivered as a datagram are dropped instead; the check and
+     * the delivery happen together, so that a datagram can't be delivered in
+     * between and then be overwritten.
+     *
+     * @param dest the destination of the message.
+     * @param source the source of the message, before the link name is
+     * prepended.
+     * @param data the contents of the message.
+     */
+    void transmitFromTcp(String dest, String source, byte[] data) {
+        CluckLink deny;
+        synchronized (this) {
+            deny = tcpLink;
+        }
+        if (!isLatestValue(data)) {
+            node.transmit(dest, CluckProtocol.prependLink(linkName, source), data, deny);
+            return;
+        }
+        String key = dest + "\0" + source;
+        synchronized (receiveLock) {
+            // before the first fence, there's nothing for TCP values to be
+            // ordered against, so TCP-only links don't track anything
+            if (tcpSequence != Long.MIN_VALUE) {
+                Long last = lastSequences.get(key);
+                if (last != null && tcpSequence < last) {
+                    return; // queued before a newer datagram was sent
+                }
+                lastSequences.put(key, tcpSequence);
+            }
+            node.transmit(dest, CluckProtocol.prependLink(linkName, source), data, deny);
+        }
+    }
+
+    /**
+     * Try to send a message over this channel instead of TCP. When a
+     * latest-value message has to go over TCP after datagrams have been used,
+     * a fence is queued on TCP ahead of it.
+     *
+     * @param dest the destination of the message.
+     * @param source the source of the message.
+     * @param data the contents of the message.
+     * @return true if the message was sent, or false if it should be sent over
+     * TCP instead.
+     */
+    synchronized boolean send(String dest, String source, byte[] data) {
+        if (!isLatestValue(data)) {
+            return false;
+        }
+        String key = dest + "\0" + source;
+        if (peerReady && !closed) {
+            // leave room for a fence ahead of this value, if one is needed
+            Unacknowledged value = new Unacknowledged(dest, source, data, sentDatagram ? nextSequence : nextSequence + 1);
+            if (value.packet.length <= MAX_DATAGRAM) {
+                if (!sentDatagram) {
+                    sendFence();
+                    sentDatagram = true;
+                }
+                nextSequence = value.sequence + 1;
+                try {
+                    socket.send(value.packet, value.packet.length);
+                    unacknowledged.remove(key); // keep the map in order of sending
+                    unacknowledged.put(key, value);
+                    return true;
+                } catch (IOException ex) {
+                    fallBack(ex.toString());
+                }
+            }
+        }
+        // this message supersedes any datagram still awaiting acknowledgement
+        unacknowledged.remove(key);
+        if (sentDatagram) {
+            sendFence();
+            sentDatagram = false;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if messages are currently being sent over this channel.
+     */
+    boolean isActive() {
+        return peerReady;
+    }
+
+    /**
+     * Close this channel, if it was ever opened.
+     */
+    synchronized void close() {
+        closed = true;
+        peerReady = false;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private static boolean isLatestValue(byte[] data) {
+        return data.length != 0 && (data[0] == CluckConstants.RMT_FLOATINPUTRESP || data[0] == CluckConstants.RMT_BOOLINPUTRESP);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private void sendControl(byte[] data) {
+        CluckLink link;
+        synchronized (this) {
+            link = tcpQueue;
+        }
+        if (link != null) {
+            link.send(CONTROL_DESTINATION, null, data);
+        }
+    }
+
+    // must hold the lock on this
+    private void sendFence() {
+        long fence = nextSequence++;
+        byte[] data = new byte[10];
+        data[0] = CluckConstants.RMT_NEGATIVE_ACK;
+        data[1] = CONTROL_FENCE;
+        for (int i = 0; i < 8; i++) {
+            data[9 - i] = (byte) (fence >> (8 * i));
+        }
+        sendControl(data);
+    }
+
+    // must hold the lock on this
+    private void fallBack(String reason) {
+        Logger.warning("Falling back to TCP on " + linkName + ": " + reason);
+        peerReady = false;
+        if (sentDatagram) {
+            sendFence();
+            sentDatagram = false;
+        }
+        // the peer may never have received these, so send them reliably
+        for (Unacknowledged value : unacknowledged.values()) {
+            tcpQueue.send(value.dest, value.source, value.data);
+        }
+        unacknowledged.clear();
+    }
+
+    private void resendUnacknowledged() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed || now - lastResendCheck < RESEND_INTERVAL_MILLIS) {
+                return;
+            }
+            lastResendCheck = now;
+            ArrayList<Unacknowledged> due = new ArrayList<>();
+            for (Unacknowledged value : unacknowledged.values()) {
+                if (now - value.sentAt >= RESEND_INTERVAL_MILLIS) {
+                    if (value.resends >= MAX_RESENDS) {
+                        fallBack("no acknowledgement after " + MAX_RESENDS + " resends");
+                        return;
+                    }
+                    due.add(value);
+                }
+            }
+            try {
+                for (Unacknowledged value : due) {
+                    value.resends++;
+                    value.sentAt = now;
+                    socket.send(value.packet, value.packet.length);
+                }
+            } catch (IOException ex) {
+                fallBack(ex.toString());
+            }
+        }
+    }
+
+    private void sendProbe() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(9);
+        synchronized (this) {
+            if (closed || probesRemaining <= 0) {
+                return;
+            }
+            probesRemaining--;
+            try (DataOutputStream dout = new DataOutputStream(out)) {
+                dout.writeByte(PACKET_PROBE);
+                dout.writeLong(peerToken);
+            }
+            socket.send(out.toByteArray(), out.size());
+        }
+    }
+
+    private void receiveLoop() throws IOException {
+        byte[] buffer = new byte[MAX_DATAGRAM + 1];
+        while (true) {
+            int length;
+            try {
+                resendUnacknowledged();
+                length = socket.receive(buffer);
+            } catch (SocketTimeoutException ex) {
+                // the probe, or the confirmation, might have been lost
+                sendProbe();
+                continue;
+            } catch (SocketException ex) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                throw ex;
+            }
+            if (length > MAX_DATAGRAM) {
+                continue;
+            }
+            try {
+                handlePacket(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+            } catch (IOException ex) {
+                Logger.warning("Malformed datagram on " + linkName + ": " + ex);
+            }
+        }
+    }
+
+    private void handlePacket(DataInputStream din) throws IOException {
+        byte type = din.readByte();
+        if (din.readLong() != localToken) {
+            return; // not for this connection
+        }
+        if (type == PACKET_PROBE) {
+            synchronized (this) {
+                if (confirmed) {
+                    return;
+                }
+                confirmed = true;
+            }
+            sendControl(new byte[] { CluckConstants.RMT_NEGATIVE_ACK, CONTROL_READY });
+        } else if (type == PACKET_DATA) {
+            long sequence = din.readLong();
+            String dest = CluckProtocol.readNullableString(din);
+            String source = CluckProtocol.readNullableString(din);
+            byte[] data = new byte[din.available()];
+            din.readFully(data);
+            sendAcknowledgement(sequence);
+            deliver(sequence, dest, source, data);
+        } else if (type == PACKET_ACK) {
+            long sequence = din.readLong();
+            synchronized (this) {
+                for (Iterator<Unacknowledged> it = unacknowledged.values().iterator(); it.hasNext();) {
+                    if (it.next().sequence == sequence) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void sendAcknowledgement(long sequence) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(17);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try (DataOutputStream dout = new DataOutputStream(out)) {
+                dout.writeByte(PACKET_ACK);
+                dout.writeLong(peerToken);
+                dout.writeLong(sequence);
+                socket.send(out.toByteArray(), out.size());
+            } catch (IOException ex) {
+                // the sender will resend, and give up if this keeps happening
+            }
+        }
+    }
+
+    /**
+     * Deliver a latest-value message received as a datagram, unless a newer
+     * message has already been delivered for the same source and destination.
+     *
+     * @param sequence the sequence number of the datagram.
+     * @param dest the destination of the message.
+     * @param source the source of the message.
+     * @param data the contents of the message.
+     */
+    void deliver(long sequence, String dest, String source, byte[] data) {
+        CluckLink deny;
+        synchronized (this) {
+            deny = tcpLink;
+        }
+        String key = dest + "\0" + source;
+        synchronized (receiveLock) {
+            Long last = lastSequences.get(key);
+            if (last != null && sequence <= last) {
+                return; // stale, or a resend of something already delivered
+            }
+            lastSequences.put(key, sequence);
+            // delivered under the lock, so that a stale TCP value can't be
+            // delivered in between
+            node.transmit(dest, CluckProtocol.prependLink(linkName, source), data, deny);
+        }
+    }
+
+    private final class Unacknowledged {
+        final String dest, source;
+        final byte[] data, packet;
+        final long sequence;
+        long sentAt = System.currentTimeMillis();
+        int resends;
+
+        Unacknowledged(String dest, String source, byte[] data, long sequence) {
+            this.dest = dest;
+            this.source = source;
+            this.data = data;
+            this.sequence = sequence;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 64);
+            try (DataOutputStream dout = new DataOutputStream(out)) {
+                dout.writeByte(PACKET_DATA);
+                dout.writeLong(peerToken);
+                dout.writeLong(sequence);
+                dout.writeUTF(dest == null ? "" : dest);
+                dout.writeUTF(source == null ? "" : source);
+                dout.write(data);
+            } catch (IOException ex) {
+                throw new RuntimeException("ByteArrayOutputStream should never fail!", ex);
+            }
+            this.packet = out.toByteArray();
+        }
+    }
+}
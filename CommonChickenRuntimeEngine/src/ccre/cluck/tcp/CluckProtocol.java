@@ -144,6 +144,24 @@ public class CluckProtocol {
      * @throws IOException If an IO error occurs
      */
     protected static void handleRecv(DataInputStream din, String linkName, CluckNode node, CluckLink denyLink) throws IOException {
+        handleRecv(din, linkName, node, denyLink, null);
+    }
+
+    /**
+     * Start a receive loop from the specified Connection input, link name,
+     * node, and link to deny broadcasts to, which also passes any control
+     * messages to the specified datagram channel.
+     *
+     * @param din The connection input.
+     * @param linkName The link name.
+     * @param node The node to provide access to.
+     * @param denyLink The link to deny transmits to, usually the link that
+     * sends back to the other end of the connection. (To stop infinite loops)
+     * @param datagrams The datagram channel for this connection, or null for
+     * none.
+     * @throws IOException If an IO error occurs
+     */
+    static void handleRecv(DataInputStream din, String linkName, CluckNode node, CluckLink denyLink, CluckDatagramChannel datagrams) throws IOException {
         try {
             boolean expectKeepAlives = false;
             long lastReceive = System.currentTimeMillis();
@@ -161,12 +179,19 @@ public class CluckProtocol {
                         expectKeepAlives = true;
                         Logger.info("Detected KEEPALIVE message. Expecting future keepalives on " + linkName + ".");
                     }
-                    source = prependLink(linkName, source);
+                    if (datagrams != null && datagrams.handleControl(dest, source, data)) {
+                        lastReceive = System.currentTimeMillis();
+                        continue;
+                    }
                     long start = System.currentTimeMillis();
-                    node.transmit(dest, source, data, denyLink);
+                    if (datagrams != null) {
+                        datagrams.transmitFromTcp(dest, source, data);
+                    } else {
+                        node.transmit(dest, prependLink(linkName, source), data, denyLink);
+                    }
                     long endAt = System.currentTimeMillis();
                     if (endAt - start > 1000) {
-                        Logger.warning("[LOCAL] Took a long time to process: " + dest + " <- " + source + " of " + (endAt - start) + " ms");
+                        Logger.warning("[LOCAL] Took a long time to process: " + dest + " <- " + prependLink(linkName, source) + " of " + (endAt - start) + " ms");
                     }
                     lastReceive = System.currentTimeMillis();
                 } catch (SocketTimeoutException ex) {
@@ -211,9 +236,38 @@ public class CluckProtocol {
      * @return The newly created link.
      */
     protected static CluckLink handleSend(final DataOutputStream dout, final String linkName, CluckNode node) {
+        return handleSend(dout, linkName, node, null);
+    }
+
+    /**
+     * Create and register a cluck link using the specified connection output,
+     * link name, and node to get messages from, which sends latest-value
+     * messages over the specified datagram channel when it is active.
+     *
+     * @param dout The connection output.
+     * @param linkName The link name.
+     * @param node The node to provide access to.
+     * @param datagrams The datagram channel for this connection, or null for
+     * none.
+     * @return The newly created link.
+     */
+    static CluckLink handleSend(final DataOutputStream dout, final String linkName, CluckNode node, final CluckDatagramChannel datagrams) {
         final LinkedList<SendableEntry> queue = new LinkedList<SendableEntry>();
         final ReporterThread main = new CluckSenderThread("Cluck-Send-" + linkName, queue, dout);
         main.start();
+        final CluckLink enqueue = (dest, source, data) -> {
+            int size;
+            synchronized (queue) {
+                queue.addLast(new SendableEntry(source, dest, data));
+                queue.notifyAll();
+                size = queue.size();
+            }
+            Thread.yield();
+            if (size > 1000) {
+                Logger.warning("[LOCAL] Queue too long: " + size + " for " + dest + " at " + System.currentTimeMillis());
+            }
+            return main.isAlive();
+        };
         CluckLink clink = new CluckLink() {
             private boolean isRunning = false;
 
@@ -225,15 +279,8 @@ public class CluckProtocol {
                 }
                 isRunning = true;
                 try {
-                    int size;
-                    synchronized (queue) {
-                        queue.addLast(new SendableEntry(source, dest, data));
-                        queue.notifyAll();
-                        size = queue.size();
-                    }
-                    Thread.yield();
-                    if (size > 1000) {
-                        Logger.warning("[LOCAL] Queue too long: " + size + " for " + dest + " at " + System.currentTimeMillis());
+                    if (datagrams == null || !datagrams.send(dest, source, data)) {
+                        enqueue.send(dest, source, data);
                     }
                 } finally {
                     isRunning = false;
@@ -242,6 +289,9 @@ public class CluckProtocol {
             }
         };
         node.addOrReplaceLink(clink, linkName);
+        if (datagrams != null) {
+            datagrams.attach(clink, enqueue);
+        }
         return clink;
     }
 
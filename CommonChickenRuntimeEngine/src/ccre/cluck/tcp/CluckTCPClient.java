@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 Cel Skeggs
+ * Copyright 2013-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -24,6 +24,8 @@ import java.io.IOException;
 
 import ccre.cluck.CluckLink;
 import ccre.cluck.CluckNode;
+import ccre.cluck.shm.CluckSharedMemoryConnection;
+import ccre.cluck.shm.CluckSharedMemoryServer;
 import ccre.concurrency.ReporterThread;
 import ccre.log.Logger;
 import ccre.net.ClientSocket;
@@ -52,6 +54,23 @@ public class CluckTCPClient extends ReporterThread {
      * The active remote socket.
      */
     private ClientSocket sock;
+    /**
+     * The active shared-memory connection, if the remote is on this machine.
+     */
+    private volatile CluckSharedMemoryConnection sharedConn;
+    /**
+     * Should this client use shared memory when the remote is on this
+     * machine?
+     */
+    private volatile boolean useSharedMemory = true;
+    /**
+     * The UDP side-channel for the active connection, if any.
+     */
+    private volatile CluckDatagramChannel datagrams;
+    /**
+     * Should this client offer to send latest-value messages over UDP?
+     */
+    private volatile boolean useDatagrams = false;
     /**
      * The connection remote address.
      */
@@ -137,6 +156,29 @@ public class CluckTCPClient extends ReporterThread {
         this.logDuringNormalOperation = logDuringNormalOperation;
     }
 
+    /**
+     * Set whether or not this client should connect over shared memory, rather
+     * than TCP, when the remote is on this machine and provides a
+     * {@link CluckSharedMemoryServer}. This is enabled by default.
+     *
+     * @param useSharedMemory if shared memory should be used when possible.
+     */
+    public void setUseSharedMemory(boolean useSharedMemory) {
+        this.useSharedMemory = useSharedMemory;
+    }
+
+    /**
+     * Set whether or not this client should offer a UDP side-channel to the
+     * server, over which latest-value messages (such as FloatInput updates)
+     * are sent so that they can't be held up by lost TCP packets. This is
+     * disabled by default, and takes effect on the next connection.
+     *
+     * @param useDatagrams if datagrams should be offered.
+     */
+    public void setUseDatagrams(boolean useDatagrams) {
+        this.useDatagrams = useDatagrams;
+    }
+
     /**
      * End the active connection and don't reconnect.
      */
@@ -159,6 +201,10 @@ public class CluckTCPClient extends ReporterThread {
     }
 
     private void closeActiveConnectionIfAny() {
+        CluckSharedMemoryConnection conn = sharedConn;
+        if (conn != null) {
+            conn.close();
+        }
         if (sock != null) {
             try {
                 sock.close();
@@ -209,6 +255,10 @@ public class CluckTCPClient extends ReporterThread {
     private String tryConnection() {
         String postfix = "";
         this.errorSummary = null;
+        int localPort = useSharedMemory ? getLocalPort(remote) : -1;
+        if (localPort != -1 && CluckSharedMemoryServer.isRunning(localPort)) {
+            return trySharedMemoryConnection(localPort);
+        }
         try {
             try {
                 isReconnecting = true;
@@ -239,10 +289,59 @@ public class CluckTCPClient extends ReporterThread {
         } finally {
             isReconnecting = false;
             isEstablished = false;
+            CluckDatagramChannel d = datagrams;
+            if (d != null) {
+                d.close();
+                datagrams = null;
+            }
         }
         return postfix;
     }
 
+    private String trySharedMemoryConnection(int port) {
+        try {
+            isReconnecting = true;
+            sharedConn = CluckSharedMemoryConnection.connect(port, remoteNameHint);
+            try {
+                isEstablished = true;
+                Logger.fine("Connected to " + remote + " over shared memory at " + System.currentTimeMillis());
+                CluckLink deny = sharedConn.attach(node, linkName);
+                node.notifyNetworkModified(); // Only send here, not on server.
+                isReconnecting = false;
+                sharedConn.receive(node, linkName, deny);
+            } finally {
+                sharedConn.close();
+            }
+        } catch (IOException ex) {
+            this.errorSummary = ex.getMessage();
+            Logger.warning("IO Error while handling shared-memory connection", ex);
+        } finally {
+            isReconnecting = false;
+            isEstablished = false;
+        }
+        return "";
+    }
+
+    /**
+     * Find the port of the specified remote address, if it refers to this
+     * machine.
+     *
+     * @param remote the remote address, with an optional port.
+     * @return the port, or -1 if the address is not local or is malformed.
+     */
+    static int getLocalPort(String remote) {
+        int cln = remote.lastIndexOf(':');
+        String host = cln == -1 ? remote : remote.substring(0, cln);
+        if (!"localhost".equalsIgnoreCase(host) && !"127.0.0.1".equals(host)) {
+            return -1;
+        }
+        try {
+            return cln == -1 ? DEFAULT_PORT : Integer.parseInt(remote.substring(cln + 1));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
     /**
      * Starts a Cluck connection. Handshakes with the remote end, negotiates
      * link names, and sets up socket timeouts, the sending thread, and the
@@ -259,7 +358,16 @@ public class CluckTCPClient extends ReporterThread {
         CluckProtocol.handleHeader(din, dout, remoteNameHint);
         Logger.fine("Connected to " + remote + " at " + System.currentTimeMillis());
         CluckProtocol.setTimeoutOnSocket(socket);
-        CluckLink establishedLink = CluckProtocol.handleSend(dout, linkName, node);
+        CluckDatagramChannel d = useDatagrams ? new CluckDatagramChannel(socket, node, linkName) : null;
+        datagrams = d;
+        CluckLink establishedLink = CluckProtocol.handleSend(dout, linkName, node, d);
+        if (d != null) {
+            try {
+                d.offer();
+            } catch (IOException ex) {
+                Logger.warning("Could not open datagram socket; using TCP only", ex);
+            }
+        }
         node.notifyNetworkModified(); // Only send here, not on server.
         return establishedLink;
     }
@@ -279,7 +387,7 @@ public class CluckTCPClient extends ReporterThread {
      * @throws IOException if the connection is malformed or fails.
      */
     protected void doMain(DataInputStream din, DataOutputStream dout, ClientSocket socket, CluckLink deny) throws IOException {
-        CluckProtocol.handleRecv(din, linkName, node, deny);
+        CluckProtocol.handleRecv(din, linkName, node, deny, datagrams);
     }
 
     /**
@@ -306,6 +414,15 @@ public class CluckTCPClient extends ReporterThread {
         return isEstablished;
     }
 
+    /**
+     * @return if latest-value messages are currently being sent to the server
+     * over UDP.
+     */
+    public boolean isUsingDatagrams() {
+        CluckDatagramChannel d = datagrams;
+        return d != null && d.isActive();
+    }
+
     /**
      * @return a short summary of the current error being experienced by this
      * client.
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2014 Cel Skeggs
+ * Copyright 2013-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -74,10 +74,16 @@ public class CluckTCPServer extends ConnectionReceiverThread {
                     }
                     Logger.fine("Client connected at " + System.currentTimeMillis() + " named " + linkName);
                     CluckProtocol.setTimeoutOnSocket(conn);
-                    CluckLink deny = CluckProtocol.handleSend(dout, linkName, node);
-                    CluckProtocol.handleRecv(din, linkName, node, deny);
-                    // node.notifyNetworkModified(); - sent by client, not
-                    // needed here.
+                    // only opened if the client offers to use datagrams
+                    CluckDatagramChannel datagrams = new CluckDatagramChannel(conn, node, linkName);
+                    try {
+                        CluckLink deny = CluckProtocol.handleSend(dout, linkName, node, datagrams);
+                        CluckProtocol.handleRecv(din, linkName, node, deny, datagrams);
+                        // node.notifyNetworkModified(); - sent by client, not
+                        // needed here.
+                    } finally {
+                        datagrams.close();
+                    }
                 } finally {
                     dout.close();
                 }
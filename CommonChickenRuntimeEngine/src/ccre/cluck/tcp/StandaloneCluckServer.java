@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2014 Cel Skeggs
+ * Copyright 2013-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -51,6 +51,7 @@ public class StandaloneCluckServer {
             }
         });
         Cluck.setupServer();
+        Cluck.setupSharedMemoryServer(CluckTCPClient.DEFAULT_PORT);
         Logger.info("Server is running.");
     }
 
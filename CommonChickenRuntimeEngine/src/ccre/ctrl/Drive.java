@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 Cel Skeggs
+ * Copyright 2013-2016 Cel Skeggs
  * Copyright 2014 Alexander Mackworth (single joystick)
  * Copyright 2015 Aidan Smith (mecanum)
  *
@@ -23,6 +23,7 @@ package ccre.ctrl;
 import ccre.channel.DerivedUpdate;
 import ccre.channel.FloatInput;
 import ccre.channel.FloatOutput;
+import ccre.channel.Transaction;
 import ccre.verifier.SetupPhase;
 
 /**
@@ -149,10 +150,16 @@ public class Drive {
                 } else {
                     mul = 1;
                 }
-                rightFrontMotor.set((float) (rightFront * mul));
-                leftFrontMotor.set((float) (leftFront * mul));
-                rightBackMotor.set((float) (rightBack * mul));
-                leftBackMotor.set((float) (leftBack * mul));
+                // set all four together, so that nothing sees a partial update
+                Transaction t = Transaction.begin();
+                try {
+                    rightFrontMotor.set((float) (rightFront * mul));
+                    leftFrontMotor.set((float) (leftFront * mul));
+                    rightBackMotor.set((float) (rightBack * mul));
+                    leftBackMotor.set((float) (leftBack * mul));
+                } finally {
+                    t.commit();
+                }
             }
         };
     }
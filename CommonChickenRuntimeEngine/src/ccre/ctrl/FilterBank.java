@@ -0,0 +1,417 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.ctrl;
+
+import java.util.ArrayList;
+
+import ccre.channel.CancelOutput;
+import ccre.channel.EventInput;
+import ccre.channel.EventOutput;
+import ccre.channel.FloatArrayCell;
+import ccre.channel.FloatVectorInput;
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
+
+/**
+ * A chain of filters applied to every channel of a {@link FloatVectorInput},
+ * such as a group of encoder rates or gyro axes.
+ *
+ * Each filter stage keeps its state for all of the channels in primitive
+ * arrays, and processes one time step for every channel in a single loop. This
+ * means that there is one virtual call per stage per time step, rather than
+ * per channel, and that the inner loops are simple enough for HotSpot to
+ * vectorize.
+ *
+ * Stages are added with methods such as {@link #biquad(float, float, float,
+ * float, float)}, {@link #exponentialMovingAverage(float)},
+ * {@link #kalman(float, float)} and
+ * {@link #savitzkyGolayDerivative(int, float)}, and run in the order they were
+ * added.
+ *
+ * This is an EventOutput - when this is fired, it samples the input vector and
+ * runs it through the filters. This is also a FloatVectorInput, representing
+ * the current filtered values.
+ *
+ * @author skeggsc
+ */
+public class FilterBank implements FloatVectorInput, EventOutput {
+
+    private static abstract class Stage {
+        /**
+         * Filter one time step of every channel, in place.
+         *
+         * @param x the samples for this time step, one per channel.
+         */
+        @FlowPhase
+        abstract void step(float[] x);
+    }
+
+    private static final class Biquad extends Stage {
+        private final float b0, b1, b2, a1, a2;
+        private final float[] z1, z2;
+
+        Biquad(int channels, float b0, float b1, float b2, float a1, float a2) {
+            this.b0 = b0;
+            this.b1 = b1;
+            this.b2 = b2;
+            this.a1 = a1;
+            this.a2 = a2;
+            this.z1 = new float[channels];
+            this.z2 = new float[channels];
+        }
+
+        @Override
+        void step(float[] x) {
+            // transposed direct form II
+            for (int c = 0; c < x.length; c++) {
+                float in = x[c];
+                float out = b0 * in + z1[c];
+                z1[c] = b1 * in - a1 * out + z2[c];
+                z2[c] = b2 * in - a2 * out;
+                x[c] = out;
+            }
+        }
+    }
+
+    private static final class ExponentialMovingAverage extends Stage {
+        private final float alpha;
+        private final float[] state;
+        private boolean primed;
+
+        ExponentialMovingAverage(int channels, float alpha) {
+            this.alpha = alpha;
+            this.state = new float[channels];
+        }
+
+        @Override
+        void step(float[] x) {
+            if (!primed) {
+                System.arraycopy(x, 0, state, 0, x.length);
+                primed = true;
+                return;
+            }
+            for (int c = 0; c < x.length; c++) {
+                float s = state[c] + alpha * (x[c] - state[c]);
+                state[c] = s;
+                x[c] = s;
+            }
+        }
+    }
+
+    private static final class Kalman extends Stage {
+        private final float processNoise, measurementNoise;
+        private final float[] estimate;
+        // the error covariance evolves identically for every channel, because
+        // it doesn't depend on the measurements, so it is shared.
+        private float covariance = 1;
+        private boolean primed;
+
+        Kalman(int channels, float processNoise, float measurementNoise) {
+            this.processNoise = processNoise;
+            this.measurementNoise = measurementNoise;
+            this.estimate = new float[channels];
+        }
+
+        @Override
+        void step(float[] x) {
+            if (!primed) {
+                System.arraycopy(x, 0, estimate, 0, x.length);
+                primed = true;
+                return;
+            }
+            float predicted = covariance + processNoise;
+            float gain = predicted / (predicted + measurementNoise);
+            covariance = (1 - gain) * predicted;
+            for (int c = 0; c < x.length; c++) {
+                float e = estimate[c] + gain * (x[c] - estimate[c]);
+                estimate[c] = e;
+                x[c] = e;
+            }
+        }
+    }
+
+    private static final class FiniteImpulseResponse extends Stage {
+        private final float[] coefficients;
+        // history[tap * channels + channel], as a ring indexed by position
+        private final float[] history;
+        private final float[] accumulator;
+        private final int channels;
+        private int position;
+        private boolean primed;
+
+        FiniteImpulseResponse(int channels, float[] coefficients) {
+            this.channels = channels;
+            this.coefficients = coefficients.clone();
+            this.history = new float[coefficients.length * channels];
+            this.accumulator = new float[channels];
+        }
+
+        @Override
+        void step(float[] x) {
+            int taps = coefficients.length;
+            if (!primed) {
+                // fill the history with the first sample, to avoid a startup
+                // transient from zeros.
+                for (int t = 0; t < taps; t++) {
+                    System.arraycopy(x, 0, history, t * channels, channels);
+                }
+                primed = true;
+            }
+            position = (position + 1) % taps;
+            System.arraycopy(x, 0, history, position * channels, channels);
+            for (int c = 0; c < channels; c++) {
+                accumulator[c] = 0;
+            }
+            // coefficients[0] applies to the newest sample
+            for (int k = 0; k < taps; k++) {
+                float coefficient = coefficients[k];
+                int base = ((position - k + taps) % taps) * channels;
+                for (int c = 0; c < channels; c++) {
+                    accumulator[c] += coefficient * history[base + c];
+                }
+            }
+            System.arraycopy(accumulator, 0, x, 0, channels);
+        }
+    }
+
+    private final FloatVectorInput input;
+    private final int channels;
+    private final ArrayList<Stage> stageList = new ArrayList<>();
+    private Stage[] stages = new Stage[0];
+    private final float[] scratch, blockScratch;
+    private final FloatArrayCell output;
+
+    /**
+     * Creates a new FilterBank over the specified vector of inputs. Until
+     * stages are added, the output is simply a copy of the input.
+     *
+     * @param input the vector of channels to filter.
+     */
+    public FilterBank(FloatVectorInput input) {
+        if (input == null) {
+            throw new NullPointerException();
+        }
+        this.input = input;
+        this.channels = input.size();
+        this.scratch = new float[channels];
+        this.blockScratch = new float[channels];
+        input.copyTo(scratch);
+        this.output = new FloatArrayCell(scratch);
+    }
+
+    @SetupPhase
+    private synchronized FilterBank addStage(Stage stage) {
+        stageList.add(stage);
+        stages = stageList.toArray(new Stage[stageList.size()]);
+        return this;
+    }
+
+    /**
+     * Adds a general biquad (second-order IIR) stage, with coefficients
+     * normalized so that a0 is one:
+     * <code>y[n] = b0 x[n] + b1 x[n-1] + b2 x[n-2] - a1 y[n-1] - a2 y[n-2]</code>
+     *
+     * @param b0 the feedforward coefficient for the current sample.
+     * @param b1 the feedforward coefficient for the previous sample.
+     * @param b2 the feedforward coefficient for the sample before that.
+     * @param a1 the feedback coefficient for the previous output.
+     * @param a2 the feedback coefficient for the output before that.
+     * @return this FilterBank, for method chaining.
+     */
+    @SetupPhase
+    public FilterBank biquad(float b0, float b1, float b2, float a1, float a2) {
+        return addStage(new Biquad(channels, b0, b1, b2, a1, a2));
+    }
+
+    /**
+     * Adds a second-order Butterworth low-pass stage.
+     *
+     * @param cutoffHz the cutoff frequency, in hertz.
+     * @param sampleHz the rate at which this FilterBank is fired, in hertz.
+     * @return this FilterBank, for method chaining.
+     */
+    @SetupPhase
+    public FilterBank lowPass(float cutoffHz, float sampleHz) {
+        if (!(cutoffHz > 0 && cutoffHz < sampleHz / 2)) {
+            throw new IllegalArgumentException("Cutoff must be between zero and the Nyquist frequency: " + cutoffHz);
+        }
+        double w0 = 2 * Math.PI * cutoffHz / sampleHz;
+        double alpha = Math.sin(w0) / Math.sqrt(2); // Q = 1/sqrt(2)
+        double cos = Math.cos(w0), a0 = 1 + alpha;
+        double b1 = (1 - cos) / a0, b0 = b1 / 2;
+        return biquad((float) b0, (float) b1, (float) b0, (float) (-2 * cos / a0), (float) ((1 - alpha) / a0));
+    }
+
+    /**
+     * Adds an exponential moving average stage. Each time step, the output
+     * moves <code>alpha</code> of the way from its previous value to the new
+     * sample. The first sample passes straight through.
+     *
+     * @param alpha the smoothing factor, greater than zero and at most one.
+     * @return this FilterBank, for method chaining.
+     */
+    @SetupPhase
+    public FilterBank exponentialMovingAverage(float alpha) {
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("Smoothing factor must be in (0, 1]: " + alpha);
+        }
+        return addStage(new ExponentialMovingAverage(channels, alpha));
+    }
+
+    /**
+     * Adds a one-dimensional Kalman filter stage, which models each channel as
+     * a constant value with random drift, observed through noisy measurements.
+     * The first sample passes straight through.
+     *
+     * @param processNoise the variance of the drift per time step.
+     * @param measurementNoise the variance of the measurement noise.
+     * @return this FilterBank, for method chaining.
+     */
+    @SetupPhase
+    public FilterBank kalman(float processNoise, float measurementNoise) {
+        if (!(processNoise >= 0) || !(measurementNoise > 0)) {
+            throw new IllegalArgumentException("Invalid Kalman noise parameters: " + processNoise + ", " + measurementNoise);
+        }
+        return addStage(new Kalman(channels, processNoise, measurementNoise));
+    }
+
+    /**
+     * Adds a general FIR stage. <code>coefficients[0]</code> is applied to the
+     * newest sample, <code>coefficients[1]</code> to the one before, and so on.
+     * The history starts out filled with the first sample.
+     *
+     * @param coefficients the filter taps.
+     * @return this FilterBank, for method chaining.
+     */
+    @SetupPhase
+    public FilterBank fir(float... coefficients) {
+        if (coefficients.length == 0) {
+            throw new IllegalArgumentException("FIR filter must have at least one tap!");
+        }
+        return addStage(new FiniteImpulseResponse(channels, coefficients));
+    }
+
+    /**
+     * Adds a Savitzky-Golay first derivative stage, which fits a polynomial to
+     * the last <code>window</code> samples and replaces them with its slope, in
+     * units per second. This is far less noisy than differencing adjacent
+     * samples, at the cost of a delay of half the window.
+     *
+     * @param window the number of samples to fit, which must be odd and at
+     * least three.
+     * @param samplePeriodSeconds the time between firings of this FilterBank.
+     * @return this FilterBank, for method chaining.
+     */
+    @SetupPhase
+    public FilterBank savitzkyGolayDerivative(int window, float samplePeriodSeconds) {
+        if (window < 3 || window % 2 == 0) {
+            throw new IllegalArgumentException("Savitzky-Golay window must be odd and at least three: " + window);
+        }
+        if (!(samplePeriodSeconds > 0)) {
+            throw new IllegalArgumentException("Sample period must be positive: " + samplePeriodSeconds);
+        }
+        // for a linear or quadratic fit, the slope at the center is
+        // sum(i * x[i]) / sum(i * i), for i from -m to m.
+        int half = window / 2;
+        float norm = half * (half + 1) * (2 * half + 1) / 3f * samplePeriodSeconds;
+        float[] coefficients = new float[window];
+        for (int k = 0; k < window; k++) {
+            // k = 0 is the newest sample, which is i = +half.
+            coefficients[k] = (half - k) / norm;
+        }
+        return fir(coefficients);
+    }
+
+    /**
+     * Fires this FilterBank whenever <code>trigger</code> is fired.
+     *
+     * @param trigger when to sample and filter the input.
+     * @return a CancelOutput that stops updating from this trigger.
+     */
+    @SetupPhase
+    public CancelOutput updateWhen(EventInput trigger) {
+        return trigger.send(this);
+    }
+
+    @Override
+    public synchronized void event() {
+        input.copyTo(scratch);
+        filter(scratch);
+        output.set(scratch);
+    }
+
+    /**
+     * Runs one time step through every stage, in place, updating the state of
+     * the filters. This does not affect the value of this FloatVectorInput.
+     *
+     * @param samples one sample per channel.
+     */
+    @FlowPhase
+    public synchronized void filter(float[] samples) {
+        if (samples.length != channels) {
+            throw new IllegalArgumentException("Expected " + channels + " samples, not " + samples.length);
+        }
+        for (Stage stage : stages) {
+            stage.step(samples);
+        }
+    }
+
+    /**
+     * Runs a block of time steps through every stage, in place, updating the
+     * state of the filters. The block is laid out one time step after another,
+     * so that sample <code>c</code> of time step <code>t</code> is at index
+     * <code>t * size() + c</code>. This does not affect the value of this
+     * FloatVectorInput.
+     *
+     * @param block the samples, a whole number of time steps long.
+     */
+    @FlowPhase
+    public synchronized void filterBlock(float[] block) {
+        if (block.length % channels != 0) {
+            throw new IllegalArgumentException("Block is not a whole number of time steps: " + block.length);
+        }
+        for (int offset = 0; offset < block.length; offset += channels) {
+            System.arraycopy(block, offset, blockScratch, 0, channels);
+            for (Stage stage : stages) {
+                stage.step(blockScratch);
+            }
+            System.arraycopy(blockScratch, 0, block, offset, channels);
+        }
+    }
+
+    @Override
+    public int size() {
+        return channels;
+    }
+
+    @Override
+    public float get(int index) {
+        return output.get(index);
+    }
+
+    @Override
+    public void copyTo(float[] target) {
+        output.copyTo(target);
+    }
+
+    @Override
+    public CancelOutput onUpdate(EventOutput notify) {
+        return output.onUpdate(notify);
+    }
+}
@@ -18,6 +18,8 @@
  */
 package ccre.ctrl;
 
+import java.util.ArrayDeque;
+
 import ccre.channel.BooleanInput;
 import ccre.channel.DerivedBooleanInput;
 import ccre.channel.DerivedFloatInput;
@@ -25,6 +27,7 @@ import ccre.channel.EventCell;
 import ccre.channel.EventInput;
 import ccre.channel.EventOutput;
 import ccre.channel.FloatInput;
+import ccre.channel.Transaction;
 import ccre.channel.UpdatingInput;
 import ccre.log.LogLevel;
 import ccre.log.Logger;
@@ -46,9 +49,30 @@ import ccre.verifier.SetupPhase;
 public class StateMachine {
     private int currentState;
     private final int numberOfStates;
-    private final EventCell onExit = new EventCell();
-    private final EventCell onEnter = new EventCell();
+    private final TransitionCell onExit = new TransitionCell();
+    private final TransitionCell onEnter = new TransitionCell();
     private final String[] stateNames;
+    // transitions requested by exit or entry handlers, run once the current
+    // transition finishes
+    private final ArrayDeque<Integer> queuedStates = new ArrayDeque<>();
+    private boolean transitioning;
+
+    /**
+     * An EventCell that fires its listeners immediately, even during a
+     * transaction, so that exit and entry events are never coalesced or
+     * reordered.
+     */
+    private static final class TransitionCell extends EventCell {
+        private static final long serialVersionUID = -1915327240431557924L;
+
+        void fire() {
+            try {
+                performImmediately();
+            } catch (Throwable ex) {
+                Logger.severe("Error during event propagation", ex);
+            }
+        }
+    }
 
     /**
      * Create a new StateMachine with a named defaultState and a list of state
@@ -124,6 +148,11 @@ public class StateMachine {
     /**
      * Set the state of this machine to the indexed state.
      *
+     * The state exit and entry events are fired inside a {@link Transaction},
+     * so any channels updated by the handlers notify their listeners together
+     * once all of the handlers have run. If a handler changes the state again,
+     * that transition happens after the current one has finished.
+     *
      * @param state the state to change to, as an index in the list of state
      * names.
      */
@@ -132,12 +161,39 @@ public class StateMachine {
         if (state < 0 || state >= getNumberOfStates()) {
             throw new IllegalArgumentException("Invalid state ID: " + state);
         }
+        if (transitioning) {
+            queuedStates.add(state);
+            return;
+        }
+        transitioning = true;
+        try {
+            transition(state);
+            while (!queuedStates.isEmpty()) {
+                transition(queuedStates.remove());
+            }
+        } finally {
+            queuedStates.clear();
+            transitioning = false;
+        }
+    }
+
+    @FlowPhase
+    private void transition(int state) {
         if (state == currentState) {
             return;
         }
-        onExit.safeEvent();
-        currentState = state;
-        onEnter.safeEvent();
+        Transaction t = Transaction.begin();
+        try {
+            onExit.fire();
+            currentState = state;
+            onEnter.fire();
+        } finally {
+            try {
+                t.commit();
+            } catch (Throwable ex) {
+                Logger.severe("Error during event propagation", ex);
+            }
+        }
     }
 
     /**
@@ -182,13 +238,7 @@ public class StateMachine {
         if (state < 0 || state >= getNumberOfStates()) {
             throw new IllegalArgumentException("Invalid state ID: " + state);
         }
-        return () -> {
-            if (state != currentState) {
-                onExit.safeEvent();
-                currentState = state;
-                onEnter.safeEvent();
-            }
-        };
+        return () -> setState(state);
     }
 
     /**
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.frc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import ccre.channel.EventOutput;
+import ccre.concurrency.ReporterThread;
+import ccre.log.Logger;
+import ccre.recording.Recorder;
+import ccre.time.Time;
+import ccre.verifier.SetupPhase;
+
+/**
+ * A profile of how long each phase of robot startup took, so that slow boots
+ * (such as after a brownout) can be diagnosed, along with a place to put
+ * subsystems that aren't needed until after robot setup is over.
+ *
+ * The robot implementation marks its own phases. Robot code can call
+ * {@link #mark(String)} after each step of its setup to break down the time
+ * spent in {@link FRCApplication#setupRobot()}.
+ *
+ * @author skeggsc
+ */
+public final class BootProfile {
+    private static final Object lock = new Object();
+    private static final ArrayList<String> steps = new ArrayList<>();
+    private static final ArrayList<String> deferredNames = new ArrayList<>();
+    private static final ArrayList<EventOutput> deferredTasks = new ArrayList<>();
+    private static long startNanos = Time.currentTimeNanos(), lastNanos = startNanos;
+    private static boolean ready;
+    // whether the deferred tasks have been scheduled, and whether they have all
+    // been run, after which new tasks run immediately.
+    private static boolean deferredScheduled, deferredDrained;
+    // incremented by begin(), so that stale deferral threads give up
+    private static int generation;
+    private static OutputStream recording;
+
+    private BootProfile() {
+    }
+
+    /**
+     * Restart the profile from the current time. This should be called by the
+     * robot implementation as early as possible.
+     */
+    public static void begin() {
+        synchronized (lock) {
+            startNanos = lastNanos = Time.currentTimeNanos();
+            steps.clear();
+            deferredNames.clear();
+            deferredTasks.clear();
+            ready = false;
+            deferredScheduled = false;
+            deferredDrained = false;
+            generation++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Record that a step of startup has just finished. The step is charged with
+     * all of the time since the previous step.
+     *
+     * @param step the name of the step.
+     */
+    public static void mark(String step) {
+        String line;
+        OutputStream out;
+        synchronized (lock) {
+            long now = Time.currentTimeNanos();
+            line = step + ": " + toMillis(now - lastNanos) + " ms (at " + toMillis(now - startNanos) + " ms)";
+            lastNanos = now;
+            steps.add(line);
+            out = recording;
+        }
+        if (out != null) {
+            write(out, line);
+        }
+    }
+
+    /**
+     * Delay <code>task</code> until robot setup is over: either once the robot
+     * implementation calls {@link #runDeferredAfter(long)} and its delay
+     * passes, or once the robot is {@link #ready()}, whichever is first.
+     * Deferred tasks are run in order on a separate thread, and each is marked
+     * in the profile when it finishes. If the deferred tasks have already all
+     * been run, the task runs immediately.
+     *
+     * This is for subsystems that are useful but not critical, such as extra
+     * network servers.
+     *
+     * @param name the name of the task, for the profile.
+     * @param task the task to run.
+     */
+    @SetupPhase
+    public static void defer(String name, EventOutput task) {
+        if (name == null || task == null) {
+            throw new NullPointerException();
+        }
+        synchronized (lock) {
+            if (!deferredDrained) {
+                deferredNames.add(name);
+                deferredTasks.add(task);
+                return;
+            }
+        }
+        runDeferred(name, task);
+    }
+
+    /**
+     * Start running the deferred tasks after <code>delayMillis</code>, or as
+     * soon as the robot is {@link #ready()}, if that happens first. This should
+     * be called by the robot implementation once robot setup has finished,
+     * whether or not it succeeded, so that deferred tasks don't depend on a
+     * driver station ever connecting.
+     *
+     * @param delayMillis how long to wait before running the tasks.
+     */
+    public static void runDeferredAfter(final long delayMillis) {
+        final long endAt;
+        final int current;
+        synchronized (lock) {
+            if (deferredScheduled || deferredDrained) {
+                return;
+            }
+            deferredScheduled = true;
+            endAt = Time.currentTimeMillis() + delayMillis;
+            current = generation;
+        }
+        new ReporterThread("Deferred-Init") {
+            @Override
+            protected void threadBody() throws InterruptedException {
+                synchronized (lock) {
+                    while (!ready && generation == current) {
+                        long remaining = endAt - Time.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        Time.wait(lock, remaining);
+                    }
+                }
+                drainDeferred(current);
+            }
+        }.start();
+    }
+
+    private static void drainDeferred(int current) {
+        while (true) {
+            String name;
+            EventOutput task;
+            synchronized (lock) {
+                if (generation != current) {
+                    return;
+                }
+                if (deferredTasks.isEmpty()) {
+                    deferredDrained = true;
+                    return;
+                }
+                name = deferredNames.remove(0);
+                task = deferredTasks.remove(0);
+            }
+            runDeferred(name, task);
+        }
+    }
+
+    /**
+     * Record that the robot is ready to be enabled, log a summary of the
+     * profile, and start running any deferred tasks that haven't been run yet.
+     * This should be called by the robot implementation.
+     */
+    public static void ready() {
+        StringBuilder summary = new StringBuilder();
+        synchronized (lock) {
+            if (ready) {
+                return;
+            }
+            mark("ready");
+            ready = true;
+            summary.append("Boot took ").append(toMillis(lastNanos - startNanos)).append(" ms:");
+            for (String step : steps) {
+                summary.append("\n    ").append(step);
+            }
+            if (!deferredScheduled && deferredTasks.isEmpty()) {
+                deferredDrained = true;
+            }
+            lock.notifyAll();
+        }
+        Logger.info(summary.toString());
+        runDeferredAfter(0);
+    }
+
+    /**
+     * @return true if {@link #ready()} has been called since the profile
+     * began.
+     */
+    public static boolean isReady() {
+        synchronized (lock) {
+            return ready;
+        }
+    }
+
+    /**
+     * @return the steps recorded so far, each with its duration and the time
+     * since the profile began.
+     */
+    public static String[] getSteps() {
+        synchronized (lock) {
+            return steps.toArray(new String[steps.size()]);
+        }
+    }
+
+    /**
+     * Record the profile into <code>rec</code>, including any steps that have
+     * already been marked and any future steps.
+     *
+     * @param rec the recorder to record into.
+     */
+    @SetupPhase
+    public static void recordTo(Recorder rec) {
+        OutputStream out = rec.createOutputStream("Boot Profile");
+        String[] existing;
+        synchronized (lock) {
+            existing = steps.toArray(new String[steps.size()]);
+            recording = out;
+        }
+        for (String line : existing) {
+            write(out, line);
+        }
+    }
+
+    private static void runDeferred(String name, EventOutput task) {
+        try {
+            task.event();
+        } catch (Throwable thr) {
+            Logger.severe("Deferred initialization of " + name + " failed", thr);
+        }
+        mark("deferred " + name);
+    }
+
+    private static void write(OutputStream out, String line) {
+        try {
+            out.write((line + "\n").getBytes("UTF-8"));
+        } catch (IOException e) {
+            Logger.warning("Could not record boot profile", e);
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / Time.NANOSECONDS_PER_MILLISECOND;
+    }
+}
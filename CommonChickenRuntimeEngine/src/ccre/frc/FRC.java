@@ -26,9 +26,13 @@ import ccre.bus.RS232IO;
 import ccre.bus.SPIBus;
 import ccre.channel.BooleanInput;
 import ccre.channel.BooleanOutput;
+import ccre.channel.EventCell;
 import ccre.channel.EventInput;
+import ccre.channel.EventOutput;
+import ccre.channel.FloatArrayCell;
 import ccre.channel.FloatInput;
 import ccre.channel.FloatOutput;
+import ccre.channel.FloatVectorInput;
 import ccre.ctrl.ExtendedMotor;
 import ccre.ctrl.ExtendedMotorFailureException;
 import ccre.ctrl.Joystick;
@@ -1018,6 +1022,51 @@ public class FRC {
         return impl.getPDPChannelCurrent(channel, updateOn);
     }
 
+    /**
+     * Reads the current draw of each of the specified PDP channels, as a single
+     * vector. Use {@link FloatVectorInput#sum()} and the other bulk operations
+     * to combine them without a node for each intermediate result.
+     *
+     * @param channels the channels to monitor
+     * @return the currents being used by the specified channels, in order.
+     */
+    @SetupPhase
+    public static FloatVectorInput channelCurrentsPDP(int... channels) {
+        return channelCurrentsPDP(sensorPeriodic, channels);
+    }
+
+    /**
+     * Reads the current draw of each of the specified PDP channels, as a single
+     * vector. Use {@link FloatVectorInput#sum()} and the other bulk operations
+     * to combine them without a node for each intermediate result.
+     *
+     * @param updateOn when to update the sensor values.
+     * @param channels the channels to monitor
+     * @return the currents being used by the specified channels, in order.
+     */
+    @SetupPhase
+    public static FloatVectorInput channelCurrentsPDP(EventInput updateOn, int... channels) {
+        // the channels are refreshed by a private event, so that all of them
+        // can be sampled first and then published as one update.
+        EventCell sample = new EventCell();
+        FloatInput[] currents = new FloatInput[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            currents[i] = impl.getPDPChannelCurrent(channels[i], sample);
+        }
+        FloatArrayCell cell = new FloatArrayCell(channels.length);
+        float[] scratch = new float[channels.length];
+        EventOutput update = () -> {
+            sample.event();
+            for (int i = 0; i < currents.length; i++) {
+                scratch[i] = currents[i].get();
+            }
+            cell.set(scratch);
+        };
+        update.event();
+        updateOn.send(update);
+        return cell;
+    }
+
     /**
      * Reads the voltage of the PDP.
      *
@@ -1563,6 +1612,7 @@ public class FRC {
             } catch (IOException e) {
                 throw new RuntimeException(e); // TODO: better error handling?
             }
+            BootProfile.recordTo(rec);
             rec.recordEventInput(globalPeriodic, "FRC.globalPeriodic");
             rec.recordEventInput(constantPeriodic, "FRC.constantPeriodic");
             rec.recordEventInput(sensorPeriodic, "FRC.sensorPeriodic");
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.frc;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reassembles a robot Jar on the roboRIO from the previously-deployed Jar and
+ * a patch containing only the entries that changed, so that deployment only
+ * has to upload the changes. The patch is produced by the DeploymentEngine.
+ *
+ * A patch is a zip file. Its first entry, <code>ccre-patch.list</code>, has
+ * one line per entry of the new Jar, in order:
+ * <code>[+ or =] [crc32 in hex] [size] [name]</code>, where <code>+</code>
+ * means that the data is in the patch, under <code>data/[name]</code>, and
+ * <code>=</code> means that it is unchanged from the old Jar. Every entry is
+ * checked against its CRC and size, so that a patch cannot be applied to the
+ * wrong Jar.
+ *
+ * This is run as a separate program before the robot code is started, with
+ * the old Jar on the classpath:
+ * <code>java -cp old.jar ccre.frc.JarPatcher old.jar patch new.jar</code>.
+ * It exits with a nonzero status if the patch cannot be applied.
+ *
+ * @author skeggsc
+ */
+public class JarPatcher {
+    /**
+     * The name of the list of entries within a patch.
+     */
+    public static final String LIST_NAME = "ccre-patch.list";
+    /**
+     * The prefix for the names of changed entries within a patch.
+     */
+    public static final String DATA_PREFIX = "data/";
+
+    /**
+     * Apply a patch.
+     *
+     * @param args the old Jar, the patch, and the new Jar to write.
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: JarPatcher <old.jar> <patch> <new.jar>");
+            System.exit(1);
+        }
+        try {
+            apply(args[0], args[1], args[2]);
+        } catch (IOException e) {
+            System.err.println("Could not apply patch: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Reassemble the Jar at <code>newJar</code> from <code>oldJar</code> and
+     * <code>patch</code>.
+     *
+     * @param oldJar the path to the previously-deployed Jar.
+     * @param patch the path to the patch.
+     * @param newJar the path to write the new Jar to.
+     * @throws IOException if the patch cannot be applied, including if any
+     * entry does not match its expected contents.
+     */
+    public static void apply(String oldJar, String patch, String newJar) throws IOException {
+        try (ZipFile old = new ZipFile(oldJar); ZipFile changes = new ZipFile(patch); ZipOutputStream out = new ZipOutputStream(new FileOutputStream(newJar))) {
+            // the roboRIO is slow, and size matters little once it's there
+            out.setLevel(Deflater.BEST_SPEED);
+            ZipEntry listEntry = changes.getEntry(LIST_NAME);
+            if (listEntry == null) {
+                throw new IOException("Not a patch: " + patch);
+            }
+            byte[] buffer = new byte[16384];
+            CRC32 crc = new CRC32();
+            try (BufferedReader list = new BufferedReader(new InputStreamReader(changes.getInputStream(listEntry), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = list.readLine()) != null) {
+                    String[] parts = line.split(" ", 4);
+                    if (parts.length != 4 || !(parts[0].equals("+") || parts[0].equals("="))) {
+                        throw new IOException("Malformed patch line: " + line);
+                    }
+                    long expectedCRC = Long.parseLong(parts[1], 16), expectedSize = Long.parseLong(parts[2]);
+                    String name = parts[3];
+                    ZipEntry source = parts[0].equals("+") ? changes.getEntry(DATA_PREFIX + name) : old.getEntry(name);
+                    if (source == null) {
+                        throw new IOException("Missing entry: " + name);
+                    }
+                    out.putNextEntry(new ZipEntry(name));
+                    crc.reset();
+                    long size = 0;
+                    try (InputStream in = (parts[0].equals("+") ? changes : old).getInputStream(source)) {
+                        int count;
+                        while ((count = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, count);
+                            crc.update(buffer, 0, count);
+                            size += count;
+                        }
+                    }
+                    out.closeEntry();
+                    if (crc.getValue() != expectedCRC || size != expectedSize) {
+                        throw new IOException("Mismatched contents for entry: " + name);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ccre.concurrency.ReporterThread;
+import ccre.util.CallerInfo;
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
+
+/**
+ * The writer thread behind {@link Logger#startAsynchronous(int)}.
+ *
+ * Logging calls claim a slot in a bounded ring of preallocated records, using
+ * the sequence-numbered scheme from Dmitry Vyukov's bounded queue, so that no
+ * locks are taken and nothing beyond the message itself is allocated on the
+ * caller's thread. If the ring is full, the message is dropped and counted;
+ * the writer reports the number of dropped messages once it catches up.
+ *
+ * The writer drains records in batches, delivers each of them to every
+ * {@link Logger#targets target}, and then asks each target to
+ * {@link LoggingTarget#flush() flush} once per batch.
+ *
+ * Caller information is captured lazily: unless
+ * {@link ccre.util.Utils#hasCachedMethodCaller() cached lookups} are available,
+ * the logging thread only records a {@link Throwable}, and the stack trace is
+ * decoded on the writer thread.
+ *
+ * @author skeggsc
+ */
+final class AsyncLogWriter extends ReporterThread {
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 100 * 1000000L;
+
+    private static final class Record {
+        LogLevel level;
+        String message;
+        Throwable throwable;
+        String extended;
+        boolean isExtended;
+        CallerInfo callerInfo;
+        Throwable caller;
+        int callerIndex;
+    }
+
+    private final int mask;
+    private final Record[] records;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object completionLock = new Object();
+    // only touched by the consumer
+    private long head, reportedDrops;
+    private volatile long completed;
+    private volatile boolean parked, stopping;
+
+    AsyncLogWriter(int capacity) {
+        super("AsyncLogWriter");
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Logging queue capacity must be positive: " + capacity);
+        }
+        if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("Logging queue capacity is too large: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        records = new Record[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        setDaemon(true);
+    }
+
+    /**
+     * @return the number of slots in the queue, which is the requested capacity
+     * rounded up to a power of two.
+     */
+    int getCapacity() {
+        return records.length;
+    }
+
+    /**
+     * @return the number of messages dropped so far because the queue was
+     * full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of messages delivered to the targets so far.
+     */
+    long getWrittenCount() {
+        return completed;
+    }
+
+    /**
+     * Queue a message for the writer thread.
+     *
+     * @return true if the message was queued, or false if it was dropped.
+     */
+    @FlowPhase
+    boolean offer(LogLevel level, String message, Throwable throwable, String extended, boolean isExtended, CallerInfo callerInfo, Throwable caller, int callerIndex) {
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        Record r = records[index];
+        r.level = level;
+        r.message = message;
+        r.throwable = throwable;
+        r.extended = extended;
+        r.isExtended = isExtended;
+        r.callerInfo = callerInfo;
+        r.caller = caller;
+        r.callerIndex = callerIndex;
+        sequences.set(index, pos + 1);
+        if (parked) {
+            LockSupport.unpark(this);
+        }
+        return true;
+    }
+
+    /**
+     * Wake the writer early, such as to deliver summaries of suppressed
+     * messages, even if nothing new has been queued.
+     */
+    @FlowPhase
+    void wake() {
+        if (parked) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    @Override
+    protected void threadBody() {
+        while (true) {
+            if (drainBatch() == 0) {
+                if (stopping) {
+                    return;
+                }
+                parked = true;
+                if (isEmpty() && !stopping) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    private int drainBatch() {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Record r = records[index];
+            LogLevel level = r.level;
+            String message = r.message;
+            Throwable throwable = r.throwable;
+            String extended = r.extended;
+            boolean isExtended = r.isExtended;
+            CallerInfo callerInfo = r.callerInfo;
+            Throwable caller = r.caller;
+            int callerIndex = r.callerIndex;
+            r.level = null;
+            r.message = null;
+            r.throwable = null;
+            r.extended = null;
+            r.callerInfo = null;
+            r.caller = null;
+            sequences.set(index, head + records.length);
+            head++;
+            count++;
+
+            if (callerInfo != null) {
+                message = Logger.prependCallerInfo(callerInfo, message);
+            } else if (caller != null) {
+                message = Logger.prependCallerInfo(decodeCaller(caller, callerIndex), message);
+            }
+            deliverSummaries();
+            for (LoggingTarget lt : Logger.targets) {
+                try {
+                    if (isExtended) {
+                        lt.log(level, message, extended);
+                    } else {
+                        lt.log(level, message, throwable);
+                    }
+                } catch (Throwable thr) {
+                    reportTargetFailure(lt, thr);
+                }
+            }
+        }
+        deliverSummaries();
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            String message = "Logging queue overflowed: dropped " + (drops - reportedDrops) + " messages (" + drops + " total).";
+            reportedDrops = drops;
+            for (LoggingTarget lt : Logger.targets) {
+                try {
+                    lt.log(LogLevel.WARNING, message, (Throwable) null);
+                } catch (Throwable thr) {
+                    reportTargetFailure(lt, thr);
+                }
+            }
+        }
+        if (count > 0) {
+            for (LoggingTarget lt : Logger.targets) {
+                try {
+                    lt.flush();
+                } catch (Throwable thr) {
+                    reportTargetFailure(lt, thr);
+                }
+            }
+            synchronized (completionLock) {
+                completed += count;
+                completionLock.notifyAll();
+            }
+        }
+        return count;
+    }
+
+    private static void deliverSummaries() {
+        try {
+            Logger.deliverSummaries();
+        } catch (Throwable thr) {
+            // can't go through the Logger here either.
+            System.err.println("Could not deliver log rate limiting summaries:");
+            thr.printStackTrace();
+        }
+    }
+
+    private static CallerInfo decodeCaller(Throwable caller, int index) {
+        StackTraceElement[] trace = caller.getStackTrace();
+        if (index <= 0 || index >= trace.length || trace[index] == null) {
+            return null;
+        }
+        StackTraceElement elem = trace[index];
+        return new CallerInfo(elem.getClassName(), elem.getMethodName(), elem.getFileName(), elem.getLineNumber());
+    }
+
+    private static void reportTargetFailure(LoggingTarget target, Throwable thr) {
+        // can't go through the Logger here: that would just queue it back up.
+        System.err.println("Logging target " + target + " failed:");
+        thr.printStackTrace();
+    }
+
+    /**
+     * Wait until every message queued before this call has been delivered, or
+     * until the timeout passes.
+     *
+     * @param timeoutMillis the maximum time to wait.
+     * @return true if the queue was drained, or false if the timeout passed.
+     */
+    boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        if (Thread.currentThread() == this) {
+            return false;
+        }
+        // every claimed slot is eventually either delivered or still queued.
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (completionLock) {
+            while (completed < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !isAlive()) {
+                    return false;
+                }
+                completionLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop the writer thread after it delivers everything already queued.
+     */
+    @SetupPhase
+    void shutdown() throws InterruptedException {
+        stopping = true;
+        LockSupport.unpark(this);
+        if (isAlive() && Thread.currentThread() != this) {
+            join();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * The shared details of the binary log format used by {@link BinaryLogWriter}
+ * and {@link BinaryLogReader}.
+ *
+ * A binary log is stored as two files. The data file starts with
+ * {@link #MAGIC}, followed by the wall-clock and CCRE times at which logging
+ * began, and then a sequence of records:
+ *
+ * <ul>
+ * <li>{@link #R_SYNC}: an absolute timestamp, as an eight-byte long. Entries
+ * after it store their timestamps as deltas from the previous entry.</li>
+ * <li>{@link #R_ENTRY}: a timestamp delta, the level ID, the interned call
+ * site (or zero), the interned message template, the template arguments, and
+ * an optional throwable or extended message.</li>
+ * </ul>
+ *
+ * The index file (the data file's name plus {@link #INDEX_SUFFIX}) holds the
+ * interned strings, in order, along with the timestamp and offset of every
+ * {@link #R_SYNC} record, so that readers can seek by time.
+ *
+ * Messages are split into templates by replacing each standalone number with
+ * {@link #PLACEHOLDER}, so that repeated messages share an interned template.
+ *
+ * @author skeggsc
+ */
+final class BinaryLogFormat {
+
+    static final byte[] MAGIC = "CCRE Binary Log: version 1\n".getBytes(StandardCharsets.UTF_8);
+    static final String INDEX_SUFFIX = ".idx";
+    static final String PLACEHOLDER = "{}";
+
+    static final byte R_SYNC = 1, R_ENTRY = 2;
+    static final byte I_STRING = 1, I_SYNC = 2;
+    static final byte D_NONE = 0, D_THROWABLE = 1, D_EXTENDED = 2;
+
+    /**
+     * Split a message into a template and its numeric arguments. The call
+     * site prefix, if any, has already been removed.
+     *
+     * @param message the message to split.
+     * @param args the list to add arguments to.
+     * @return the template.
+     */
+    static String split(String message, ArrayList<String> args) {
+        if (message.contains(PLACEHOLDER)) {
+            // can't be split unambiguously
+            return message;
+        }
+        StringBuilder template = null;
+        int copied = 0, length = message.length();
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            boolean negative = c == '-' && i + 1 < length && isDigit(message.charAt(i + 1));
+            if (!negative && !isDigit(c)) {
+                continue;
+            }
+            if (i > 0 && isWordChar(message.charAt(i - 1))) {
+                // part of an identifier, like "PDP3" or "log-2"
+                while (i + 1 < length && isWordChar(message.charAt(i + 1))) {
+                    i++;
+                }
+                continue;
+            }
+            int end = negative ? i + 2 : i + 1;
+            while (end < length && isDigit(message.charAt(end))) {
+                end++;
+            }
+            if (end + 1 < length && message.charAt(end) == '.' && isDigit(message.charAt(end + 1))) {
+                end += 2;
+                while (end < length && isDigit(message.charAt(end))) {
+                    end++;
+                }
+            }
+            if (end < length && isWordChar(message.charAt(end))) {
+                // something like "3rd" or "0x20"
+                while (end < length && isWordChar(message.charAt(end))) {
+                    end++;
+                }
+                i = end - 1;
+                continue;
+            }
+            if (template == null) {
+                template = new StringBuilder(length);
+            }
+            template.append(message, copied, i).append(PLACEHOLDER);
+            args.add(message.substring(i, end));
+            copied = end;
+            i = end - 1;
+        }
+        if (template == null) {
+            return message;
+        }
+        return template.append(message, copied, length).toString();
+    }
+
+    /**
+     * Reassemble a message from a template and its arguments.
+     *
+     * @param template the template.
+     * @param args the arguments.
+     * @return the message.
+     */
+    static String join(String template, String[] args) {
+        if (args.length == 0) {
+            return template;
+        }
+        StringBuilder sb = new StringBuilder(template.length() + 8 * args.length);
+        int copied = 0;
+        for (String arg : args) {
+            int next = template.indexOf(PLACEHOLDER, copied);
+            if (next == -1) {
+                break;
+            }
+            sb.append(template, copied, next).append(arg);
+            copied = next + PLACEHOLDER.length();
+        }
+        return sb.append(template, copied, template.length()).toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+    }
+
+    /**
+     * Split the "(File.java:N) " prefix added by the {@link Logger} off of a
+     * message.
+     *
+     * @param message the message.
+     * @return the call site, without parentheses, or null if there is none.
+     */
+    static String callSite(String message) {
+        if (!message.startsWith("(")) {
+            return null;
+        }
+        int end = message.indexOf(") ");
+        if (end == -1 || message.lastIndexOf('(', end) != 0 || message.indexOf(' ') < end) {
+            return null;
+        }
+        return message.substring(1, end);
+    }
+
+    static void putVarInt(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static long getVarInt(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed variable-length integer in binary log");
+    }
+
+    static void putBytes(ByteBuffer buf, byte[] bytes) {
+        putVarInt(buf, bytes.length);
+        buf.put(bytes);
+    }
+
+    static String getString(ByteBuffer buf) {
+        long length = getVarInt(buf);
+        if (length < 0 || length > buf.remaining()) {
+            throw new IllegalStateException("Malformed string in binary log");
+        }
+        byte[] bytes = new byte[(int) length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // the maximum size of a varint-encoded byte array's length prefix
+    static final int MAX_VARINT = 10;
+
+    private BinaryLogFormat() {
+    }
+}
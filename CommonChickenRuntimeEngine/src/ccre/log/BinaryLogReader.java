@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A reader for logs written by {@link BinaryLogWriter}. Both the data file and
+ * its index file are memory-mapped, so scanning through a log is fast, and
+ * {@link #seek(long)} can jump directly to the part of the log around a
+ * particular time.
+ *
+ * If the log was cut off partway through a record, for example because the
+ * robot lost power, reading stops cleanly at the last complete record.
+ *
+ * @author skeggsc
+ */
+public class BinaryLogReader implements Closeable {
+
+    /**
+     * A single decoded log entry.
+     *
+     * @author skeggsc
+     */
+    public static final class Entry {
+        /**
+         * The time at which this entry was logged, as reported by
+         * {@link ccre.time.Time#currentTimeMillis()}.
+         */
+        public final long timestamp;
+        /**
+         * The level at which this entry was logged.
+         */
+        public final LogLevel level;
+        /**
+         * The location where this entry was logged, like "Example.java:42", or
+         * null if not known.
+         */
+        public final String callSite;
+        /**
+         * The message template, with "{}" in place of each argument.
+         */
+        public final String template;
+        private final String[] args;
+        /**
+         * The throwable traceback or extended message logged with this entry,
+         * or null if there was none.
+         */
+        public final String detail;
+        /**
+         * Whether {@link #detail} is a throwable traceback rather than an
+         * extended message.
+         */
+        public final boolean isThrowable;
+
+        Entry(long timestamp, LogLevel level, String callSite, String template, String[] args, String detail, boolean isThrowable) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.callSite = callSite;
+            this.template = template;
+            this.args = args;
+            this.detail = detail;
+            this.isThrowable = isThrowable;
+        }
+
+        /**
+         * @return a copy of the arguments substituted into the template.
+         */
+        public String[] getArguments() {
+            return Arrays.copyOf(args, args.length);
+        }
+
+        /**
+         * Reassemble the message, as it was originally logged.
+         *
+         * @return the message, including the call site prefix, if any.
+         */
+        public String getMessage() {
+            String message = BinaryLogFormat.join(template, args);
+            return callSite == null ? message : "(" + callSite + ") " + message;
+        }
+
+        /**
+         * Describe this entry in the same format that {@link FileLogger} uses.
+         *
+         * @return the text form of this entry.
+         */
+        @Override
+        public String toString() {
+            String line = "[" + timestamp + " " + level + "] " + getMessage();
+            return detail == null ? line : line + "\n" + detail.trim();
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer data;
+    private final ArrayList<String> strings = new ArrayList<>();
+    private final long[] syncTimes, syncOffsets;
+    private final long startWallClock, startTime;
+    private final int dataStart;
+    private long timestamp;
+
+    /**
+     * Open the specified binary log and its index file.
+     *
+     * @param file the data file of the log.
+     * @throws IOException if the files cannot be opened or are not binary
+     * logs.
+     */
+    public BinaryLogReader(File file) throws IOException {
+        ByteBuffer index;
+        try (FileChannel indexChannel = FileChannel.open(new File(file.getPath() + BinaryLogFormat.INDEX_SUFFIX).toPath(), StandardOpenOption.READ)) {
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+            if (data.remaining() < magic.length + 16) {
+                throw new IOException("Not a binary log: too short");
+            }
+            data.get(magic);
+            if (!Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+                throw new IOException("Not a binary log: bad header");
+            }
+            startWallClock = data.getLong();
+            startTime = data.getLong();
+            dataStart = data.position();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        long[] times = new long[64], offsets = new long[64];
+        int syncs = 0;
+        try {
+            while (index.hasRemaining()) {
+                byte tag = index.get();
+                if (tag == BinaryLogFormat.I_STRING) {
+                    strings.add(BinaryLogFormat.getString(index));
+                } else if (tag == BinaryLogFormat.I_SYNC) {
+                    long time = index.getLong(), offset = index.getLong();
+                    if (syncs == times.length) {
+                        times = Arrays.copyOf(times, syncs * 2);
+                        offsets = Arrays.copyOf(offsets, syncs * 2);
+                    }
+                    times[syncs] = time;
+                    offsets[syncs++] = offset;
+                } else {
+                    throw new IOException("Malformed binary log index: unknown tag " + tag);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalStateException ex) {
+            // truncated index: use what we have
+        }
+        syncTimes = Arrays.copyOf(times, syncs);
+        syncOffsets = Arrays.copyOf(offsets, syncs);
+    }
+
+    /**
+     * @return the wall-clock time, in milliseconds since the epoch, at which
+     * the log was started.
+     */
+    public long getStartWallClock() {
+        return startWallClock;
+    }
+
+    /**
+     * @return the CCRE time, as reported by
+     * {@link ccre.time.Time#currentTimeMillis()}, at which the log was started.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Move to the last index point at or before the specified time, so that
+     * the next entries returned will include every entry logged at or after
+     * that time. Entries shortly before the time may also be returned.
+     *
+     * @param time the CCRE time, in milliseconds, to seek to.
+     */
+    public void seek(long time) {
+        int target = -1;
+        // while index times only increase, everything before an index point
+        // is no later than it. once the clock goes backwards, entries before
+        // that point could be at any time, so seeking stops there.
+        for (int i = 0; i < syncTimes.length && syncTimes[i] < time; i++) {
+            if (i > 0 && syncTimes[i] < syncTimes[i - 1]) {
+                break;
+            }
+            target = i;
+        }
+        if (target == -1 || syncOffsets[target] >= data.limit()) {
+            rewind();
+        } else {
+            data.position((int) syncOffsets[target]);
+        }
+    }
+
+    /**
+     * Move back to the start of the log.
+     */
+    public void rewind() {
+        data.position(dataStart);
+        timestamp = startTime;
+    }
+
+    /**
+     * Read the next entry from the log.
+     *
+     * @return the next entry, or null if there are no more complete entries.
+     * @throws IOException if the log is malformed.
+     */
+    public Entry next() throws IOException {
+        while (data.hasRemaining()) {
+            int start = data.position();
+            try {
+                byte tag = data.get();
+                if (tag == BinaryLogFormat.R_SYNC) {
+                    timestamp = data.getLong();
+                } else if (tag == BinaryLogFormat.R_ENTRY) {
+                    return readEntry();
+                } else {
+                    throw new IOException("Malformed binary log: unknown tag " + tag + " at " + start);
+                }
+            } catch (BufferUnderflowException | IllegalStateException | IndexOutOfBoundsException ex) {
+                // cut off partway through: treat it as the end
+                data.position(start);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private Entry readEntry() throws IOException {
+        long time = timestamp + BinaryLogFormat.getVarInt(data);
+        LogLevel level;
+        try {
+            level = LogLevel.fromByte(data.get());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Malformed binary log: " + ex.getMessage());
+        }
+        long site = BinaryLogFormat.getVarInt(data);
+        String template = strings.get((int) BinaryLogFormat.getVarInt(data));
+        String[] args = new String[(int) BinaryLogFormat.getVarInt(data)];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = BinaryLogFormat.getString(data);
+        }
+        byte detailType = data.get();
+        String detail = detailType == BinaryLogFormat.D_NONE ? null : BinaryLogFormat.getString(data);
+        timestamp = time;
+        return new Entry(time, level, site == 0 ? null : strings.get((int) site - 1), template, args, detail, detailType == BinaryLogFormat.D_THROWABLE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
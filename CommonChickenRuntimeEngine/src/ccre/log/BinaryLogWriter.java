@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ccre.storage.Storage;
+import ccre.time.Time;
+import ccre.util.Utils;
+
+/**
+ * A logging tool that stores logging messages in a compact binary format,
+ * which can be searched much faster than the text logs written by
+ * {@link FileLogger}. Use {@link BinaryLogReader} to read the logs back.
+ *
+ * Each log is written as a data file and an index file; see
+ * {@link BinaryLogFormat} for the details. Call sites and message templates are
+ * interned, so repeated messages only cost a few bytes each, and records are
+ * accumulated in buffers that are written out with NIO when flushed.
+ *
+ * @author skeggsc
+ */
+public class BinaryLogWriter implements LoggingTarget {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INDEX_BUFFER_SIZE = 8 * 1024;
+    // how many bytes of data to write between index points
+    private static final int INDEX_INTERVAL = 16 * 1024;
+
+    /**
+     * Register a new BinaryLogWriter writing to a unique file with the logging
+     * manager. The files are named "blog-N" and "blog-N.idx", for the lowest
+     * available N.
+     */
+    public static void register() {
+        try {
+            int i = 0;
+            while (Storage.exists("blog-" + i)) {
+                i++;
+            }
+            Logger.addTarget(new BinaryLogWriter("blog-" + i));
+        } catch (IOException ex) {
+            Logger.warning("Could not set up binary logging!", ex);
+        }
+    }
+
+    private final WritableByteChannel data, index;
+    private ByteBuffer dataBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_BUFFER_SIZE);
+    private final HashMap<String, Integer> strings = new HashMap<>();
+    private final ArrayList<String> args = new ArrayList<>();
+    private long dataOffset, lastSyncOffset = -INDEX_INTERVAL, lastTimestamp;
+    private boolean failed;
+
+    /**
+     * Create a new BinaryLogWriter writing to the specified file and its index
+     * file.
+     *
+     * @param name the name of the data file, which is opened with
+     * {@link Storage}.
+     * @throws IOException if either file cannot be opened.
+     */
+    public BinaryLogWriter(String name) throws IOException {
+        this(toChannel(Storage.openOutput(name)), toChannel(Storage.openOutput(name + BinaryLogFormat.INDEX_SUFFIX)));
+    }
+
+    /**
+     * Create a new BinaryLogWriter writing to the specified channels.
+     *
+     * @param data the channel for the data file.
+     * @param index the channel for the index file.
+     * @throws IOException if the header cannot be written.
+     */
+    public BinaryLogWriter(WritableByteChannel data, WritableByteChannel index) throws IOException {
+        if (data == null || index == null) {
+            throw new NullPointerException();
+        }
+        this.data = data;
+        this.index = index;
+        dataBuffer.put(BinaryLogFormat.MAGIC);
+        dataBuffer.putLong(System.currentTimeMillis());
+        dataBuffer.putLong(Time.currentTimeMillis());
+        writeBuffers();
+    }
+
+    private static WritableByteChannel toChannel(OutputStream out) {
+        return out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+    }
+
+    @Override
+    public synchronized void log(LogLevel level, String message, Throwable throwable) {
+        write(level, message, throwable == null ? BinaryLogFormat.D_NONE : BinaryLogFormat.D_THROWABLE, throwable == null ? null : Utils.toStringThrowable(throwable));
+    }
+
+    @Override
+    public synchronized void log(LogLevel level, String message, String extended) {
+        boolean hasExtended = extended != null && !extended.trim().isEmpty();
+        write(level, message, hasExtended ? BinaryLogFormat.D_EXTENDED : BinaryLogFormat.D_NONE, hasExtended ? extended : null);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (!failed) {
+            try {
+                writeBuffers();
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    private void write(LogLevel level, String message, byte detailType, String detail) {
+        if (level == null || message == null) {
+            throw new NullPointerException();
+        }
+        if (failed) {
+            return;
+        }
+        try {
+            long now = Time.currentTimeMillis();
+            if (dataOffset + dataBuffer.position() - lastSyncOffset >= INDEX_INTERVAL || now < lastTimestamp) {
+                writeSync(now);
+            }
+            String site = BinaryLogFormat.callSite(message);
+            if (site != null) {
+                message = message.substring(site.length() + 3);
+            }
+            int siteId = site == null ? 0 : intern(site) + 1;
+            args.clear();
+            int templateId = intern(BinaryLogFormat.split(message, args));
+            byte[][] argBytes = new byte[args.size()][];
+            int size = 1 + BinaryLogFormat.MAX_VARINT + 1 + BinaryLogFormat.MAX_VARINT * 3 + 1;
+            for (int i = 0; i < argBytes.length; i++) {
+                argBytes[i] = args.get(i).getBytes(StandardCharsets.US_ASCII);
+                size += BinaryLogFormat.MAX_VARINT + argBytes[i].length;
+            }
+            byte[] detailBytes = detail == null ? null : detail.getBytes(StandardCharsets.UTF_8);
+            if (detailBytes != null) {
+                size += BinaryLogFormat.MAX_VARINT + detailBytes.length;
+            }
+            ensureSpace(size);
+            dataBuffer.put(BinaryLogFormat.R_ENTRY);
+            BinaryLogFormat.putVarInt(dataBuffer, now - lastTimestamp);
+            lastTimestamp = now;
+            dataBuffer.put(level.id);
+            BinaryLogFormat.putVarInt(dataBuffer, siteId);
+            BinaryLogFormat.putVarInt(dataBuffer, templateId);
+            BinaryLogFormat.putVarInt(dataBuffer, argBytes.length);
+            for (byte[] arg : argBytes) {
+                BinaryLogFormat.putBytes(dataBuffer, arg);
+            }
+            dataBuffer.put(detailType);
+            if (detailBytes != null) {
+                BinaryLogFormat.putBytes(dataBuffer, detailBytes);
+            }
+            if (!Logger.isAsynchronousWriter()) {
+                // the asynchronous writer calls flush() once per batch instead
+                writeBuffers();
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    private void writeSync(long now) throws IOException {
+        ensureSpace(9);
+        lastSyncOffset = dataOffset + dataBuffer.position();
+        dataBuffer.put(BinaryLogFormat.R_SYNC);
+        dataBuffer.putLong(now);
+        lastTimestamp = now;
+        ensureIndexSpace(17);
+        indexBuffer.put(BinaryLogFormat.I_SYNC);
+        indexBuffer.putLong(now);
+        indexBuffer.putLong(lastSyncOffset);
+    }
+
+    private int intern(String string) throws IOException {
+        Integer id = strings.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.put(string, id);
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            ensureIndexSpace(1 + BinaryLogFormat.MAX_VARINT + bytes.length);
+            indexBuffer.put(BinaryLogFormat.I_STRING);
+            BinaryLogFormat.putBytes(indexBuffer, bytes);
+        }
+        return id;
+    }
+
+    private void ensureSpace(int size) throws IOException {
+        if (dataBuffer.remaining() < size) {
+            writeBuffers();
+            if (dataBuffer.capacity() < size) {
+                // only for unusually large messages
+                dataBuffer = ByteBuffer.allocate(size);
+            }
+        }
+    }
+
+    private void ensureIndexSpace(int size) throws IOException {
+        if (indexBuffer.remaining() < size) {
+            writeBuffers();
+            if (indexBuffer.capacity() < size) {
+                // only for unusually long messages
+                indexBuffer = ByteBuffer.allocate(size);
+            }
+        }
+    }
+
+    /**
+     * Write out both buffers. The index is always written first, so that
+     * every string and index point referenced by the data is already present.
+     */
+    private void writeBuffers() throws IOException {
+        drain(indexBuffer, index);
+        dataOffset += dataBuffer.position();
+        drain(dataBuffer, data);
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void fail(IOException ex) {
+        failed = true;
+        // logged asynchronously or to other targets; this target is now inert.
+        Logger.warning("Binary logging failed; no further messages will be written to it.", ex);
+    }
+
+    /**
+     * Flush and close the files of this writer. It will ignore any further
+     * messages.
+     *
+     * @throws IOException if the files cannot be flushed or closed.
+     */
+    public synchronized void close() throws IOException {
+        if (!failed) {
+            writeBuffers();
+        }
+        failed = true;
+        try {
+            data.close();
+        } finally {
+            index.close();
+        }
+    }
+}
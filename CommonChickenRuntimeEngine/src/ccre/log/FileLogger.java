@@ -104,7 +104,7 @@ public class FileLogger implements LoggingTarget {
         if (throwable != null) {
             throwable.printStackTrace(pstream);
         }
-        pstream.flush();
+        flushUnlessBatched();
     }
 
     @Override
@@ -119,6 +119,18 @@ public class FileLogger implements LoggingTarget {
                 pstream.println(extended);
             }
         }
+        flushUnlessBatched();
+    }
+
+    private void flushUnlessBatched() {
+        // the asynchronous writer calls flush() once per batch instead
+        if (!Logger.isAsynchronousWriter()) {
+            pstream.flush();
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
         pstream.flush();
     }
 }
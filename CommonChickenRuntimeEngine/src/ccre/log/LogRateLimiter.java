@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import ccre.time.Time;
+
+/**
+ * The deduplication stage behind {@link Logger#setRateLimit(LogLevel, int)}.
+ *
+ * Messages are grouped by level, call site, and message template, where the
+ * template is the message with its numbers removed, as in
+ * {@link BinaryLogFormat#split(String, ArrayList)}. Within each window, only
+ * the first few messages of each group are delivered. The rest are counted,
+ * and once the window ends, a single summary reports how many were suppressed.
+ *
+ * Summaries are produced when the next message is logged after the window
+ * ends, so a flood that stops entirely is summarized along with the next
+ * message logged from anywhere.
+ *
+ * @author skeggsc
+ */
+final class LogRateLimiter {
+
+    static final long WINDOW_MILLIS = 10000;
+    // beyond this many groups, new groups are not limited until the next sweep
+    private static final int MAX_GROUPS = 1024;
+
+    static final class Summary {
+        final LogLevel level;
+        final String message;
+
+        Summary(LogLevel level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private static final class Group {
+        final LogLevel level;
+        long start;
+        int count, suppressed;
+        String lastMessage;
+
+        Group(LogLevel level, long start) {
+            this.level = level;
+            this.start = start;
+        }
+    }
+
+    // indexed by (id + 9) / 3; zero means unlimited
+    private final int[] budgets = new int[7];
+    private final HashMap<String, Group> groups = new HashMap<>();
+    private final ArrayList<Summary> summaries = new ArrayList<>();
+    private final ArrayList<String> scratch = new ArrayList<>();
+    private long nextSweep;
+    private volatile boolean enabled, hasSummaries;
+
+    private static int indexOf(LogLevel level) {
+        return (level.id + 9) / 3;
+    }
+
+    synchronized void setBudget(LogLevel level, int maxPerWindow) {
+        if (maxPerWindow < 0) {
+            throw new IllegalArgumentException("Log rate limit cannot be negative: " + maxPerWindow);
+        }
+        budgets[indexOf(level)] = maxPerWindow;
+        boolean any = false;
+        for (int budget : budgets) {
+            any |= budget != 0;
+        }
+        enabled = any;
+    }
+
+    /**
+     * @return true if any level has a budget, so that messages need to be
+     * checked at all.
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized int getBudget(LogLevel level) {
+        return budgets[indexOf(level)];
+    }
+
+    /**
+     * Decide whether or not a message should be delivered.
+     *
+     * @param level the level of the message.
+     * @param message the message, including any call site prefix.
+     * @return true if the message should be delivered.
+     */
+    boolean admit(LogLevel level, String message) {
+        if (!enabled) {
+            return true;
+        }
+        synchronized (this) {
+            long now = Time.currentTimeMillis();
+            if (now - nextSweep >= 0) {
+                sweep(now);
+                nextSweep = now + WINDOW_MILLIS;
+            }
+            int budget = budgets[indexOf(level)];
+            if (budget == 0) {
+                return true;
+            }
+            // the call site is kept as-is, so that the same message from two
+            // different lines doesn't share a budget
+            String site = BinaryLogFormat.callSite(message);
+            String body = site == null ? message : message.substring(site.length() + 3);
+            scratch.clear();
+            String key = level.id + "\0" + (site == null ? "" : site) + "\0" + BinaryLogFormat.split(body, scratch);
+            Group group = groups.get(key);
+            if (group == null) {
+                if (groups.size() < MAX_GROUPS) {
+                    group = new Group(level, now);
+                    group.count = 1;
+                    groups.put(key, group);
+                }
+                return true;
+            }
+            if (now - group.start >= WINDOW_MILLIS) {
+                summarize(group);
+                group.start = now;
+                group.count = 0;
+            }
+            if (group.count < budget) {
+                group.count++;
+                return true;
+            }
+            group.suppressed++;
+            group.lastMessage = message;
+            return false;
+        }
+    }
+
+    private void sweep(long now) {
+        for (Iterator<Group> it = groups.values().iterator(); it.hasNext();) {
+            Group group = it.next();
+            if (now - group.start >= WINDOW_MILLIS) {
+                summarize(group);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return true if there are summaries that have not yet been taken.
+     */
+    boolean hasSummaries() {
+        return hasSummaries;
+    }
+
+    /**
+     * Take the pending summaries, which should be delivered to the targets.
+     *
+     * @return the summaries, possibly empty.
+     */
+    synchronized Summary[] takeSummaries() {
+        Summary[] out = summaries.toArray(new Summary[summaries.size()]);
+        summaries.clear();
+        hasSummaries = false;
+        return out;
+    }
+
+    private void summarize(Group group) {
+        if (group.suppressed != 0) {
+            hasSummaries = true;
+            summaries.add(new Summary(group.level, "[suppressed " + String.format("%,d", group.suppressed) + " times in " + (WINDOW_MILLIS / 1000) + " s] " + group.lastMessage));
+            group.suppressed = 0;
+            group.lastMessage = null;
+        }
+    }
+}
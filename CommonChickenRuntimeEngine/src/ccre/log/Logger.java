@@ -18,6 +18,7 @@
  */
 package ccre.log;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import ccre.util.CallerInfo;
@@ -38,6 +39,11 @@ public class Logger {
      */
     public static final CopyOnWriteArrayList<LoggingTarget> targets = new CopyOnWriteArrayList<LoggingTarget>();
     private static boolean includeLineNumbers = true;
+    private static volatile AsyncLogWriter asyncWriter;
+    private static final int MAX_CACHED_PREFIXES = 4096;
+    private static final LogRateLimiter rateLimiter = new LogRateLimiter();
+    private static final ConcurrentHashMap<CallerInfo, String> callerPrefixes = new ConcurrentHashMap<>();
+    private static Thread asyncShutdownHook;
 
     /**
      * Set whether or not filenames and line numbers should be prefixed to
@@ -83,6 +89,157 @@ public class Logger {
         targets.remove(lt);
     }
 
+    /**
+     * Set the rate limit for messages at the specified level. Messages are
+     * grouped by level, call site, and message text (ignoring any numbers in
+     * it), and only the first <code>maxPerWindow</code> messages of each group
+     * are delivered in each ten-second window. Once the window ends, the rest
+     * are summarized as a single message, like
+     * "[suppressed 4,312 times in 10 s] (Example.java:12) Queue too long".
+     *
+     * This is applied before messages are delivered to any target, and, when
+     * logging is asynchronous, before they are queued, so that one noisy call
+     * site cannot fill the queue. By default, no level is rate limited.
+     *
+     * @param level the level to configure.
+     * @param maxPerWindow the number of messages per group to allow in each
+     * window, or zero for no limit.
+     * @throws IllegalArgumentException if maxPerWindow is negative.
+     */
+    @SetupPhase
+    public static void setRateLimit(LogLevel level, int maxPerWindow) throws IllegalArgumentException {
+        if (level == null) {
+            throw new NullPointerException();
+        }
+        rateLimiter.setBudget(level, maxPerWindow);
+    }
+
+    /**
+     * Get the rate limit for messages at the specified level.
+     *
+     * @param level the level to check.
+     * @return the number of messages per group allowed in each window, or zero
+     * for no limit.
+     * @see #setRateLimit(LogLevel, int)
+     */
+    public static int getRateLimit(LogLevel level) {
+        return rateLimiter.getBudget(level);
+    }
+
+    /**
+     * Start delivering log messages asynchronously. Logging calls will place
+     * messages into a bounded queue of the specified capacity, which a single
+     * writer thread delivers to the targets in batches, flushing each target
+     * once per batch. If the queue fills up, further messages are dropped
+     * until the writer catches up, and the number of dropped messages is then
+     * logged as a warning.
+     *
+     * Caller information for line numbers is captured when the message is
+     * logged, but only decoded on the writer thread.
+     *
+     * If asynchronous logging is already enabled, it is restarted with the new
+     * capacity, after delivering any messages already queued.
+     *
+     * @param capacity the maximum number of queued messages. This is rounded
+     * up to a power of two.
+     * @throws IllegalArgumentException if capacity is not positive.
+     */
+    @SetupPhase
+    public static synchronized void startAsynchronous(int capacity) throws IllegalArgumentException {
+        AsyncLogWriter writer = new AsyncLogWriter(capacity);
+        stopAsynchronous();
+        writer.start();
+        asyncWriter = writer;
+        if (asyncShutdownHook == null) {
+            asyncShutdownHook = new Thread(() -> {
+                try {
+                    flushAsynchronous(1000);
+                } catch (InterruptedException e) {
+                    // shutting down anyway
+                }
+            }, "AsyncLogWriter-shutdown");
+            Runtime.getRuntime().addShutdownHook(asyncShutdownHook);
+        }
+    }
+
+    /**
+     * Stop delivering log messages asynchronously, after delivering all
+     * messages that are already queued. Further messages will be delivered on
+     * the thread that logs them, as usual.
+     *
+     * This does nothing if asynchronous logging is not enabled.
+     */
+    @SetupPhase
+    public static synchronized void stopAsynchronous() {
+        AsyncLogWriter writer = asyncWriter;
+        if (writer == null) {
+            return;
+        }
+        asyncWriter = null;
+        try {
+            writer.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check whether or not log messages are being delivered asynchronously.
+     *
+     * @return true if asynchronous logging is enabled.
+     */
+    public static boolean isAsynchronous() {
+        return asyncWriter != null;
+    }
+
+    /**
+     * Wait until all messages logged before this call have been delivered by
+     * the asynchronous writer. If asynchronous logging is not enabled, this
+     * returns immediately.
+     *
+     * @param timeoutMillis the maximum number of milliseconds to wait.
+     * @return true if all of the messages have been delivered, or false if the
+     * timeout passed first.
+     * @throws InterruptedException if the current thread is interrupted.
+     */
+    public static boolean flushAsynchronous(long timeoutMillis) throws InterruptedException {
+        AsyncLogWriter writer = asyncWriter;
+        return writer == null || writer.awaitDrained(timeoutMillis);
+    }
+
+    /**
+     * Get the number of messages dropped because the asynchronous logging
+     * queue was full, since asynchronous logging was last started.
+     *
+     * @return the number of dropped messages, or zero if asynchronous logging
+     * is not enabled.
+     */
+    public static long getDroppedMessageCount() {
+        AsyncLogWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.getDroppedCount();
+    }
+
+    /**
+     * Get the number of messages delivered by the asynchronous writer, since
+     * asynchronous logging was last started.
+     *
+     * @return the number of delivered messages, or zero if asynchronous
+     * logging is not enabled.
+     */
+    public static long getAsynchronousMessageCount() {
+        AsyncLogWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.getWrittenCount();
+    }
+
+    /**
+     * @return true if the current thread is the asynchronous writer, which
+     * flushes targets once per batch.
+     */
+    static boolean isAsynchronousWriter() {
+        AsyncLogWriter writer = asyncWriter;
+        return writer != null && Thread.currentThread() == writer;
+    }
+
     /**
      * Log a given message and throwable at the given log level.
      *
@@ -100,7 +257,15 @@ public class Logger {
         if (level == null || message == null) {
             throw new NullPointerException();
         }
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            offerAsynchronous(writer, 3, level, message, thr, null, false);
+            return;
+        }
         message = prependCallerInfo(3, message);
+        if (!admit(level, message)) {
+            return;
+        }
         for (LoggingTarget lt : targets) {
             lt.log(level, message, thr);
         }
@@ -118,27 +283,106 @@ public class Logger {
         if (level == null || message == null) {
             throw new NullPointerException();
         }
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            offerAsynchronous(writer, 1, level, message, null, extended, true);
+            return;
+        }
         message = prependCallerInfo(1, message);
+        if (!admit(level, message)) {
+            return;
+        }
         for (LoggingTarget lt : targets) {
             lt.log(level, message, extended);
         }
     }
 
+    /**
+     * Pass a message through the rate limiter, and deliver any summaries of
+     * suppressed messages that are due.
+     *
+     * @return true if the message itself should be delivered.
+     */
     @FlowPhase
-    private static String prependCallerInfo(int index, String message) {
-        if (includeLineNumbers && !message.startsWith("(") && !message.startsWith("[")) {
-            CallerInfo caller = Utils.getMethodCaller(index + 1);
-            if (caller != null && caller.getFileName() != null) {
-                if (caller.getLineNum() > 0) {
-                    return "(" + caller.getFileName() + ":" + caller.getLineNum() + ") " + message;
-                } else {
-                    return "(" + caller.getFileName() + ") " + message;
+    private static boolean admit(LogLevel level, String message) {
+        boolean admitted = rateLimiter.admit(level, message);
+        deliverSummaries();
+        return admitted;
+    }
+
+    /**
+     * Deliver any summaries of suppressed messages that are due. In
+     * asynchronous mode, this is only called by the writer thread.
+     */
+    @FlowPhase
+    static void deliverSummaries() {
+        if (rateLimiter.hasSummaries()) {
+            for (LogRateLimiter.Summary summary : rateLimiter.takeSummaries()) {
+                for (LoggingTarget lt : targets) {
+                    lt.log(summary.level, summary.message, (Throwable) null);
                 }
             }
         }
+    }
+
+    private static boolean wantsCallerInfo(String message) {
+        return includeLineNumbers && !message.startsWith("(") && !message.startsWith("[");
+    }
+
+    @FlowPhase
+    private static void offerAsynchronous(AsyncLogWriter writer, int index, LogLevel level, String message, Throwable thr, String extended, boolean isExtended) {
+        if (rateLimiter.isEnabled()) {
+            // limit on the caller's thread, so that a flood from one call site
+            // can't fill the queue and crowd out everyone else's messages.
+            // this needs the call site now, even if that means a stack walk.
+            message = prependCallerInfo(index + 1, message);
+            if (!rateLimiter.admit(level, message)) {
+                if (rateLimiter.hasSummaries()) {
+                    writer.wake();
+                }
+                return;
+            }
+            writer.offer(level, message, thr, extended, isExtended, null, null, 0);
+        } else if (!wantsCallerInfo(message)) {
+            writer.offer(level, message, thr, extended, isExtended, null, null, 0);
+        } else if (Utils.hasCachedMethodCaller()) {
+            // cheap enough to look up now
+            writer.offer(level, message, thr, extended, isExtended, Utils.getMethodCaller(index + 1), null, 0);
+        } else {
+            // the stack trace is only decoded later, by the writer
+            writer.offer(level, message, thr, extended, isExtended, null, new Throwable(), index + 1);
+        }
+    }
+
+    @FlowPhase
+    private static String prependCallerInfo(int index, String message) {
+        if (wantsCallerInfo(message)) {
+            return prependCallerInfo(Utils.getMethodCaller(index + 1), message);
+        }
         return message;
     }
 
+    @FlowPhase
+    static String prependCallerInfo(CallerInfo caller, String message) {
+        if (caller == null || caller.getFileName() == null) {
+            return message;
+        }
+        // cached CallerInfos are shared per call site, so their prefixes can be
+        // cached too. (CallerInfo uses identity equality.)
+        String prefix = callerPrefixes.get(caller);
+        if (prefix == null) {
+            if (caller.getLineNum() > 0) {
+                prefix = "(" + caller.getFileName() + ":" + caller.getLineNum() + ") ";
+            } else {
+                prefix = "(" + caller.getFileName() + ") ";
+            }
+            if (Utils.hasCachedMethodCaller() && callerPrefixes.size() < MAX_CACHED_PREFIXES) {
+                callerPrefixes.put(caller, prefix);
+            }
+        }
+        return prefix.concat(message);
+    }
+
     /**
      * Log a given message at the given log level.
      *
@@ -70,4 +70,16 @@ public interface LoggingTarget {
      */
     @FlowPhase
     public void log(LogLevel level, String message, String extended);
+
+    /**
+     * Flush any output that this target has buffered. When logging
+     * {@link Logger#startAsynchronous(int) asynchronously}, this is called once
+     * per batch of messages instead of once per message.
+     *
+     * By default, this does nothing.
+     */
+    @FlowPhase
+    public default void flush() {
+        // nothing to flush by default
+    }
 }
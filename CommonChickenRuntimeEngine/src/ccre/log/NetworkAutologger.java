@@ -18,21 +18,33 @@
  */
 package ccre.log;
 
-import java.util.HashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import ccre.channel.EventOutput;
 import ccre.cluck.Cluck;
 import ccre.cluck.CluckConstants;
+import ccre.cluck.CluckLogBatch;
 import ccre.cluck.CluckNode;
 import ccre.cluck.CluckPublisher;
 import ccre.cluck.CluckRemoteListener;
+import ccre.cluck.CluckSubscriber;
+import ccre.scheduler.Scheduler;
+import ccre.time.Time;
 import ccre.util.UniqueIds;
+import ccre.util.Utils;
 
 /**
  * A logging tool that shares all logging between networked cluck systems
  * automatically.
  *
+ * Each message is encoded once and the same encoding is sent to every remote.
+ * If {@link #setBatching(int, int) batching} is enabled, messages are instead
+ * collected into frames that are sent periodically, which cuts down on the
+ * number of Cluck messages sent during a burst of logging. Batches are only sent
+ * to remotes that say they accept them; older remotes keep getting each
+ * message individually.
+ *
  * @author skeggsc
  */
 public final class NetworkAutologger implements LoggingTarget, CluckRemoteListener {
@@ -64,21 +76,39 @@ public final class NetworkAutologger implements LoggingTarget, CluckRemoteListen
         }
         registered = true;
         NetworkAutologger nlog = new NetworkAutologger(Cluck.getNode());
+        nlog.setBatching(DEFAULT_BATCH_MILLIS, DEFAULT_BATCH_BYTES);
         Logger.addTarget(nlog);
         nlog.start();
     }
 
+    /**
+     * The longest that the globally-registered autologger will hold onto a
+     * message before sending its batch.
+     */
+    public static final int DEFAULT_BATCH_MILLIS = 50;
+    /**
+     * The size at which the globally-registered autologger will send a batch
+     * immediately.
+     */
+    public static final int DEFAULT_BATCH_BYTES = 8192;
+
     /**
      * The current list of remotes to send logging messages to.
      */
     private final CopyOnWriteArrayList<String> remotes = new CopyOnWriteArrayList<String>();
     /**
-     * The current cache of subscribed LoggingTargets to send logging messages
-     * to.
+     * The subset of the remotes that have said that they accept batches.
      */
-    private final HashMap<String, LoggingTarget> targetCache = new HashMap<String, LoggingTarget>();
+    private final CopyOnWriteArraySet<String> batchRemotes = new CopyOnWriteArraySet<String>();
     private final CluckNode node;
-    private final String localpath, hereID;
+    private final String localpath, hereID, queryPath;
+    private final Object batchLock = new Object();
+    private final EventOutput flushBatch = this::flushBatch;
+    private CluckLogBatch batch;
+    private long batchPeriodNanos;
+    private int batchMaxBytes;
+    private boolean flushScheduled;
+    private long lastReportedError;
 
     /**
      * Create a new NetworkAutologger hooked up to the specified node.
@@ -88,8 +118,21 @@ public final class NetworkAutologger implements LoggingTarget, CluckRemoteListen
     public NetworkAutologger(final CluckNode node) {
         hereID = UniqueIds.global.nextHexId();
         localpath = "auto-" + hereID;
+        queryPath = "logquery-" + hereID;
         this.node = node;
         CluckPublisher.publish(node, localpath, localLoggingTarget);
+        new CluckSubscriber(node) {
+            @Override
+            protected void receive(String source, byte[] data) {
+                if (CluckLogBatch.isSupported(data) && remotes.contains(source)) {
+                    batchRemotes.add(source);
+                }
+            }
+
+            @Override
+            protected void receiveBroadcast(String source, byte[] data) {
+            }
+        }.attach(queryPath);
     }
 
     // TODO: change from package-private to public
@@ -98,6 +141,34 @@ public final class NetworkAutologger implements LoggingTarget, CluckRemoteListen
         return localpath;
     }
 
+    /**
+     * Enable batching: instead of sending each message immediately, collect
+     * messages into a batch, which is sent once it has been held for the
+     * specified period or once it grows to the specified size, whichever is
+     * first.
+     *
+     * @param periodMillis the longest to hold a message before sending it, or
+     * zero to disable batching.
+     * @param maxBytes the size at which a batch is sent immediately.
+     * @throws IllegalArgumentException if either parameter is negative, or if
+     * maxBytes is zero while batching is enabled.
+     */
+    public void setBatching(int periodMillis, int maxBytes) throws IllegalArgumentException {
+        if (periodMillis < 0 || maxBytes < 0 || (periodMillis > 0 && maxBytes == 0)) {
+            throw new IllegalArgumentException("Invalid batching parameters: " + periodMillis + " ms, " + maxBytes + " bytes");
+        }
+        flushBatch();
+        synchronized (batchLock) {
+            if (periodMillis == 0) {
+                batch = null;
+            } else {
+                batch = new CluckLogBatch(Math.min(maxBytes, 1024));
+                batchPeriodNanos = periodMillis * Time.NANOSECONDS_PER_MILLISECOND;
+                batchMaxBytes = maxBytes;
+            }
+        }
+    }
+
     /**
      * Start the Autologger - it will now start sending out logged messages.
      */
@@ -123,12 +194,7 @@ public final class NetworkAutologger implements LoggingTarget, CluckRemoteListen
         if (message.contains("[LOCAL]")) {
             return;
         }
-        for (String cur : remotes) {
-            LoggingTarget lt = targetCache.get(cur);
-            if (lt != null) {
-                lt.log(level, message, throwable);
-            }
-        }
+        send(level, message, Utils.toStringThrowable(throwable));
     }
 
     @Override
@@ -144,10 +210,76 @@ public final class NetworkAutologger implements LoggingTarget, CluckRemoteListen
         if (message.contains("[LOCAL]")) {
             return;
         }
-        for (String cur : remotes) {
-            LoggingTarget lt = targetCache.get(cur);
-            if (lt != null) {
-                lt.log(level, message, extended);
+        send(level, message, extended);
+    }
+
+    private void send(LogLevel level, String message, String extended) {
+        if (remotes.isEmpty()) {
+            return;
+        }
+        byte[] single = null;
+        if (batchRemotes.size() != remotes.size()) {
+            // older remotes reject batches, so they get each message as it is
+            // logged.
+            single = CluckLogBatch.encodeSingle(level, message, extended);
+            for (String remote : remotes) {
+                if (!batchRemotes.contains(remote)) {
+                    transmit(remote, single);
+                }
+            }
+            if (batchRemotes.isEmpty()) {
+                return;
+            }
+        }
+        byte[] frame;
+        synchronized (batchLock) {
+            if (batch == null) {
+                frame = null;
+            } else {
+                batch.add(level, message, extended);
+                if (batch.size() < batchMaxBytes) {
+                    if (!flushScheduled) {
+                        flushScheduled = true;
+                        Scheduler.scheduleNanos("network-autologger", batchPeriodNanos, flushBatch);
+                    }
+                    return;
+                }
+                frame = batch.take();
+            }
+        }
+        if (frame == null) {
+            frame = single != null ? single : CluckLogBatch.encodeSingle(level, message, extended);
+        }
+        transmitToBatchRemotes(frame);
+    }
+
+    private void flushBatch() {
+        byte[] frame;
+        synchronized (batchLock) {
+            flushScheduled = false;
+            frame = batch == null ? null : batch.take();
+        }
+        if (frame != null) {
+            transmitToBatchRemotes(frame);
+        }
+    }
+
+    private void transmitToBatchRemotes(byte[] frame) {
+        for (String remote : batchRemotes) {
+            transmit(remote, frame);
+        }
+    }
+
+    private void transmit(String remote, byte[] frame) {
+        try {
+            node.transmit(remote, null, frame);
+        } catch (Throwable thr) {
+            // We use System.currentTimeMillis() instead of
+            // Time.currentTimeMillis() because this is only to prevent
+            // message spam.
+            if (System.currentTimeMillis() - lastReportedError > 500) {
+                lastReportedError = System.currentTimeMillis();
+                Logger.severe("[LOCAL] Error during remote log", thr);
             }
         }
     }
@@ -157,12 +289,10 @@ public final class NetworkAutologger implements LoggingTarget, CluckRemoteListen
         if (remoteType != CluckConstants.RMT_LOGTARGET) {
             return;
         }
-        if (remote.contains("auto-") && !localpath.equals(remote) && targetCache.get(remote) == null) {
-            synchronized (targetCache) {
-                targetCache.put(remote, CluckPublisher.subscribeLT(node, remote));
-            }
+        if (remote.contains("auto-") && !localpath.equals(remote) && remotes.addIfAbsent(remote)) {
             Logger.config("[LOCAL] Loaded logger: " + remote);
+            // until it answers, the remote is sent individual messages.
+            node.transmit(remote, queryPath, CluckLogBatch.encodeQuery());
         }
-        remotes.addIfAbsent(remote);
     }
 }
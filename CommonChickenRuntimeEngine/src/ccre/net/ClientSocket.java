@@ -1,5 +1,5 @@
 /*
- * Copyright 2013, 2015 Cel Skeggs
+ * Copyright 2013, 2015-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -21,6 +21,7 @@ package ccre.net;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
 
 /**
@@ -67,6 +68,10 @@ public class ClientSocket {
         return TrafficCounting.wrap(sock.getOutputStream());
     }
 
+    InetAddress getRemoteAddress() {
+        return sock.getInetAddress();
+    }
+
     /**
      * Close this socket. This will terminate the connection.
      *
@@ -39,6 +39,8 @@ public abstract class ConnectionReceiverThread extends ReporterThread {
      * The name of this thread.
      */
     private final String thrName;
+    private ServerSocket listening;
+    private boolean finished;
 
     /**
      * Create a new ConnectionReceiverThread with the specified thread name and
@@ -55,6 +57,18 @@ public abstract class ConnectionReceiverThread extends ReporterThread {
 
     @Override
     protected final void threadBody() throws IOException {
+        try {
+            acceptLoop();
+        } finally {
+            synchronized (this) {
+                finished = true;
+                listening = null;
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void acceptLoop() throws IOException {
         Logger.fine("About to listen on " + port);
         ServerSocket sock;
         try {
@@ -66,9 +80,27 @@ public abstract class ConnectionReceiverThread extends ReporterThread {
             }
             throw e;
         }
+        synchronized (this) {
+            if (finished) {
+                sock.close();
+                return;
+            }
+            listening = sock;
+            this.notifyAll();
+        }
 
         while (true) {
-            final ClientSocket conn = sock.accept();
+            final ClientSocket conn;
+            try {
+                conn = sock.accept();
+            } catch (IOException ex) {
+                synchronized (this) {
+                    if (finished) {
+                        return;
+                    }
+                }
+                throw ex;
+            }
             new ReporterThread(thrName + "-client") {
                 @Override
                 protected void threadBody() throws Throwable {
@@ -82,6 +114,43 @@ public abstract class ConnectionReceiverThread extends ReporterThread {
         }
     }
 
+    /**
+     * Wait until this server is listening, and return the port that it is
+     * listening on. This is how to find the port when the server was created
+     * with port zero, which picks any free port.
+     *
+     * @return the port, or -1 if the server could not listen or has already
+     * been terminated.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized int awaitListening() throws InterruptedException {
+        while (listening == null && !finished) {
+            this.wait();
+        }
+        return listening == null ? -1 : listening.getLocalPort();
+    }
+
+    /**
+     * Stop accepting new connections. Connections that are already open are
+     * not affected.
+     */
+    public void terminate() {
+        ServerSocket sock;
+        synchronized (this) {
+            finished = true;
+            sock = listening;
+            listening = null;
+            this.notifyAll();
+        }
+        if (sock != null) {
+            try {
+                sock.close();
+            } catch (IOException ex) {
+                Logger.warning("Could not close server socket on port " + port, ex);
+            }
+        }
+    }
+
     /**
      * Handle a client. This is run in a new thread, so you don't need to worry
      * about holding up other threads or accidentally terminating all
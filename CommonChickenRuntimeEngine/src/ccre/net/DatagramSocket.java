@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * An open datagram socket, for unreliable message transfer.
+ *
+ * @author skeggsc
+ */
+public class DatagramSocket {
+
+    private final java.net.DatagramSocket sock;
+
+    DatagramSocket(java.net.DatagramSocket ds) {
+        sock = ds;
+    }
+
+    /**
+     * @return the local port that this socket is bound to.
+     */
+    public int getLocalPort() {
+        return sock.getLocalPort();
+    }
+
+    /**
+     * Connect this socket to the specified port on the same host as the other
+     * end of <code>peer</code>. Afterwards, datagrams are only sent to and
+     * received from that port.
+     *
+     * @param peer the connection whose remote host should be used.
+     * @param port the remote port.
+     * @throws IOException if an IO error occurs.
+     */
+    public void connect(ClientSocket peer, int port) throws IOException {
+        sock.connect(peer.getRemoteAddress(), port);
+    }
+
+    /**
+     * Set the blocking operation timeout on this socket in milliseconds to
+     * wait, or zero to wait forever.
+     *
+     * @param millis how long to wait before throwing an IOException.
+     * @throws IOException if an IO error occurs.
+     */
+    public void setSocketTimeout(int millis) throws IOException {
+        sock.setSoTimeout(millis);
+    }
+
+    /**
+     * Send a datagram to the connected port.
+     *
+     * @param data the array containing the datagram.
+     * @param length the length of the datagram.
+     * @throws IOException if an IO error occurs.
+     */
+    public void send(byte[] data, int length) throws IOException {
+        sock.send(new DatagramPacket(data, length));
+        TrafficCounting.countSent(length);
+    }
+
+    /**
+     * Wait until a datagram is received, and then copy it into
+     * <code>buffer</code>. Datagrams longer than the buffer are truncated.
+     *
+     * @param buffer the array to receive into.
+     * @return the length of the received datagram.
+     * @throws IOException if an IO error occurs.
+     */
+    public int receive(byte[] buffer) throws IOException {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        sock.receive(packet);
+        TrafficCounting.countReceived(packet.getLength());
+        return packet.getLength();
+    }
+
+    /**
+     * Close this socket.
+     */
+    public void close() {
+        sock.close();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 Cel Skeggs
+ * Copyright 2013-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -122,6 +122,17 @@ public class Network {
         return new ServerSocket(new java.net.ServerSocket(port));
     }
 
+    /**
+     * Open a DatagramSocket on an ephemeral port, which can then be connected
+     * to the same host as an existing ClientSocket.
+     *
+     * @return the DatagramSocket.
+     * @throws IOException if an IO error occurs.
+     */
+    public static DatagramSocket openDatagram() throws IOException {
+        return new DatagramSocket(new java.net.DatagramSocket());
+    }
+
     /**
      * List all IPv4 addresses of the current system. This includes 127.0.0.1.
      *
@@ -43,6 +43,13 @@ public class ServerSocket {
         return new ClientSocket(sock.accept());
     }
 
+    /**
+     * @return the port that this socket is listening on.
+     */
+    public int getLocalPort() {
+        return sock.getLocalPort();
+    }
+
     /**
      * Close this socket. This will terminate the connection.
      *
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 Cel Skeggs
+ * Copyright 2014-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -84,6 +84,18 @@ public class TrafficCounting {
     private static long lastDelta;
     private static long lastTotal;
 
+    static void countSent(int bytes) {
+        if (countingEnabled) {
+            TrafficCounting.totalBytesSent.getAndAdd(bytes);
+        }
+    }
+
+    static void countReceived(int bytes) {
+        if (countingEnabled) {
+            TrafficCounting.totalBytesReceived.getAndAdd(bytes);
+        }
+    }
+
     static InputStream wrap(InputStream inputStream) {
         return countingEnabled ? new CountingInputStream(inputStream) : inputStream;
     }
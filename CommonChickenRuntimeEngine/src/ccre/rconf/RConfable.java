@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Cel Skeggs
+ * Copyright 2015-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -18,6 +18,7 @@
  */
 package ccre.rconf;
 
+import ccre.channel.EventInput;
 import ccre.verifier.SetupPhase;
 
 /**
@@ -59,4 +60,16 @@ public interface RConfable {
      */
     @SetupPhase
     public boolean signalRConf(int field, byte[] data) throws InterruptedException;
+
+    /**
+     * Get an EventInput that fires whenever the entries returned by
+     * queryRConf may have changed, so that a client can query only then,
+     * rather than refreshing on a timer.
+     *
+     * @return the EventInput, or null if changes are not announced.
+     */
+    @SetupPhase
+    public default EventInput getRConfChanges() {
+        return null;
+    }
 }
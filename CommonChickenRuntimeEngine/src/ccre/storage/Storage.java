@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 
 import ccre.verifier.SetupPhase;
 
@@ -83,6 +84,16 @@ public class Storage {
         }
     }
 
+    /**
+     * Find the path of the specified file in the storage directory.
+     *
+     * @param name The filename.
+     * @return The path to that file.
+     */
+    static Path resolve(String name) {
+        return new File(basedir, name).toPath();
+    }
+
     /**
      * Open a StorageSegment for the specified name.
      *
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ccre.log.Logger;
+
+/**
+ * The append-only journal behind a {@link StorageSegment}, along with the
+ * record format shared by the journal and the segment's snapshot.
+ *
+ * Both files start with a four-byte magic number, and then hold a sequence of
+ * records, each of which is a length, a payload, and a CRC32 of the payload.
+ * A payload is a type byte, a UTF-8 key, and a value encoded according to its
+ * type: strings are stored as UTF-8, floats and ints as their raw bits, and
+ * booleans as a single byte. Removals carry no value.
+ *
+ * Replaying the journal stops at the first record that is incomplete or fails
+ * its checksum, which is what a power loss in the middle of an append leaves
+ * behind, and the file is truncated there so that later appends follow the
+ * last good record.
+ *
+ * @author skeggsc
+ */
+final class StorageJournal {
+
+    static final byte T_REMOVE = 0, T_STRING = 1, T_FLOAT = 2, T_BOOLEAN = 3, T_INT = 4;
+
+    private static final int MAGIC = 0x43434a31; // "CCJ1"
+    static final int HEADER_LENGTH = 4;
+
+    private final Path path;
+    private long size;
+
+    StorageJournal(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Check whether the data starts with the magic number of this format.
+     *
+     * @param data the contents of a file.
+     * @return true if the data is in this format.
+     */
+    static boolean hasMagic(byte[] data) {
+        return data.length >= HEADER_LENGTH && ByteBuffer.wrap(data).getInt() == MAGIC;
+    }
+
+    /**
+     * @return the current length of the journal file, in bytes.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Replay every intact record in the journal into the target map. Removed
+     * keys are removed from the map, and other values are stored as a String,
+     * Float, or Boolean.
+     *
+     * @param target the map to apply the records to.
+     * @return the number of records replayed.
+     * @throws IOException if the journal cannot be read or truncated.
+     */
+    int replay(Map<String, Object> target) throws IOException {
+        if (!Files.exists(path)) {
+            size = 0;
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        if (!hasMagic(bytes)) {
+            Logger.warning("Discarding unrecognized storage journal: " + path.getFileName());
+            truncate(0);
+            return 0;
+        }
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        data.position(HEADER_LENGTH);
+        int count = decode(data, target);
+        if (data.hasRemaining()) {
+            Logger.warning("Discarding " + data.remaining() + " bytes of incomplete storage journal: " + path.getFileName());
+            truncate(data.position());
+        } else {
+            size = data.position();
+        }
+        return count;
+    }
+
+    /**
+     * Decode records from the current position of the buffer into the target
+     * map, stopping at the end of the buffer or at the first damaged record.
+     * The buffer is left positioned after the last intact record.
+     *
+     * @param data the records to decode.
+     * @param target the map to apply the records to.
+     * @return the number of records decoded.
+     */
+    static int decode(ByteBuffer data, Map<String, Object> target) {
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= 4) {
+            int start = data.position();
+            int length = data.getInt();
+            if (length <= 0 || length > data.remaining() - 4) {
+                data.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if ((int) crc.getValue() != data.getInt(data.position() + length)) {
+                data.position(start);
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.wrap(data.array(), data.position(), length).slice();
+            data.position(data.position() + length + 4);
+            if (!apply(payload, target)) {
+                data.position(start);
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean apply(ByteBuffer payload, Map<String, Object> target) {
+        try {
+            byte type = payload.get();
+            String key = readString(payload);
+            switch (type) {
+            case T_REMOVE:
+                target.remove(key);
+                break;
+            case T_STRING:
+                target.put(key, readString(payload));
+                break;
+            case T_FLOAT:
+                target.put(key, payload.getFloat());
+                break;
+            case T_BOOLEAN:
+                target.put(key, payload.get() != 0);
+                break;
+            case T_INT:
+                target.put(key, payload.getInt());
+                break;
+            default:
+                return false;
+            }
+            return !payload.hasRemaining();
+        } catch (RuntimeException ex) {
+            // BufferUnderflowException or a bad length
+            return false;
+        }
+    }
+
+    private static String readString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IllegalArgumentException("Bad string length: " + length);
+        }
+        String out = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return out;
+    }
+
+    /**
+     * Append a batch of changes to the journal and force them to the disk. A
+     * null value in the batch records the removal of that key.
+     *
+     * @param batch the changes to append.
+     * @throws IOException if the journal cannot be written.
+     */
+    void append(Map<String, Object> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        byte[] encoded = encode(batch, size == 0);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.position(size);
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        size += encoded.length;
+    }
+
+    /**
+     * Encode a map as a sequence of records. A null value records the removal
+     * of that key.
+     *
+     * @param batch the entries to encode.
+     * @param header whether to start with the magic number.
+     * @return the encoded records.
+     */
+    static byte[] encode(Map<String, Object> batch, boolean header) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (header) {
+                out.writeInt(MAGIC);
+            }
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            CRC32 crc = new CRC32();
+            for (Map.Entry<String, Object> ent : batch.entrySet()) {
+                recordBytes.reset();
+                encode(record, ent.getKey(), ent.getValue());
+                byte[] payload = recordBytes.toByteArray();
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt((int) crc.getValue());
+            }
+        } catch (IOException ex) {
+            // ByteArrayOutputStream never throws
+            throw new RuntimeException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void encode(DataOutputStream out, String key, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(T_REMOVE);
+            writeString(out, key);
+        } else if (value instanceof Float) {
+            out.writeByte(T_FLOAT);
+            writeString(out, key);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(T_INT);
+            writeString(out, key);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(T_BOOLEAN);
+            writeString(out, key);
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else {
+            out.writeByte(T_STRING);
+            writeString(out, key);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Discard every record in the journal, after the segment's snapshot has
+     * been checkpointed.
+     *
+     * @throws IOException if the journal cannot be truncated.
+     */
+    void reset() throws IOException {
+        if (size != 0) {
+            truncate(0);
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            channel.force(false);
+        }
+        size = length;
+    }
+}
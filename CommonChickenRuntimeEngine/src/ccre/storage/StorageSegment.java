@@ -19,11 +19,18 @@
 package ccre.storage;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.Map;
 
 import ccre.channel.BooleanCell;
 import ccre.channel.FloatCell;
@@ -35,12 +42,39 @@ import ccre.verifier.SetupPhase;
 /**
  * A storage segment - a place to store various pieces of data. A StorageSegment
  * can be obtained using StorageProvider.
+ *
+ * Changes are kept in memory and written behind by a background thread, which
+ * appends them to a binary journal shortly after they are made. The journal is
+ * compacted into the segment's binary snapshot file when it grows too large or
+ * when the segment is flushed; the new snapshot is written to a temporary
+ * file and atomically renamed over the old one, so that a loss of power at any
+ * point leaves either the old or the new snapshot intact, along with a journal
+ * that brings either of them up to date. Snapshots in the older key=value text
+ * format are still loaded.
+ *
+ * Frequently-changed values, such as tuning constants, can be registered as
+ * typed {@link StorageSlots slots}, which are written without any boxing or
+ * string conversion.
  */
 public final class StorageSegment {
 
-    private final HashMap<String, String> data = new HashMap<String, String>();
+    /**
+     * The size of journal, in bytes, past which the background writer will
+     * compact it into the snapshot.
+     */
+    static final long COMPACTION_THRESHOLD = 64 * 1024;
+
+    // values are Strings, Floats, Integers, or Booleans, for keys that are not
+    // registered as slots
+    private final HashMap<String, Object> data = new HashMap<String, Object>();
+    // null values are removals
+    private HashMap<String, Object> pending = new HashMap<String, Object>();
+    private final StorageJournal journal;
+    private final Path snapshotPath, temporaryPath;
+    private final Object ioLock = new Object();
+    private StorageSlots slots;
     private String name;
-    private boolean modified = false;
+    private boolean modified = false, scheduled = false;
 
     /**
      * Load a map from a properties-like file.
@@ -92,20 +126,37 @@ public final class StorageSegment {
             }
         }
         this.name = buf.toString();
+        this.snapshotPath = Storage.resolve("ccre_storage_" + name);
+        this.temporaryPath = Storage.resolve("ccre_storage_" + name + ".tmp");
+        this.journal = new StorageJournal(Storage.resolve("ccre_storage_" + name + ".journal"));
         try {
-            InputStream target = Storage.openInput("ccre_storage_" + name);
-            if (target == null) {
+            if (!Files.exists(snapshotPath)) {
                 Logger.info("No data file for: " + name + " - assuming empty.");
             } else {
-                try {
-                    loadProperties(target, true, data);
-                } finally {
-                    target.close();
+                byte[] contents = Files.readAllBytes(snapshotPath);
+                if (StorageJournal.hasMagic(contents)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(contents);
+                    buffer.position(StorageJournal.HEADER_LENGTH);
+                    StorageJournal.decode(buffer, data);
+                    if (buffer.hasRemaining()) {
+                        Logger.warning("Damaged storage snapshot: " + name + " - ignoring the last " + buffer.remaining() + " bytes.");
+                    }
+                } else {
+                    HashMap<String, String> loaded = new HashMap<String, String>();
+                    loadProperties(new ByteArrayInputStream(contents), true, loaded);
+                    data.putAll(loaded);
                 }
             }
         } catch (IOException ex) {
             Logger.warning("Error reading storage: " + name, ex);
         }
+        try {
+            if (journal.replay(data) > 0) {
+                modified = true;
+            }
+        } catch (IOException ex) {
+            Logger.warning("Error reading storage journal: " + name, ex);
+        }
     }
 
     /**
@@ -116,7 +167,43 @@ public final class StorageSegment {
      */
     @SetupPhase
     public synchronized String getStringForKey(String key) {
-        return data.get(key);
+        Object value = data.get(key);
+        if (value == null && slots != null) {
+            return slots.lookup(key);
+        }
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Get the typed slots for this segment, which are the most efficient way
+     * to store values that change frequently.
+     *
+     * @return the slots for this segment.
+     */
+    @SetupPhase
+    public synchronized StorageSlots getSlots() {
+        if (slots == null) {
+            slots = new StorageSlots(this);
+        }
+        return slots;
+    }
+
+    // the following are called by StorageSlots with the lock held
+
+    boolean containsUntypedKey(String key) {
+        return data.containsKey(key);
+    }
+
+    Object takeUntypedKey(String key) {
+        return data.remove(key);
+    }
+
+    void changed() {
+        modified = true;
+        if (!scheduled) {
+            scheduled = true;
+            StorageWriteBehind.schedule(this);
+        }
     }
 
     /**
@@ -124,46 +211,131 @@ public final class StorageSegment {
      *
      * @param key the key to put the String under.
      * @param value the String to store under this key.
+     * @throws IllegalStateException if the key is registered as a slot.
+     */
+    @FlowPhase
+    public void setStringForKey(String key, String value) {
+        put(key, value);
+    }
+
+    /**
+     * Set the float value behind the specified key. The value is journaled in
+     * binary form, and can be read back as a String.
+     *
+     * @param key the key to put the float under.
+     * @param value the float to store under this key.
+     * @throws IllegalStateException if the key is registered as a slot.
+     */
+    @FlowPhase
+    public void setFloatForKey(String key, float value) {
+        put(key, value);
+    }
+
+    /**
+     * Set the boolean value behind the specified key. The value is journaled in
+     * binary form, and can be read back as a String.
+     *
+     * @param key the key to put the boolean under.
+     * @param value the boolean to store under this key.
+     * @throws IllegalStateException if the key is registered as a slot.
      */
     @FlowPhase
-    public synchronized void setStringForKey(String key, String value) {
+    public void setBooleanForKey(String key, boolean value) {
+        put(key, value);
+    }
+
+    @FlowPhase
+    private synchronized void put(String key, Object value) {
+        if (key == null) {
+            throw new NullPointerException("Storage keys cannot be null");
+        }
+        if (slots != null && slots.isRegistered(key)) {
+            throw new IllegalStateException("Storage key is registered as a slot: " + key);
+        }
         if (value == null) {
             data.remove(key);
         } else {
             data.put(key, value);
         }
-        modified = true;
+        pending.put(key, value);
+        changed();
     }
 
     /**
      * Flush the segment. This attempts to make sure that all data is stored on
-     * disk (or somewhere else, depending on the provider). If this is not
-     * called, data might not be saved!
+     * disk (or somewhere else, depending on the provider). Changes are also
+     * journaled in the background shortly after they are made, but this
+     * additionally compacts the journal into the segment's snapshot.
      */
     @SetupPhase
-    public synchronized void flush() {
-        if (modified) {
-            try {
-                PrintStream pout = new PrintStream(Storage.openOutput("ccre_storage_" + name));
-                try {
-                    for (String key : data.keySet()) {
-                        if (key.contains("=")) {
-                            Logger.warning("Invalid key ignored during save: " + key + " - saving under backup key.");
-                            data.put(UniqueIds.global.nextHexId("badkey-" + System.currentTimeMillis() + "-" + key.hashCode()), key);
-                        } else {
-                            String value = data.get(key);
-                            if (value != null) {
-                                pout.println(key + "=" + value);
-                            }
-                        }
+    public void flush() {
+        sync(true);
+    }
+
+    /**
+     * Called by the background writer to journal pending changes.
+     */
+    void writeBehind() {
+        sync(false);
+    }
+
+    /**
+     * Journal all pending changes, and then checkpoint the snapshot if
+     * requested and needed, or if the journal has grown too large.
+     *
+     * The snapshot is copied at the same moment that the pending changes are
+     * taken, so that it matches what replaying the journal would produce; a
+     * crash between renaming the snapshot into place and resetting the journal
+     * is therefore harmless.
+     *
+     * @param checkpoint whether to checkpoint if anything has changed since
+     * the last checkpoint.
+     */
+    void sync(boolean checkpoint) {
+        synchronized (ioLock) {
+            HashMap<String, Object> batch, snapshot = null;
+            synchronized (this) {
+                batch = pending;
+                pending = new HashMap<String, Object>();
+                scheduled = false;
+                if (slots != null) {
+                    slots.drainDirty(batch);
+                }
+                if (checkpoint ? modified : journal.size() >= COMPACTION_THRESHOLD) {
+                    snapshot = new HashMap<String, Object>(data);
+                    if (slots != null) {
+                        slots.copyStored(snapshot);
                     }
-                } finally {
-                    pout.close();
+                    modified = false;
+                }
+            }
+            try {
+                journal.append(batch);
+                if (snapshot != null) {
+                    writeSnapshot(snapshot);
+                    journal.reset();
                 }
             } catch (IOException ex) {
                 Logger.warning("Error writing storage: " + name, ex);
+                synchronized (this) {
+                    modified = true;
+                }
             }
-            modified = false;
+        }
+    }
+
+    private void writeSnapshot(Map<String, Object> snapshot) throws IOException {
+        FileOutputStream fout = new FileOutputStream(temporaryPath.toFile());
+        try {
+            fout.write(StorageJournal.encode(snapshot, true));
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+        try {
+            Files.move(temporaryPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temporaryPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
@@ -179,8 +351,7 @@ public final class StorageSegment {
     /**
      * Attach a FloatHolder to this storage segment. This will restore data if
      * it has been stored as modified in the segment. This will save the data of
-     * the float holder as it updates, although you will need to call flush() to
-     * ensure that the data is saved.
+     * the float holder as it updates, in the background, using a typed slot.
      *
      * This will only overwrite the current value of the FloatHolder if the data
      * was saved when the FloatHolder had the same default (value when this
@@ -195,35 +366,32 @@ public final class StorageSegment {
     public void attachFloatHolder(String name, final FloatCell holder) {
         final String key = "float_holder_" + name, default_key = "float_holder_default_" + name;
         final float originalValue = holder.get();
-        String vraw = getStringForKey(key);
-        if (vraw != null) {
-            try {
-                float value = Float.parseFloat(vraw);
-                String draw = getStringForKey(default_key);
-                float default_ = draw == null ? Float.NaN : Float.parseFloat(draw);
-                // If the default is the same as the holder's default, then load
-                // the value
-                if (draw == null || Float.floatToIntBits(default_) == Float.floatToIntBits(originalValue)) {
-                    Logger.config("Loaded config for " + name + ": def:" + default_ + " old:" + originalValue + " new:" + value);
-                    holder.set(value);
-                }
-                // Otherwise, the default has changed from the holder, and
-                // therefore we want the updated value from the holder
-            } catch (NumberFormatException ex) {
-                Logger.warning("Invalid float value: '" + vraw + "'!", ex);
+        final StorageSlots slots = getSlots();
+        boolean hasDefault = slots.contains(default_key);
+        final int valueSlot = slots.registerFloat(key, originalValue);
+        final int defaultSlot = slots.registerFloat(default_key, Float.NaN);
+        if (slots.contains(key)) {
+            float value = slots.getFloat(valueSlot);
+            float default_ = slots.getFloat(defaultSlot);
+            // If the default is the same as the holder's default, then load
+            // the value
+            if (!hasDefault || Float.floatToIntBits(default_) == Float.floatToIntBits(originalValue)) {
+                Logger.config("Loaded config for " + name + ": def:" + default_ + " old:" + originalValue + " new:" + value);
+                holder.set(value);
             }
+            // Otherwise, the default has changed from the holder, and
+            // therefore we want the updated value from the holder
         }
         holder.send((value) -> {
-            setStringForKey(key, Float.toString(value));
-            setStringForKey(default_key, Float.toString(originalValue));
+            slots.setFloat(valueSlot, value);
+            slots.setFloat(defaultSlot, originalValue);
         });
     }
 
     /**
      * Attach a BooleanHolder to this storage segment. This will restore data if
      * it has been stored as modified in the segment. This will save the data of
-     * the boolean holder as it updates, although you will need to call flush()
-     * to ensure that the data is saved.
+     * the boolean holder as it updates, in the background, using a typed slot.
      *
      * This will only overwrite the current value of the BooleanHolder if the
      * data was saved when the BooleanHolder had the same default (value when
@@ -238,26 +406,24 @@ public final class StorageSegment {
     public void attachBooleanHolder(String name, final BooleanCell holder) {
         final String key = "boolean_holder_" + name, default_key = "boolean_holder_default_" + name;
         final boolean originalValue = holder.get();
-        String vraw = getStringForKey(key);
-        if (vraw != null) {
-            try {
-                boolean value = Boolean.parseBoolean(vraw);
-                String draw = getStringForKey(default_key);
-                // If the default is the same as the holder's default, then load
-                // the value
-                if (draw == null || Boolean.parseBoolean(draw) == originalValue) {
-                    Logger.config("Loaded config for " + name + ": def:" + draw + " old:" + originalValue + " new:" + value);
-                    holder.set(value);
-                }
-                // Otherwise, the default has changed from the holder, and
-                // therefore we want the updated value from the holder
-            } catch (NumberFormatException ex) {
-                Logger.warning("Invalid boolean value: '" + vraw + "'!", ex);
+        final StorageSlots slots = getSlots();
+        boolean hasDefault = slots.contains(default_key);
+        final int valueSlot = slots.registerBoolean(key, originalValue);
+        final int defaultSlot = slots.registerBoolean(default_key, originalValue);
+        if (slots.contains(key)) {
+            boolean value = slots.getBoolean(valueSlot);
+            // If the default is the same as the holder's default, then load
+            // the value
+            if (!hasDefault || slots.getBoolean(defaultSlot) == originalValue) {
+                Logger.config("Loaded config for " + name + ": def:" + (hasDefault ? Boolean.toString(slots.getBoolean(defaultSlot)) : "null") + " old:" + originalValue + " new:" + value);
+                holder.set(value);
             }
+            // Otherwise, the default has changed from the holder, and
+            // therefore we want the updated value from the holder
         }
         holder.send((value) -> {
-            setStringForKey(key, Boolean.toString(value));
-            setStringForKey(default_key, Boolean.toString(originalValue));
+            slots.setBoolean(valueSlot, value);
+            slots.setBoolean(defaultSlot, originalValue);
         });
     }
 }
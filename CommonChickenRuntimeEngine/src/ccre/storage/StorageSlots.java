@@ -0,0 +1,438 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ccre.log.Logger;
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SetupPhase;
+
+/**
+ * Typed, primitive storage for a {@link StorageSegment}. A key is registered
+ * once as a float, int, or boolean slot, and from then on is read and written
+ * by its slot index, without any boxing, parsing, or formatting. Changed slots
+ * are tracked in dirty bitsets, and only those slots are journaled by the
+ * segment's background writer.
+ *
+ * All state is guarded by the lock of the owning segment.
+ *
+ * @author skeggsc
+ */
+public final class StorageSlots {
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private final StorageSegment segment;
+    private final HashMap<String, Integer> floatIndex = new HashMap<>(), intIndex = new HashMap<>(), booleanIndex = new HashMap<>();
+
+    private String[] floatKeys = new String[INITIAL_SLOTS];
+    private float[] floats = new float[INITIAL_SLOTS];
+    private long[] floatsStored = new long[1], floatsDirty = new long[1];
+
+    private String[] intKeys = new String[INITIAL_SLOTS];
+    private int[] ints = new int[INITIAL_SLOTS];
+    private long[] intsStored = new long[1], intsDirty = new long[1];
+
+    private String[] booleanKeys = new String[INITIAL_SLOTS];
+    private boolean[] booleans = new boolean[INITIAL_SLOTS];
+    private long[] booleansStored = new long[1], booleansDirty = new long[1];
+
+    private int floatCount, intCount, booleanCount;
+
+    StorageSlots(StorageSegment segment) {
+        this.segment = segment;
+    }
+
+    private static boolean test(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static long[] grow(long[] bits, int capacity) {
+        int words = (capacity + 63) >>> 6;
+        return words > bits.length ? Arrays.copyOf(bits, words) : bits;
+    }
+
+    /**
+     * Check whether a value is stored under the specified key, either as a
+     * slot or as an ordinary entry in the segment.
+     *
+     * @param key the key to look up.
+     * @return true if a value is stored under the key.
+     */
+    @SetupPhase
+    public boolean contains(String key) {
+        synchronized (segment) {
+            Integer slot = floatIndex.get(key);
+            if (slot != null) {
+                return test(floatsStored, slot);
+            }
+            slot = intIndex.get(key);
+            if (slot != null) {
+                return test(intsStored, slot);
+            }
+            slot = booleanIndex.get(key);
+            if (slot != null) {
+                return test(booleansStored, slot);
+            }
+            return segment.containsUntypedKey(key);
+        }
+    }
+
+    /**
+     * Register a float slot for the specified key, or find the existing one.
+     * If a value is stored under the key, the slot starts with that value;
+     * otherwise it starts with the initial value, which is not stored until
+     * the slot is set.
+     *
+     * @param key the key to store the slot under.
+     * @param initial the value to use if nothing is stored.
+     * @return the index of the slot.
+     * @throws IllegalStateException if the key is already registered with a
+     * different type.
+     */
+    @SetupPhase
+    public int registerFloat(String key, float initial) {
+        synchronized (segment) {
+            Integer existing = floatIndex.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            checkUnregistered(key);
+            int slot = floatCount++;
+            if (slot == floats.length) {
+                floatKeys = Arrays.copyOf(floatKeys, slot * 2);
+                floats = Arrays.copyOf(floats, slot * 2);
+            }
+            floatsStored = grow(floatsStored, floats.length);
+            floatsDirty = grow(floatsDirty, floats.length);
+            floatKeys[slot] = key;
+            floats[slot] = initial;
+            Object stored = segment.takeUntypedKey(key);
+            if (stored instanceof Float) {
+                floats[slot] = (Float) stored;
+                set(floatsStored, slot);
+            } else if (stored != null) {
+                try {
+                    floats[slot] = Float.parseFloat(stored.toString());
+                    set(floatsStored, slot);
+                } catch (NumberFormatException ex) {
+                    Logger.warning("Invalid float value: '" + stored + "'!", ex);
+                }
+            }
+            floatIndex.put(key, slot);
+            return slot;
+        }
+    }
+
+    /**
+     * Register an int slot for the specified key, or find the existing one. If
+     * a value is stored under the key, the slot starts with that value;
+     * otherwise it starts with the initial value, which is not stored until
+     * the slot is set.
+     *
+     * @param key the key to store the slot under.
+     * @param initial the value to use if nothing is stored.
+     * @return the index of the slot.
+     * @throws IllegalStateException if the key is already registered with a
+     * different type.
+     */
+    @SetupPhase
+    public int registerInt(String key, int initial) {
+        synchronized (segment) {
+            Integer existing = intIndex.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            checkUnregistered(key);
+            int slot = intCount++;
+            if (slot == ints.length) {
+                intKeys = Arrays.copyOf(intKeys, slot * 2);
+                ints = Arrays.copyOf(ints, slot * 2);
+            }
+            intsStored = grow(intsStored, ints.length);
+            intsDirty = grow(intsDirty, ints.length);
+            intKeys[slot] = key;
+            ints[slot] = initial;
+            Object stored = segment.takeUntypedKey(key);
+            if (stored instanceof Integer) {
+                ints[slot] = (Integer) stored;
+                set(intsStored, slot);
+            } else if (stored != null) {
+                try {
+                    ints[slot] = Integer.parseInt(stored.toString());
+                    set(intsStored, slot);
+                } catch (NumberFormatException ex) {
+                    Logger.warning("Invalid int value: '" + stored + "'!", ex);
+                }
+            }
+            intIndex.put(key, slot);
+            return slot;
+        }
+    }
+
+    /**
+     * Register a boolean slot for the specified key, or find the existing
+     * one. If a value is stored under the key, the slot starts with that
+     * value; otherwise it starts with the initial value, which is not stored
+     * until the slot is set.
+     *
+     * @param key the key to store the slot under.
+     * @param initial the value to use if nothing is stored.
+     * @return the index of the slot.
+     * @throws IllegalStateException if the key is already registered with a
+     * different type.
+     */
+    @SetupPhase
+    public int registerBoolean(String key, boolean initial) {
+        synchronized (segment) {
+            Integer existing = booleanIndex.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            checkUnregistered(key);
+            int slot = booleanCount++;
+            if (slot == booleans.length) {
+                booleanKeys = Arrays.copyOf(booleanKeys, slot * 2);
+                booleans = Arrays.copyOf(booleans, slot * 2);
+            }
+            booleansStored = grow(booleansStored, booleans.length);
+            booleansDirty = grow(booleansDirty, booleans.length);
+            booleanKeys[slot] = key;
+            booleans[slot] = initial;
+            Object stored = segment.takeUntypedKey(key);
+            if (stored != null) {
+                booleans[slot] = stored instanceof Boolean ? (Boolean) stored : Boolean.parseBoolean(stored.toString());
+                set(booleansStored, slot);
+            }
+            booleanIndex.put(key, slot);
+            return slot;
+        }
+    }
+
+    private void checkUnregistered(String key) {
+        if (key == null) {
+            throw new NullPointerException("Storage keys cannot be null");
+        }
+        if (floatIndex.containsKey(key) || intIndex.containsKey(key) || booleanIndex.containsKey(key)) {
+            throw new IllegalStateException("Storage key already registered with a different type: " + key);
+        }
+    }
+
+    /**
+     * Get the current value of a float slot.
+     *
+     * @param slot the index of the slot.
+     * @return the value of the slot.
+     */
+    @FlowPhase
+    public float getFloat(int slot) {
+        synchronized (segment) {
+            checkSlot(slot, floatCount);
+            return floats[slot];
+        }
+    }
+
+    /**
+     * Set the value of a float slot, and mark it to be written if it has
+     * changed.
+     *
+     * @param slot the index of the slot.
+     * @param value the new value.
+     */
+    @FlowPhase
+    public void setFloat(int slot, float value) {
+        synchronized (segment) {
+            checkSlot(slot, floatCount);
+            if (test(floatsStored, slot) && Float.floatToIntBits(floats[slot]) == Float.floatToIntBits(value)) {
+                return;
+            }
+            floats[slot] = value;
+            set(floatsStored, slot);
+            set(floatsDirty, slot);
+            segment.changed();
+        }
+    }
+
+    /**
+     * Get the current value of an int slot.
+     *
+     * @param slot the index of the slot.
+     * @return the value of the slot.
+     */
+    @FlowPhase
+    public int getInt(int slot) {
+        synchronized (segment) {
+            checkSlot(slot, intCount);
+            return ints[slot];
+        }
+    }
+
+    /**
+     * Set the value of an int slot, and mark it to be written if it has
+     * changed.
+     *
+     * @param slot the index of the slot.
+     * @param value the new value.
+     */
+    @FlowPhase
+    public void setInt(int slot, int value) {
+        synchronized (segment) {
+            checkSlot(slot, intCount);
+            if (test(intsStored, slot) && ints[slot] == value) {
+                return;
+            }
+            ints[slot] = value;
+            set(intsStored, slot);
+            set(intsDirty, slot);
+            segment.changed();
+        }
+    }
+
+    /**
+     * Get the current value of a boolean slot.
+     *
+     * @param slot the index of the slot.
+     * @return the value of the slot.
+     */
+    @FlowPhase
+    public boolean getBoolean(int slot) {
+        synchronized (segment) {
+            checkSlot(slot, booleanCount);
+            return booleans[slot];
+        }
+    }
+
+    /**
+     * Set the value of a boolean slot, and mark it to be written if it has
+     * changed.
+     *
+     * @param slot the index of the slot.
+     * @param value the new value.
+     */
+    @FlowPhase
+    public void setBoolean(int slot, boolean value) {
+        synchronized (segment) {
+            checkSlot(slot, booleanCount);
+            if (test(booleansStored, slot) && booleans[slot] == value) {
+                return;
+            }
+            booleans[slot] = value;
+            set(booleansStored, slot);
+            set(booleansDirty, slot);
+            segment.changed();
+        }
+    }
+
+    private static void checkSlot(int slot, int count) {
+        if (slot < 0 || slot >= count) {
+            throw new IndexOutOfBoundsException("Invalid storage slot: " + slot);
+        }
+    }
+
+    /**
+     * Find the stored value of a registered key, as a String.
+     *
+     * @param key the key to look up.
+     * @return the value, or null if the key is not registered or has no stored
+     * value.
+     */
+    String lookup(String key) {
+        Integer slot = floatIndex.get(key);
+        if (slot != null) {
+            return test(floatsStored, slot) ? Float.toString(floats[slot]) : null;
+        }
+        slot = intIndex.get(key);
+        if (slot != null) {
+            return test(intsStored, slot) ? Integer.toString(ints[slot]) : null;
+        }
+        slot = booleanIndex.get(key);
+        if (slot != null) {
+            return test(booleansStored, slot) ? Boolean.toString(booleans[slot]) : null;
+        }
+        return null;
+    }
+
+    /**
+     * @param key the key to check.
+     * @return true if the key has been registered as a slot of any type.
+     */
+    boolean isRegistered(String key) {
+        return floatIndex.containsKey(key) || intIndex.containsKey(key) || booleanIndex.containsKey(key);
+    }
+
+    /**
+     * Move every dirty slot into a batch of changes to journal, and clear the
+     * dirty bits.
+     *
+     * @param batch the batch to add the dirty slots to.
+     */
+    void drainDirty(Map<String, Object> batch) {
+        for (int w = 0; w < floatsDirty.length; w++) {
+            for (long bits = floatsDirty[w]; bits != 0; bits &= bits - 1) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                batch.put(floatKeys[slot], floats[slot]);
+            }
+            floatsDirty[w] = 0;
+        }
+        for (int w = 0; w < intsDirty.length; w++) {
+            for (long bits = intsDirty[w]; bits != 0; bits &= bits - 1) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                batch.put(intKeys[slot], ints[slot]);
+            }
+            intsDirty[w] = 0;
+        }
+        for (int w = 0; w < booleansDirty.length; w++) {
+            for (long bits = booleansDirty[w]; bits != 0; bits &= bits - 1) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                batch.put(booleanKeys[slot], booleans[slot]);
+            }
+            booleansDirty[w] = 0;
+        }
+    }
+
+    /**
+     * Copy the value of every stored slot into a snapshot.
+     *
+     * @param snapshot the map to add the stored slots to.
+     */
+    void copyStored(Map<String, Object> snapshot) {
+        for (int slot = 0; slot < floatCount; slot++) {
+            if (test(floatsStored, slot)) {
+                snapshot.put(floatKeys[slot], floats[slot]);
+            }
+        }
+        for (int slot = 0; slot < intCount; slot++) {
+            if (test(intsStored, slot)) {
+                snapshot.put(intKeys[slot], ints[slot]);
+            }
+        }
+        for (int slot = 0; slot < booleanCount; slot++) {
+            if (test(booleansStored, slot)) {
+                snapshot.put(booleanKeys[slot], booleans[slot]);
+            }
+        }
+    }
+}
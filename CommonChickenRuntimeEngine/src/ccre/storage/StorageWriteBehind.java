@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.storage;
+
+import java.util.ArrayList;
+
+import ccre.concurrency.ReporterThread;
+import ccre.verifier.FlowPhase;
+import ccre.verifier.SuppressPhaseWarnings;
+
+/**
+ * The shared background thread that writes changes to
+ * {@link StorageSegment}s into their journals.
+ *
+ * A segment schedules itself once when it first becomes dirty; the thread
+ * then waits for {@link #DELAY_MILLIS} so that a burst of changes, such as a
+ * tuning value being dragged across its range, is coalesced into a single
+ * append of the latest values.
+ *
+ * @author skeggsc
+ */
+final class StorageWriteBehind extends ReporterThread {
+
+    /**
+     * How long changes are collected before being written, in milliseconds.
+     */
+    static final long DELAY_MILLIS = 100;
+
+    private static StorageWriteBehind instance;
+
+    private final ArrayList<StorageSegment> queue = new ArrayList<>();
+    // held while writing, so that drain() also waits for writes in progress
+    private final Object writingLock = new Object();
+
+    private StorageWriteBehind() {
+        super("StorageWriteBehind");
+        setDaemon(true);
+    }
+
+    /**
+     * Arrange for the segment's pending changes to be written soon.
+     *
+     * @param segment the segment with pending changes.
+     */
+    @FlowPhase
+    @SuppressPhaseWarnings // the thread is only started once
+    static synchronized void schedule(StorageSegment segment) {
+        if (instance == null) {
+            instance = new StorageWriteBehind();
+            instance.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(StorageWriteBehind::drain, "StorageWriteBehind-shutdown"));
+        }
+        instance.enqueue(segment);
+    }
+
+    /**
+     * Write every pending change immediately, on the calling thread, and wait
+     * for any write already in progress on the background thread.
+     */
+    static void drain() {
+        StorageWriteBehind writer;
+        synchronized (StorageWriteBehind.class) {
+            writer = instance;
+        }
+        if (writer != null) {
+            writer.writeAll();
+        }
+    }
+
+    private synchronized void enqueue(StorageSegment segment) {
+        queue.add(segment);
+        notifyAll();
+    }
+
+    private synchronized StorageSegment[] take() {
+        StorageSegment[] out = queue.toArray(new StorageSegment[queue.size()]);
+        queue.clear();
+        return out;
+    }
+
+    @Override
+    protected void threadBody() throws InterruptedException {
+        while (true) {
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    wait();
+                }
+            }
+            Thread.sleep(DELAY_MILLIS);
+            writeAll();
+        }
+    }
+
+    private void writeAll() {
+        synchronized (writingLock) {
+            for (StorageSegment segment : take()) {
+                segment.writeBehind();
+            }
+        }
+    }
+}
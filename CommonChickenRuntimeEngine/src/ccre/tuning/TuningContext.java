@@ -111,7 +111,8 @@ public final class TuningContext {
 
     /**
      * Get a FloatCell with the specified name and default value. This will be
-     * tunable over the network and saved on the roboRIO once flush() is called.
+     * tunable over the network, and saved on the roboRIO in a typed storage
+     * slot as it changes.
      *
      * @param name the name of the tunable value.
      * @param default_ the default value.
@@ -127,7 +128,8 @@ public final class TuningContext {
 
     /**
      * Get a BooleanCell with the specified name and default value. This will be
-     * tunable over the network and saved on the roboRIO once flush() is called.
+     * tunable over the network, and saved on the roboRIO in a typed storage
+     * slot as it changes.
      *
      * @param name the name of the tunable value.
      * @param default_ the default value.
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * The implementation behind {@link Utils#getMethodCaller(int)}.
+ *
+ * When running on a JVM with <code>java.lang.StackWalker</code>, only the
+ * frames up to the requested one are walked, and the resulting CallerInfo is
+ * cached per call site (keyed by class, method, and bytecode index), so that
+ * repeated calls from the same site skip decoding file names and line numbers.
+ * Since the CCRE still targets Java 8, StackWalker is reached through method
+ * handles, and on a Java 8 JVM this falls back to decoding a full stack trace
+ * from a Throwable.
+ *
+ * @author skeggsc
+ */
+final class CallSiteCache {
+
+    private static final int MAX_CACHED_SITES = 4096;
+
+    private static final Object walker;
+    private static final MethodHandle walk, getClassName, getMethodName, getByteCodeIndex, getFileName, getLineNumber;
+
+    static {
+        Object walkerInstance = null;
+        MethodHandle walkHandle = null, classNameHandle = null, methodNameHandle = null, bciHandle = null, fileNameHandle = null, lineNumberHandle = null;
+        try {
+            Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            walkerInstance = lookup.findStatic(walkerClass, "getInstance", MethodType.methodType(walkerClass)).invoke();
+            walkHandle = lookup.findVirtual(walkerClass, "walk", MethodType.methodType(Object.class, Function.class)).asType(MethodType.methodType(Object.class, Object.class, Function.class));
+            classNameHandle = lookup.findVirtual(frameClass, "getClassName", MethodType.methodType(String.class)).asType(MethodType.methodType(String.class, Object.class));
+            methodNameHandle = lookup.findVirtual(frameClass, "getMethodName", MethodType.methodType(String.class)).asType(MethodType.methodType(String.class, Object.class));
+            bciHandle = lookup.findVirtual(frameClass, "getByteCodeIndex", MethodType.methodType(int.class)).asType(MethodType.methodType(int.class, Object.class));
+            fileNameHandle = lookup.findVirtual(frameClass, "getFileName", MethodType.methodType(String.class)).asType(MethodType.methodType(String.class, Object.class));
+            lineNumberHandle = lookup.findVirtual(frameClass, "getLineNumber", MethodType.methodType(int.class)).asType(MethodType.methodType(int.class, Object.class));
+        } catch (Throwable thr) {
+            // Java 8: no StackWalker available, so use the fallback.
+            walkerInstance = null;
+        }
+        walker = walkerInstance;
+        walk = walkHandle;
+        getClassName = classNameHandle;
+        getMethodName = methodNameHandle;
+        getByteCodeIndex = bciHandle;
+        getFileName = fileNameHandle;
+        getLineNumber = lineNumberHandle;
+    }
+
+    private static final class Site {
+        private final String className, methodName;
+        private final int bci;
+
+        Site(String className, String methodName, int bci) {
+            this.className = className;
+            this.methodName = methodName;
+            this.bci = bci;
+        }
+
+        @Override
+        public int hashCode() {
+            return (className.hashCode() * 31 + methodName.hashCode()) * 31 + bci;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Site)) {
+                return false;
+            }
+            Site s = (Site) o;
+            return bci == s.bci && className.equals(s.className) && methodName.equals(s.methodName);
+        }
+    }
+
+    private static final ConcurrentHashMap<Site, CallerInfo> sites = new ConcurrentHashMap<>();
+    private static final Function<?, ?>[] finders = new Function<?, ?>[16];
+
+    static {
+        for (int i = 0; i < finders.length; i++) {
+            finders[i] = createFinder(i);
+        }
+    }
+
+    private static Function<?, ?> finderFor(int depth) {
+        return depth < finders.length ? finders[depth] : createFinder(depth);
+    }
+
+    private static Function<?, ?> createFinder(int depth) {
+        // the walk starts at getCaller, so skip that frame too
+        final long skip = depth + 1;
+        return (Stream<?> s) -> s.skip(skip).findFirst().orElse(null);
+    }
+
+    /**
+     * @return true if callers are found by walking only the needed frames and
+     * cached per call site, or false if the Throwable fallback is used.
+     */
+    static boolean isCached() {
+        return walker != null;
+    }
+
+    /**
+     * Find the caller at the given depth.
+     *
+     * @param depth the number of frames to skip, where zero is the caller of
+     * this method.
+     * @return the caller info, or null if not available.
+     */
+    static CallerInfo getCaller(int depth) {
+        if (depth < 0) {
+            return null;
+        }
+        if (walker == null) {
+            return getCallerFromTrace(depth + 2);
+        }
+        try {
+            Object frame = (Object) walk.invokeExact(walker, finderFor(depth));
+            if (frame == null) {
+                return null;
+            }
+            Site site = new Site((String) getClassName.invokeExact(frame), (String) getMethodName.invokeExact(frame), (int) getByteCodeIndex.invokeExact(frame));
+            CallerInfo info = sites.get(site);
+            if (info == null) {
+                info = new CallerInfo(site.className, site.methodName, (String) getFileName.invokeExact(frame), (int) getLineNumber.invokeExact(frame));
+                if (sites.size() < MAX_CACHED_SITES) {
+                    sites.putIfAbsent(site, info);
+                }
+            }
+            return info;
+        } catch (Throwable thr) {
+            if (thr instanceof Error) {
+                throw (Error) thr;
+            }
+            return getCallerFromTrace(depth + 2);
+        }
+    }
+
+    private static CallerInfo getCallerFromTrace(int traceIndex) {
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        if (traceIndex <= 0 || traceIndex >= trace.length || trace[traceIndex] == null) {
+            return null;
+        }
+        StackTraceElement elem = trace[traceIndex];
+        return new CallerInfo(elem.getClassName(), elem.getMethodName(), elem.getFileName(), elem.getLineNumber());
+    }
+
+    private CallSiteCache() {
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 Cel Skeggs, 2016 Alexander Mackworth
+ * Copyright 2013-2016 Cel Skeggs, 2016 Alexander Mackworth
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -151,19 +151,31 @@ public class Utils {
      * This should contain, at the very least, the class, but should also
      * contain the method, source file, and line number if possible.
      *
+     * Where possible, only the needed frames are walked, and results are
+     * cached per call site, so the same CallerInfo may be returned for
+     * repeated calls from the same place.
+     *
      * @param index which frame to report.
      * @return a CallerInfo for the specified caller, or null.
      */
     @IgnoredPhase
     public static CallerInfo getMethodCaller(int index) {
-        int traceIndex = index + 1;
-        StackTraceElement[] trace = new Throwable().getStackTrace();
-        if (traceIndex <= 0 || traceIndex >= trace.length || trace[traceIndex] == null) {
+        if (index < 0) {
             return null;
-        } else {
-            StackTraceElement elem = trace[traceIndex];
-            return new CallerInfo(elem.getClassName(), elem.getMethodName(), elem.getFileName(), elem.getLineNumber());
         }
+        return CallSiteCache.getCaller(index + 1);
+    }
+
+    /**
+     * Check whether {@link #getMethodCaller(int)} is cheap on this JVM: whether
+     * it walks only the needed stack frames and caches results per call site,
+     * rather than decoding an entire stack trace on every call.
+     *
+     * @return true if method caller lookups are cached.
+     */
+    @IgnoredPhase
+    public static boolean hasCachedMethodCaller() {
+        return CallSiteCache.isCached();
     }
 
     /**
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.testing.CountingEventOutput;
+import ccre.testing.CountingFloatOutput;
+
+@SuppressWarnings("javadoc")
+public class FloatArrayCellTest {
+
+    private FloatArrayCell cell;
+
+    @Before
+    public void setUp() throws Exception {
+        cell = new FloatArrayCell(1, 2, 3, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptySize() {
+        new FloatArrayCell(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyArray() {
+        new FloatArrayCell(new float[0]);
+    }
+
+    @Test
+    public void testGetSet() {
+        assertEquals(4, cell.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, cell.get(i), 0);
+        }
+        cell.set(2, 7.5f);
+        assertEquals(7.5f, cell.get(2), 0);
+    }
+
+    @Test
+    public void testSingleNotificationPerChange() {
+        CountingEventOutput ceo = new CountingEventOutput();
+        cell.onUpdate(ceo);
+        ceo.ifExpected = true;
+        cell.set(new float[] { 5, 6, 7, 8 });
+        ceo.check();
+        // no change, so no notification
+        cell.set(new float[] { 5, 6, 7, 8 });
+        cell.set(0, 5);
+        ceo.ifExpected = true;
+        cell.set(0, 6);
+        ceo.check();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetTooShort() {
+        cell.set(new float[] { 1, 2 });
+    }
+
+    @Test
+    public void testSum() {
+        FloatInput sum = cell.sum();
+        assertEquals(10, sum.get(), 0);
+        CountingFloatOutput cfo = new CountingFloatOutput();
+        cfo.ifExpected = true;
+        cfo.valueExpected = 10;
+        sum.send(cfo);
+        cfo.check();
+        cfo.ifExpected = true;
+        cfo.valueExpected = 20;
+        cell.set(new float[] { 5, 5, 5, 5 });
+        cfo.check();
+    }
+
+    @Test
+    public void testMeanMaxMin() {
+        FloatInput mean = cell.mean(), max = cell.max(), min = cell.min();
+        assertEquals(2.5f, mean.get(), 0);
+        assertEquals(4, max.get(), 0);
+        assertEquals(1, min.get(), 0);
+        cell.set(1, -3);
+        assertEquals(1.25f, mean.get(), 0);
+        assertEquals(-3, min.get(), 0);
+        cell.set(0, Float.NaN);
+        assertTrue(Float.isNaN(max.get()));
+        assertTrue(Float.isNaN(min.get()));
+    }
+
+    @Test
+    public void testDot() {
+        FloatInput dot = cell.dot(1, 0, -1, 2);
+        assertEquals(1 - 3 + 8, dot.get(), 0);
+        cell.set(1, 100);
+        assertEquals(1 - 3 + 8, dot.get(), 0);
+        cell.set(3, 0);
+        assertEquals(1 - 3, dot.get(), 0);
+        FloatArrayCell other = new FloatArrayCell(2, 2, 2, 2);
+        FloatInput dot2 = cell.dot(other);
+        assertEquals(2 * (1 + 100 + 3), dot2.get(), 0);
+        other.set(0, 0);
+        assertEquals(2 * (100 + 3), dot2.get(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDotMismatch() {
+        cell.dot(1, 2, 3);
+    }
+
+    @Test
+    public void testMap() {
+        FloatVectorInput negated = cell.map(FloatFilter.negate);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(-(i + 1), negated.get(i), 0);
+        }
+        CountingEventOutput ceo = new CountingEventOutput();
+        negated.onUpdate(ceo);
+        ceo.ifExpected = true;
+        cell.set(new float[] { 0, 0, 0, 0 });
+        ceo.check();
+        assertEquals(0, negated.get(3), 0);
+    }
+
+    @Test
+    public void testElement() {
+        FloatInput third = cell.element(2);
+        assertEquals(3, third.get(), 0);
+        cell.set(2, 9);
+        assertEquals(9, third.get(), 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testElementOutOfRange() {
+        cell.element(4);
+    }
+
+    @Test
+    public void testOf() {
+        FloatCell a = new FloatCell(1), b = new FloatCell(2), c = new FloatCell(3);
+        FloatVectorInput vector = FloatVectorInput.of(a, b, c);
+        FloatInput sum = vector.sum();
+        assertEquals(6, sum.get(), 0);
+        b.set(10);
+        assertEquals(14, sum.get(), 0);
+        assertEquals(10, vector.get(1), 0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testOfNull() {
+        FloatVectorInput.of(FloatInput.zero, null);
+    }
+}
@@ -988,6 +988,108 @@ public class FloatInputTest {
         }
     }
 
+    @Test
+    public void testDerivativeIdle() throws InterruptedException {
+        FloatInput fi = fs.derivative(20);
+        fs.set(1);
+        VirtualTime.forward(10);
+        fs.set(2);
+        assertEquals(100, fi.get(), 0);
+        VirtualTime.forward(20);
+        assertEquals(0, fi.get(), 0);
+        // the stopped value is sampled every 20 milliseconds while idle
+        VirtualTime.forward(1000);
+        VirtualTime.forward(5);
+        fs.set(3);
+        assertEquals(1.0f / 0.005f, fi.get(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDerivativeNegative() {
+        fs.derivative(-1);
+    }
+
+    @Test
+    public void testLowPass() {
+        EventCell update = new EventCell();
+        fs.set(4);
+        FloatInput fi = fs.lowPass(0.5f, update);
+        assertEquals(4, fi.get(), 0);
+        fs.set(0);
+        assertEquals(4, fi.get(), 0);
+        update.event();
+        assertEquals(2, fi.get(), 0);
+        update.event();
+        assertEquals(1, fi.get(), 0);
+        update.event();
+        assertEquals(0.5f, fi.get(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLowPassInvalid() {
+        fs.lowPass(0, EventInput.never);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testLowPassNull() {
+        fs.lowPass(0.5f, null);
+    }
+
+    @Test
+    public void testMovingAverage() {
+        EventCell update = new EventCell();
+        FloatInput fi = fs.movingAverage(4, update);
+        assertEquals(0, fi.get(), 0);
+        fs.set(4);
+        for (int i = 1; i <= 4; i++) {
+            update.event();
+            assertEquals(i, fi.get(), 0);
+        }
+        update.event();
+        assertEquals(4, fi.get(), 0);
+        fs.set(0);
+        update.event();
+        assertEquals(3, fi.get(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMovingAverageInvalid() {
+        fs.movingAverage(0, EventInput.never);
+    }
+
+    @Test
+    public void testMedian() {
+        EventCell update = new EventCell();
+        FloatInput fi = fs.median(3, update);
+        assertEquals(0, fi.get(), 0);
+        fs.set(100);
+        update.event();
+        // one spike is rejected
+        assertEquals(0, fi.get(), 0);
+        fs.set(1);
+        update.event();
+        assertEquals(1, fi.get(), 0);
+        fs.set(2);
+        update.event();
+        assertEquals(2, fi.get(), 0);
+        update.event();
+        assertEquals(2, fi.get(), 0);
+    }
+
+    @Test
+    public void testMedianEven() {
+        EventCell update = new EventCell();
+        FloatInput fi = fs.median(2, update);
+        fs.set(3);
+        update.event();
+        assertEquals(1.5f, fi.get(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMedianInvalid() {
+        fs.median(-3, EventInput.never);
+    }
+
     @Test
     public void testSendError() {
         CountingEventOutput expected = new CountingEventOutput();
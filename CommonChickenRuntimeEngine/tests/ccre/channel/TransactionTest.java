@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import ccre.testing.CountingEventOutput;
+
+@SuppressWarnings("javadoc")
+public class TransactionTest {
+
+    private int count;
+
+    @Test
+    public void testDeferredUntilCommit() {
+        FloatCell a = new FloatCell();
+        CountingEventOutput ceo = new CountingEventOutput();
+        a.onUpdate(ceo);
+        Transaction t = Transaction.begin();
+        assertTrue(Transaction.isOpen());
+        a.set(1);
+        a.set(2);
+        a.set(3);
+        // the value is visible immediately, but nobody has been told yet
+        assertEquals(3, a.get(), 0);
+        ceo.ifExpected = true;
+        t.commit();
+        ceo.check();
+        assertFalse(Transaction.isOpen());
+    }
+
+    @Test
+    public void testConsistentDownstream() {
+        FloatCell left = new FloatCell(), right = new FloatCell();
+        FloatInput sum = left.plus(right);
+        sum.onUpdate(() -> {
+            count++;
+            // never observe a half-updated pair
+            assertEquals(left.get(), right.get(), 0);
+        });
+        for (int i = 1; i <= 10; i++) {
+            final float value = i;
+            Transaction.run(() -> {
+                left.set(value);
+                right.set(value);
+            });
+            assertEquals(i * 2, sum.get(), 0);
+        }
+        assertEquals(10, count);
+    }
+
+    @Test
+    public void testNested() {
+        EventCell cell = new EventCell();
+        CountingEventOutput ceo = new CountingEventOutput();
+        cell.send(ceo);
+        Transaction outer = Transaction.begin();
+        Transaction inner = Transaction.begin();
+        cell.event();
+        inner.commit();
+        cell.event();
+        ceo.ifExpected = true;
+        outer.commit();
+        ceo.check();
+    }
+
+    @Test
+    public void testNoTransaction() {
+        EventCell cell = new EventCell();
+        CountingEventOutput ceo = new CountingEventOutput();
+        cell.send(ceo);
+        assertFalse(Transaction.isOpen());
+        for (int i = 0; i < 5; i++) {
+            ceo.ifExpected = true;
+            cell.event();
+            ceo.check();
+        }
+    }
+
+    @Test
+    public void testRunThrows() {
+        EventCell cell = new EventCell();
+        CountingEventOutput ceo = new CountingEventOutput();
+        cell.send(ceo);
+        ceo.ifExpected = true;
+        try {
+            Transaction.run(() -> {
+                cell.event();
+                throw new NoSuchElementException("purposeful");
+            });
+            fail();
+        } catch (NoSuchElementException ex) {
+            // correct
+        }
+        ceo.check();
+        assertFalse(Transaction.isOpen());
+    }
+
+    @Test
+    public void testCommitThrows() {
+        EventCell cell = new EventCell();
+        cell.send(() -> {
+            throw new NoSuchElementException("purposeful");
+        });
+        CountingEventOutput ceo = new CountingEventOutput();
+        EventCell cell2 = new EventCell(ceo);
+        Transaction t = Transaction.begin();
+        cell.event();
+        cell2.event();
+        ceo.ifExpected = true;
+        try {
+            t.commit();
+            fail();
+        } catch (NoSuchElementException ex) {
+            // correct
+        }
+        ceo.check();
+        assertFalse(Transaction.isOpen());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleCommit() {
+        Transaction t = Transaction.begin();
+        t.commit();
+        t.commit();
+    }
+
+    @Test
+    public void testOtherThreadUnaffected() throws InterruptedException {
+        EventCell cell = new EventCell();
+        CountingEventOutput ceo = new CountingEventOutput();
+        cell.send(ceo);
+        Transaction t = Transaction.begin();
+        try {
+            ceo.ifExpected = true;
+            Thread thread = new Thread(cell::event);
+            thread.start();
+            thread.join();
+            ceo.check();
+        } finally {
+            t.commit();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.channel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.log.LogLevel;
+import ccre.log.VerifyingLogger;
+import ccre.scheduler.VirtualTime;
+
+@SuppressWarnings("javadoc")
+public class UpdateGovernorTest {
+
+    private AbstractUpdatingInput input;
+    private EventOutput update;
+    private int count;
+
+    @Before
+    public void setUp() throws Exception {
+        VirtualTime.startFakeTime();
+        VerifyingLogger.begin();
+        input = new AbstractUpdatingInput() {
+            {
+                update = this::perform;
+            }
+
+            @Override
+            public String toString() {
+                return "storm-input";
+            }
+        };
+        count = 0;
+        input.onUpdate(() -> count++);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        VerifyingLogger.checkAndEnd();
+        AbstractUpdatingInput.setDefaultUpdateRateLimit(0);
+        input = null;
+        update = null;
+        VirtualTime.endFakeTime();
+    }
+
+    @Test
+    public void testUnlimitedByDefault() {
+        for (int i = 0; i < 10000; i++) {
+            update.event();
+        }
+        assertEquals(10000, count);
+    }
+
+    @Test
+    public void testWithinLimit() throws InterruptedException {
+        input.limitUpdateRate(10);
+        for (int s = 0; s < 5; s++) {
+            for (int i = 0; i < 10; i++) {
+                update.event();
+                VirtualTime.forward(10);
+            }
+            assertEquals((s + 1) * 10, count);
+            VirtualTime.forward(900);
+        }
+    }
+
+    @Test
+    public void testStormCoalesced() throws InterruptedException {
+        input.limitUpdateRate(10);
+        for (int i = 0; i < 10; i++) {
+            update.event();
+        }
+        assertEquals(10, count);
+        VerifyingLogger.configure(LogLevel.WARNING, "Update storm on storm-input: more than 10 updates per second; coalescing further updates.");
+        for (int i = 0; i < 1000; i++) {
+            update.event();
+        }
+        VerifyingLogger.check();
+        assertEquals(10, count);
+        VirtualTime.forward(100);
+        assertEquals(11, count);
+        // nothing more pending, so the next flush ends the coalescing
+        VirtualTime.forward(100);
+        assertEquals(11, count);
+        // still over budget in this window, so coalesce again, but no report
+        update.event();
+        update.event();
+        assertEquals(11, count);
+        VirtualTime.forward(100);
+        assertEquals(12, count);
+        VirtualTime.forward(1000);
+        update.event();
+        assertEquals(13, count);
+    }
+
+    @Test
+    public void testDefaultLimit() throws InterruptedException {
+        AbstractUpdatingInput.setDefaultUpdateRateLimit(5);
+        assertEquals(5, AbstractUpdatingInput.getDefaultUpdateRateLimit());
+        VerifyingLogger.configure(LogLevel.WARNING, "Update storm on storm-input: more than 5 updates per second; coalescing further updates.");
+        for (int i = 0; i < 100; i++) {
+            update.event();
+        }
+        VerifyingLogger.check();
+        assertEquals(5, count);
+        VirtualTime.forward(200);
+        assertEquals(6, count);
+    }
+
+    @Test
+    public void testOptOutOfDefaultLimit() {
+        AbstractUpdatingInput.setDefaultUpdateRateLimit(5);
+        input.limitUpdateRate(0);
+        for (int i = 0; i < 100; i++) {
+            update.event();
+        }
+        assertEquals(100, count);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        input.limitUpdateRate(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeDefaultLimit() {
+        AbstractUpdatingInput.setDefaultUpdateRateLimit(-1);
+    }
+}
@@ -38,8 +38,8 @@ public class CluckConstantsTest {
 
     @Test
     public void testRmtToStringLast() {
-        assertEquals(CluckConstants.COUNT_RMTS - 1, CluckConstants.RMT_INPUTSTREAM);
-        assertEquals(CluckConstants.rmtToString(CluckConstants.RMT_INPUTSTREAM), "InputStream");
+        assertEquals(CluckConstants.COUNT_RMTS - 1, CluckConstants.RMT_BUNDLERESP);
+        assertEquals(CluckConstants.rmtToString(CluckConstants.RMT_BUNDLERESP), "BundleResponse");
     }
 
     @Test
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import ccre.log.LogLevel;
+import ccre.log.LoggingTarget;
+
+@SuppressWarnings("javadoc")
+public class CluckLogBatchTest {
+
+    private final ArrayList<String> received = new ArrayList<>();
+    private final LoggingTarget collector = new LoggingTarget() {
+        @Override
+        public void log(LogLevel level, String message, Throwable throwable) {
+            fail();
+        }
+
+        @Override
+        public void log(LogLevel level, String message, String extended) {
+            received.add(level + "|" + message + "|" + extended);
+        }
+    };
+
+    @Test
+    public void testRoundTrip() {
+        CluckLogBatch batch = new CluckLogBatch(4);
+        assertNull(batch.take());
+        batch.add(LogLevel.SEVERE, "first", null);
+        batch.add(LogLevel.FINEST, "second \u2603", "extended\ntext");
+        batch.add(LogLevel.INFO, "", "");
+        assertEquals(3, batch.count());
+        byte[] frame = batch.take();
+        assertEquals(5 + 3 * 9 + 5 + 10 + 13, frame.length);
+        assertEquals(CluckConstants.RMT_LOGBATCH, frame[0]);
+        assertEquals(0, batch.count());
+        assertEquals(5, batch.size());
+        assertTrue(CluckLogBatch.decode(frame, collector));
+        assertEquals(3, received.size());
+        assertEquals("SEVERE|first|null", received.get(0));
+        assertEquals("FINEST|second \u2603|extended\ntext", received.get(1));
+        assertEquals("INFO||null", received.get(2));
+    }
+
+    @Test
+    public void testReuse() {
+        CluckLogBatch batch = new CluckLogBatch(64);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 50; i++) {
+                batch.add(LogLevel.WARNING, "message " + i, null);
+            }
+            received.clear();
+            assertTrue(CluckLogBatch.decode(batch.take(), collector));
+            assertEquals(50, received.size());
+            assertEquals("WARNING|message 49|null", received.get(49));
+        }
+    }
+
+    @Test
+    public void testMalformed() {
+        CluckLogBatch batch = new CluckLogBatch(64);
+        batch.add(LogLevel.WARNING, "message", null);
+        batch.add(LogLevel.WARNING, "message", null);
+        byte[] frame = batch.take();
+        byte[] truncated = java.util.Arrays.copyOf(frame, frame.length - 1);
+        assertFalse(CluckLogBatch.decode(truncated, collector));
+        assertEquals(1, received.size());
+        assertFalse(CluckLogBatch.decode(new byte[] { CluckConstants.RMT_LOGTARGET, 0, 0, 0, 0 }, collector));
+        assertFalse(CluckLogBatch.decode(new byte[] { CluckConstants.RMT_LOGBATCH }, collector));
+    }
+
+    @Test
+    public void testEncodeSingleThroughPublish() {
+        CluckNode node = new CluckNode();
+        CluckPublisher.publish(node, "target", collector);
+        node.transmit("target", null, CluckLogBatch.encodeSingle(LogLevel.CONFIG, "single", "ext"));
+        CluckLogBatch batch = new CluckLogBatch(64);
+        batch.add(LogLevel.FINE, "batched", null);
+        node.transmit("target", null, batch.take());
+        assertEquals(2, received.size());
+        assertEquals("CONFIG|single|ext", received.get(0));
+        assertEquals("FINE|batched|null", received.get(1));
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.channel.FloatCell;
+import ccre.channel.FloatInput;
+import ccre.scheduler.VirtualTime;
+import ccre.util.Utils;
+
+@SuppressWarnings("javadoc")
+public class FloatPublishPolicyTest {
+
+    private CluckNode node;
+    private FloatCell cell;
+    private final ArrayList<Float> received = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        VirtualTime.startFakeTime();
+        node = new CluckNode();
+        cell = new FloatCell();
+        node.addLink((dest, source, data) -> {
+            if (data[0] == CluckConstants.RMT_FLOATINPUTRESP) {
+                received.add(Utils.bytesToFloat(data, 1));
+            }
+            return true;
+        }, "sub");
+    }
+
+    @After
+    public void tearDown() {
+        node = null;
+        cell = null;
+        received.clear();
+        VirtualTime.endFakeTime();
+    }
+
+    private void subscribe(FloatPublishPolicy requested) {
+        byte[] message = new byte[1 + FloatPublishPolicy.ENCODED_LENGTH];
+        message[0] = CluckConstants.RMT_FLOATINPUT;
+        requested.encode(message, 1);
+        node.transmit("pub", "sub", message);
+    }
+
+    private void assertReceived(float... values) {
+        assertEquals(values.length, received.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], received.get(i), 0);
+        }
+        received.clear();
+    }
+
+    @Test
+    public void testEveryChangeUnrestricted() {
+        assertTrue(FloatPublishPolicy.EVERY_CHANGE.isEveryChange());
+        assertFalse(FloatPublishPolicy.EVERY_CHANGE.withMaxRate(10).isEveryChange());
+        assertTrue(FloatPublishPolicy.EVERY_CHANGE.withMaxRate(0).isEveryChange());
+    }
+
+    @Test
+    public void testMaxRate() {
+        assertEquals(100, FloatPublishPolicy.EVERY_CHANGE.withMaxRate(10).getMinIntervalMillis());
+        assertEquals(34, FloatPublishPolicy.EVERY_CHANGE.withMaxRate(30).getMinIntervalMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeRate() {
+        FloatPublishPolicy.EVERY_CHANGE.withMaxRate(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNaNDelta() {
+        FloatPublishPolicy.EVERY_CHANGE.withMinDelta(Float.NaN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSamplePeriod() {
+        FloatPublishPolicy.EVERY_CHANGE.withSamplePeriod(-5);
+    }
+
+    @Test
+    public void testCombine() {
+        FloatPublishPolicy a = FloatPublishPolicy.EVERY_CHANGE.withMaxRate(10).withDeadband(0.1f);
+        FloatPublishPolicy b = FloatPublishPolicy.EVERY_CHANGE.withMaxRate(20).withMinDelta(0.5f).withSamplePeriod(50);
+        FloatPublishPolicy c = a.combine(b);
+        assertEquals(c, b.combine(a));
+        assertEquals(100, c.getMinIntervalMillis());
+        assertEquals(0.5f, c.getMinDelta(), 0);
+        assertEquals(0.1f, c.getDeadband(), 0);
+        assertEquals(50, c.getSamplePeriodMillis());
+        assertSame(a, a.combine(FloatPublishPolicy.EVERY_CHANGE));
+        assertSame(a, FloatPublishPolicy.EVERY_CHANGE.combine(a));
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        FloatPublishPolicy policy = FloatPublishPolicy.EVERY_CHANGE.withMaxRate(25).withMinDelta(0.25f).withDeadband(0.05f).withSamplePeriod(20);
+        byte[] data = new byte[3 + FloatPublishPolicy.ENCODED_LENGTH];
+        policy.encode(data, 3);
+        assertEquals(policy, FloatPublishPolicy.decode(data, 3));
+    }
+
+    @Test
+    public void testDecodeEmpty() {
+        assertSame(FloatPublishPolicy.EVERY_CHANGE, FloatPublishPolicy.decode(new byte[] { CluckConstants.RMT_FLOATINPUT }, 1));
+        byte[] data = new byte[1 + FloatPublishPolicy.ENCODED_LENGTH];
+        assertSame(FloatPublishPolicy.EVERY_CHANGE, FloatPublishPolicy.decode(data, 1));
+    }
+
+    @Test
+    public void testEveryChangePublishing() {
+        CluckPublisher.publish(node, "pub", cell.asInput());
+        node.transmit("pub", "sub", new byte[] { CluckConstants.RMT_FLOATINPUT });
+        assertReceived(0);
+        for (int i = 1; i <= 5; i++) {
+            cell.set(i);
+        }
+        assertReceived(1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void testPublisherRateLimit() throws InterruptedException {
+        CluckPublisher.publish(node, "pub", cell.asInput(), FloatPublishPolicy.EVERY_CHANGE.withMaxRate(10));
+        node.transmit("pub", "sub", new byte[] { CluckConstants.RMT_FLOATINPUT });
+        assertReceived(0);
+        for (int i = 1; i <= 5; i++) {
+            cell.set(i);
+        }
+        // held back until 100 ms after the initial value
+        assertReceived();
+        VirtualTime.forward(99);
+        assertReceived();
+        VirtualTime.forward(1);
+        assertReceived(5);
+        VirtualTime.forward(150);
+        cell.set(6);
+        assertReceived(6);
+    }
+
+    @Test
+    public void testSubscriberRequestsRateLimit() throws InterruptedException {
+        CluckPublisher.publish(node, "pub", cell.asInput());
+        subscribe(FloatPublishPolicy.EVERY_CHANGE.withMaxRate(20));
+        assertReceived(0);
+        cell.set(1);
+        cell.set(2);
+        assertReceived();
+        VirtualTime.forward(50);
+        assertReceived(2);
+    }
+
+    @Test
+    public void testNoTrailingSendIfUnchanged() throws InterruptedException {
+        CluckPublisher.publish(node, "pub", cell.asInput(), FloatPublishPolicy.EVERY_CHANGE.withMaxRate(10));
+        node.transmit("pub", "sub", new byte[] { CluckConstants.RMT_FLOATINPUT });
+        assertReceived(0);
+        cell.set(1);
+        cell.set(0);
+        VirtualTime.forward(200);
+        assertReceived();
+    }
+
+    @Test
+    public void testMinDelta() {
+        CluckPublisher.publish(node, "pub", cell.asInput());
+        subscribe(FloatPublishPolicy.EVERY_CHANGE.withMinDelta(0.5f));
+        assertReceived(0);
+        cell.set(0.2f);
+        cell.set(0.4f);
+        assertReceived();
+        // small changes add up
+        cell.set(0.6f);
+        assertReceived(0.6f);
+        cell.set(Float.NaN);
+        assertReceived(Float.NaN);
+    }
+
+    @Test
+    public void testDeadband() {
+        cell.set(0.05f);
+        CluckPublisher.publish(node, "pub", cell.asInput(), FloatPublishPolicy.EVERY_CHANGE.withDeadband(0.1f));
+        node.transmit("pub", "sub", new byte[] { CluckConstants.RMT_FLOATINPUT });
+        assertReceived(0);
+        cell.set(-0.05f);
+        assertReceived();
+        cell.set(0.5f);
+        assertReceived(0.5f);
+        cell.set(0.01f);
+        assertReceived(0);
+    }
+
+    @Test
+    public void testSampleAndHold() throws InterruptedException {
+        CluckPublisher.publish(node, "pub", cell.asInput());
+        subscribe(FloatPublishPolicy.EVERY_CHANGE.withSamplePeriod(50));
+        assertReceived(0);
+        cell.set(1);
+        cell.set(2);
+        assertReceived();
+        VirtualTime.forward(50);
+        assertReceived(2);
+        VirtualTime.forward(50);
+        assertReceived();
+        cell.set(3);
+        VirtualTime.forward(50);
+        assertReceived(3);
+    }
+
+    @Test
+    public void testUnsubscribeStopsSampling() throws InterruptedException {
+        CluckPublisher.publish(node, "pub", cell.asInput());
+        subscribe(FloatPublishPolicy.EVERY_CHANGE.withSamplePeriod(50));
+        assertReceived(0);
+        node.transmit("pub", "sub", new byte[] { CluckConstants.RMT_NEGATIVE_ACK });
+        cell.set(1);
+        VirtualTime.forward(200);
+        assertReceived();
+    }
+
+    @Test
+    public void testResubscribeReplacesPolicy() throws InterruptedException {
+        CluckPublisher.publish(node, "pub", cell.asInput());
+        subscribe(FloatPublishPolicy.EVERY_CHANGE.withSamplePeriod(50));
+        node.transmit("pub", "sub", new byte[] { CluckConstants.RMT_FLOATINPUT });
+        assertReceived(0, 0);
+        cell.set(1);
+        assertReceived(1);
+        VirtualTime.forward(200);
+        assertReceived();
+    }
+
+    @Test
+    public void testSubscriberSendsPolicy() throws InterruptedException {
+        CluckPublisher.publish(node, "pub", cell.asInput());
+        FloatInput input = CluckPublisher.subscribeFI(node, "pub", false, FloatPublishPolicy.EVERY_CHANGE.withMaxRate(10));
+        // subscribes now that the receiver is attached
+        input.onUpdate(() -> {
+        });
+        assertEquals(0, input.get(), 0);
+        cell.set(1);
+        cell.set(2);
+        assertEquals(0, input.get(), 0);
+        VirtualTime.forward(100);
+        assertEquals(2, input.get(), 0);
+    }
+}
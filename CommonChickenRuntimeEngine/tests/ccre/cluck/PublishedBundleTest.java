@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.channel.BooleanCell;
+import ccre.channel.BooleanInput;
+import ccre.channel.FloatCell;
+import ccre.channel.FloatInput;
+import ccre.scheduler.VirtualTime;
+
+@SuppressWarnings("javadoc")
+public class PublishedBundleTest {
+
+    private CluckNode node;
+    private FloatCell f1, f2;
+    private BooleanCell b1, b2;
+    private PublishedBundle bundle;
+    private final ArrayList<byte[]> frames = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        VirtualTime.startFakeTime();
+        node = new CluckNode();
+        f1 = new FloatCell(1.5f);
+        f2 = new FloatCell(-2);
+        b1 = new BooleanCell(true);
+        b2 = new BooleanCell(false);
+        bundle = new PublishedBundle(node, "bundle", 100).add("f1", f1.asInput()).add("b1", b1.asInput()).add("f2", f2.asInput()).add("b2", b2.asInput());
+        node.addLink((dest, source, data) -> {
+            if (data[0] == CluckConstants.RMT_BUNDLERESP) {
+                frames.add(data);
+            }
+            return true;
+        }, "raw");
+    }
+
+    @After
+    public void tearDown() {
+        node = null;
+        bundle = null;
+        frames.clear();
+        VirtualTime.endFakeTime();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroPeriod() {
+        new PublishedBundle(node, "other", 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateEntry() {
+        bundle.add("f1", f2.asInput());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterPublish() {
+        bundle.publish();
+        bundle.add("f3", f2.asInput());
+    }
+
+    @Test
+    public void testNoFramesWithoutSubscribers() throws InterruptedException {
+        bundle.publish();
+        VirtualTime.forward(500);
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void testSchemaAndFullFrame() throws InterruptedException {
+        bundle.publish();
+        node.transmit("bundle", "raw", new byte[] { CluckConstants.RMT_BUNDLE });
+        assertTrue(frames.isEmpty());
+        VirtualTime.forward(100);
+        assertEquals(2, frames.size());
+        assertEquals(PublishedBundle.FRAME_SCHEMA, frames.get(0)[1]);
+        byte[] full = frames.get(1);
+        assertEquals(PublishedBundle.FRAME_VALUES, full[1]);
+        // header, one mask byte, two floats, one byte of booleans
+        assertEquals(6 + 1 + 8 + 1, full.length);
+        assertEquals(0x0F, full[6]);
+    }
+
+    @Test
+    public void testOnlyChangesSent() throws InterruptedException {
+        bundle.publish();
+        node.transmit("bundle", "raw", new byte[] { CluckConstants.RMT_BUNDLE });
+        VirtualTime.forward(100);
+        frames.clear();
+        VirtualTime.forward(100);
+        assertTrue(frames.isEmpty());
+        f2.set(3);
+        b2.set(true);
+        VirtualTime.forward(100);
+        assertEquals(1, frames.size());
+        byte[] frame = frames.get(0);
+        assertEquals(0x0C, frame[6]);
+        assertEquals(6 + 1 + 4 + 1, frame.length);
+    }
+
+    @Test
+    public void testChangesCoalesced() throws InterruptedException {
+        bundle.publish();
+        node.transmit("bundle", "raw", new byte[] { CluckConstants.RMT_BUNDLE });
+        VirtualTime.forward(100);
+        frames.clear();
+        for (int i = 0; i < 50; i++) {
+            f1.set(i);
+        }
+        VirtualTime.forward(100);
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void testUnsubscribe() throws InterruptedException {
+        bundle.publish();
+        node.transmit("bundle", "raw", new byte[] { CluckConstants.RMT_BUNDLE });
+        VirtualTime.forward(100);
+        frames.clear();
+        node.transmit("bundle", "raw", new byte[] { CluckConstants.RMT_NEGATIVE_ACK });
+        f1.set(7);
+        VirtualTime.forward(100);
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void testSubscribedBundle() throws InterruptedException {
+        bundle.publish();
+        SubscribedBundle sub = new SubscribedBundle(node, "bundle");
+        FloatInput sf1 = sub.subscribeFI("f1"), sf2 = sub.subscribeFI("f2");
+        BooleanInput sb1 = sub.subscribeBI("b1"), sb2 = sub.subscribeBI("b2");
+        assertTrue(Float.isNaN(sf1.get()));
+        VirtualTime.forward(100);
+        assertEquals(1.5f, sf1.get(), 0);
+        assertEquals(-2, sf2.get(), 0);
+        assertTrue(sb1.get());
+        assertFalse(sb2.get());
+        f1.set(4);
+        b1.set(false);
+        b2.set(true);
+        VirtualTime.forward(100);
+        assertEquals(4, sf1.get(), 0);
+        assertEquals(-2, sf2.get(), 0);
+        assertFalse(sb1.get());
+        assertTrue(sb2.get());
+    }
+
+    @Test
+    public void testSubscribeAfterSchema() throws InterruptedException {
+        bundle.publish();
+        SubscribedBundle sub = new SubscribedBundle(node, "bundle");
+        VirtualTime.forward(100);
+        assertEquals(-2, sub.subscribeFI("f2").get(), 0);
+        assertTrue(sub.subscribeBI("b1").get());
+    }
+
+    @Test
+    public void testMissingEntry() throws InterruptedException {
+        bundle.publish();
+        SubscribedBundle sub = new SubscribedBundle(node, "bundle");
+        FloatInput missing = sub.subscribeFI("nonexistent");
+        VirtualTime.forward(200);
+        assertTrue(Float.isNaN(missing.get()));
+    }
+
+    @Test
+    public void testManyEntries() throws InterruptedException {
+        PublishedBundle big = new PublishedBundle(node, "big", 50);
+        FloatCell[] cells = new FloatCell[40];
+        BooleanCell[] bools = new BooleanCell[40];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new FloatCell(i);
+            bools[i] = new BooleanCell(i % 3 == 0);
+            big.add("f" + i, cells[i].asInput()).add("b" + i, bools[i].asInput());
+        }
+        big.publish();
+        SubscribedBundle sub = new SubscribedBundle(node, "big");
+        VirtualTime.forward(50);
+        for (int i = 0; i < cells.length; i++) {
+            assertEquals(i, sub.subscribeFI("f" + i).get(), 0);
+            assertEquals(i % 3 == 0, sub.subscribeBI("b" + i).get());
+        }
+        cells[33].set(-1);
+        bools[17].set(true);
+        VirtualTime.forward(50);
+        assertEquals(-1, sub.subscribeFI("f33").get(), 0);
+        assertTrue(sub.subscribeBI("b17").get());
+        assertEquals(32, sub.subscribeFI("f32").get(), 0);
+    }
+}
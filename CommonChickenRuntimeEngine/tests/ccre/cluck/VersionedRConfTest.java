@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.channel.CancelOutput;
+import ccre.channel.EventInput;
+import ccre.rconf.RConf;
+import ccre.rconf.RConf.Entry;
+import ccre.rconf.RConfable;
+import ccre.scheduler.VirtualTime;
+import ccre.testing.CountingEventOutput;
+
+@SuppressWarnings("javadoc")
+public class VersionedRConfTest {
+
+    private static final class MutableRConfable implements RConfable {
+        public Entry[] entries;
+        public int queries, signals;
+
+        @Override
+        public Entry[] queryRConf() {
+            queries++;
+            return entries.clone();
+        }
+
+        @Override
+        public boolean signalRConf(int field, byte[] data) {
+            signals++;
+            entries[field] = RConf.fieldInteger(data[0]);
+            return true;
+        }
+    }
+
+    private MutableRConfable device;
+    private VersionedRConf versions;
+
+    @Before
+    public void setUp() {
+        VirtualTime.startFakeTime();
+        device = new MutableRConfable();
+        device.entries = new Entry[] { RConf.title("Title"), RConf.fieldInteger(1), RConf.string("abc") };
+        versions = new VersionedRConf(device);
+    }
+
+    @After
+    public void tearDown() {
+        versions.setWatched(false);
+        versions = null;
+        device = null;
+        VirtualTime.endFakeTime();
+    }
+
+    private static void assertEntries(Entry[] expected, Entry[] actual) {
+        assertNotNull(actual);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].type, actual[i].type);
+            assertArrayEquals(expected[i].contents, actual[i].contents);
+        }
+    }
+
+    private int changedCount(byte[] delta) {
+        return ((delta[12] & 0xFF) << 8) | (delta[13] & 0xFF);
+    }
+
+    @Test
+    public void testFullRoundTrip() throws InterruptedException {
+        assertTrue(versions.refresh());
+        int[] ev = new int[2];
+        byte[] delta = versions.encodeDelta(VersionedRConf.request(0, 0));
+        assertTrue(VersionedRConf.isDelta(delta));
+        assertEquals(3, changedCount(delta));
+        assertEntries(device.entries, VersionedRConf.applyDelta(delta, new Entry[0], ev));
+        assertNotEquals(0, ev[0]);
+        assertEquals(versions.getVersion(), ev[1]);
+    }
+
+    @Test
+    public void testOnlyChangedEntries() throws InterruptedException {
+        versions.refresh();
+        int[] ev = new int[2];
+        Entry[] client = VersionedRConf.applyDelta(versions.encodeDelta(VersionedRConf.request(0, 0)), new Entry[0], ev);
+        device.entries[2] = RConf.string("def");
+        assertTrue(versions.refresh());
+        byte[] delta = versions.encodeDelta(VersionedRConf.request(ev[0], ev[1]));
+        assertEquals(1, changedCount(delta));
+        client = VersionedRConf.applyDelta(delta, client, ev);
+        assertEntries(device.entries, client);
+        // nothing changed: nothing sent
+        assertFalse(versions.refresh());
+        delta = versions.encodeDelta(VersionedRConf.request(ev[0], ev[1]));
+        assertEquals(0, changedCount(delta));
+        assertEntries(device.entries, VersionedRConf.applyDelta(delta, client, ev));
+    }
+
+    @Test
+    public void testEpochMismatch() throws InterruptedException {
+        versions.refresh();
+        int[] ev = new int[2];
+        VersionedRConf.applyDelta(versions.encodeDelta(VersionedRConf.request(0, 0)), new Entry[0], ev);
+        // a different server: everything must be resent
+        VersionedRConf other = new VersionedRConf(device);
+        other.refresh();
+        byte[] delta = other.encodeDelta(VersionedRConf.request(ev[0], ev[1]));
+        assertEquals(3, changedCount(delta));
+    }
+
+    @Test
+    public void testUnknownVersion() throws InterruptedException {
+        versions.refresh();
+        int[] ev = new int[2];
+        VersionedRConf.applyDelta(versions.encodeDelta(VersionedRConf.request(0, 0)), new Entry[0], ev);
+        assertEquals(3, changedCount(versions.encodeDelta(VersionedRConf.request(ev[0], ev[1] + 5))));
+        assertEquals(3, changedCount(versions.encodeDelta(new byte[] { VersionedRConf.REQUEST_DELTA })));
+    }
+
+    @Test
+    public void testShrinkAndGrow() throws InterruptedException {
+        versions.refresh();
+        int[] ev = new int[2];
+        Entry[] client = VersionedRConf.applyDelta(versions.encodeDelta(VersionedRConf.request(0, 0)), new Entry[0], ev);
+        device.entries = new Entry[] { device.entries[0], device.entries[1] };
+        versions.refresh();
+        byte[] delta = versions.encodeDelta(VersionedRConf.request(ev[0], ev[1]));
+        assertEquals(0, changedCount(delta));
+        client = VersionedRConf.applyDelta(delta, client, ev);
+        assertEntries(device.entries, client);
+        device.entries = new Entry[] { device.entries[0], device.entries[1], RConf.button("Go"), RConf.string("x") };
+        versions.refresh();
+        delta = versions.encodeDelta(VersionedRConf.request(ev[0], ev[1]));
+        assertEquals(2, changedCount(delta));
+        assertEntries(device.entries, VersionedRConf.applyDelta(delta, client, ev));
+    }
+
+    @Test
+    public void testStaleResponse() throws InterruptedException {
+        versions.refresh();
+        byte[] old = versions.encodeDelta(VersionedRConf.request(0, 0));
+        device.entries[1] = RConf.fieldInteger(2);
+        versions.refresh();
+        int[] ev = new int[2];
+        Entry[] client = VersionedRConf.applyDelta(versions.encodeDelta(VersionedRConf.request(0, 0)), new Entry[0], ev);
+        assertSame(client, VersionedRConf.applyDelta(old, client, ev));
+        assertEquals(versions.getVersion(), ev[1]);
+    }
+
+    @Test
+    public void testMalformed() throws InterruptedException {
+        versions.refresh();
+        byte[] delta = versions.encodeDelta(VersionedRConf.request(0, 0));
+        assertNull(VersionedRConf.applyDelta(java.util.Arrays.copyOf(delta, delta.length - 1), new Entry[0], new int[2]));
+        assertNull(VersionedRConf.applyDelta(new byte[] { 0, 3 }, new Entry[0], new int[2]));
+        // a delta that omits entries the client never had
+        device.entries[2] = RConf.string("def");
+        versions.refresh();
+        int[] ev = new int[2];
+        VersionedRConf.applyDelta(delta, new Entry[0], ev);
+        byte[] partial = versions.encodeDelta(VersionedRConf.request(ev[0], ev[1]));
+        assertNull(VersionedRConf.applyDelta(partial, new Entry[0], ev));
+    }
+
+    @Test
+    public void testPolledWhileWatched() throws InterruptedException {
+        device.entries = new Entry[] { RConf.autoRefresh(100), RConf.fieldInteger(1) };
+        CountingEventOutput ceo = new CountingEventOutput();
+        versions.getChanges().send(ceo);
+        ceo.ifExpected = true;
+        versions.refresh();
+        ceo.check();
+        versions.setWatched(true);
+        int queries = device.queries;
+        VirtualTime.forward(100);
+        assertEquals(queries + 1, device.queries);
+        // unchanged: no event
+        VirtualTime.forward(100);
+        device.entries[1] = RConf.fieldInteger(2);
+        ceo.ifExpected = true;
+        VirtualTime.forward(100);
+        ceo.check();
+        versions.setWatched(false);
+        queries = device.queries;
+        VirtualTime.forward(1000);
+        assertEquals(queries, device.queries);
+    }
+
+    @Test
+    public void testOverCluck() throws InterruptedException {
+        CluckNode node = new CluckNode();
+        CluckPublisher.publishRConf(node, "dev", device);
+        RConfable remote = CluckPublisher.subscribeRConf(node, "dev", 1000);
+        assertNull(remote.getRConfChanges());
+        assertEntries(device.entries, remote.queryRConf());
+        device.entries[2] = RConf.string("changed");
+        assertEntries(device.entries, remote.queryRConf());
+
+        EventInput changes = remote.getRConfChanges();
+        assertNotNull(changes);
+        CountingEventOutput ceo = new CountingEventOutput();
+        CancelOutput unsubscribe = changes.send(ceo);
+        ceo.ifExpected = true;
+        assertTrue(remote.signalRConf(1, new byte[] { 7 }));
+        ceo.check();
+        assertEntries(device.entries, remote.queryRConf());
+        unsubscribe.cancel();
+        // no longer watched, so no notification
+        assertTrue(remote.signalRConf(1, new byte[] { 8 }));
+        assertEquals(2, device.signals);
+    }
+
+    @Test
+    public void testDisconnectedWatcherRemoved() throws InterruptedException {
+        device.entries = new Entry[] { RConf.autoRefresh(100), RConf.fieldInteger(1) };
+        CluckNode node = new CluckNode();
+        CluckPublisher.publishRConf(node, "dev", device);
+        assertEntries(device.entries, CluckPublisher.subscribeRConf(node, "dev", 1000).queryRConf());
+        // a watcher whose link has already gone away
+        node.transmit("dev-rconfv", "gone/watcher", new byte[] { CluckConstants.RMT_EVENTINPUT });
+        int queries = device.queries;
+        VirtualTime.forward(100);
+        assertEquals(queries + 1, device.queries);
+        // the change notification bounces, which removes the watcher
+        device.entries[1] = RConf.fieldInteger(2);
+        VirtualTime.forward(100);
+        queries = device.queries;
+        VirtualTime.forward(1000);
+        assertEquals(queries, device.queries);
+    }
+
+    @Test
+    public void testConcurrentRefresh() throws InterruptedException {
+        AtomicInteger inQuery = new AtomicInteger(), maxInQuery = new AtomicInteger();
+        AtomicInteger value = new AtomicInteger();
+        RConfable slow = new RConfable() {
+            @Override
+            public Entry[] queryRConf() throws InterruptedException {
+                maxInQuery.accumulateAndGet(inQuery.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(1);
+                    return new Entry[] { RConf.fieldInteger(value.incrementAndGet()) };
+                } finally {
+                    inQuery.decrementAndGet();
+                }
+            }
+
+            @Override
+            public boolean signalRConf(int field, byte[] data) {
+                return false;
+            }
+        };
+        VersionedRConf concurrent = new VersionedRConf(slow);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 25; j++) {
+                    try {
+                        concurrent.refresh();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, maxInQuery.get());
+        // every refresh saw a newer value than the last one applied
+        assertEquals(100, concurrent.getVersion());
+        int[] ev = new int[2];
+        Entry[] result = VersionedRConf.applyDelta(concurrent.encodeDelta(VersionedRConf.request(0, 0)), new Entry[0], ev);
+        assertEquals(Integer.valueOf(100), result[0].parseInteger());
+    }
+}
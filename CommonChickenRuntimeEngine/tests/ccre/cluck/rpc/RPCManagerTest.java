@@ -0,0 +1,471 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.rpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.cluck.CluckNode;
+import ccre.log.LogLevel;
+import ccre.log.VerifyingLogger;
+import ccre.scheduler.VirtualTime;
+
+@SuppressWarnings("javadoc")
+public class RPCManagerTest {
+
+    private CluckNode node;
+    private RPCManager manager;
+    private ArrayList<OutputStream> outputs;
+    private ArrayList<byte[]> inputs;
+
+    @Before
+    public void setUp() throws Exception {
+        node = new CluckNode();
+        manager = node.getRPCManager();
+        outputs = new ArrayList<>();
+        inputs = new ArrayList<>();
+        VerifyingLogger.begin();
+        // replies are held until the test sends them
+        manager.publish("deferred", (in, out) -> {
+            synchronized (this) {
+                inputs.add(in);
+                outputs.add(out);
+            }
+        });
+        // a streamed reply ends when invoke returns, so this waits until the
+        // test is done with it
+        manager.publish("streamed", (in, out) -> {
+            CountDownLatch done = new CountDownLatch(1);
+            synchronized (this) {
+                inputs.add(in);
+                outputs.add(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            out.close();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            try {
+                done.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        VirtualTime.startFakeTime();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        VirtualTime.endFakeTime();
+        VerifyingLogger.checkAndEnd();
+        outputs = null;
+        inputs = null;
+        manager = null;
+        node = null;
+    }
+
+    private void reply(int index, byte... data) throws IOException {
+        outputs.get(index).write(data);
+        outputs.get(index).close();
+    }
+
+    private static void assertTimedOut(CompletableFuture<byte[]> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("future should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testPipelinedCalls() throws Exception {
+        RemoteProcedure proc = manager.subscribe("deferred", 1000);
+        ArrayList<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (byte i = 0; i < 5; i++) {
+            futures.add(SimpleProcedure.invokeAsync(proc, new byte[] { i }, 0));
+        }
+        assertEquals(5, outputs.size());
+        assertEquals(5, manager.getPendingCallCount());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(new byte[] { (byte) i }, inputs.get(i));
+            assertFalse(futures.get(i).isDone());
+        }
+        // reply out of order
+        for (int i = 4; i >= 0; i--) {
+            reply(i, (byte) (i * 10), (byte) 7);
+            assertTrue(futures.get(i).isDone());
+        }
+        assertEquals(0, manager.getPendingCallCount());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(new byte[] { (byte) (i * 10), 7 }, futures.get(i).get());
+        }
+    }
+
+    @Test
+    public void testSubscriptionTimeout() throws Exception {
+        RemoteProcedure proc = manager.subscribe("deferred", 100);
+        CompletableFuture<byte[]> late = SimpleProcedure.invokeAsync(proc, new byte[0], 0);
+        VirtualTime.forward(50);
+        CompletableFuture<byte[]> early = SimpleProcedure.invokeAsync(proc, new byte[0], 0);
+        assertEquals(2, manager.getPendingCallCount());
+        VirtualTime.forward(60);
+        assertTrue(late.isCompletedExceptionally());
+        assertFalse(early.isDone());
+        assertEquals(1, manager.getPendingCallCount());
+        reply(1, (byte) 3);
+        assertArrayEquals(new byte[] { 3 }, early.get());
+        assertEquals(0, manager.getPendingCallCount());
+        VirtualTime.forward(100);
+        assertArrayEquals(new byte[] { 3 }, early.get());
+        assertTimedOut(late);
+    }
+
+    @Test
+    public void testSubscriptionTimeoutClosesStream() throws Exception {
+        RemoteProcedure proc = manager.subscribe("deferred", 100);
+        boolean[] closed = new boolean[1];
+        proc.invoke(new byte[0], new OutputStream() {
+            @Override
+            public void write(int b) {
+                fail();
+            }
+
+            @Override
+            public void close() {
+                assertFalse(closed[0]);
+                closed[0] = true;
+            }
+        });
+        VirtualTime.forward(90);
+        assertFalse(closed[0]);
+        VirtualTime.forward(20);
+        assertTrue(closed[0]);
+        assertEquals(0, manager.getPendingCallCount());
+    }
+
+    @Test
+    public void testCallerTimeout() throws Exception {
+        RemoteProcedure proc = (in, out) -> outputs.add(out);
+        CompletableFuture<byte[]> future = SimpleProcedure.invokeAsync(proc, new byte[0], 100);
+        VirtualTime.forward(90);
+        assertFalse(future.isDone());
+        VirtualTime.forward(20);
+        assertTimedOut(future);
+        // a reply after the timeout is ignored
+        outputs.get(0).close();
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testImmediateReply() throws Exception {
+        RemoteProcedure proc = new SimpleProcedure() {
+            @Override
+            protected byte[] invoke(byte[] in) {
+                return new byte[] { (byte) (in[0] + 1) };
+            }
+        };
+        CompletableFuture<byte[]> future = SimpleProcedure.invokeAsync(proc, new byte[] { 41 }, 100);
+        assertTrue(future.isDone());
+        assertArrayEquals(new byte[] { 42 }, future.get());
+        VirtualTime.forward(200);
+        assertArrayEquals(new byte[] { 42 }, future.get());
+    }
+
+    @Test
+    public void testRemoteImmediateReply() throws Exception {
+        manager.publish("adder", new SimpleProcedure() {
+            @Override
+            protected byte[] invoke(byte[] in) {
+                return new byte[] { (byte) (in[0] + in[1]) };
+            }
+        });
+        RemoteProcedure proc = manager.subscribe("adder", 100);
+        assertArrayEquals(new byte[] { 5 }, SimpleProcedure.invokeAsync(proc, new byte[] { 2, 3 }, 0).get());
+        assertEquals(0, manager.getPendingCallCount());
+    }
+
+    private static void readFully(InputStream in, byte[] out) throws IOException {
+        for (int done = 0; done < out.length;) {
+            int n = in.read(out, done, Math.min(1000, out.length - done));
+            assertTrue(n > 0);
+            done += n;
+        }
+    }
+
+    // streamed invocations run on their own thread
+    private synchronized OutputStream awaitStreamedOutput(int index) throws InterruptedException {
+        for (int i = 0; i < 500 && outputs.size() <= index; i++) {
+            wait(10);
+        }
+        assertTrue(outputs.size() > index);
+        return outputs.get(index);
+    }
+
+    private static void awaitAvailable(InputStream in, int count) throws IOException, InterruptedException {
+        for (int i = 0; i < 500 && in.available() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, in.available());
+    }
+
+    // the stream is forgotten just after the reader is woken
+    private void awaitNoOpenStreams() throws InterruptedException {
+        for (int i = 0; i < 500 && manager.getOpenStreamCount() != 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, manager.getOpenStreamCount());
+    }
+
+    private static void waitForBlock(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 500 && thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(thread.isAlive());
+    }
+
+    @Test
+    public void testStreamingSmallReply() throws Exception {
+        manager.publish("echo", new SimpleProcedure() {
+            @Override
+            protected byte[] invoke(byte[] in) {
+                return new byte[] { in[1], in[0] };
+            }
+        });
+        InputStream in = manager.invokeStreaming("echo", new byte[] { 1, 2 }, 1000);
+        awaitAvailable(in, 2);
+        assertEquals(0, manager.getOpenStreamCount());
+        assertEquals(2, in.read());
+        assertEquals(1, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testStreamingFlowControl() throws Exception {
+        final int total = ChunkedReplyStream.CHUNK_SIZE * RPCManager.STREAM_WINDOW * 3 + 17;
+        InputStream in = manager.invokeStreaming("streamed", new byte[] { 9 }, 1000);
+        final OutputStream out = awaitStreamedOutput(0);
+        assertArrayEquals(new byte[] { 9 }, inputs.get(0));
+        IOException[] failure = new IOException[1];
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < total; i += 100) {
+                    byte[] block = new byte[Math.min(100, total - i)];
+                    for (int j = 0; j < block.length; j++) {
+                        block[j] = (byte) ((i + j) % 251);
+                    }
+                    out.write(block);
+                }
+                out.close();
+            } catch (IOException ex) {
+                failure[0] = ex;
+            }
+        });
+        producer.start();
+        waitForBlock(producer);
+        // only a window of chunks has been sent
+        assertEquals(ChunkedReplyStream.CHUNK_SIZE * RPCManager.STREAM_WINDOW, in.available());
+        assertEquals(1, manager.getOpenStreamCount());
+
+        byte[] data = new byte[total];
+        readFully(in, data);
+        for (int i = 0; i < total; i++) {
+            assertEquals((byte) (i % 251), data[i]);
+        }
+        assertEquals(-1, in.read());
+        producer.join();
+        assertNull(failure[0]);
+        assertEquals(0, manager.getOpenStreamCount());
+    }
+
+    @Test
+    public void testStreamingCancel() throws Exception {
+        InputStream in = manager.invokeStreaming("streamed", new byte[0], 1000);
+        OutputStream out = awaitStreamedOutput(0);
+        out.write(new byte[ChunkedReplyStream.CHUNK_SIZE + 1]);
+        assertEquals(ChunkedReplyStream.CHUNK_SIZE, in.available());
+        in.close();
+        assertEquals(0, manager.getOpenStreamCount());
+        try {
+            out.write(1);
+            fail("write should have failed");
+        } catch (IOException ex) {
+            // expected
+        }
+        out.close();
+    }
+
+    @Test
+    public void testStreamingTimeout() throws Exception {
+        InputStream in = manager.invokeStreaming("streamed", new byte[0], 1000);
+        OutputStream out = awaitStreamedOutput(0);
+        out.write(new byte[] { 1, 2, 3 });
+        out.flush();
+        IOException[] failure = new IOException[1];
+        Thread reader = new Thread(() -> {
+            try {
+                assertEquals(1, in.read());
+                assertEquals(2, in.read());
+                assertEquals(3, in.read());
+                in.read();
+            } catch (IOException ex) {
+                failure[0] = ex;
+            }
+        });
+        reader.start();
+        waitForBlock(reader);
+        VirtualTime.forward(1100);
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertTrue(failure[0] instanceof InterruptedIOException);
+        assertEquals(0, manager.getOpenStreamCount());
+        try {
+            out.write(1);
+            fail("write should have failed");
+        } catch (IOException ex) {
+            // expected: the caller cancelled the reply
+        }
+    }
+
+    @Test
+    public void testStreamingLargeReplyWrittenWithinInvoke() throws Exception {
+        final int total = ChunkedReplyStream.CHUNK_SIZE * RPCManager.STREAM_WINDOW * 2 + 5;
+        manager.publish("bulk", (in, out) -> {
+            try {
+                for (int i = 0; i < total; i++) {
+                    out.write(i % 251);
+                }
+                out.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        // this used to block the receiving thread, which here is the caller.
+        InputStream in = manager.invokeStreaming("bulk", new byte[0], 1000);
+        byte[] data = new byte[total];
+        readFully(in, data);
+        for (int i = 0; i < total; i++) {
+            assertEquals((byte) (i % 251), data[i]);
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testStreamingEndsWhenInvokeReturns() throws Exception {
+        manager.publish("forgetful", (in, out) -> {
+            try {
+                out.write(new byte[] { 1, 2, 3 });
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        InputStream in = manager.invokeStreaming("forgetful", new byte[0], 1000);
+        byte[] data = new byte[3];
+        readFully(in, data);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, data);
+        assertEquals(-1, in.read());
+        awaitNoOpenStreams();
+    }
+
+    @Test
+    public void testStreamingAbortedOnException() throws Exception {
+        RuntimeException failure = new RuntimeException("broken");
+        manager.publish("broken", (in, out) -> {
+            throw failure;
+        });
+        VerifyingLogger.configure(LogLevel.SEVERE, "Exception in streamed invocation of broken", failure);
+        InputStream in = manager.invokeStreaming("broken", new byte[0], 1000);
+        try {
+            in.read();
+            fail("read should have failed");
+        } catch (IOException ex) {
+            assertEquals("Remote procedure aborted its streamed reply", ex.getMessage());
+        }
+        awaitNoOpenStreams();
+    }
+
+    @Test
+    public void testStreamingBounded() throws Exception {
+        int accepted = RPCManager.MAX_STREAM_THREADS + RPCManager.MAX_QUEUED_STREAMS;
+        ArrayList<InputStream> streams = new ArrayList<>();
+        for (int i = 0; i < accepted; i++) {
+            streams.add(manager.invokeStreaming("streamed", new byte[] { (byte) i }, 1000));
+        }
+        VerifyingLogger.configure(LogLevel.WARNING, "Too many streamed calls in progress: aborted call to streamed");
+        InputStream rejected = manager.invokeStreaming("streamed", new byte[0], 1000);
+        VerifyingLogger.check();
+        try {
+            rejected.read();
+            fail("read should have failed");
+        } catch (IOException ex) {
+            assertEquals("Remote procedure aborted its streamed reply", ex.getMessage());
+        }
+        // the queued calls still run once threads free up
+        for (int i = 0; i < accepted; i++) {
+            OutputStream out = awaitStreamedOutput(i);
+            synchronized (this) {
+                out.write(inputs.get(i)[0]);
+            }
+            out.close();
+        }
+        for (int i = 0; i < accepted; i++) {
+            assertEquals(i, streams.get(i).read());
+            assertEquals(-1, streams.get(i).read());
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.shm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.cluck.CluckLink;
+import ccre.cluck.CluckNode;
+import ccre.concurrency.ReporterThread;
+import ccre.log.LogLevel;
+import ccre.log.VerifyingLogger;
+
+@SuppressWarnings("javadoc")
+public class CluckSharedMemoryServerTest {
+
+    private int port;
+    private CluckSharedMemoryServer server;
+    private CluckNode serverNode, clientNode;
+    private final BlockingQueue<String> received = new ArrayBlockingQueue<>(100);
+
+    @Before
+    public void setUp() throws InterruptedException {
+        Random random = new Random();
+        do {
+            port = 40000 + random.nextInt(20000);
+        } while (CluckSharedMemoryServer.directoryFor(port).exists());
+        serverNode = new CluckNode();
+        clientNode = new CluckNode();
+        server = new CluckSharedMemoryServer(serverNode, port);
+        server.setDaemon(true);
+        server.start();
+        for (int i = 0; i < 200 && !CluckSharedMemoryServer.isRunning(port); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(CluckSharedMemoryServer.isRunning(port));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        // so that connections from this test don't log during the next one
+        for (int i = 0; i < 500 && server.getConnectionCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.getConnectionCount());
+        server.terminate();
+        server.join(2000);
+        assertFalse(server.isAlive());
+        server = null;
+        File dir = CluckSharedMemoryServer.directoryFor(port);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        serverNode = clientNode = null;
+        received.clear();
+    }
+
+    private CluckLink recorder() {
+        return (dest, source, data) -> {
+            received.add(dest + " <- " + source + ": " + new String(data));
+            return true;
+        };
+    }
+
+    private CluckSharedMemoryConnection connect(String hint) throws IOException {
+        final CluckSharedMemoryConnection conn = CluckSharedMemoryConnection.connect(port, hint);
+        final CluckLink deny = conn.attach(clientNode, "server");
+        ReporterThread receiver = new ReporterThread("test-receiver") {
+            @Override
+            protected void threadBody() throws IOException {
+                conn.receive(clientNode, "server", deny);
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+        return conn;
+    }
+
+    private CluckLink awaitServerLink(String name) throws InterruptedException {
+        CluckLink link = null;
+        for (int i = 0; i < 200 && link == null; i++) {
+            link = serverNode.links.get(name);
+            Thread.sleep(10);
+        }
+        assertTrue(link != null);
+        return link;
+    }
+
+    @Test
+    public void testRunning() {
+        assertTrue(CluckSharedMemoryServer.isRunning(port));
+        assertFalse(CluckSharedMemoryServer.isRunning(port + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testConnectNoServer() throws IOException {
+        CluckSharedMemoryConnection.connect(port + 1, null);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException, InterruptedException {
+        serverNode.addLink(recorder(), "sink");
+        clientNode.addLink(recorder(), "local");
+        try (CluckSharedMemoryConnection conn = connect("client")) {
+            clientNode.transmit("server/sink/path", "local", "hello".getBytes());
+            assertEquals("path <- client/local: hello", received.poll(2, TimeUnit.SECONDS));
+            serverNode.transmit("client/local", "sink", "reply".getBytes());
+            assertEquals("null <- server/sink: reply", received.poll(2, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testUnhintedName() throws IOException, InterruptedException {
+        try (CluckSharedMemoryConnection conn = connect(null)) {
+            String name = null;
+            for (int i = 0; i < 200 && name == null; i++) {
+                for (String link : serverNode.links.keySet()) {
+                    if (link.startsWith("shmserv")) {
+                        name = link;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            assertTrue(name != null);
+        }
+    }
+
+    @Test
+    public void testManyMessages() throws IOException, InterruptedException {
+        final int[] count = new int[1];
+        serverNode.addLink((dest, source, data) -> {
+            synchronized (count) {
+                assertEquals(count[0]++, Integer.parseInt(new String(data)));
+                count.notifyAll();
+            }
+            return true;
+        }, "counter");
+        try (CluckSharedMemoryConnection conn = connect("client")) {
+            for (int i = 0; i < 100000; i++) {
+                clientNode.transmit("server/counter", null, Integer.toString(i).getBytes());
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            synchronized (count) {
+                while (count[0] < 100000 && System.currentTimeMillis() < deadline) {
+                    count.wait(100);
+                }
+                assertEquals(100000, count[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testOversizedMessageDropped() throws IOException, InterruptedException {
+        serverNode.addLink(recorder(), "sink");
+        try (CluckSharedMemoryConnection conn = connect("client")) {
+            byte[] huge = new byte[SharedMemoryChannel.RING_CAPACITY];
+            // so that the server doesn't log its connection while verifying
+            awaitServerLink("client");
+            VerifyingLogger.begin();
+            try {
+                VerifyingLogger.configure(LogLevel.WARNING, "[LOCAL] Dropped " + (huge.length + 8) + "-byte message to sink: too large for shared memory");
+                clientNode.transmit("server/sink", null, huge);
+            } finally {
+                VerifyingLogger.checkAndEnd();
+            }
+            // and it doesn't hold up the messages after it
+            clientNode.transmit("server/sink", null, "after".getBytes());
+            assertEquals("null <- client: after", received.poll(2, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testHeartbeatDuringSteadyTraffic() throws IOException, InterruptedException {
+        final int[] count = new int[1];
+        clientNode.addLink((dest, source, data) -> {
+            // slow enough that the client is busy for longer than the timeout
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (count) {
+                count[0]++;
+                count.notifyAll();
+            }
+            return true;
+        }, "slow");
+        try (CluckSharedMemoryConnection conn = connect("client")) {
+            CluckLink toClient = awaitServerLink("client");
+            int total = (int) (CluckSharedMemoryConnection.TIMEOUT_NANOS / 1000000L) * 3 / 2;
+            for (int i = 0; i < total; i++) {
+                serverNode.transmit("client/slow", null, new byte[] { 1 });
+            }
+            long deadline = System.currentTimeMillis() + 20000;
+            synchronized (count) {
+                while (count[0] < total && System.currentTimeMillis() < deadline) {
+                    count.wait(100);
+                }
+                assertEquals(total, count[0]);
+            }
+            // the server must not have given up on the busy client
+            assertTrue(toClient.send("client/slow", null, new byte[] { 2 }));
+            assertFalse(conn.isClosed());
+        }
+    }
+
+    @Test
+    public void testCloseRemovesFile() throws IOException, InterruptedException {
+        File dir = CluckSharedMemoryServer.directoryFor(port);
+        CluckSharedMemoryConnection conn = connect("client");
+        assertEquals(1, dir.listFiles((d, name) -> name.endsWith(CluckSharedMemoryServer.LINK_SUFFIX)).length);
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertEquals(0, dir.listFiles((d, name) -> name.endsWith(CluckSharedMemoryServer.LINK_SUFFIX)).length);
+        // the server notices on its next heartbeat
+        boolean serverClosed = false;
+        for (int i = 0; i < 200 && !serverClosed; i++) {
+            Thread.sleep(10);
+            CluckLink link = serverNode.links.get("client");
+            serverClosed = link != null && !link.send("x", null, new byte[1]);
+        }
+        assertTrue(serverClosed);
+    }
+
+    @Test
+    public void testTerminate() throws InterruptedException {
+        server.terminate();
+        server.join(2000);
+        assertFalse(CluckSharedMemoryServer.isRunning(port));
+    }
+}
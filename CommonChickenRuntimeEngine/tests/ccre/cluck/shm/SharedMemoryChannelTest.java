@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.shm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class SharedMemoryChannelTest {
+
+    private File file;
+    private SharedMemoryChannel client, server;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("channel-test-", ".link");
+        client = SharedMemoryChannel.create(file);
+        server = SharedMemoryChannel.open(file);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        file = null;
+        client = server = null;
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertNull(client.receive());
+        assertNull(server.receive());
+    }
+
+    @Test
+    public void testClientToServer() throws IOException {
+        assertTrue(client.send(new byte[] { 1, 2, 3 }));
+        assertNull(client.receive());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, server.receive());
+        assertNull(server.receive());
+    }
+
+    @Test
+    public void testServerToClient() throws IOException {
+        assertTrue(server.send(new byte[] { 4, 5 }));
+        assertNull(server.receive());
+        assertArrayEquals(new byte[] { 4, 5 }, client.receive());
+        assertNull(client.receive());
+    }
+
+    @Test
+    public void testEmptyRecord() throws IOException {
+        assertTrue(client.send(new byte[0]));
+        assertArrayEquals(new byte[0], server.receive());
+    }
+
+    @Test
+    public void testOrdering() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(client.send(new byte[] { (byte) i }));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(new byte[] { (byte) i }, server.receive());
+        }
+        assertNull(server.receive());
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        // odd size so that records straddle the end of the ring
+        byte[] record = new byte[1237];
+        for (int i = 0; i < 5000; i++) {
+            record[0] = (byte) i;
+            record[record.length - 1] = (byte) ~i;
+            assertTrue(client.send(record));
+            byte[] got = server.receive();
+            assertEquals(record.length, got.length);
+            assertEquals((byte) i, got[0]);
+            assertEquals((byte) ~i, got[got.length - 1]);
+        }
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        byte[] record = new byte[4096];
+        int sent = 0;
+        while (client.send(record)) {
+            sent++;
+            assertTrue(sent <= SharedMemoryChannel.RING_CAPACITY / record.length);
+        }
+        assertTrue(sent > 0);
+        assertFalse(client.send(record));
+        assertNotNull(server.receive());
+        assertTrue(client.send(record));
+        // the other direction is unaffected
+        assertTrue(server.send(record));
+    }
+
+    @Test
+    public void testHints() throws IOException {
+        assertNull(server.getPeerHint());
+        client.setHint("robot");
+        server.setHint("poultry");
+        assertEquals("robot", server.getPeerHint());
+        assertEquals("poultry", client.getPeerHint());
+        client.setHint(null);
+        assertNull(server.getPeerHint());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHintTooLong() {
+        client.setHint(new String(new char[300]).replace('\0', 'x'));
+    }
+
+    @Test
+    public void testStates() {
+        assertEquals(SharedMemoryChannel.STATE_NONE, server.getPeerState());
+        assertEquals(SharedMemoryChannel.STATE_NONE, client.getPeerState());
+        client.setState(SharedMemoryChannel.STATE_OPEN);
+        assertEquals(SharedMemoryChannel.STATE_OPEN, server.getPeerState());
+        assertEquals(SharedMemoryChannel.STATE_OPEN, client.getState());
+        assertEquals(SharedMemoryChannel.STATE_NONE, server.getState());
+        server.setState(SharedMemoryChannel.STATE_CLOSED);
+        assertEquals(SharedMemoryChannel.STATE_CLOSED, client.getPeerState());
+    }
+
+    @Test
+    public void testHeartbeat() {
+        long before = server.getPeerHeartbeat();
+        client.beat();
+        assertTrue(server.getPeerHeartbeat() != before);
+        assertEquals(0, client.getPeerHeartbeat());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenWrongSize() throws IOException {
+        File other = File.createTempFile("channel-test-", ".link");
+        try {
+            SharedMemoryChannel.open(other);
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenNoMagic() throws IOException {
+        File other = File.createTempFile("channel-test-", ".link");
+        try (RandomAccessFile raf = new RandomAccessFile(other, "rw")) {
+            raf.setLength(SharedMemoryChannel.FILE_SIZE);
+        }
+        try {
+            SharedMemoryChannel.open(other);
+        } finally {
+            other.delete();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.cluck.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.cluck.CluckConstants;
+import ccre.cluck.CluckLink;
+import ccre.cluck.CluckNode;
+
+@SuppressWarnings("javadoc")
+public class CluckDatagramChannelTest {
+
+    private static final int LIMIT_MILLIS = 5000;
+
+    private CluckNode serverNode, clientNode;
+    private CluckTCPServer server;
+    private CluckTCPClient client;
+    private final BlockingQueue<String> received = new ArrayBlockingQueue<>(100);
+
+    @Before
+    public void setUp() throws InterruptedException {
+        serverNode = new CluckNode();
+        clientNode = new CluckNode();
+        serverNode.addLink(recorder("server"), "sink");
+        clientNode.addLink(recorder("client"), "sink");
+        server = new CluckTCPServer(serverNode, 0);
+        server.setDaemon(true);
+        server.start();
+        int port = server.awaitListening();
+        assertTrue(port > 0);
+        client = new CluckTCPClient("127.0.0.1:" + port, clientNode, "srv", "cli");
+        client.setDaemon(true);
+        client.setUseSharedMemory(false);
+        client.setReconnectDelay(100);
+    }
+
+    private CluckLink recorder(String name) {
+        return (dest, source, data) -> {
+            // ignore network structure notifications
+            if (!CluckConstants.BROADCAST_DESTINATION.equals(dest)) {
+                received.add(name + ": " + dest + " <- " + source + " #" + data[0]);
+            }
+            return true;
+        };
+    }
+
+    @After
+    public void tearDown() {
+        client.terminate();
+        server.terminate();
+        client = null;
+        server = null;
+        serverNode = clientNode = null;
+        received.clear();
+    }
+
+    private void awaitDatagrams() throws InterruptedException {
+        for (int i = 0; i < LIMIT_MILLIS / 10 && !client.isUsingDatagrams(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(client.isUsingDatagrams());
+    }
+
+    private void awaitEstablished() throws InterruptedException {
+        for (int i = 0; i < LIMIT_MILLIS / 10 && !(client.isEstablished() && !client.isReconnecting()); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(client.isEstablished());
+    }
+
+    @Test
+    public void testNegotiated() throws InterruptedException {
+        client.setUseDatagrams(true);
+        client.start();
+        awaitDatagrams();
+    }
+
+    @Test
+    public void testNotNegotiatedByDefault() throws InterruptedException {
+        client.start();
+        awaitEstablished();
+        Thread.sleep(300);
+        assertFalse(client.isUsingDatagrams());
+        clientNode.transmit("srv/sink", "sink", new byte[] { CluckConstants.RMT_FLOATINPUTRESP, 0, 0, 0, 0 });
+        assertEquals("server: null <- cli/sink #" + CluckConstants.RMT_FLOATINPUTRESP, received.poll(LIMIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testClientToServer() throws InterruptedException {
+        client.setUseDatagrams(true);
+        client.start();
+        awaitDatagrams();
+        clientNode.transmit("srv/sink/x", "sink", new byte[] { CluckConstants.RMT_FLOATINPUTRESP, 0, 0, 0, 0 });
+        assertEquals("server: x <- cli/sink #" + CluckConstants.RMT_FLOATINPUTRESP, received.poll(LIMIT_MILLIS, TimeUnit.MILLISECONDS));
+        clientNode.transmit("srv/sink/y", "sink", new byte[] { CluckConstants.RMT_BOOLINPUTRESP, 1 });
+        assertEquals("server: y <- cli/sink #" + CluckConstants.RMT_BOOLINPUTRESP, received.poll(LIMIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testServerToClient() throws InterruptedException {
+        client.setUseDatagrams(true);
+        client.start();
+        awaitDatagrams();
+        // the server's direction is negotiated at about the same time
+        Thread.sleep(300);
+        serverNode.transmit("cli/sink", "sink", new byte[] { CluckConstants.RMT_FLOATINPUTRESP, 0, 0, 0, 0 });
+        assertEquals("client: null <- srv/sink #" + CluckConstants.RMT_FLOATINPUTRESP, received.poll(LIMIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testOtherMessagesStillDelivered() throws InterruptedException {
+        client.setUseDatagrams(true);
+        client.start();
+        awaitDatagrams();
+        clientNode.transmit("srv/sink", "sink", new byte[] { CluckConstants.RMT_EVENTOUTP });
+        assertEquals("server: null <- cli/sink #" + CluckConstants.RMT_EVENTOUTP, received.poll(LIMIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testControlMessagesNotDelivered() throws InterruptedException {
+        serverNode.addLink(recorder("control"), CluckDatagramChannel.CONTROL_DESTINATION);
+        clientNode.addLink(recorder("control"), CluckDatagramChannel.CONTROL_DESTINATION);
+        client.setUseDatagrams(true);
+        client.start();
+        awaitDatagrams();
+        Thread.sleep(300);
+        assertEquals(null, received.poll());
+    }
+
+    private static byte[] value(int n) {
+        return new byte[] { CluckConstants.RMT_FLOATINPUTRESP, 0, 0, 0, (byte) n };
+    }
+
+    private CluckDatagramChannel valueChannel() {
+        CluckNode node = new CluckNode();
+        node.addLink((dest, source, data) -> {
+            received.add(source + " = " + data[data.length - 1]);
+            return true;
+        }, "sink");
+        return new CluckDatagramChannel(null, node, "peer");
+    }
+
+    private static byte[] fence(int sequence) {
+        return new byte[] { CluckConstants.RMT_NEGATIVE_ACK, CluckDatagramChannel.CONTROL_FENCE, 0, 0, 0, 0, 0, 0, 0, (byte) sequence };
+    }
+
+    @Test
+    public void testStaleTcpValuesDropped() throws InterruptedException {
+        CluckDatagramChannel channel = valueChannel();
+        channel.deliver(5, "sink", "x", value(1));
+        // queued on TCP before the switch to datagrams, but arrived later
+        assertTrue(channel.handleControl(CluckDatagramChannel.CONTROL_DESTINATION, null, fence(4)));
+        channel.transmitFromTcp("sink", "x", value(2));
+        channel.transmitFromTcp("sink", "y", value(3));
+        channel.transmitFromTcp("sink", "x", new byte[] { CluckConstants.RMT_EVENTOUTP, 4 });
+        // after falling back to TCP, TCP values are newer than any datagram
+        assertTrue(channel.handleControl(CluckDatagramChannel.CONTROL_DESTINATION, null, fence(9)));
+        channel.transmitFromTcp("sink", "x", value(5));
+        channel.transmitFromTcp("sink", "x", value(6));
+        // so a late datagram from before the fallback is dropped
+        channel.deliver(6, "sink", "x", value(7));
+        channel.deliver(10, "sink", "x", value(8));
+        channel.deliver(10, "sink", "x", value(9));
+        for (String expected : new String[] { "peer/x = 1", "peer/y = 3", "peer/x = 4", "peer/x = 5", "peer/x = 6", "peer/x = 8" }) {
+            assertEquals(expected, received.poll(LIMIT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(null, received.poll());
+    }
+
+    @Test
+    public void testDatagramDuringTcpDelivery() throws InterruptedException {
+        CluckNode node = new CluckNode();
+        CluckDatagramChannel channel = new CluckDatagramChannel(null, node, "peer");
+        Thread[] racer = new Thread[1];
+        node.addLink((dest, source, data) -> {
+            received.add(source + " = " + data[data.length - 1]);
+            if (racer[0] == null) {
+                // a datagram arrives while the TCP value is being delivered
+                racer[0] = new Thread(() -> channel.deliver(1, "sink", "x", value(2)));
+                racer[0].start();
+                try {
+                    racer[0].join(200);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                received.add(racer[0].isAlive() ? "waiting" : "overtaken");
+            }
+            return true;
+        }, "sink");
+        assertTrue(channel.handleControl(CluckDatagramChannel.CONTROL_DESTINATION, null, fence(0)));
+        channel.transmitFromTcp("sink", "x", value(1));
+        racer[0].join(LIMIT_MILLIS);
+        // the newer datagram is delivered last, so it's the value left behind
+        assertEquals("peer/x = 1", received.poll());
+        assertEquals("waiting", received.poll());
+        assertEquals("peer/x = 2", received.poll());
+        assertEquals(null, received.poll());
+    }
+
+    @Test
+    public void testValuesAcknowledged() throws InterruptedException {
+        client.setUseDatagrams(true);
+        client.start();
+        awaitDatagrams();
+        for (int i = 0; i < 10; i++) {
+            clientNode.transmit("srv/sink/x", "sink", new byte[] { CluckConstants.RMT_FLOATINPUTRESP, 0, 0, 0, (byte) i });
+            assertEquals("server: x <- cli/sink #" + CluckConstants.RMT_FLOATINPUTRESP, received.poll(LIMIT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        // if acknowledgements were lost, the sender would give up on datagrams
+        Thread.sleep(2500);
+        assertTrue(client.isUsingDatagrams());
+        assertEquals(null, received.poll());
+    }
+}
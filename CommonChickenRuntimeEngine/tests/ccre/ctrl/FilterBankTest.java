@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.ctrl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.channel.EventCell;
+import ccre.channel.FloatArrayCell;
+import ccre.channel.FloatInput;
+
+@SuppressWarnings("javadoc")
+public class FilterBankTest {
+
+    private FloatArrayCell input;
+    private FilterBank bank;
+
+    @Before
+    public void setUp() throws Exception {
+        input = new FloatArrayCell(0, 10);
+        bank = new FilterBank(input);
+    }
+
+    @Test
+    public void testPassthrough() {
+        assertEquals(2, bank.size());
+        assertEquals(10, bank.get(1), 0);
+        input.set(new float[] { 3, 4 });
+        bank.event();
+        assertEquals(3, bank.get(0), 0);
+        assertEquals(4, bank.get(1), 0);
+    }
+
+    @Test
+    public void testUpdateWhen() {
+        EventCell update = new EventCell();
+        bank.exponentialMovingAverage(0.5f).updateWhen(update);
+        FloatInput second = bank.element(1);
+        update.event();
+        assertEquals(10, second.get(), 0);
+        input.set(1, 0);
+        update.event();
+        assertEquals(5, second.get(), 0);
+        update.event();
+        assertEquals(2.5f, second.get(), 0);
+        assertEquals(0, bank.get(0), 0);
+    }
+
+    @Test
+    public void testKalmanConverges() {
+        bank.kalman(0.001f, 1);
+        float[] samples = new float[2];
+        samples[0] = 0;
+        samples[1] = 0;
+        bank.filter(samples);
+        for (int i = 0; i < 500; i++) {
+            samples[0] = (i % 2 == 0) ? 9 : 11;
+            samples[1] = -5;
+            bank.filter(samples);
+        }
+        assertEquals(10, samples[0], 0.5f);
+        assertEquals(-5, samples[1], 0.5f);
+    }
+
+    @Test
+    public void testLowPassSteadyState() {
+        bank.lowPass(5, 200);
+        float[] block = new float[2 * 400];
+        for (int t = 0; t < 400; t++) {
+            block[2 * t] = 1;
+            block[2 * t + 1] = (t % 2 == 0) ? 1 : -1;
+        }
+        bank.filterBlock(block);
+        // DC passes, and the Nyquist frequency is removed.
+        assertEquals(1, block[block.length - 2], 0.001f);
+        assertEquals(0, block[block.length - 1], 0.01f);
+    }
+
+    @Test
+    public void testFir() {
+        bank.fir(0.5f, 0.5f);
+        float[] samples = { 2, 2 };
+        bank.filter(samples);
+        assertEquals(2, samples[0], 0);
+        samples[0] = 4;
+        samples[1] = 0;
+        bank.filter(samples);
+        assertEquals(3, samples[0], 0);
+        assertEquals(1, samples[1], 0);
+    }
+
+    @Test
+    public void testSavitzkyGolayDerivative() {
+        bank.savitzkyGolayDerivative(5, 0.01f);
+        float[] samples = new float[2];
+        for (int t = 0; t < 10; t++) {
+            samples[0] = 3 * t * 0.01f;
+            samples[1] = 7;
+            bank.filter(samples);
+        }
+        assertEquals(3, samples[0], 0.0001f);
+        assertEquals(0, samples[1], 0.0001f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSavitzkyGolayEven() {
+        bank.savitzkyGolayDerivative(4, 0.01f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLowPassTooHigh() {
+        bank.lowPass(100, 200);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFilterWrongSize() {
+        bank.filter(new float[3]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFilterBlockPartial() {
+        bank.filterBlock(new float[3]);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNull() {
+        new FilterBank(null);
+    }
+}
@@ -22,6 +22,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -32,6 +35,7 @@ import ccre.channel.EventCell;
 import ccre.channel.EventInput;
 import ccre.channel.EventOutput;
 import ccre.channel.FloatCell;
+import ccre.channel.Transaction;
 import ccre.testing.CountingEventOutput;
 
 @SuppressWarnings("javadoc")
@@ -890,4 +894,59 @@ public class StateMachineTest {
         assertEquals("Expected five enterances", changes[2], 4);
         assertEquals("Expected five exits", changes[3], 4);
     }
+
+    @Test
+    public void testTransitionFromEntryHandler() {
+        ArrayList<String> events = new ArrayList<>();
+        machine.onStateExit(() -> events.add("exit " + machine.getStateName()));
+        machine.onStateEnter(() -> events.add("enter " + machine.getStateName()));
+        machine.onEnterState("Closed", () -> machine.setState("Locked"));
+        machine.onStateEnter(() -> events.add("after " + machine.getStateName()));
+
+        machine.setState("Closed");
+        assertEquals(Arrays.asList("exit Open", "enter Closed", "after Closed", "exit Closed", "enter Locked", "after Locked"), events);
+        assertEquals("Locked", machine.getStateName());
+    }
+
+    @Test
+    public void testTransitionFromEntryHandlerDuringTransaction() {
+        ArrayList<String> events = new ArrayList<>();
+        machine.onStateExit(() -> events.add("exit " + machine.getStateName()));
+        machine.onStateEnter(() -> events.add("enter " + machine.getStateName()));
+        machine.onEnterState("Closed", machine.getStateSetEvent("Exploded"));
+        machine.onEnterState("Exploded", machine.getStateSetEvent("Locked"));
+        EventCell close = new EventCell();
+        machine.setStateWhen("Closed", close);
+
+        Transaction.run(close);
+        assertEquals(Arrays.asList("exit Open", "enter Closed", "exit Closed", "enter Exploded", "exit Exploded", "enter Locked"), events);
+        assertEquals("Locked", machine.getStateName());
+    }
+
+    @Test
+    public void testStateSetEventInTransaction() {
+        ArrayList<String> events = new ArrayList<>();
+        machine.onStateExit(() -> events.add("exit " + machine.getStateName()));
+        machine.onStateEnter(() -> events.add("enter " + machine.getStateName()));
+
+        Transaction.run(() -> {
+            machine.getStateSetEvent("Closed").event();
+            machine.getStateSetEvent("Open").event();
+        });
+        assertEquals(Arrays.asList("exit Open", "enter Closed", "exit Closed", "enter Open"), events);
+    }
+
+    @Test
+    public void testEntryHandlerUpdatesBatched() {
+        FloatCell a = new FloatCell(), b = new FloatCell();
+        ArrayList<String> seen = new ArrayList<>();
+        a.onUpdate(() -> seen.add(a.get() + "," + b.get()));
+        machine.onEnterState("Closed", () -> {
+            a.set(1);
+            b.set(2);
+        });
+
+        machine.getStateSetEvent("Closed").event();
+        assertEquals(Arrays.asList("1.0,2.0"), seen);
+    }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.frc;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.scheduler.VirtualTime;
+
+@SuppressWarnings("javadoc")
+public class BootProfileTest {
+
+    @Before
+    public void setUp() {
+        VirtualTime.startFakeTime();
+        BootProfile.begin();
+    }
+
+    @After
+    public void tearDown() {
+        BootProfile.begin();
+        VirtualTime.endFakeTime();
+    }
+
+    // deferred tasks are marked after they finish, so wait for that too
+    private static void awaitStep(String prefix) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            for (String step : BootProfile.getSteps()) {
+                if (step.startsWith(prefix)) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        fail("step never marked: " + prefix);
+    }
+
+    @Test
+    public void testMarks() throws InterruptedException {
+        VirtualTime.forward(120);
+        BootProfile.mark("first");
+        VirtualTime.forward(30);
+        BootProfile.mark("second");
+        assertArrayEquals(new String[] { "first: 120 ms (at 120 ms)", "second: 30 ms (at 150 ms)" }, BootProfile.getSteps());
+    }
+
+    @Test
+    public void testBeginResets() throws InterruptedException {
+        BootProfile.mark("old");
+        BootProfile.ready();
+        assertTrue(BootProfile.isReady());
+        VirtualTime.forward(10);
+        BootProfile.begin();
+        assertFalse(BootProfile.isReady());
+        assertEquals(0, BootProfile.getSteps().length);
+        VirtualTime.forward(5);
+        BootProfile.mark("new");
+        assertArrayEquals(new String[] { "new: 5 ms (at 5 ms)" }, BootProfile.getSteps());
+    }
+
+    @Test
+    public void testReadyOnlyOnce() {
+        BootProfile.ready();
+        BootProfile.ready();
+        assertArrayEquals(new String[] { "ready: 0 ms (at 0 ms)" }, BootProfile.getSteps());
+    }
+
+    @Test
+    public void testDeferredRunsAfterReady() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(2);
+        StringBuffer order = new StringBuffer();
+        BootProfile.defer("a", () -> {
+            order.append("a");
+            done.countDown();
+        });
+        BootProfile.defer("b", () -> {
+            order.append("b");
+            done.countDown();
+        });
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+        assertEquals("", order.toString());
+        BootProfile.ready();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("ab", order.toString());
+        awaitStep("deferred b:");
+    }
+
+    @Test
+    public void testDeferredRunsAfterDelayWithoutReady() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        BootProfile.defer("servers", done::countDown);
+        BootProfile.runDeferredAfter(1000);
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+        VirtualTime.forward(1000);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        awaitStep("deferred servers:");
+        assertFalse(BootProfile.isReady());
+        // and anything deferred afterwards still runs
+        CountDownLatch late = new CountDownLatch(1);
+        BootProfile.defer("late", late::countDown);
+        assertTrue(late.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReadyCutsDelayShort() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        BootProfile.defer("servers", done::countDown);
+        BootProfile.runDeferredAfter(60000);
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+        BootProfile.ready();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        awaitStep("deferred servers:");
+    }
+
+    @Test
+    public void testDeferredFailureContinues() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        BootProfile.defer("broken", () -> {
+            throw new RuntimeException("purposeful failure");
+        });
+        BootProfile.defer("working", done::countDown);
+        BootProfile.ready();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        awaitStep("deferred working:");
+        awaitStep("deferred broken:");
+    }
+
+    @Test
+    public void testDeferAfterReadyRunsImmediately() {
+        BootProfile.ready();
+        boolean[] ran = new boolean[1];
+        BootProfile.defer("late", () -> ran[0] = true);
+        assertTrue(ran[0]);
+        String[] steps = BootProfile.getSteps();
+        assertEquals("deferred late: 0 ms (at 0 ms)", steps[steps.length - 1]);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testDeferNullName() {
+        BootProfile.defer(null, () -> {
+        });
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testDeferNullTask() {
+        BootProfile.defer("name", null);
+    }
+}
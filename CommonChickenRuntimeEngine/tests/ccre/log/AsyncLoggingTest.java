@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.scheduler.VirtualTime;
+
+@SuppressWarnings("javadoc")
+public class AsyncLoggingTest {
+
+    private static class CollectingTarget implements LoggingTarget {
+        public final ArrayList<String> messages = new ArrayList<>();
+        public final ArrayList<Thread> threads = new ArrayList<>();
+        public int flushes;
+
+        public volatile CountDownLatch gate;
+
+        @Override
+        public void log(LogLevel level, String message, Throwable throwable) {
+            record(level + " " + message + (throwable == null ? "" : " !" + throwable.getMessage()));
+        }
+
+        @Override
+        public void log(LogLevel level, String message, String extended) {
+            record(level + " " + message + " #" + extended);
+        }
+
+        private void record(String line) {
+            synchronized (this) {
+                messages.add(line);
+                threads.add(Thread.currentThread());
+            }
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            flushes++;
+        }
+    }
+
+    private LoggingTarget[] oldTargets;
+    private boolean oldLineNumbers;
+    private CollectingTarget target;
+
+    @Before
+    public void setUp() {
+        oldTargets = Logger.targets.toArray(new LoggingTarget[Logger.targets.size()]);
+        oldLineNumbers = Logger.getShouldIncludeLineNumbers();
+        Logger.targets.clear();
+        target = new CollectingTarget();
+        Logger.addTarget(target);
+        Logger.setShouldIncludeLineNumbers(false);
+    }
+
+    @After
+    public void tearDown() {
+        Logger.stopAsynchronous();
+        Logger.setShouldIncludeLineNumbers(oldLineNumbers);
+        Logger.targets.clear();
+        Logger.targets.addAll(Arrays.asList(oldTargets));
+    }
+
+    @Test
+    public void testDeliversInOrderOnWriterThread() throws InterruptedException {
+        Logger.startAsynchronous(64);
+        assertTrue(Logger.isAsynchronous());
+        for (int i = 0; i < 50; i++) {
+            Logger.info("message " + i);
+        }
+        Logger.logExt(LogLevel.FINE, "extended", "details");
+        Logger.warning("thrown", new Exception("boom"));
+        assertTrue(Logger.flushAsynchronous(5000));
+        synchronized (target) {
+            assertEquals(52, target.messages.size());
+            for (int i = 0; i < 50; i++) {
+                assertEquals("INFO message " + i, target.messages.get(i));
+            }
+            assertEquals("FINE extended #details", target.messages.get(50));
+            assertEquals("WARNING thrown !boom", target.messages.get(51));
+            for (Thread t : target.threads) {
+                assertFalse(t == Thread.currentThread());
+            }
+            assertTrue(target.flushes >= 1);
+            assertTrue(target.flushes <= 52);
+        }
+        assertEquals(52, Logger.getAsynchronousMessageCount());
+        assertEquals(0, Logger.getDroppedMessageCount());
+    }
+
+    @Test
+    public void testCallerInfo() throws InterruptedException {
+        Logger.setShouldIncludeLineNumbers(true);
+        Logger.startAsynchronous(16);
+        int line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+        Logger.info("direct");
+        Logger.warning("again");
+        Logger.logExt(LogLevel.INFO, "extended", "x");
+        Logger.info("[tagged] message");
+        assertTrue(Logger.flushAsynchronous(5000));
+        synchronized (target) {
+            assertEquals("INFO (AsyncLoggingTest.java:" + line + ") direct", target.messages.get(0));
+            assertEquals("WARNING (AsyncLoggingTest.java:" + (line + 1) + ") again", target.messages.get(1));
+            assertEquals("INFO (AsyncLoggingTest.java:" + (line + 2) + ") extended #x", target.messages.get(2));
+            assertEquals("INFO [tagged] message", target.messages.get(3));
+        }
+    }
+
+    @Test
+    public void testOverflowDropsAndReports() throws InterruptedException {
+        target.gate = new CountDownLatch(1);
+        Logger.startAsynchronous(4);
+        Logger.info("first");
+        // wait for the writer to block on the first message
+        while (true) {
+            synchronized (target) {
+                if (!target.messages.isEmpty()) {
+                    break;
+                }
+            }
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 10; i++) {
+            Logger.info("queued " + i);
+        }
+        assertEquals(6, Logger.getDroppedMessageCount());
+        target.gate.countDown();
+        assertTrue(Logger.flushAsynchronous(5000));
+        synchronized (target) {
+            target.gate = null;
+            assertEquals(Arrays.asList("INFO first", "INFO queued 0", "INFO queued 1", "INFO queued 2", "INFO queued 3",
+                    "WARNING Logging queue overflowed: dropped 6 messages (6 total)."), target.messages);
+        }
+    }
+
+    @Test
+    public void testStopDeliversQueuedAndReturnsToSynchronous() {
+        Logger.startAsynchronous(128);
+        for (int i = 0; i < 100; i++) {
+            Logger.info("message " + i);
+        }
+        Logger.stopAsynchronous();
+        assertFalse(Logger.isAsynchronous());
+        synchronized (target) {
+            assertEquals(100, target.messages.size());
+            target.threads.clear();
+        }
+        Logger.info("synchronous");
+        synchronized (target) {
+            assertEquals("INFO synchronous", target.messages.get(100));
+            assertEquals(Thread.currentThread(), target.threads.get(0));
+        }
+    }
+
+    @Test
+    public void testRateLimitedBeforeQueueing() throws InterruptedException {
+        VirtualTime.startFakeTime();
+        try {
+            Logger.setRateLimit(LogLevel.WARNING, 2);
+            target.gate = new CountDownLatch(1);
+            Logger.startAsynchronous(8);
+            Logger.info("first");
+            while (true) {
+                synchronized (target) {
+                    if (!target.messages.isEmpty()) {
+                        break;
+                    }
+                }
+                Thread.sleep(1);
+            }
+            // the flood is limited before it reaches the queue, so it can't
+            // crowd out the message after it.
+            for (int i = 0; i < 1000; i++) {
+                Logger.warning("flood " + i);
+            }
+            Logger.severe("important");
+            assertEquals(0, Logger.getDroppedMessageCount());
+            target.gate.countDown();
+            assertTrue(Logger.flushAsynchronous(5000));
+            VirtualTime.forward(10000);
+            Logger.info("later");
+            assertTrue(Logger.flushAsynchronous(5000));
+            synchronized (target) {
+                target.gate = null;
+                assertEquals(Arrays.asList("INFO first", "WARNING flood 0", "WARNING flood 1", "SEVERE important",
+                        "WARNING [suppressed 998 times in 10 s] flood 999", "INFO later"), target.messages);
+            }
+        } finally {
+            Logger.setRateLimit(LogLevel.WARNING, 0);
+            VirtualTime.endFakeTime();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroCapacity() {
+        Logger.startAsynchronous(0);
+    }
+
+    @Test
+    public void testFlushWhenSynchronous() throws InterruptedException {
+        assertFalse(Logger.isAsynchronous());
+        assertTrue(Logger.flushAsynchronous(0));
+        assertEquals(0, Logger.getDroppedMessageCount());
+    }
+
+    @Test
+    public void testFileLoggerFlushesPerBatch() throws InterruptedException {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        int[] flushes = new int[1];
+        java.io.PrintStream ps = new java.io.PrintStream(out) {
+            @Override
+            public void flush() {
+                flushes[0]++;
+                super.flush();
+            }
+        };
+        VirtualTime.startFakeTime();
+        try {
+            Logger.addTarget(new FileLogger(ps));
+        } finally {
+            VirtualTime.endFakeTime();
+        }
+        Logger.startAsynchronous(1024);
+        target.gate = new CountDownLatch(1);
+        Logger.info("first");
+        for (int i = 0; i < 100; i++) {
+            Logger.info("message " + i);
+        }
+        target.gate.countDown();
+        assertTrue(Logger.flushAsynchronous(5000));
+        // 101 lines, but far fewer flushes
+        assertTrue(flushes[0] < 10);
+        assertTrue(out.toString().contains("message 99"));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.scheduler.VirtualTime;
+
+@SuppressWarnings("javadoc")
+public class BinaryLogTest {
+
+    private File file, indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("binary-log-test", "");
+        indexFile = new File(file.getPath() + ".idx");
+        VirtualTime.startFakeTime();
+    }
+
+    @After
+    public void tearDown() {
+        VirtualTime.endFakeTime();
+        file.delete();
+        indexFile.delete();
+    }
+
+    private BinaryLogWriter openWriter() throws IOException {
+        return new BinaryLogWriter(new FileOutputStream(file).getChannel(), new FileOutputStream(indexFile).getChannel());
+    }
+
+    private ArrayList<BinaryLogReader.Entry> readAll(BinaryLogReader reader) throws IOException {
+        ArrayList<BinaryLogReader.Entry> out = new ArrayList<>();
+        BinaryLogReader.Entry e;
+        while ((e = reader.next()) != null) {
+            out.add(e);
+        }
+        return out;
+    }
+
+    @Test
+    public void testSplitAndJoin() {
+        String[] messages = { "Skipping 12 bytes", "x=-3.5, y=7", "no numbers here", "PDP3 reads 4.25 amps", "log-2 and v1.2.3", "3rd try {}", "(Test.java:12) 0", "100%" };
+        String[] templates = { "Skipping {} bytes", "x={}, y={}", "no numbers here", "PDP3 reads {} amps", "log-2 and v1.2.3", "3rd try {}", "(Test.java:{}) {}", "{}%" };
+        for (int i = 0; i < messages.length; i++) {
+            ArrayList<String> args = new ArrayList<>();
+            String template = BinaryLogFormat.split(messages[i], args);
+            assertEquals(templates[i], template);
+            assertEquals(messages[i], BinaryLogFormat.join(template, args.toArray(new String[args.size()])));
+        }
+    }
+
+    @Test
+    public void testCallSite() {
+        assertEquals("Test.java:12", BinaryLogFormat.callSite("(Test.java:12) hello"));
+        assertEquals("Test.java", BinaryLogFormat.callSite("(Test.java) hello"));
+        assertNull(BinaryLogFormat.callSite("[tag] hello"));
+        assertNull(BinaryLogFormat.callSite("(not a site) hello"));
+        assertNull(BinaryLogFormat.callSite("hello"));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException, InterruptedException {
+        BinaryLogWriter writer = openWriter();
+        writer.log(LogLevel.INFO, "(Example.java:10) Value is 5", (String) null);
+        VirtualTime.forward(250);
+        Exception ex = new Exception("boom");
+        writer.log(LogLevel.SEVERE, "Failed to do the thing", ex);
+        VirtualTime.forward(1);
+        writer.log(LogLevel.FINE, "(Example.java:10) Value is 6", "extra\ndetails");
+        writer.log(LogLevel.WARNING, "  whitespace extended", "   \n");
+        writer.close();
+
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            assertEquals(0, reader.getStartTime());
+            ArrayList<BinaryLogReader.Entry> entries = readAll(reader);
+            assertEquals(4, entries.size());
+
+            BinaryLogReader.Entry e = entries.get(0);
+            assertEquals(0, e.timestamp);
+            assertEquals(LogLevel.INFO, e.level);
+            assertEquals("Example.java:10", e.callSite);
+            assertEquals("Value is {}", e.template);
+            assertEquals(Arrays.asList("5"), Arrays.asList(e.getArguments()));
+            assertEquals("(Example.java:10) Value is 5", e.getMessage());
+            assertNull(e.detail);
+            assertEquals("[0 INFO] (Example.java:10) Value is 5", e.toString());
+
+            e = entries.get(1);
+            assertEquals(250, e.timestamp);
+            assertEquals(LogLevel.SEVERE, e.level);
+            assertNull(e.callSite);
+            assertTrue(e.isThrowable);
+            assertTrue(e.detail.startsWith("java.lang.Exception: boom"));
+
+            e = entries.get(2);
+            assertEquals(251, e.timestamp);
+            assertEquals(entries.get(0).template, e.template);
+            assertFalse(e.isThrowable);
+            assertEquals("[251 FINE] (Example.java:10) Value is 6\nextra\ndetails", e.toString());
+
+            e = entries.get(3);
+            assertEquals("  whitespace extended", e.getMessage());
+            assertNull(e.detail);
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException, InterruptedException {
+        BinaryLogWriter writer = openWriter();
+        for (int i = 0; i < 5000; i++) {
+            writer.log(LogLevel.INFO, "Tick " + i + " with a reasonably long message to fill up the index", (String) null);
+            VirtualTime.forward(10);
+        }
+        writer.close();
+
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            reader.seek(30000);
+            BinaryLogReader.Entry first = reader.next();
+            assertTrue(first.timestamp <= 30000);
+            // should have skipped most of the log
+            assertTrue(first.timestamp > 25000);
+            BinaryLogReader.Entry e = first;
+            while (e.timestamp < 30000) {
+                e = reader.next();
+            }
+            assertEquals(30000, e.timestamp);
+            assertEquals("Tick 3000 with a reasonably long message to fill up the index", e.getMessage());
+
+            reader.seek(-1);
+            assertEquals(0, reader.next().timestamp);
+            reader.rewind();
+            assertEquals(5000, readAll(reader).size());
+        }
+    }
+
+    @Test
+    public void testSeekAfterClockWentBackwards() throws IOException, InterruptedException {
+        BinaryLogWriter writer = openWriter();
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass != 0) {
+                // the clock starts over from zero
+                VirtualTime.endFakeTime();
+                VirtualTime.startFakeTime();
+            }
+            for (int i = 0; i < 2000; i++) {
+                writer.log(LogLevel.INFO, "Tick " + i + " with a reasonably long message to fill up the index", (String) null);
+                VirtualTime.forward(10);
+            }
+        }
+        writer.close();
+
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            reader.seek(15000);
+            int count = 0;
+            for (BinaryLogReader.Entry e : readAll(reader)) {
+                if (e.timestamp >= 15000 && e.timestamp <= 16000) {
+                    count++;
+                }
+            }
+            // from both passes, not just the second one
+            assertEquals(2 * 101, count);
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        BinaryLogWriter writer = openWriter();
+        for (int i = 0; i < 10; i++) {
+            writer.log(LogLevel.INFO, "Message " + i, (String) null);
+        }
+        writer.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            ArrayList<BinaryLogReader.Entry> entries = readAll(reader);
+            assertEquals(9, entries.size());
+            assertEquals("Message 8", entries.get(8).getMessage());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotABinaryLog() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("[0 INFO] this is a text log, not a binary one\n".getBytes());
+        }
+        new FileOutputStream(indexFile).close();
+        new BinaryLogReader(file).close();
+    }
+
+    @Test
+    public void testThroughLogger() throws IOException {
+        BinaryLogWriter writer = openWriter();
+        Logger.addTarget(writer);
+        try {
+            Logger.warning("Queue too long: 42 > 16");
+        } finally {
+            Logger.removeTarget(writer);
+        }
+        writer.close();
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            BinaryLogReader.Entry e = reader.next();
+            assertEquals(LogLevel.WARNING, e.level);
+            assertEquals("Queue too long: {} > {}", e.template);
+            assertTrue(e.getMessage().endsWith("Queue too long: 42 > 16"));
+            assertNull(reader.next());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.scheduler.VirtualTime;
+
+@SuppressWarnings("javadoc")
+public class LogRateLimiterTest {
+
+    @Before
+    public void setUp() {
+        VirtualTime.startFakeTime();
+        VerifyingLogger.begin();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            VerifyingLogger.checkAndEnd();
+        } finally {
+            for (LogLevel level : LogLevel.allLevels) {
+                Logger.setRateLimit(level, 0);
+            }
+            VirtualTime.endFakeTime();
+        }
+    }
+
+    @Test
+    public void testDefaultUnlimited() {
+        for (LogLevel level : LogLevel.allLevels) {
+            assertEquals(0, Logger.getRateLimit(level));
+        }
+        for (int i = 0; i < 100; i++) {
+            VerifyingLogger.configure(LogLevel.WARNING, "Queue too long");
+            Logger.warning("Queue too long");
+        }
+    }
+
+    @Test
+    public void testSuppressAndSummarize() throws InterruptedException {
+        Logger.setRateLimit(LogLevel.WARNING, 3);
+        assertEquals(3, Logger.getRateLimit(LogLevel.WARNING));
+        for (int i = 0; i < 3; i++) {
+            VerifyingLogger.configure(LogLevel.WARNING, "Skipping " + i + " bytes");
+            Logger.warning("Skipping " + i + " bytes");
+        }
+        // further messages with the same template are suppressed
+        for (int i = 3; i < 5000; i++) {
+            Logger.warning("Skipping " + i + " bytes");
+        }
+        // but different messages and other levels are not
+        VerifyingLogger.configure(LogLevel.WARNING, "Something else");
+        Logger.warning("Something else");
+        for (int i = 0; i < 10; i++) {
+            VerifyingLogger.configure(LogLevel.INFO, "Skipping 1 bytes");
+            Logger.info("Skipping 1 bytes");
+        }
+        VerifyingLogger.check();
+
+        VirtualTime.forward(10000);
+        VerifyingLogger.configure(LogLevel.WARNING, "[suppressed 4,997 times in 10 s] Skipping 4999 bytes");
+        VerifyingLogger.get().onNext = () -> VerifyingLogger.configure(LogLevel.WARNING, "Skipping 5000 bytes");
+        Logger.warning("Skipping 5000 bytes");
+    }
+
+    @Test
+    public void testSummaryAfterQuiet() throws InterruptedException {
+        Logger.setRateLimit(LogLevel.FINE, 1);
+        VerifyingLogger.configure(LogLevel.FINE, "No link for x");
+        Logger.fine("No link for x");
+        Logger.fine("No link for x");
+        Logger.fine("No link for x");
+        VerifyingLogger.check();
+        VirtualTime.forward(20000);
+        // the summary is delivered along with the next message from anywhere
+        VerifyingLogger.configure(LogLevel.FINE, "[suppressed 2 times in 10 s] No link for x");
+        VerifyingLogger.get().onNext = () -> VerifyingLogger.configure(LogLevel.INFO, "Unrelated");
+        Logger.info("Unrelated");
+    }
+
+    @Test
+    public void testSeparateCallSites() {
+        LogRateLimiter limiter = new LogRateLimiter();
+        limiter.setBudget(LogLevel.WARNING, 1);
+        assertTrue(limiter.admit(LogLevel.WARNING, "(Robot.java:10) Lost 1 packets"));
+        assertFalse(limiter.admit(LogLevel.WARNING, "(Robot.java:10) Lost 2 packets"));
+        // the same message from another line has its own budget
+        assertTrue(limiter.admit(LogLevel.WARNING, "(Robot.java:20) Lost 1 packets"));
+        assertFalse(limiter.admit(LogLevel.WARNING, "(Robot.java:20) Lost 3 packets"));
+        assertTrue(limiter.admit(LogLevel.WARNING, "(Other.java:10) Lost 1 packets"));
+        assertTrue(limiter.admit(LogLevel.WARNING, "Lost 1 packets"));
+        assertFalse(limiter.admit(LogLevel.WARNING, "Lost 4 packets"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        Logger.setRateLimit(LogLevel.INFO, -1);
+    }
+}
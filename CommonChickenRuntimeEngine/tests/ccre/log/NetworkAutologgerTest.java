@@ -18,15 +18,22 @@
  */
 package ccre.log;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import ccre.cluck.CluckConstants;
+import ccre.cluck.CluckLink;
+import ccre.cluck.CluckLogBatch;
 import ccre.cluck.CluckNode;
 import ccre.cluck.CluckPublisher;
+import ccre.scheduler.VirtualTime;
 import ccre.util.Utils;
 import ccre.util.Values;
 
@@ -167,6 +174,153 @@ public class NetworkAutologgerTest {
         vlt2.check(); // for lingering failures
     }
 
+    @Test
+    public void testBatchingByTime() throws InterruptedException {
+        int[] frames = new int[1];
+        ArrayList<String> received = new ArrayList<>();
+        LoggingTarget collector = new LoggingTarget() {
+            @Override
+            public void log(LogLevel level, String message, Throwable throwable) {
+                fail();
+            }
+
+            @Override
+            public void log(LogLevel level, String message, String extended) {
+                received.add(level + " " + message + " " + extended);
+            }
+        };
+        node.addLink(new CluckLink() {
+            @Override
+            public boolean send(String dest, String source, byte[] data) {
+                if (CluckLogBatch.isQuery(data)) {
+                    node.transmit(source, "auto-counted", CluckLogBatch.encodeSupported());
+                    return true;
+                }
+                frames[0]++;
+                assertTrue(CluckLogBatch.decode(data, collector));
+                return true;
+            }
+        }, "auto-counted");
+        VerifyingLogger.configure(LogLevel.CONFIG, "[LOCAL] Loaded logger: auto-counted");
+        logger.handle("auto-counted", CluckConstants.RMT_LOGTARGET);
+        VerifyingLogger.check();
+
+        VirtualTime.startFakeTime();
+        try {
+            logger.setBatching(50, 8192);
+            for (int i = 0; i < 100; i++) {
+                logger.log(LogLevel.WARNING, "message " + i, (String) null);
+            }
+            logger.log(LogLevel.INFO, "with extended", "details");
+            assertEquals(0, frames[0]);
+            VirtualTime.forward(60);
+            assertEquals(1, frames[0]);
+            assertEquals(101, received.size());
+            assertEquals("WARNING message 0 null", received.get(0));
+            assertEquals("WARNING message 99 null", received.get(99));
+            assertEquals("INFO with extended details", received.get(100));
+            VirtualTime.forward(100);
+            assertEquals(1, frames[0]);
+        } finally {
+            VirtualTime.endFakeTime();
+        }
+    }
+
+    @Test
+    public void testBatchingBySize() throws InterruptedException {
+        ArrayList<String> received = new ArrayList<>();
+        CluckPublisher.publish(node, "auto-example", new LoggingTarget() {
+            @Override
+            public void log(LogLevel level, String message, Throwable throwable) {
+                fail();
+            }
+
+            @Override
+            public void log(LogLevel level, String message, String extended) {
+                received.add(message);
+            }
+        });
+        VerifyingLogger.configure(LogLevel.CONFIG, "[LOCAL] Loaded logger: auto-example");
+        logger.handle("auto-example", CluckConstants.RMT_LOGTARGET);
+        VerifyingLogger.check();
+
+        VirtualTime.startFakeTime();
+        try {
+            logger.setBatching(1000, 110);
+            // a five-byte header, then nine bytes of header plus ten of message each
+            for (int i = 0; i < 5; i++) {
+                logger.log(LogLevel.INFO, "message-" + i + "!", (String) null);
+            }
+            assertEquals(0, received.size());
+            logger.log(LogLevel.INFO, "message-5!", (String) null);
+            assertEquals(6, received.size());
+            logger.log(LogLevel.INFO, "message-6!", (String) null);
+            // disabling batching sends anything pending
+            logger.setBatching(0, 0);
+            assertEquals(7, received.size());
+            logger.log(LogLevel.INFO, "message-7!", (String) null);
+            assertEquals(8, received.size());
+            assertEquals("message-7!", received.get(7));
+        } finally {
+            VirtualTime.endFakeTime();
+        }
+    }
+
+    @Test
+    public void testNoBatchesToOlderRemotes() throws InterruptedException {
+        ArrayList<String> legacy = new ArrayList<>();
+        ArrayList<String> batched = new ArrayList<>();
+        // an older target, which ignores the query and can't decode batches
+        node.addLink(new CluckLink() {
+            @Override
+            public boolean send(String dest, String source, byte[] data) {
+                if (data[0] != CluckConstants.RMT_NEGATIVE_ACK) {
+                    assertEquals(CluckConstants.RMT_LOGTARGET, data[0]);
+                    legacy.add(Utils.fromBytes(data, 10, Utils.bytesToInt(data, 2)));
+                }
+                return true;
+            }
+        }, "auto-legacy");
+        CluckPublisher.publish(node, "auto-example", new LoggingTarget() {
+            @Override
+            public void log(LogLevel level, String message, Throwable throwable) {
+                fail();
+            }
+
+            @Override
+            public void log(LogLevel level, String message, String extended) {
+                batched.add(message);
+            }
+        });
+        VerifyingLogger.configure(LogLevel.CONFIG, "[LOCAL] Loaded logger: auto-legacy");
+        logger.handle("auto-legacy", CluckConstants.RMT_LOGTARGET);
+        VerifyingLogger.check();
+        VerifyingLogger.configure(LogLevel.CONFIG, "[LOCAL] Loaded logger: auto-example");
+        logger.handle("auto-example", CluckConstants.RMT_LOGTARGET);
+        VerifyingLogger.check();
+
+        VirtualTime.startFakeTime();
+        try {
+            logger.setBatching(50, 8192);
+            for (int i = 0; i < 3; i++) {
+                logger.log(LogLevel.INFO, "message " + i, (String) null);
+            }
+            assertEquals(3, legacy.size());
+            assertEquals("message 2", legacy.get(2));
+            assertEquals(0, batched.size());
+            VirtualTime.forward(60);
+            assertEquals(3, legacy.size());
+            assertEquals(3, batched.size());
+        } finally {
+            VirtualTime.endFakeTime();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchingInvalid() {
+        logger.setBatching(50, 0);
+    }
+
     @Test(expected = NullPointerException.class)
     public void testLogThrowableNullA() {
         logger.log(null, "message", new Exception());
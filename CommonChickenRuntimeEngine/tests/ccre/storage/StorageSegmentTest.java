@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.channel.BooleanCell;
+import ccre.channel.FloatCell;
+
+@SuppressWarnings("javadoc")
+public class StorageSegmentTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("storage-segment-test").toFile();
+        Storage.setBaseDir(dir);
+    }
+
+    @After
+    public void tearDown() {
+        StorageWriteBehind.drain();
+        Storage.setBaseDir(new File("."));
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+        dir = null;
+    }
+
+    private File snapshot(String name) {
+        return new File(dir, "ccre_storage_" + name);
+    }
+
+    private File journal(String name) {
+        return new File(dir, "ccre_storage_" + name + ".journal");
+    }
+
+    @Test
+    public void testJournalReplay() {
+        StorageSegment seg = Storage.openStorage("replay");
+        seg.setStringForKey("alpha", "one");
+        seg.setFloatForKey("beta", 2.5f);
+        seg.setBooleanForKey("gamma", true);
+        seg.setStringForKey("delta", "gone");
+        seg.setStringForKey("delta", null);
+        seg.sync(false);
+        assertFalse(snapshot("replay").exists());
+        assertTrue(journal("replay").length() > StorageJournal.HEADER_LENGTH);
+
+        StorageSegment reopened = Storage.openStorage("replay");
+        assertEquals("one", reopened.getStringForKey("alpha"));
+        assertEquals("2.5", reopened.getStringForKey("beta"));
+        assertEquals("true", reopened.getStringForKey("gamma"));
+        assertNull(reopened.getStringForKey("delta"));
+    }
+
+    @Test
+    public void testFlushCompacts() throws IOException {
+        StorageSegment seg = Storage.openStorage("compact");
+        seg.setStringForKey("alpha", "one");
+        seg.setFloatForKey("beta", -0.25f);
+        seg.sync(false);
+        seg.flush();
+        assertEquals(0, journal("compact").length());
+        assertFalse(new File(dir, "ccre_storage_compact.tmp").exists());
+
+        assertTrue(StorageJournal.hasMagic(Files.readAllBytes(snapshot("compact").toPath())));
+        StorageSegment fromSnapshot = Storage.openStorage("compact");
+        assertEquals("one", fromSnapshot.getStringForKey("alpha"));
+        assertEquals("-0.25", fromSnapshot.getStringForKey("beta"));
+
+        seg.setStringForKey("alpha", "two");
+        seg.sync(false);
+        StorageSegment reopened = Storage.openStorage("compact");
+        assertEquals("two", reopened.getStringForKey("alpha"));
+        assertEquals("-0.25", reopened.getStringForKey("beta"));
+    }
+
+    @Test
+    public void testLegacySnapshot() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(snapshot("legacy"))) {
+            out.write("alpha=one\nbeta=x=y\n".getBytes(StandardCharsets.UTF_8));
+        }
+        StorageSegment seg = Storage.openStorage("legacy");
+        assertEquals("one", seg.getStringForKey("alpha"));
+        assertEquals("x=y", seg.getStringForKey("beta"));
+    }
+
+    @Test
+    public void testTornJournal() throws IOException {
+        StorageSegment seg = Storage.openStorage("torn");
+        seg.setStringForKey("alpha", "one");
+        seg.sync(false);
+        long intact = journal("torn").length();
+        seg.setStringForKey("beta", "two");
+        seg.sync(false);
+        try (RandomAccessFile raf = new RandomAccessFile(journal("torn"), "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        StorageSegment reopened = Storage.openStorage("torn");
+        assertEquals("one", reopened.getStringForKey("alpha"));
+        assertNull(reopened.getStringForKey("beta"));
+        assertEquals(intact, journal("torn").length());
+
+        reopened.setStringForKey("gamma", "three");
+        reopened.sync(false);
+        StorageSegment again = Storage.openStorage("torn");
+        assertEquals("one", again.getStringForKey("alpha"));
+        assertEquals("three", again.getStringForKey("gamma"));
+    }
+
+    @Test
+    public void testCorruptJournal() throws IOException {
+        StorageSegment seg = Storage.openStorage("corrupt");
+        seg.setStringForKey("alpha", "one");
+        seg.setStringForKey("beta", "two");
+        seg.sync(false);
+        try (RandomAccessFile raf = new RandomAccessFile(journal("corrupt"), "rw")) {
+            // flip a bit in the last record's payload
+            raf.seek(raf.length() - 6);
+            int b = raf.read();
+            raf.seek(raf.length() - 6);
+            raf.write(b ^ 1);
+        }
+        StorageSegment reopened = Storage.openStorage("corrupt");
+        int found = (reopened.getStringForKey("alpha") == null ? 0 : 1) + (reopened.getStringForKey("beta") == null ? 0 : 1);
+        assertEquals(1, found);
+    }
+
+    @Test
+    public void testCheckpointCrash() throws IOException {
+        StorageSegment seg = Storage.openStorage("crash");
+        seg.setStringForKey("alpha", "one");
+        seg.flush();
+        seg.setStringForKey("alpha", "two");
+        seg.setStringForKey("beta", "three");
+        seg.sync(false);
+        byte[] journaled = Files.readAllBytes(journal("crash").toPath());
+        seg.flush();
+        // as if power was lost after the rename but before the reset
+        Files.write(journal("crash").toPath(), journaled);
+
+        StorageSegment reopened = Storage.openStorage("crash");
+        assertEquals("two", reopened.getStringForKey("alpha"));
+        assertEquals("three", reopened.getStringForKey("beta"));
+    }
+
+    @Test
+    public void testSlots() {
+        StorageSegment seg = Storage.openStorage("slots");
+        seg.setStringForKey("legacy-float", "1.5");
+        seg.setStringForKey("legacy-int", "12");
+        seg.setStringForKey("legacy-bool", "true");
+        seg.flush();
+
+        StorageSegment reopened = Storage.openStorage("slots");
+        StorageSlots slots = reopened.getSlots();
+        int f = slots.registerFloat("legacy-float", 0);
+        int i = slots.registerInt("legacy-int", 0);
+        int b = slots.registerBoolean("legacy-bool", false);
+        int fresh = slots.registerFloat("fresh", 7);
+        assertEquals(f, slots.registerFloat("legacy-float", 0));
+        assertEquals(1.5f, slots.getFloat(f), 0);
+        assertEquals(12, slots.getInt(i));
+        assertTrue(slots.getBoolean(b));
+        assertEquals(7f, slots.getFloat(fresh), 0);
+        assertTrue(slots.contains("legacy-int"));
+        assertFalse(slots.contains("fresh"));
+        assertNull(reopened.getStringForKey("fresh"));
+
+        slots.setFloat(fresh, 8);
+        slots.setInt(i, -3);
+        assertTrue(slots.contains("fresh"));
+        assertEquals("8.0", reopened.getStringForKey("fresh"));
+        assertEquals("-3", reopened.getStringForKey("legacy-int"));
+        reopened.sync(false);
+
+        StorageSegment again = Storage.openStorage("slots");
+        assertEquals("8.0", again.getStringForKey("fresh"));
+        assertEquals("-3", again.getStringForKey("legacy-int"));
+        assertEquals("1.5", again.getStringForKey("legacy-float"));
+        again.flush();
+        StorageSegment last = Storage.openStorage("slots");
+        StorageSlots lastSlots = last.getSlots();
+        assertEquals(-3, lastSlots.getInt(lastSlots.registerInt("legacy-int", 0)));
+        assertEquals(8f, lastSlots.getFloat(lastSlots.registerFloat("fresh", 0)), 0);
+    }
+
+    @Test
+    public void testSlotDirtyTracking() {
+        StorageSegment seg = Storage.openStorage("dirty");
+        StorageSlots slots = seg.getSlots();
+        int[] indices = new int[100];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = slots.registerFloat("key-" + i, i);
+        }
+        slots.setFloat(indices[70], 70.5f);
+        seg.sync(false);
+        long once = journal("dirty").length();
+        // unchanged values are not written again
+        slots.setFloat(indices[70], 70.5f);
+        seg.sync(false);
+        assertEquals(once, journal("dirty").length());
+        slots.setFloat(indices[3], -1);
+        slots.setFloat(indices[99], -2);
+        seg.sync(false);
+        assertTrue(journal("dirty").length() > once);
+
+        StorageSegment reopened = Storage.openStorage("dirty");
+        assertEquals("70.5", reopened.getStringForKey("key-70"));
+        assertEquals("-1.0", reopened.getStringForKey("key-3"));
+        assertEquals("-2.0", reopened.getStringForKey("key-99"));
+        assertNull(reopened.getStringForKey("key-4"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSlotTypeConflict() {
+        StorageSlots slots = Storage.openStorage("conflict").getSlots();
+        slots.registerFloat("key", 0);
+        slots.registerInt("key", 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSlotStringConflict() {
+        StorageSegment seg = Storage.openStorage("conflict");
+        seg.getSlots().registerBoolean("key", false);
+        seg.setStringForKey("key", "true");
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBadSlot() {
+        StorageSlots slots = Storage.openStorage("badslot").getSlots();
+        slots.registerFloat("key", 0);
+        slots.getFloat(1);
+    }
+
+    @Test
+    public void testWriteBehind() throws InterruptedException {
+        StorageSegment seg = Storage.openStorage("behind");
+        FloatCell cell = new FloatCell(1.0f);
+        BooleanCell bool = new BooleanCell(false);
+        seg.attachFloatHolder("value", cell);
+        seg.attachBooleanHolder("flag", bool);
+        for (int i = 0; i < 100; i++) {
+            cell.set(i / 10f);
+        }
+        bool.set(true);
+        for (int i = 0; i < 200 && journal("behind").length() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(StorageWriteBehind.DELAY_MILLIS);
+        StorageWriteBehind.drain();
+        assertTrue(journal("behind").exists());
+        // coalesced into a single append
+        assertTrue(journal("behind").length() < 200);
+
+        StorageSegment reopened = Storage.openStorage("behind");
+        FloatCell cell2 = new FloatCell(1.0f);
+        BooleanCell bool2 = new BooleanCell(false);
+        reopened.attachFloatHolder("value", cell2);
+        reopened.attachBooleanHolder("flag", bool2);
+        assertEquals(9.9f, cell2.get(), 0);
+        assertTrue(bool2.get());
+
+        // a changed default means the stored value is ignored
+        FloatCell cell3 = new FloatCell(2.0f);
+        Storage.openStorage("behind").attachFloatHolder("value", cell3);
+        assertEquals(2.0f, cell3.get(), 0);
+    }
+}
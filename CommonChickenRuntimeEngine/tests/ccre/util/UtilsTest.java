@@ -143,6 +143,27 @@ public class UtilsTest {
         assertEquals(info2.getLineNum() - 1, info.getLineNum());
     }
 
+    private CallerInfo callerOfHere() {
+        return Utils.getMethodCaller(1);
+    }
+
+    @Test
+    public void testMethodCallerCached() {
+        CallerInfo[] infos = new CallerInfo[3];
+        for (int i = 0; i < infos.length; i++) {
+            infos[i] = callerOfHere();
+        }
+        CallerInfo other = callerOfHere();
+        assertEquals("testMethodCallerCached", infos[0].getMethodName());
+        assertEquals(infos[0].getLineNum() + 2, other.getLineNum());
+        for (CallerInfo info : infos) {
+            assertEquals(infos[0].toString(), info.toString());
+            if (Utils.hasCachedMethodCaller()) {
+                assertSame(infos[0], info);
+            }
+        }
+    }
+
     @Test
     public void testMethodCallerInvalid() {
         for (int i = -10; i < 0; i++) {
@@ -139,12 +139,7 @@ public abstract class Artifact implements AutoCloseable {
      */
     public Jar toJar(boolean preserve) throws IOException {
         JarBuilder jb = new JarBuilder(preserve);
-        for (String elem : listClassNames()) {
-            jb.addClass(elem, loadClassFile(elem));
-        }
-        for (String elem : listResources()) {
-            jb.addResource(elem, loadResource(elem));
-        }
+        jb.addAll(this, JarBuilder.KEEP_MANIFEST);
         return jb.build();
     }
 
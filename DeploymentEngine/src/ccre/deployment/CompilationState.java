@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Cel Skeggs.
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.deployment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import ccre.log.Logger;
+
+/**
+ * The record of a previous incremental compilation by {@link DepJava}: for
+ * each source file, the hash of its contents, the class files it produced,
+ * the top-level types it declared, and the top-level types it referred to.
+ *
+ * @author skeggsc
+ */
+class CompilationState {
+    private static final int MAGIC = 0x43434a43; // "CCJC"
+    private static final int VERSION = 1;
+
+    static final class Source {
+        final byte[] hash;
+        final String[] outputs;
+        final String[] declared;
+        final String[] dependencies;
+
+        Source(byte[] hash, String[] outputs, String[] declared, String[] dependencies) {
+            this.hash = hash;
+            this.outputs = outputs;
+            this.declared = declared;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final String fingerprint;
+    // keyed by the path of the source file, relative to the source folder
+    final HashMap<String, Source> sources = new HashMap<>();
+
+    CompilationState(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Load the state from <code>file</code>.
+     *
+     * @param file the state file.
+     * @param fingerprint the options and classpath of the current compilation.
+     * @return the state, or null if there is no usable state, and so
+     * everything must be recompiled.
+     */
+    static CompilationState load(File file, String fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (din.readInt() != MAGIC || din.readInt() != VERSION || !din.readUTF().equals(fingerprint)) {
+                return null;
+            }
+            CompilationState state = new CompilationState(fingerprint);
+            for (int i = din.readInt(); i > 0; i--) {
+                String path = din.readUTF();
+                byte[] hash = new byte[din.readUnsignedByte()];
+                din.readFully(hash);
+                state.sources.put(path, new Source(hash, readStrings(din), readStrings(din), readStrings(din)));
+            }
+            return state;
+        } catch (IOException e) {
+            Logger.warning("Could not read incremental compilation state; recompiling everything", e);
+            return null;
+        }
+    }
+
+    private static String[] readStrings(DataInputStream din) throws IOException {
+        String[] out = new String[din.readInt()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = din.readUTF();
+        }
+        return out;
+    }
+
+    private static void writeStrings(DataOutputStream dout, String[] strings) throws IOException {
+        dout.writeInt(strings.length);
+        for (String s : strings) {
+            dout.writeUTF(s);
+        }
+    }
+
+    /**
+     * Save the state to <code>file</code>, replacing it atomically.
+     *
+     * @param file the state file.
+     * @throws IOException if the state cannot be written.
+     */
+    void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            dout.writeInt(MAGIC);
+            dout.writeInt(VERSION);
+            dout.writeUTF(fingerprint);
+            dout.writeInt(sources.size());
+            for (Map.Entry<String, Source> ent : sources.entrySet()) {
+                Source source = ent.getValue();
+                dout.writeUTF(ent.getKey());
+                dout.writeByte(source.hash.length);
+                dout.write(source.hash);
+                writeStrings(dout, source.outputs);
+                writeStrings(dout, source.declared);
+                writeStrings(dout, source.dependencies);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Find every source that must be recompiled: those that are new or were
+     * changed, and everything that depends on them or on removed sources,
+     * directly or indirectly. Removed sources are forgotten.
+     *
+     * @param hashes the current hashes of every source.
+     * @param removedOutputs the collection to add the outputs of removed
+     * sources to, so that they can be deleted.
+     * @return the sources to recompile.
+     */
+    Set<String> findStale(Map<String, byte[]> hashes, Set<String> removedOutputs) {
+        TreeSet<String> stale = new TreeSet<>();
+        HashSet<String> affected = new HashSet<>();
+        for (String path : new ArrayList<>(sources.keySet())) {
+            if (!hashes.containsKey(path)) {
+                Source removed = sources.remove(path);
+                removedOutputs.addAll(Arrays.asList(removed.outputs));
+                affected.addAll(Arrays.asList(removed.declared));
+            }
+        }
+        for (Map.Entry<String, byte[]> ent : hashes.entrySet()) {
+            Source source = sources.get(ent.getKey());
+            if (source == null || !Arrays.equals(source.hash, ent.getValue())) {
+                stale.add(ent.getKey());
+                if (source != null) {
+                    affected.addAll(Arrays.asList(source.declared));
+                }
+            }
+        }
+        // anything that refers to an affected type has to be recompiled, which
+        // in turn affects its own types, in case of inlined constants.
+        boolean grew = true;
+        while (grew) {
+            grew = false;
+            for (Map.Entry<String, Source> ent : sources.entrySet()) {
+                if (stale.contains(ent.getKey())) {
+                    continue;
+                }
+                for (String dependency : ent.getValue().dependencies) {
+                    if (affected.contains(dependency)) {
+                        stale.add(ent.getKey());
+                        affected.addAll(Arrays.asList(ent.getValue().declared));
+                        grew = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return stale;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Cel Skeggs.
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.deployment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+import ccre.log.Logger;
+import ccre.verifier.ClassReferences;
+
+/**
+ * Generates class lists for the roboRIO's class data sharing, which lets the
+ * roboRIO's JVM map already-parsed and verified classes from an archive,
+ * rather than loading each class from scratch every time the robot code
+ * starts.
+ *
+ * The list comes from a training run of the robot code in the Emulator, plus
+ * every class that the roboRIO implementation refers to, since the Emulator
+ * never loads those. The archive itself is specific to the JVM that uses it, so
+ * it is generated on the roboRIO during deployment: see
+ * {@link DepRoboRIO.RIOShell#downloadAndStart(Artifact, File)}.
+ *
+ * @author skeggsc
+ */
+public class DepClassSharing {
+
+    /**
+     * The default length of time that a training run spends in each robot
+     * mode.
+     */
+    public static final long DEFAULT_MILLIS_PER_MODE = 2000;
+
+    private static final String ROBORIO_MAIN = "ccre.frc.DirectFRCImplementation";
+
+    /**
+     * Runs the robot code in the Emulator, and generates a class list for it,
+     * with the default length of training run.
+     *
+     * @param robotCode the robot code, as built by
+     * {@link DepRoboRIO#buildProject(Class)}.
+     * @return the class list file.
+     * @throws IOException if the training run fails.
+     * @see #train(Artifact, long)
+     */
+    public static File train(Artifact robotCode) throws IOException {
+        return train(robotCode, DEFAULT_MILLIS_PER_MODE);
+    }
+
+    /**
+     * Runs the robot code in the Emulator, in a separate JVM and without a user
+     * interface, spending <code>millisPerMode</code> in each robot mode, and
+     * generates a class list from the classes that it loads.
+     *
+     * @param robotCode the robot code, as built by
+     * {@link DepRoboRIO#buildProject(Class)}.
+     * @param millisPerMode how long to spend in each robot mode.
+     * @return the class list file.
+     * @throws IOException if the training run fails.
+     */
+    public static File train(Artifact robotCode, long millisPerMode) throws IOException {
+        File jarFile = robotCode.toJar(false).toFile();
+        File emulatorJar = DepEmulator.getEmulatorJar();
+        File cache = DepProject.directoryOrCreate("build-cache");
+        File raw = new File(cache, "training.classlist");
+        Files.deleteIfExists(raw.toPath());
+
+        ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-Djava.awt.headless=true", "-XX:DumpLoadedClassList=" + raw.getAbsolutePath(), "-cp", jarFile.getAbsolutePath() + File.pathSeparator + emulatorJar.getAbsolutePath(), "ccre.frc.DeviceListMain", DepEmulator.getMainClassName(jarFile), DepProject.directoryOrCreate("emulator-logs").getAbsolutePath(), Long.toString(millisPerMode));
+        builder.inheritIO();
+        Logger.info("Starting training run...");
+        Process process = builder.start();
+        try {
+            // six modes, plus plenty of time for startup
+            if (!process.waitFor(millisPerMode * 6 + 60000, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("Training run timed out!");
+            }
+        } catch (InterruptedException ex) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during training run", ex);
+        }
+        if (process.exitValue() != 0 || !raw.exists()) {
+            throw new IOException("Training run failed with exit code " + process.exitValue());
+        }
+
+        LinkedHashSet<String> classes = new LinkedHashSet<>();
+        try (Jar robot = new Jar(jarFile); Jar emulator = new Jar(emulatorJar)) {
+            HashSet<String> robotClasses = new HashSet<>(Arrays.asList(robot.listClassNames()));
+            HashSet<String> emulatorClasses = new HashSet<>(Arrays.asList(emulator.listClassNames()));
+            for (String line : Files.readAllLines(raw.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                // skip comments and newer JVMs' lambda form annotations
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("@")) {
+                    continue;
+                }
+                String name = line.split("\\s+")[0];
+                String dotted = name.replace('/', '.');
+                if (emulatorClasses.contains(dotted) && !robotClasses.contains(dotted)) {
+                    continue; // only needed by the Emulator
+                }
+                classes.add(name);
+            }
+            int trained = classes.size();
+            addReferenced(robot, robotClasses, classes);
+            Logger.info("Generated class list: " + trained + " classes from training, " + (classes.size() - trained) + " from the roboRIO implementation.");
+        }
+        File out = new File(cache, "robot.classlist");
+        Files.write(out.toPath(), classes, StandardCharsets.UTF_8);
+        return out;
+    }
+
+    private static void addReferenced(Jar robot, HashSet<String> robotClasses, LinkedHashSet<String> classes) {
+        if (!robotClasses.contains(ROBORIO_MAIN)) {
+            return;
+        }
+        HashSet<String> seen = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(ROBORIO_MAIN);
+        seen.add(ROBORIO_MAIN);
+        while (!queue.isEmpty()) {
+            String name = queue.remove();
+            classes.add(name.replace('.', '/'));
+            try (InputStream in = robot.loadClassFile(name)) {
+                for (String ref : ClassReferences.of(in)) {
+                    if (robotClasses.contains(ref) && seen.add(ref)) {
+                        queue.add(ref);
+                    }
+                }
+            } catch (IOException ex) {
+                // still list it; we just can't follow its references
+                Logger.warning("Could not read references of " + name + ": " + ex);
+            }
+        }
+    }
+}
@@ -56,7 +56,7 @@ public class DepEmulator {
         return new File(DepProject.ccreProject("Emulator"), "Emulator.jar");
     }
 
-    private static String getMainClassName(File jarFile) throws IOException {
+    static String getMainClassName(File jarFile) throws IOException {
         try (JarFile frcJar = new JarFile(jarFile)) {
             String className = frcJar.getManifest().getMainAttributes().getValue("CCRE-Main");
             if (className == null) {
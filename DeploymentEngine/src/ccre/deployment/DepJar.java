@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Cel Skeggs.
+ * Copyright 2015-2016 Cel Skeggs.
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -18,7 +18,17 @@
  */
 package ccre.deployment;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.jar.Attributes;
@@ -131,4 +141,82 @@ public class DepJar {
     public static Jar combine(boolean preserve, Artifact... artifacts) throws IOException {
         return combine(null, preserve, artifacts);
     }
+
+    /**
+     * Construct a new Jar from a set of artifacts and a manifest, as in
+     * {@link #combine(Manifest, boolean, Artifact...)}, but store it in
+     * <code>target</code>, and reuse the existing contents of
+     * <code>target</code> if it was built from identical inputs.
+     *
+     * Jar artifacts are identified by their path, size, and modification
+     * time, and any other artifacts by their full contents.
+     *
+     * @param target the file to store the Jar in.
+     * @param manifest the manifest to include in this Jar, which may be null.
+     * @param artifacts the artifacts that contain the class files and resources
+     * to include.
+     * @return the Jar, which is preserved.
+     * @throws IOException if the Jar cannot be constructed.
+     */
+    public static Jar combineCached(File target, Manifest manifest, Artifact... artifacts) throws IOException {
+        File stampFile = new File(target.getPath() + ".stamp");
+        byte[] stamp = stamp(manifest, artifacts);
+        if (target.exists() && stampFile.exists() && Arrays.equals(stamp, Files.readAllBytes(stampFile.toPath()))) {
+            return new Jar(target, JarBuilder.PRESERVE);
+        }
+        Files.deleteIfExists(stampFile.toPath());
+        File partial = new File(target.getPath() + ".part");
+        JarBuilder jb = new JarBuilder(manifest, new BufferedOutputStream(new FileOutputStream(partial)));
+        try {
+            for (Artifact artifact : artifacts) {
+                jb.addAll(artifact, manifest == null);
+            }
+            jb.finish();
+        } catch (IOException | RuntimeException ex) {
+            try {
+                jb.finish(); // just to close the file
+            } catch (IOException suppressed) {
+                ex.addSuppressed(suppressed);
+            }
+            Files.deleteIfExists(partial.toPath());
+            throw ex;
+        }
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.write(stampFile.toPath(), stamp);
+        return new Jar(target, JarBuilder.PRESERVE);
+    }
+
+    private static byte[] stamp(Manifest manifest, Artifact... artifacts) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is required to be available!", e);
+        }
+        if (manifest != null) {
+            ByteArrayOutputStream mout = new ByteArrayOutputStream();
+            manifest.write(mout);
+            digest.update(mout.toByteArray());
+        }
+        byte[] buffer = new byte[4096];
+        for (Artifact artifact : artifacts) {
+            if (artifact instanceof Jar) {
+                File file = ((Jar) artifact).toFile();
+                digest.update((file.getAbsolutePath() + "@" + file.length() + "@" + file.lastModified()).getBytes("UTF-8"));
+                continue;
+            }
+            String[] names = artifact.listClassesAndResources();
+            Arrays.sort(names);
+            for (String name : names) {
+                digest.update(name.getBytes("UTF-8"));
+                try (InputStream in = artifact.loadResource(name)) {
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        digest.update(buffer, 0, count);
+                    }
+                }
+            }
+        }
+        return digest.digest();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Cel Skeggs.
+ * Copyright 2015-2016 Cel Skeggs.
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -22,15 +22,41 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Stream;
 
 import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+import ccre.log.Logger;
+
 /**
  * Provides utilities for compiling Java sources into class files.
  *
@@ -57,13 +83,7 @@ public class DepJava {
      * created files fails.
      */
     public static Artifact build(File folder, File... classpath) throws IOException {
-        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
-        if (javac == null) {
-            throw new RuntimeException("No java compiler available!");
-        }
-        if (!javac.getSourceVersions().contains(JAVA_SOURCE_VERSION)) {
-            throw new IllegalArgumentException("Source version not supported by local compiler: " + JAVA_SOURCE_VERSION);
-        }
+        JavaCompiler javac = getCompiler();
 
         StandardJavaFileManager fileManager = javac.getStandardFileManager(null, null, null);
 
@@ -72,7 +92,7 @@ public class DepJava {
         File destdir = Files.createTempDirectory("jclasses").toFile();
         Runtime.getRuntime().addShutdownHook(new DirectoryDeleterThread(destdir));
 
-        JavaCompiler.CompilationTask task = javac.getTask(null, null, null, Arrays.asList("-classpath", classpathToOption(destdir, classpath), "-d", destdir.getAbsolutePath(), "-source", JAVA_SOURCE_VERSION_OPTION, "-target", JAVA_TARGET_VERSION_OPTION, "-g"), null, compilationUnits);
+        JavaCompiler.CompilationTask task = javac.getTask(null, null, null, compilerOptions(destdir, classpath), null, compilationUnits);
 
         if (!task.call()) {
             throw new RuntimeException("Could not complete compilation! See output for details.");
@@ -81,6 +101,213 @@ public class DepJava {
         return new Folder(destdir);
     }
 
+    /**
+     * Compiles the source files in <code>folder</code> into the persistent
+     * directory <code>cache</code>, recompiling only the sources that changed
+     * since the last build into the same directory, along with every source
+     * that depends on them. Otherwise, this is the same as
+     * {@link #build(File, File...)}.
+     *
+     * If the classpath or compiler options change, everything is recompiled.
+     *
+     * @param folder the folder containing the source files.
+     * @param cache the directory to keep the compiled classes and the
+     * compilation state in, between builds.
+     * @param classpath the folders containing the classes that can be linked to
+     * from the compiled code.
+     * @return the generated Artifact of the compiled classes.
+     * @throws IOException if something around finding source files or storing
+     * created files fails.
+     */
+    public static Artifact buildIncremental(File folder, File cache, File... classpath) throws IOException {
+        JavaCompiler javac = getCompiler();
+        File destdir = new File(cache, "classes");
+        File stateFile = new File(cache, "javac.state");
+        Path root = folder.toPath().toAbsolutePath().normalize();
+
+        HashMap<String, File> files = new HashMap<>();
+        HashMap<String, byte[]> hashes = new HashMap<>();
+        for (File source : walkSourceFiles(folder)) {
+            String path = relativize(root, source.toPath());
+            files.put(path, source);
+            hashes.put(path, hash(Files.readAllBytes(source.toPath())));
+        }
+
+        CompilationState state = CompilationState.load(stateFile, fingerprint(classpath));
+        if (state == null) {
+            // start over from scratch
+            DirectoryDeleterThread.deleteRecursive(destdir);
+            state = new CompilationState(fingerprint(classpath));
+        }
+        if (!destdir.exists() && !destdir.mkdirs()) {
+            throw new IOException("Could not create output directory: " + destdir);
+        }
+        List<String> options = compilerOptions(destdir, classpath);
+
+        HashSet<String> removedOutputs = new HashSet<>();
+        Set<String> stale = state.findStale(hashes, removedOutputs);
+        for (String path : stale) {
+            CompilationState.Source old = state.sources.remove(path);
+            if (old != null) {
+                removedOutputs.addAll(Arrays.asList(old.outputs));
+            }
+        }
+        for (String output : removedOutputs) {
+            Files.deleteIfExists(new File(destdir, output).toPath());
+        }
+
+        if (!stale.isEmpty()) {
+            Logger.info("Recompiling " + stale.size() + " of " + files.size() + " source files.");
+            ArrayList<File> toCompile = new ArrayList<>();
+            for (String path : stale) {
+                toCompile.add(files.get(path));
+            }
+            try {
+                compileTracked(javac, options, root, destdir.toPath().toAbsolutePath().normalize(), toCompile, hashes, state);
+            } finally {
+                state.save(stateFile);
+            }
+        }
+        return new Folder(destdir);
+    }
+
+    private static void compileTracked(JavaCompiler javac, List<String> options, Path root, Path destdir, List<File> sources, HashMap<String, byte[]> hashes, CompilationState state) throws IOException {
+        HashMap<String, Set<String>> outputs = new HashMap<>(), declared = new HashMap<>(), dependencies = new HashMap<>();
+        for (File source : sources) {
+            String path = relativize(root, source.toPath());
+            outputs.put(path, new TreeSet<>());
+            declared.put(path, new TreeSet<>());
+            dependencies.put(path, new TreeSet<>());
+        }
+
+        StandardJavaFileManager standard = javac.getStandardFileManager(null, null, null);
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+                JavaFileObject out = super.getJavaFileForOutput(location, className, kind, sibling);
+                if (sibling != null) {
+                    Set<String> produced = outputs.get(relativize(root, Paths.get(sibling.toUri())));
+                    if (produced != null) {
+                        produced.add(relativize(destdir, Paths.get(out.toUri())));
+                    }
+                }
+                return out;
+            }
+        };
+
+        JavacTask task = (JavacTask) javac.getTask(null, fileManager, null, options, null, standard.getJavaFileObjectsFromFiles(sources));
+        Trees trees = Trees.instance(task);
+        task.addTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent e) {
+                // nothing to do
+            }
+
+            @Override
+            public void finished(TaskEvent e) {
+                if (e.getKind() != TaskEvent.Kind.ANALYZE || e.getTypeElement() == null) {
+                    return;
+                }
+                String path = relativize(root, Paths.get(e.getSourceFile().toUri()));
+                Set<String> refs = dependencies.get(path);
+                if (refs == null) {
+                    return;
+                }
+                declared.get(path).add(e.getTypeElement().getQualifiedName().toString());
+                // every type referred to by name, including through its
+                // members, so that inlined constants are tracked.
+                new TreePathScanner<Void, Void>() {
+                    @Override
+                    public Void visitIdentifier(IdentifierTree node, Void p) {
+                        addTopLevel(trees.getElement(getCurrentPath()), refs);
+                        return super.visitIdentifier(node, p);
+                    }
+
+                    @Override
+                    public Void visitMemberSelect(MemberSelectTree node, Void p) {
+                        addTopLevel(trees.getElement(getCurrentPath()), refs);
+                        return super.visitMemberSelect(node, p);
+                    }
+                }.scan(trees.getPath(e.getTypeElement()), null);
+            }
+        });
+
+        boolean success = task.call();
+        standard.close();
+        if (!success) {
+            // leave the failed sources out of the state, so that they are
+            // compiled again next time.
+            throw new RuntimeException("Could not complete compilation! See output for details.");
+        }
+
+        for (String path : outputs.keySet()) {
+            state.sources.put(path, new CompilationState.Source(hashes.get(path), toArray(outputs.get(path)), toArray(declared.get(path)), null));
+        }
+        // only keep the dependencies on types from this project
+        HashSet<String> ours = new HashSet<>();
+        for (CompilationState.Source source : state.sources.values()) {
+            ours.addAll(Arrays.asList(source.declared));
+        }
+        for (String path : outputs.keySet()) {
+            Set<String> refs = dependencies.get(path);
+            refs.retainAll(ours);
+            refs.removeAll(declared.get(path));
+            CompilationState.Source source = state.sources.get(path);
+            state.sources.put(path, new CompilationState.Source(source.hash, source.outputs, source.declared, toArray(refs)));
+        }
+    }
+
+    private static void addTopLevel(Element element, Set<String> refs) {
+        while (element != null && element.getKind() != ElementKind.PACKAGE) {
+            if (element instanceof TypeElement && element.getEnclosingElement() instanceof PackageElement) {
+                refs.add(((TypeElement) element).getQualifiedName().toString());
+                return;
+            }
+            element = element.getEnclosingElement();
+        }
+    }
+
+    private static String[] toArray(Set<String> strings) {
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    private static String relativize(Path root, Path path) {
+        return root.relativize(path.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is required to be available!", e);
+        }
+    }
+
+    private static List<String> compilerOptions(File destdir, File... classpath) {
+        return Arrays.asList("-classpath", classpathToOption(destdir, classpath), "-d", destdir.getAbsolutePath(), "-source", JAVA_SOURCE_VERSION_OPTION, "-target", JAVA_TARGET_VERSION_OPTION, "-g");
+    }
+
+    // anything that could change the output of an otherwise-unchanged source
+    private static String fingerprint(File... classpath) {
+        StringBuilder sb = new StringBuilder(System.getProperty("java.version"));
+        sb.append(' ').append(JAVA_SOURCE_VERSION_OPTION).append(' ').append(JAVA_TARGET_VERSION_OPTION);
+        for (File elem : classpath) {
+            sb.append(File.pathSeparatorChar).append(elem.getAbsolutePath()).append('@').append(elem.length()).append('@').append(elem.lastModified());
+        }
+        return sb.toString();
+    }
+
+    private static JavaCompiler getCompiler() {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new RuntimeException("No java compiler available!");
+        }
+        if (!javac.getSourceVersions().contains(JAVA_SOURCE_VERSION)) {
+            throw new IllegalArgumentException("Source version not supported by local compiler: " + JAVA_SOURCE_VERSION);
+        }
+        return javac;
+    }
+
     private static File[] walkSourceFiles(File folder) throws IOException {
         try (Stream<Path> stream = Files.walk(folder.toPath())) {
             return stream.map(x -> x.toFile()).filter(t -> t.getName().endsWith(".java") && !t.isDirectory()).toArray(len -> new File[len]);
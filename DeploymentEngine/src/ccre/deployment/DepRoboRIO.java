@@ -19,9 +19,11 @@
 package ccre.deployment;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -30,7 +32,9 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -40,6 +44,7 @@ import java.util.jar.Manifest;
 
 import ccre.frc.FRCApplication;
 import ccre.log.Logger;
+import ccre.verifier.PhaseVerifier;
 
 /**
  * A collection of utilities for building and downloading code for the roboRIO.
@@ -147,22 +152,168 @@ public class DepRoboRIO {
          * the necessary supporting scripts. A RIOShell for a connection with
          * administrator access is required.
          *
+         * If the robot still has the Jar from the last deployment, only the
+         * changed entries are sent, and the Jar is reassembled on the robot.
+         *
          * @param jar the Jar to download.
          * @param adminshell a RIOShell with administrator access.
          * @throws IOException if something fails during download.
          */
         public void downloadCode(File jar, RIOShell adminshell) throws IOException {
+            downloadCode(jar, null, adminshell);
+        }
+
+        /**
+         * Downloads the specified Jar as a program to the roboRIO, as in
+         * {@link #downloadCode(File, RIOShell)}, and, if
+         * <code>classList</code> is not null, uses it to generate a class data
+         * sharing archive on the roboRIO, which the robot code will start with
+         * if the roboRIO's JVM supports it.
+         *
+         * @param jar the Jar to download.
+         * @param classList the class list from
+         * {@link DepClassSharing#train(Artifact)}, or null.
+         * @param adminshell a RIOShell with administrator access.
+         * @throws IOException if something fails during download.
+         */
+        public void downloadCode(File jar, File classList, RIOShell adminshell) throws IOException {
             Logger.info("Starting deployment...");
-            sendFileTo(jar, "/home/lvuser/FRCUserProgram.jar");
+            File cache = getDeploymentCache();
+            if (cache == null || !sendDelta(jar, cache)) {
+                sendFileTo(jar, REMOTE_JAR);
+                if (cache != null) {
+                    // it's exactly the same file on both ends
+                    rememberDeployed(jar, cache, JarDelta.hashFile(jar));
+                }
+            }
             Logger.info("Primary deployment complete.");
+            String sharingFlags = classList == null ? null : generateClassSharingArchive(classList);
 
             // prevent any text-busy issues
             adminshell.execCheck("rm -f /usr/local/frc/bin/netconsole-host");
             adminshell.sendBinResourceTo(DepRoboRIO.class, "/edu/wpi/first/wpilibj/binaries/netconsole-host", "/usr/local/frc/bin/", 0755);
-            sendTextResourceTo(DepRoboRIO.class, "/edu/wpi/first/wpilibj/binaries/robotCommand", "/home/lvuser/", 0755);
+            if (sharingFlags == null) {
+                sendTextResourceTo(DepRoboRIO.class, ROBOT_COMMAND, "/home/lvuser/", 0755);
+            } else {
+                String command;
+                try (InputStream in = DepRoboRIO.class.getResourceAsStream(ROBOT_COMMAND)) {
+                    if (in == null) {
+                        throw new RuntimeException("Cannot find resource: " + ROBOT_COMMAND);
+                    }
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, count);
+                    }
+                    command = new String(out.toByteArray(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+                }
+                command = command.replace(REMOTE_JAVA + " ", REMOTE_JAVA + " " + sharingFlags + " ");
+                sendBytesTo(command.getBytes(StandardCharsets.UTF_8), "robotCommand", "/home/lvuser/", 0755);
+            }
             Logger.info("Download complete.");
         }
 
+        /**
+         * Generates a class data sharing archive for the deployed Jar on the
+         * roboRIO, from <code>classList</code>.
+         *
+         * @return the JVM flags to use the archive, or null if the roboRIO's
+         * JVM could not generate it.
+         */
+        private String generateClassSharingArchive(File classList) throws IOException {
+            Logger.info("Generating class data sharing archive...");
+            exec("rm -f " + REMOTE_SHARED_ARCHIVE);
+            sendFileTo(classList, REMOTE_CLASS_LIST);
+            // AppCDS is a commercial feature of Java 8, and must be unlocked.
+            String enable = "-XX:+UnlockCommercialFeatures -XX:+UseAppCDS";
+            if (exec(REMOTE_JAVA + " " + enable + " -Xshare:dump -XX:SharedClassListFile=" + REMOTE_CLASS_LIST + " -XX:SharedArchiveFile=" + REMOTE_SHARED_ARCHIVE + " -cp " + REMOTE_JAR) != 0) {
+                Logger.warning("Could not generate class data sharing archive; the robot code will start without it.");
+                exec("rm -f " + REMOTE_SHARED_ARCHIVE);
+                return null;
+            }
+            // -Xshare:auto falls back to normal loading if the archive is
+            // unusable, such as after a later deployment without one.
+            return enable + " -Xshare:auto -XX:SharedArchiveFile=" + REMOTE_SHARED_ARCHIVE;
+        }
+
+        private File getDeploymentCache() {
+            try {
+                return DepProject.directoryOrCreate("build-cache");
+            } catch (IllegalStateException ex) {
+                // no project, so nowhere to remember the deployed code
+                return null;
+            }
+        }
+
+        private String getRemoteHash() {
+            try {
+                String[] parts = execRead("sha256sum " + REMOTE_JAR).trim().split("\\s+");
+                return parts[0].isEmpty() ? null : parts[0];
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+
+        private void rememberDeployed(File jar, File cache, String hash) throws IOException {
+            File hashFile = new File(cache, "deployed.sha256");
+            Files.deleteIfExists(hashFile.toPath());
+            if (hash != null) {
+                Files.copy(jar.toPath(), new File(cache, "deployed.jar").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.write(hashFile.toPath(), hash.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Sends only the entries of <code>jar</code> that differ from the
+         * previously-deployed Jar, if the robot still has exactly that Jar, and
+         * reassembles the full Jar on the robot.
+         *
+         * @return true if the delta was deployed, or false if the whole Jar
+         * needs to be sent instead.
+         */
+        private boolean sendDelta(File jar, File cache) throws IOException {
+            File deployed = new File(cache, "deployed.jar");
+            File hashFile = new File(cache, "deployed.sha256");
+            if (!deployed.exists() || !hashFile.exists()) {
+                return false;
+            }
+            String expected = new String(Files.readAllBytes(hashFile.toPath()), StandardCharsets.UTF_8).trim();
+            if (!expected.equals(getRemoteHash())) {
+                Logger.info("Robot does not have the previously-deployed code; sending everything.");
+                return false;
+            }
+            File patch = File.createTempFile("deploy-", ".patch");
+            patch.deleteOnExit();
+            try {
+                int changed;
+                try {
+                    changed = JarDelta.create(deployed, jar, patch);
+                } catch (IOException ex) {
+                    Logger.warning("Could not compute deployment patch; sending everything.", ex);
+                    return false;
+                }
+                if (patch.length() * 2 > jar.length()) {
+                    // not worth the time to reassemble on the robot
+                    return false;
+                }
+                Logger.info("Sending " + changed + " changed entries (" + patch.length() + " bytes)...");
+                sendFileTo(patch, REMOTE_PATCH);
+                if (exec(REMOTE_JAVA + " -cp " + REMOTE_JAR + " ccre.frc.JarPatcher " + REMOTE_JAR + " " + REMOTE_PATCH + " " + REMOTE_JAR + ".new && mv " + REMOTE_JAR + ".new " + REMOTE_JAR) != 0) {
+                    exec("rm -f " + REMOTE_JAR + ".new");
+                    Logger.warning("Could not apply deployment patch on the robot; sending everything.");
+                    return false;
+                }
+                // the reassembled Jar has the same entries, but not the same
+                // bytes, so ask for its hash.
+                rememberDeployed(jar, cache, getRemoteHash());
+                return true;
+            } finally {
+                patch.delete();
+                exec("rm -f " + REMOTE_PATCH);
+            }
+        }
+
         /**
          * Attempts to stop any running robot code. If the code cannot be
          * stopped, or was not running, it doesn't report any errors, as this
@@ -193,9 +344,24 @@ public class DepRoboRIO {
          * @throws IOException if something fails.
          */
         public void downloadAndStart(File code) throws IOException {
+            downloadAndStart(code, null);
+        }
+
+        /**
+         * Downloads the Jar file <code>code</code> to the robot, along with a
+         * class data sharing archive generated from <code>classList</code>,
+         * and restarts the robot code.
+         *
+         * @param code the Jar file to download.
+         * @param classList the class list from
+         * {@link DepClassSharing#train(Artifact)}, or null.
+         * @throws IOException if something fails.
+         * @see #downloadCode(File, File, RIOShell)
+         */
+        public void downloadAndStart(File code, File classList) throws IOException {
             try (DepRoboRIO.RIOShell ashell = openAdminShell()) {
                 ashell.stopRobot();
-                downloadCode(code, ashell);
+                downloadCode(code, classList, ashell);
             }
             startRobot();
         }
@@ -210,9 +376,29 @@ public class DepRoboRIO {
         public void downloadAndStart(Artifact result) throws IOException {
             downloadAndStart(result.toJar(false).toFile());
         }
+
+        /**
+         * Downloads the Artifact <code>result</code> to the robot, once
+         * converted to a Jar, along with a class data sharing archive generated
+         * from <code>classList</code>, and restarts the robot code.
+         *
+         * @param result the Artifact to download.
+         * @param classList the class list from
+         * {@link DepClassSharing#train(Artifact)}, or null.
+         * @throws IOException if something fails.
+         */
+        public void downloadAndStart(Artifact result, File classList) throws IOException {
+            downloadAndStart(result.toJar(false).toFile(), classList);
+        }
     }
 
     private static final String VERSION_BEGIN = "FRC_roboRIO_";
+    private static final String REMOTE_JAR = "/home/lvuser/FRCUserProgram.jar";
+    private static final String REMOTE_PATCH = "/tmp/FRCUserProgram.patch";
+    private static final String REMOTE_CLASS_LIST = "/home/lvuser/FRCUserProgram.classlist";
+    private static final String REMOTE_SHARED_ARCHIVE = "/home/lvuser/FRCUserProgram.jsa";
+    private static final String REMOTE_JAVA = "/usr/local/frc/JRE/bin/java";
+    private static final String ROBOT_COMMAND = "/edu/wpi/first/wpilibj/binaries/robotCommand";
     private static final String DEFAULT_USERNAME = "lvuser";
     private static final String DEFAULT_PASSWORD = "";
     private static final String DEFAULT_ADMIN_USERNAME = "admin";
@@ -497,12 +683,14 @@ public class DepRoboRIO {
         // we need to compile against all the libraries because, if we don't,
         // the Deployment class won't build.
         // TODO: could there be a better solution for this?
-        Artifact newcode = DepJava.build(source, DepRoboRIO.getJarFile(LIBS_THICK));
-        // TODO: re-enable this verifier
-//        try (Jar jar = DepRoboRIO.getJar(LIBS_THICK)) {
-//            PhaseVerifier.verify(newcode, jar);
-//        }
-        return DepJar.combine(DepRoboRIO.manifest(main), JarBuilder.DELETE, newcode, DepRoboRIO.getJar(LIBS_THIN));
+        // only sources and classes affected by changes since the last build
+        // are compiled and verified again
+        File cache = DepProject.directoryOrCreate("build-cache");
+        Artifact newcode = DepJava.buildIncremental(source, cache, DepRoboRIO.getJarFile(LIBS_THICK));
+        try (Jar jar = DepRoboRIO.getJar(LIBS_THICK)) {
+            PhaseVerifier.verify(new File(cache, "phases.bin"), newcode, jar);
+        }
+        return DepJar.combineCached(new File(cache, "robot.jar"), DepRoboRIO.manifest(main), newcode, DepRoboRIO.getJar(LIBS_THIN));
     }
 
     /**
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Cel Skeggs.
+ * Copyright 2015-2016 Cel Skeggs.
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -37,7 +37,7 @@ class DirectoryDeleterThread extends ReporterThread {
         deleteRecursive(directory);
     }
 
-    private static void deleteRecursive(File dir) throws IOException {
+    static void deleteRecursive(File dir) throws IOException {
         if (dir.exists()) {
             if (dir.isDirectory()) {
                 // Note: we don't need to worry about this being NULL due to
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Cel Skeggs, 2016 Alexander Mackworth.
+ * Copyright 2015-2016 Cel Skeggs, 2016 Alexander Mackworth.
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -18,18 +18,34 @@
  */
 package ccre.deployment;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.jar.JarOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
 
 /**
  * A helper class for putting together a Jar from its individual components.
  *
+ * Entries are compressed in parallel, but are always written in the order that
+ * they were added, and with fixed timestamps, so that the same inputs always
+ * produce a byte-identical Jar.
+ *
  * @author skeggsc
  */
 public class JarBuilder {
@@ -64,9 +80,18 @@ public class JarBuilder {
 
     private static final String MANIFEST = "META-INF/MANIFEST.MF";
 
+    // 1980-01-01 00:00:00, the earliest time representable in a ZIP file.
+    private static final int DOS_TIME = 0, DOS_DATE = (1 << 5) | 1;
+    private static final int MAX_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+
     private final File tempOut;
-    private final JarOutputStream jout;
+    private final OutputStream out;
     private final boolean preserved;
+    private final HashSet<String> names = new HashSet<>();
+    private final ArrayDeque<CompletableFuture<Entry>> pending = new ArrayDeque<>();
+    private final ArrayList<Entry> written = new ArrayList<>();
+    private long offset;
+    private boolean finished;
 
     /**
      * Creates a new JarBuilder that optionally preserves the result. No
@@ -95,10 +120,35 @@ public class JarBuilder {
             tempOut.deleteOnExit();
         }
         this.preserved = preserve;
-        if (mf == null) {
-            jout = new JarOutputStream(new FileOutputStream(tempOut));
-        } else {
-            jout = new JarOutputStream(new FileOutputStream(tempOut), mf);
+        this.out = new BufferedOutputStream(new FileOutputStream(tempOut));
+        addManifest(mf);
+    }
+
+    /**
+     * Creates a new JarBuilder that writes the Jar directly to
+     * <code>out</code>, rather than to a temporary file. The Jar must be
+     * completed with {@link #finish()} rather than {@link #build()}, which will
+     * also close <code>out</code>.
+     *
+     * @param mf the manifest to include in the Jar, or null for none.
+     * @param out the stream to write the Jar to.
+     * @throws IOException if the manifest cannot be written.
+     */
+    public JarBuilder(Manifest mf, OutputStream out) throws IOException {
+        if (out == null) {
+            throw new NullPointerException();
+        }
+        this.tempOut = null;
+        this.preserved = false;
+        this.out = out;
+        addManifest(mf);
+    }
+
+    private void addManifest(Manifest mf) throws IOException {
+        if (mf != null) {
+            ByteArrayOutputStream mout = new ByteArrayOutputStream();
+            mf.write(mout);
+            add(MANIFEST, mout.toByteArray());
         }
     }
 
@@ -128,17 +178,17 @@ public class JarBuilder {
         if (is == null) {
             throw new NullPointerException();
         }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
         try {
-            jout.putNextEntry(new ZipEntry(name));
             byte[] buffer = new byte[4096];
             int n;
             while ((n = is.read(buffer)) > 0) {
-                jout.write(buffer, 0, n);
+                data.write(buffer, 0, n);
             }
-            jout.closeEntry();
         } finally {
             is.close();
         }
+        add(name, data.toByteArray());
     }
 
     /**
@@ -157,17 +207,23 @@ public class JarBuilder {
 
     /**
      * Adds all of the classes and resources from <code>artifact</code>, and
-     * optionally the manifest.
+     * optionally the manifest. Classes and resources are each added in sorted
+     * order, so that the result does not depend on how the artifact happens
+     * to list them.
      *
      * @param artifact the artifact to read data from.
      * @param andManifest if the manifest should be taken from this artifact.
      * @throws IOException if the reading fails, or if the Jar output fails.
      */
     public void addAll(Artifact artifact, boolean andManifest) throws IOException {
-        for (String cn : artifact.listClassNames()) {
+        String[] classes = artifact.listClassNames();
+        Arrays.sort(classes);
+        for (String cn : classes) {
             addClass(cn, artifact.loadClassFile(cn));
         }
-        for (String cn : artifact.listResources()) {
+        String[] resources = artifact.listResources();
+        Arrays.sort(resources);
+        for (String cn : resources) {
             if (!andManifest && (MANIFEST.equals(cn) || (cn.startsWith("/") && MANIFEST.equals(cn.substring(1))))) {
                 continue;// we don't want the manifest!
             }
@@ -175,14 +231,161 @@ public class JarBuilder {
         }
     }
 
+    private void add(String name, byte[] data) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("JarBuilder already finished!");
+        }
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        pending.add(CompletableFuture.supplyAsync(() -> new Entry(name, data), ForkJoinPool.commonPool()));
+        // write out whatever is ready, in order, and keep memory bounded
+        while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > MAX_IN_FLIGHT)) {
+            write(await(pending.remove()));
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing Jar entry", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress Jar entry", e.getCause());
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        entry.offset = offset;
+        byte[] header = new byte[30 + entry.name.length];
+        putInt(header, 0, 0x04034b50);
+        entry.putCommon(header, 4);
+        System.arraycopy(entry.name, 0, header, 30, entry.name.length);
+        out.write(header);
+        out.write(entry.data);
+        offset += header.length + entry.data.length;
+        entry.data = null;
+        written.add(entry);
+    }
+
+    /**
+     * Finalizes this Jar, writing any remaining entries and the central
+     * directory, and closes the output.
+     *
+     * @throws IOException if the Jar cannot be written.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            while (!pending.isEmpty()) {
+                write(await(pending.remove()));
+            }
+            if (written.size() > 0xFFFF || offset > 0xFFFFFFFFL) {
+                throw new ZipException("Jar is too large: ZIP64 is not supported");
+            }
+            long directoryStart = offset;
+            for (Entry entry : written) {
+                byte[] header = new byte[46 + entry.name.length];
+                putInt(header, 0, 0x02014b50);
+                putShort(header, 4, 20); // made by: MS-DOS, version 2.0
+                entry.putCommon(header, 6);
+                // no comment, disk zero, no attributes
+                putInt(header, 42, (int) entry.offset);
+                System.arraycopy(entry.name, 0, header, 46, entry.name.length);
+                out.write(header);
+                offset += header.length;
+            }
+            byte[] end = new byte[22];
+            putInt(end, 0, 0x06054b50);
+            putShort(end, 8, written.size());
+            putShort(end, 10, written.size());
+            putInt(end, 12, (int) (offset - directoryStart));
+            putInt(end, 16, (int) directoryStart);
+            out.write(end);
+        } finally {
+            pending.clear();
+            out.close();
+        }
+    }
+
     /**
      * Finalizes this Jar and converts it to a {@link Jar}.
      *
      * @return the built Jar.
      * @throws IOException if the Jar cannot be converted properly.
+     * @throws IllegalStateException if this JarBuilder writes to a stream
+     * rather than to a file.
      */
     public Jar build() throws IOException {
-        jout.close();
+        if (tempOut == null) {
+            throw new IllegalStateException("Streaming JarBuilders must be completed with finish()");
+        }
+        finish();
         return new Jar(tempOut, preserved);
     }
+
+    private static void putShort(byte[] buf, int off, int value) {
+        buf[off] = (byte) value;
+        buf[off + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] buf, int off, int value) {
+        putShort(buf, off, value);
+        putShort(buf, off + 2, value >> 16);
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        final boolean deflated;
+        final int crc, compressedSize, size;
+        byte[] data;
+        long offset;
+
+        Entry(String name, byte[] contents) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc32 = new CRC32();
+            crc32.update(contents);
+            this.crc = (int) crc32.getValue();
+            this.size = contents.length;
+            // directories and empty files have nothing to compress
+            this.deflated = contents.length > 0 && !name.endsWith("/");
+            if (deflated) {
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                try {
+                    deflater.setInput(contents);
+                    deflater.finish();
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(contents.length / 2 + 64);
+                    byte[] buffer = new byte[8192];
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buffer);
+                        compressed.write(buffer, 0, n);
+                    }
+                    this.data = compressed.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                this.data = contents;
+            }
+            this.compressedSize = data.length;
+        }
+
+        // the fields shared between local and central headers, from "version
+        // needed to extract" through "extra field length" (always zero).
+        void putCommon(byte[] header, int off) {
+            putShort(header, off, deflated ? 20 : 10);
+            putShort(header, off + 2, 0x0800); // names are UTF-8
+            putShort(header, off + 4, deflated ? Deflater.DEFLATED : 0);
+            putShort(header, off + 6, DOS_TIME);
+            putShort(header, off + 8, DOS_DATE);
+            putInt(header, off + 10, crc);
+            putInt(header, off + 14, compressedSize);
+            putInt(header, off + 18, size);
+            putShort(header, off + 22, name.length);
+        }
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Cel Skeggs.
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.deployment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import ccre.frc.JarPatcher;
+
+/**
+ * Builds patches that turn one Jar into another, by including only the
+ * entries that changed. The patches are applied on the roboRIO by
+ * {@link JarPatcher}, which documents the format.
+ *
+ * @author skeggsc
+ */
+final class JarDelta {
+    private JarDelta() {
+    }
+
+    /**
+     * Write a patch to <code>patch</code> that transforms
+     * <code>previous</code> into <code>next</code>. Entries are compared by
+     * SHA-256 of their contents.
+     *
+     * @param previous the Jar that the patch will be applied to.
+     * @param next the Jar that the patch should produce.
+     * @param patch where to write the patch.
+     * @return the number of entries included in the patch.
+     * @throws IOException if either Jar cannot be read or the patch cannot be
+     * written.
+     */
+    static int create(File previous, File next, File patch) throws IOException {
+        try (ZipFile old = new ZipFile(previous); ZipFile target = new ZipFile(next)) {
+            HashMap<String, byte[]> oldHashes = new HashMap<>();
+            for (ZipEntry entry : Collections.list(old.entries())) {
+                oldHashes.put(entry.getName(), hash(old, entry));
+            }
+            StringBuilder list = new StringBuilder();
+            ArrayList<ZipEntry> changed = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(target.entries())) {
+                boolean same = Arrays.equals(oldHashes.get(entry.getName()), hash(target, entry));
+                if (!same) {
+                    changed.add(entry);
+                }
+                list.append(same ? "= " : "+ ").append(Long.toHexString(entry.getCrc())).append(' ').append(entry.getSize()).append(' ').append(entry.getName()).append('\n');
+            }
+            try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patch))) {
+                out.putNextEntry(new ZipEntry(JarPatcher.LIST_NAME));
+                out.write(list.toString().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+                byte[] buffer = new byte[16384];
+                for (ZipEntry entry : changed) {
+                    out.putNextEntry(new ZipEntry(JarPatcher.DATA_PREFIX + entry.getName()));
+                    try (InputStream in = target.getInputStream(entry)) {
+                        int count;
+                        while ((count = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, count);
+                        }
+                    }
+                    out.closeEntry();
+                }
+            }
+            return changed.size();
+        }
+    }
+
+    /**
+     * Hash an entire file, in the same format as <code>sha256sum</code>.
+     *
+     * @param file the file to hash.
+     * @return the SHA-256 of the file, in lowercase hexadecimal.
+     * @throws IOException if the file cannot be read.
+     */
+    static String hashFile(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (InputStream in = new FileInputStream(file)) {
+            for (byte b : hash(in)) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static byte[] hash(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            return hash(in);
+        }
+    }
+
+    private static byte[] hash(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is required to be available!", e);
+        }
+        byte[] buffer = new byte[16384];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, count);
+        }
+        return digest.digest();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Cel Skeggs.
+ * Copyright 2015-2016 Cel Skeggs.
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -18,12 +18,14 @@
  */
 package ccre.deployment;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
 import java.util.concurrent.TimeUnit;
 
@@ -103,6 +105,35 @@ public class Shell implements AutoCloseable {
         }
     }
 
+    /**
+     * Runs <code>command</code> on the remote SSH server, and returns its
+     * standard output, or throws an IOException if it fails.
+     *
+     * @param command the command to attempt.
+     * @return the output of the command.
+     * @throws IOException if the command cannot be executed or if it fails.
+     */
+    public String execRead(String command) throws IOException {
+        try (Session session = client.startSession()) {
+            try (Command running = session.exec(command)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (InputStream in = running.getInputStream()) {
+                    byte[] buffer = new byte[4096];
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, count);
+                    }
+                }
+                running.join(1, TimeUnit.MINUTES);
+                Integer status = running.getExitStatus();
+                if (status == null || status != 0) {
+                    throw new IOException("Command return nonzero exit code " + (status == null ? 257 : status) + ": '" + command + "'");
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
     /**
      * Downloads a file from the remote server.
      *
@@ -149,12 +180,30 @@ public class Shell implements AutoCloseable {
         if (stream == null) {
             throw new NullPointerException("Stream is NULL!");
         }
+        // SCP needs to know the length up front, so buffer it in memory
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = stream.read(buffer)) > 0) {
+            data.write(buffer, 0, count);
+        }
+        sendBytesTo(data.toByteArray(), name, remotePath, permissions);
+    }
+
+    /**
+     * Uploads a byte array as a file to the remote SSH server, without staging
+     * it on the local filesystem.
+     *
+     * @param data the file's data.
+     * @param name the name of the file on the remote end, if the remote path is
+     * a directory.
+     * @param remotePath the file or directory to upload the file to.
+     * @param permissions the permissions for the file to have on the remote
+     * end.
+     * @throws IOException if the file cannot be sent.
+     */
+    public void sendBytesTo(byte[] data, String name, String remotePath, int permissions) throws IOException {
         SCPFileTransfer transfer = client.newSCPFileTransfer();
-        // TODO: clean this part up?
-        File temp = File.createTempFile("scp-", ".send");
-        temp.delete();
-        temp.deleteOnExit();
-        Files.copy(stream, temp.toPath());
         transfer.upload(new InMemorySourceFile() {
             @Override
             public String getName() {
@@ -163,12 +212,12 @@ public class Shell implements AutoCloseable {
 
             @Override
             public long getLength() {
-                return temp.length();
+                return data.length;
             }
 
             @Override
             public InputStream getInputStream() throws IOException {
-                return new FileInputStream(temp);
+                return new ByteArrayInputStream(data);
             }
 
             @Override
@@ -24,7 +24,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
 
 import ccre.drivers.ByteFiddling;
 import ccre.verifier.BytecodeParser.ReferenceInfo;
@@ -530,6 +532,49 @@ class ClassParser extends DataInputStream {
             return null;
         }
 
+        /**
+         * Finds the names of every class that this class could refer to, either
+         * directly or through a descriptor. This may include some names that
+         * are not actually classes.
+         *
+         * @return the set of class names, in dotted form.
+         * @throws ClassFormatException if the constant pool is malformed.
+         */
+        public Set<String> getReferencedClasses() throws ClassFormatException {
+            HashSet<String> out = new HashSet<>();
+            for (int i = 1; i < constant_pool.length; i++) {
+                CPInfo info = constant_pool[i];
+                if (info == null) {
+                    continue; // second half of a double-wide constant
+                }
+                if (info.tag == CONSTANT_Class) {
+                    String name = info.asClass();
+                    if (!name.startsWith("[")) {
+                        out.add(name);
+                    }
+                } else if (info.tag == CONSTANT_Utf8) {
+                    // pick out the class names in any descriptors or signatures
+                    String text = info.bytes;
+                    int start = text.indexOf('L');
+                    while (start != -1) {
+                        int end = text.indexOf(';', start);
+                        if (end == -1) {
+                            break;
+                        }
+                        String name = text.substring(start + 1, end);
+                        if (!name.isEmpty() && name.indexOf('.') == -1 && name.indexOf('<') == -1 && name.indexOf('(') == -1) {
+                            out.add(name.replace('/', '.'));
+                            start = text.indexOf('L', end);
+                        } else {
+                            start = text.indexOf('L', start + 1);
+                        }
+                    }
+                }
+            }
+            out.remove(this_class);
+            return out;
+        }
+
         @Override
         public String toString() {
             return "[class " + this_class + "]";
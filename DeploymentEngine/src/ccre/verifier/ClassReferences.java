@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Cel Skeggs.
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.verifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * Finds the classes that a class file refers to, for tools outside of the
+ * verifier that need to follow class dependencies.
+ *
+ * @author skeggsc
+ */
+public final class ClassReferences {
+    private ClassReferences() {
+    }
+
+    /**
+     * Parses a class file and finds the names of every class that it could
+     * refer to. This may include some names that are not actually classes.
+     *
+     * @param classFile the contents of the class file.
+     * @return the set of class names, in dotted form.
+     * @throws IOException if the class file cannot be read or parsed.
+     */
+    public static Set<String> of(InputStream classFile) throws IOException {
+        return ClassParser.parse(classFile).getReferencedClasses();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016 Cel Skeggs.
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.verifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+
+import ccre.deployment.Artifact;
+import ccre.deployment.Jar;
+import ccre.log.Logger;
+
+/**
+ * The on-disk results of a previous phase verification, so that only the
+ * classes that changed, or that could be affected by a change, need to be
+ * verified again.
+ *
+ * The whole cache is keyed by a hash of the dependencies, so any change to
+ * them invalidates everything. Each verified class records the hash of its
+ * bytes, the names of the classes it refers to, and the warnings found in it.
+ *
+ * @author skeggsc
+ */
+final class PhaseCache {
+    private static final int MAGIC = 0x43435056; // "CCPV"
+    // bump this whenever the verifier's rules change
+    private static final int VERSION = 1;
+
+    static final class Warning {
+        final String file;
+        final int line;
+        final String message;
+
+        Warning(String file, int line, String message) {
+            this.file = file;
+            this.line = line;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "[VERIFIER] (" + file + ":" + line + ") " + message;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, line, message);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Warning) {
+                Warning w = (Warning) obj;
+                return Objects.equals(file, w.file) && line == w.line && message.equals(w.message);
+            }
+            return false;
+        }
+    }
+
+    static final class Entry {
+        // null for classes outside of the verified artifact
+        final byte[] hash;
+        final String[] references;
+        // why the class could not be verified, if it could not be
+        final String error;
+        final LinkedHashSet<Warning> warnings = new LinkedHashSet<>();
+
+        Entry(byte[] hash, String[] references, String error) {
+            this.hash = hash;
+            this.references = references;
+            this.error = error;
+        }
+    }
+
+    private final byte[] dependencyHash;
+    final HashMap<String, Entry> entries = new HashMap<>();
+
+    private PhaseCache(byte[] dependencyHash) {
+        this.dependencyHash = dependencyHash;
+    }
+
+    /**
+     * Load the cache from <code>file</code>, or start an empty one if the file
+     * does not exist, is unreadable or corrupt, or was made against other
+     * dependencies.
+     *
+     * @param file the cache file.
+     * @param dependencyHash the hash of the current dependencies.
+     * @return the cache.
+     */
+    static PhaseCache load(File file, byte[] dependencyHash) {
+        PhaseCache cache = new PhaseCache(dependencyHash);
+        if (file == null || !file.exists()) {
+            return cache;
+        }
+        // every counted item takes at least one byte, so no count can be
+        // larger than the file itself.
+        long limit = file.length();
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (din.readInt() != MAGIC || din.readInt() != VERSION) {
+                return cache;
+            }
+            byte[] hash = new byte[din.readUnsignedByte()];
+            din.readFully(hash);
+            if (!Arrays.equals(hash, dependencyHash)) {
+                return cache;
+            }
+            for (int i = readCount(din, limit); i > 0; i--) {
+                String name = din.readUTF();
+                byte[] classHash = null;
+                if (din.readBoolean()) {
+                    classHash = new byte[din.readUnsignedByte()];
+                    din.readFully(classHash);
+                }
+                String[] references = new String[readCount(din, limit)];
+                for (int j = 0; j < references.length; j++) {
+                    references[j] = din.readUTF();
+                }
+                Entry entry = new Entry(classHash, references, din.readBoolean() ? din.readUTF() : null);
+                for (int j = readCount(din, limit); j > 0; j--) {
+                    String source = din.readBoolean() ? din.readUTF() : null;
+                    int line = din.readInt();
+                    entry.warnings.add(new Warning(source, line, din.readUTF()));
+                }
+                cache.entries.put(name, entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.warning("Could not read phase verification cache; verifying everything", e);
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    private static int readCount(DataInputStream din, long limit) throws IOException {
+        int count = din.readInt();
+        if (count < 0 || count > limit) {
+            throw new IOException("Corrupt phase verification cache: invalid count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Save the cache to <code>file</code>, replacing it atomically.
+     *
+     * @param file the cache file.
+     * @throws IOException if the cache cannot be written.
+     */
+    void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            dout.writeInt(MAGIC);
+            dout.writeInt(VERSION);
+            dout.writeByte(dependencyHash.length);
+            dout.write(dependencyHash);
+            dout.writeInt(entries.size());
+            for (Map.Entry<String, Entry> ent : entries.entrySet()) {
+                Entry entry = ent.getValue();
+                dout.writeUTF(ent.getKey());
+                dout.writeBoolean(entry.hash != null);
+                if (entry.hash != null) {
+                    dout.writeByte(entry.hash.length);
+                    dout.write(entry.hash);
+                }
+                dout.writeInt(entry.references.length);
+                for (String reference : entry.references) {
+                    dout.writeUTF(reference);
+                }
+                dout.writeBoolean(entry.error != null);
+                if (entry.error != null) {
+                    dout.writeUTF(entry.error);
+                }
+                dout.writeInt(entry.warnings.size());
+                for (Warning w : entry.warnings) {
+                    dout.writeBoolean(w.file != null);
+                    if (w.file != null) {
+                        dout.writeUTF(w.file);
+                    }
+                    dout.writeInt(w.line);
+                    dout.writeUTF(w.message);
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is required to be available!", e);
+        }
+    }
+
+    /**
+     * Hash the contents of every dependency, along with the version of the
+     * verifier rules.
+     *
+     * @param deps the dependencies.
+     * @return the hash.
+     * @throws IOException if a dependency cannot be read.
+     */
+    static byte[] hashDependencies(Artifact[] deps) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update((byte) VERSION);
+        byte[] buffer = new byte[65536];
+        for (Artifact dep : deps) {
+            if (dep instanceof Jar) {
+                // much faster than going through each entry
+                try (InputStream in = new FileInputStream(((Jar) dep).toFile())) {
+                    update(digest, in, buffer);
+                }
+            } else {
+                String[] names = dep.listClassNames();
+                Arrays.sort(names);
+                for (String name : names) {
+                    digest.update(name.getBytes("UTF-8"));
+                    try (InputStream in = dep.loadClassFile(name)) {
+                        update(digest, in, buffer);
+                    }
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void update(MessageDigest digest, InputStream in, byte[] buffer) throws IOException {
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, count);
+        }
+    }
+}
@@ -18,6 +18,9 @@
  */
 package ccre.verifier;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -25,9 +28,16 @@ import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import ccre.deployment.Artifact;
 import ccre.log.Logger;
@@ -42,6 +52,11 @@ import ccre.verifier.ClassParser.TypeInfo;
  * A tool that can verify that a chunk of code does not include any phase
  * mismatches that could lead to obscure robot code issues.
  *
+ * Class files are parsed in parallel ahead of the verification itself, and
+ * the results can be cached on disk so that later verifications only check
+ * the classes that could have been affected by a change. See
+ * {@link #verify(File, Artifact, Artifact...)}.
+ *
  * @author skeggsc
  */
 public class PhaseVerifier {
@@ -64,8 +79,10 @@ public class PhaseVerifier {
 
     private final Artifact artifact;
     private final HashMap<MethodInfo, Phase> known = new HashMap<>();
-    private final HashMap<String, ClassFile> loaded = new HashMap<>();
-    private int warnings;
+    // written concurrently while prefetching
+    private final ConcurrentHashMap<String, ClassFile> loaded = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]> targetBytes = new ConcurrentHashMap<>();
+    private final HashMap<String, LinkedHashSet<PhaseCache.Warning>> warnings = new HashMap<>();
     private final Artifact[] deps;
 
     private PhaseVerifier(Artifact artifact, Artifact[] deps) {
@@ -81,7 +98,22 @@ public class PhaseVerifier {
      * @param deps all possible non-built-in dependencies of the classes.
      */
     public static void verify(Artifact target, Artifact... deps) {
-        int warnings = new PhaseVerifier(target, deps).verifyAll();
+        verify(null, target, deps);
+    }
+
+    /**
+     * Verifies that all classes in <code>target</code> are properly phased,
+     * using the results in <code>cache</code> from previous verifications
+     * against the same dependencies to skip any classes that could not have
+     * been affected by changes since then. Warnings will be logged for every
+     * mistake, including those found previously.
+     *
+     * @param cache the file to store results in, or null to not cache them.
+     * @param target the classes to verify.
+     * @param deps all possible non-built-in dependencies of the classes.
+     */
+    public static void verify(File cache, Artifact target, Artifact... deps) {
+        int warnings = new PhaseVerifier(target, deps).verifyAll(cache);
         Logger.warning("Found " + warnings + " warnings during phase verification.");
     }
 
@@ -97,7 +129,7 @@ public class PhaseVerifier {
             MethodInfo[] superMethods = getMethodSuperMatches(method);
             // TODO: handle the case of external overridden target
             if (superMethods.length == 0 && method.isAnnotationPresent(Override.class.getName())) {
-                warn(method.declaringClass.getSourceFile(), method.getLineNumberFor(0) - 1, "@Override method does not actually override superclass method");
+                warn(method.declaringClass, method.getLineNumberFor(0) - 1, "@Override method does not actually override superclass method");
             }
             for (MethodInfo superMethod : superMethods) {
                 Phase superPhase = getPhase(superMethod);
@@ -107,7 +139,7 @@ public class PhaseVerifier {
                 if (phase == null) {
                     phase = superPhase;
                 } else if (phase != superPhase && phase != Phase.IGNORED) {
-                    warn(method.declaringClass.getSourceFile(), method.getLineNumberFor(0) - 1, "Mismatched phase between method and overridden method: " + method + " overrides " + superMethod);
+                    warn(method.declaringClass, method.getLineNumberFor(0) - 1, "Mismatched phase between method and overridden method: " + method + " overrides " + superMethod);
                     // TODO: update output phase
                 }
             }
@@ -251,6 +283,10 @@ public class PhaseVerifier {
     }
 
     private InputStream loadClassFile(String class_) throws IOException {
+        byte[] bytes = targetBytes.get(class_);
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
         try {
             return artifact.loadClassFile(class_);
         } catch (IOException e) {
@@ -269,8 +305,9 @@ public class PhaseVerifier {
         if (class_.indexOf('/') != -1) {
             throw new IllegalArgumentException("Class names cannot contain slashes!");
         }
-        if (loaded.containsKey(class_)) {
-            return loaded.get(class_);
+        ClassFile found = loaded.get(class_);
+        if (found != null) {
+            return found;
         } else {
             ClassFile cf;
             try {
@@ -292,8 +329,10 @@ public class PhaseVerifier {
             } catch (IOException e) {
                 throw new ClassNotFoundException("Could not load class: " + class_, e);
             }
-            loaded.put(class_, cf);
-            return cf;
+            // if another thread got there first, use its copy, so that every
+            // class has exactly one ClassFile.
+            found = loaded.putIfAbsent(class_, cf);
+            return found != null ? found : cf;
         }
     }
 
@@ -314,7 +353,7 @@ public class PhaseVerifier {
                 if (found == null) {
                     found = p;
                 } else {
-                    warn(m.declaringClass.getSourceFile(), m.getLineNumberFor(0) - 1, "Multiple phases declared on method: " + m);
+                    warn(m.declaringClass, m.getLineNumberFor(0) - 1, "Multiple phases declared on method: " + m);
                 }
             }
         }
@@ -335,7 +374,7 @@ public class PhaseVerifier {
             if (found == null) {
                 found = Phase.IGNORED;
             } else {
-                warn(m.declaringClass.getSourceFile(), m.getLineNumberFor(0) - 1, "Enum values() declared with a phase");
+                warn(m.declaringClass, m.getLineNumberFor(0) - 1, "Enum values() declared with a phase");
             }
         }
         if (isNameExternal(m.declaringClass.this_class)) {
@@ -350,7 +389,7 @@ public class PhaseVerifier {
                     if (fromInit) {
                         found = look;
                     } else {
-                        warn(m.declaringClass.getSourceFile(), m.getLineNumberFor(0) - 1, "Attempt to declare external phase override on " + m);
+                        warn(m.declaringClass, m.getLineNumberFor(0) - 1, "Attempt to declare external phase override on " + m);
                     }
                 }
             }
@@ -362,16 +401,195 @@ public class PhaseVerifier {
         return cls.this_class.equals("java.lang.Throwable") || (cls.super_class != null && isException(getSuperClass(cls)));
     }
 
-    private int verifyAll() {
-        warnings = 0;
-        for (String className : artifact.listClassNames()) {
+    private int verifyAll(File cacheFile) {
+        String[] classNames = artifact.listClassNames();
+        HashMap<String, byte[]> hashes = readTargetClasses(classNames);
+        PhaseCache cache = null;
+        if (cacheFile != null) {
+            try {
+                cache = PhaseCache.load(cacheFile, PhaseCache.hashDependencies(deps));
+            } catch (IOException e) {
+                Logger.warning("Could not hash dependencies; not caching phase verification", e);
+            }
+        }
+        Set<String> stale = cache == null ? new TreeSet<>(Arrays.asList(classNames)) : findStale(cache, hashes);
+        Set<String> prefetched = ConcurrentHashMap.newKeySet();
+        prefetched.addAll(stale);
+        ForkJoinPool.commonPool().invoke(new Prefetch(stale, prefetched));
+        HashMap<String, String> errors = new HashMap<>();
+        for (String className : stale) {
             try {
                 verify(className);
             } catch (ClassNotFoundException | ClassFormatException e) {
-                Logger.severe("Could not phase-verify class: " + className + ": " + e.getMessage());
+                errors.put(className, "Could not phase-verify class: " + className + ": " + e.getMessage());
+            }
+        }
+        if (cache == null) {
+            int count = 0;
+            for (String className : new TreeSet<>(errors.keySet())) {
+                Logger.severe(errors.get(className));
+            }
+            for (String owner : new TreeSet<>(warnings.keySet())) {
+                count += log(warnings.get(owner));
+            }
+            return count;
+        }
+        for (String className : stale) {
+            ClassFile cf = loaded.get(className);
+            String[] references = new String[0];
+            if (cf != null) {
+                try {
+                    references = cf.getReferencedClasses().toArray(new String[0]);
+                } catch (ClassFormatException e) {
+                    errors.putIfAbsent(className, "Could not phase-verify class: " + className + ": " + e.getMessage());
+                }
+            }
+            byte[] hash = hashes.get(className);
+            if (hash == null) {
+                // unreadable; try again next time
+                cache.entries.remove(className);
+            } else {
+                cache.entries.put(className, new PhaseCache.Entry(hash, references, errors.get(className)));
+            }
+        }
+        for (Map.Entry<String, LinkedHashSet<PhaseCache.Warning>> ent : warnings.entrySet()) {
+            PhaseCache.Entry entry = cache.entries.get(ent.getKey());
+            if (entry == null) {
+                // a dependency with a warning; it never needs reverification
+                entry = new PhaseCache.Entry(null, new String[0], null);
+                cache.entries.put(ent.getKey(), entry);
+            }
+            // when this class was verified just now, its entry was replaced
+            // above. otherwise, these can only duplicate the cached ones.
+            entry.warnings.addAll(ent.getValue());
+        }
+        int count = 0;
+        for (String owner : new TreeSet<>(cache.entries.keySet())) {
+            PhaseCache.Entry entry = cache.entries.get(owner);
+            if (entry.error != null) {
+                Logger.severe(entry.error);
             }
+            count += log(entry.warnings);
+        }
+        Logger.info("Phase-verified " + stale.size() + " of " + classNames.length + " classes; reused cached results for the rest.");
+        try {
+            cacheFile.getAbsoluteFile().getParentFile().mkdirs();
+            cache.save(cacheFile);
+        } catch (IOException e) {
+            Logger.warning("Could not save phase verification cache", e);
+        }
+        return count;
+    }
+
+    private static int log(Collection<PhaseCache.Warning> found) {
+        for (PhaseCache.Warning w : found) {
+            Logger.warning(w.toString());
+        }
+        return found.size();
+    }
+
+    // reads and hashes every class in the target in parallel, so that only
+    // changed classes need to be parsed
+    private HashMap<String, byte[]> readTargetClasses(String[] classNames) {
+        ConcurrentHashMap<String, byte[]> hashes = new ConcurrentHashMap<>();
+        ForkJoinPool.commonPool().submit(() -> Arrays.stream(classNames).parallel().forEach(name -> {
+            try (InputStream in = artifact.loadClassFile(name)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                byte[] bytes = out.toByteArray();
+                targetBytes.put(name, bytes);
+                hashes.put(name, PhaseCache.newDigest().digest(bytes));
+            } catch (IOException e) {
+                // it will be reported when it is verified
+            }
+        })).join();
+        return new HashMap<>(hashes);
+    }
+
+    // finds every class that changed, or that refers to a changed class,
+    // directly or indirectly.
+    static Set<String> findStale(PhaseCache cache, HashMap<String, byte[]> hashes) {
+        TreeSet<String> stale = new TreeSet<>();
+        ArrayList<String> changed = new ArrayList<>();
+        HashMap<String, ArrayList<String>> referrers = new HashMap<>();
+        for (Map.Entry<String, PhaseCache.Entry> ent : new ArrayList<>(cache.entries.entrySet())) {
+            String name = ent.getKey();
+            PhaseCache.Entry entry = ent.getValue();
+            if (entry.hash == null) {
+                continue;
+            }
+            if (!hashes.containsKey(name)) {
+                // removed from the target
+                cache.entries.remove(name);
+                changed.add(name);
+                continue;
+            }
+            for (String reference : entry.references) {
+                ArrayList<String> list = referrers.get(reference);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    referrers.put(reference, list);
+                }
+                list.add(name);
+            }
+        }
+        for (Map.Entry<String, byte[]> ent : hashes.entrySet()) {
+            PhaseCache.Entry entry = cache.entries.get(ent.getKey());
+            if (entry == null || entry.hash == null || !Arrays.equals(entry.hash, ent.getValue())) {
+                changed.add(ent.getKey());
+            }
+        }
+        while (!changed.isEmpty()) {
+            String name = changed.remove(changed.size() - 1);
+            if (hashes.containsKey(name) && !stale.add(name)) {
+                continue;
+            }
+            ArrayList<String> list = referrers.remove(name);
+            if (list != null) {
+                changed.addAll(list);
+            }
+        }
+        return stale;
+    }
+
+    // parses classes, and everything they refer to, in parallel; verification
+    // itself is sequential, but spends most of its time waiting on parsing.
+    @SuppressWarnings("serial")
+    private final class Prefetch extends RecursiveAction {
+        private final Collection<String> classNames;
+        private final Set<String> seen;
+
+        Prefetch(Collection<String> classNames, Set<String> seen) {
+            this.classNames = classNames;
+            this.seen = seen;
+        }
+
+        @Override
+        protected void compute() {
+            ArrayList<Prefetch> tasks = new ArrayList<>();
+            if (classNames.size() > 1) {
+                for (String name : classNames) {
+                    tasks.add(new Prefetch(Collections.singleton(name), seen));
+                }
+            } else {
+                for (String name : classNames) {
+                    try {
+                        for (String reference : loadClass(name).getReferencedClasses()) {
+                            if (!isNameExternal(reference) && seen.add(reference)) {
+                                tasks.add(new Prefetch(Collections.singleton(reference), seen));
+                            }
+                        }
+                    } catch (ClassNotFoundException | ClassFormatException | IllegalArgumentException e) {
+                        // it will be reported if verification actually needs it
+                    }
+                }
+            }
+            invokeAll(tasks);
         }
-        return warnings;
     }
 
     private void verify(String className) throws ClassNotFoundException, ClassFormatException {
@@ -404,9 +622,9 @@ public class PhaseVerifier {
                 }
                 Phase tp = getPhase(target.callee);
                 if (tp == null) {
-                    warn(target.callerFile, target.callerLine, "Call to unphased method " + target.callee.declaringClass.this_class + "." + target.callee.name + " from " + m.name + m.descriptor);
+                    warn(m.declaringClass, target.callerFile, target.callerLine, "Call to unphased method " + target.callee.declaringClass.this_class + "." + target.callee.name + " from " + m.name + m.descriptor);
                 } else if (!tp.allowedFrom(p)) {
-                    warn(target.callerFile, target.callerLine, "Out-of-phase call from " + p + " to " + tp);
+                    warn(m.declaringClass, target.callerFile, target.callerLine, "Out-of-phase call from " + p + " to " + tp);
                 }
             }
         }
@@ -459,8 +677,16 @@ public class PhaseVerifier {
         return referencedMethod;
     }
 
-    private void warn(String file, int line, String string) {
-        warnings++;
-        Logger.warning("[VERIFIER] (" + file + ":" + line + ") " + string);
+    private void warn(ClassFile owner, int line, String string) throws ClassFormatException {
+        warn(owner, owner.getSourceFile(), line, string);
+    }
+
+    private void warn(ClassFile owner, String file, int line, String string) {
+        LinkedHashSet<PhaseCache.Warning> found = warnings.get(owner.this_class);
+        if (found == null) {
+            found = new LinkedHashSet<>();
+            warnings.put(owner.this_class, found);
+        }
+        found.add(new PhaseCache.Warning(file, line, string));
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.deployment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class DepJarTest {
+
+    // well in the past, so that any rebuild is visible
+    private static final long OLD = 1000000000000L;
+
+    private File input, output, target, stamp;
+
+    @Before
+    public void setUp() throws IOException {
+        input = Files.createTempDirectory("depjar-input").toFile();
+        output = Files.createTempDirectory("depjar-output").toFile();
+        target = new File(output, "combined.jar");
+        stamp = new File(output, "combined.jar.stamp");
+        write("example/data.txt", "first");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DirectoryDeleterThread.deleteRecursive(input);
+        DirectoryDeleterThread.deleteRecursive(output);
+    }
+
+    private void write(String path, String contents) throws IOException {
+        File file = new File(input, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(File jar, String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipFile zip = new ZipFile(jar)) {
+            // resources from Folders keep their leading slash
+            ZipEntry entry = zip.getEntry("/" + name);
+            try (InputStream in = zip.getInputStream(entry == null ? zip.getEntry(name) : entry)) {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String combine(Manifest manifest, Artifact... extra) throws IOException {
+        Artifact[] artifacts = new Artifact[extra.length + 1];
+        artifacts[0] = new Folder(input);
+        System.arraycopy(extra, 0, artifacts, 1, extra.length);
+        try (Jar jar = DepJar.combineCached(target, manifest, artifacts)) {
+            assertEquals(target, jar.toFile());
+            return read(target, "example/data.txt");
+        }
+    }
+
+    private void age() {
+        assertTrue(target.setLastModified(OLD));
+    }
+
+    private boolean rebuilt() {
+        return target.lastModified() != OLD;
+    }
+
+    @Test
+    public void testUnchangedReused() throws IOException {
+        assertEquals("first", combine(DepJar.manifest("Main-Class", "example.Main")));
+        assertTrue(stamp.exists());
+        byte[] before = Files.readAllBytes(target.toPath());
+        age();
+        assertEquals("first", combine(DepJar.manifest("Main-Class", "example.Main")));
+        assertEquals(OLD, target.lastModified());
+        assertArrayEquals(before, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void testChangedInputRebuilt() throws IOException {
+        combine(null);
+        age();
+        write("example/data.txt", "second");
+        assertEquals("second", combine(null));
+        assertTrue(rebuilt());
+    }
+
+    @Test
+    public void testAddedInputRebuilt() throws IOException {
+        combine(null);
+        age();
+        write("example/more.txt", "more");
+        combine(null);
+        assertTrue(rebuilt());
+    }
+
+    @Test
+    public void testChangedManifestRebuilt() throws IOException {
+        combine(DepJar.manifest("Main-Class", "example.Main"));
+        age();
+        combine(DepJar.manifest("Main-Class", "example.Other"));
+        assertTrue(rebuilt());
+        try (JarFile jar = new JarFile(target)) {
+            assertEquals("example.Other", jar.getManifest().getMainAttributes().getValue("Main-Class"));
+        }
+    }
+
+    @Test
+    public void testChangedJarInputRebuilt() throws IOException {
+        File dependency = new File(output, "dependency.jar");
+        JarBuilder builder = new JarBuilder(null, new FileOutputStream(dependency));
+        builder.addResource("example/dep.txt", new ByteArrayInputStream(new byte[] { 1 }));
+        builder.finish();
+        try (Jar jar = new Jar(dependency)) {
+            combine(null, jar);
+            age();
+            combine(null, jar);
+            assertEquals(OLD, target.lastModified());
+            // Jars are identified by their path, size, and modification time
+            assertTrue(dependency.setLastModified(dependency.lastModified() - 10000));
+            combine(null, jar);
+            assertTrue(rebuilt());
+        }
+    }
+
+    @Test
+    public void testMissingStampRebuilt() throws IOException {
+        combine(null);
+        age();
+        assertTrue(stamp.delete());
+        combine(null);
+        assertTrue(rebuilt());
+        assertTrue(stamp.exists());
+    }
+
+    @Test
+    public void testStaleStampRebuilt() throws IOException {
+        combine(null);
+        byte[] first = Files.readAllBytes(stamp.toPath());
+        write("example/data.txt", "second");
+        combine(null);
+        assertFalse(Arrays.equals(first, Files.readAllBytes(stamp.toPath())));
+    }
+}
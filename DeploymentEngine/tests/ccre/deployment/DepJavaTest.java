@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.deployment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class DepJavaTest {
+
+    // well in the past, so that any recompilation is visible
+    private static final long OLD = 1000000000000L;
+
+    private File src, cache, classes;
+
+    @Before
+    public void setUp() throws IOException {
+        src = Files.createTempDirectory("depjava-src").toFile();
+        cache = Files.createTempDirectory("depjava-cache").toFile();
+        classes = new File(cache, "classes");
+        write("example/Constants.java", "package example; public class Constants { public static final int VALUE = 1; }");
+        write("example/User.java", "package example; public class User { public static int get() { return Constants.VALUE; } }");
+        write("example/Indirect.java", "package example; public class Indirect { public static int get() { return User.get(); } }");
+        write("example/Other.java", "package example; public class Other { public static int get() { return 7; } }");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DirectoryDeleterThread.deleteRecursive(src);
+        DirectoryDeleterThread.deleteRecursive(cache);
+    }
+
+    private void write(String path, String contents) throws IOException {
+        File file = new File(src, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File classFile(String name) {
+        return new File(classes, "example/" + name + ".class");
+    }
+
+    private void age(String... names) {
+        for (String name : names) {
+            assertTrue(classFile(name).setLastModified(OLD));
+        }
+    }
+
+    private boolean recompiled(String name) {
+        return classFile(name).lastModified() != OLD;
+    }
+
+    private int call(String name) throws Exception {
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classes.toURI().toURL() }, null)) {
+            return (Integer) loader.loadClass("example." + name).getMethod("get").invoke(null);
+        }
+    }
+
+    private void build() throws IOException {
+        try (Artifact artifact = DepJava.buildIncremental(src, cache)) {
+            assertTrue(artifact.listClassNames().length > 0);
+        }
+    }
+
+    @Test
+    public void testInitialBuild() throws Exception {
+        build();
+        assertEquals(1, call("Indirect"));
+        assertEquals(7, call("Other"));
+        assertTrue(new File(cache, "javac.state").exists());
+    }
+
+    @Test
+    public void testUnchangedNotRecompiled() throws Exception {
+        build();
+        age("Constants", "User", "Indirect", "Other");
+        build();
+        assertFalse(recompiled("Constants"));
+        assertFalse(recompiled("User"));
+        assertFalse(recompiled("Indirect"));
+        assertFalse(recompiled("Other"));
+    }
+
+    @Test
+    public void testDependentsRecompiled() throws Exception {
+        build();
+        age("Constants", "User", "Indirect", "Other");
+        // the constant is inlined into User, so User must be recompiled even
+        // though its own source did not change
+        write("example/Constants.java", "package example; public class Constants { public static final int VALUE = 2; }");
+        build();
+        assertTrue(recompiled("Constants"));
+        assertTrue(recompiled("User"));
+        assertTrue(recompiled("Indirect"));
+        assertFalse(recompiled("Other"));
+        assertEquals(2, call("User"));
+        assertEquals(2, call("Indirect"));
+    }
+
+    @Test
+    public void testIndependentChange() throws Exception {
+        build();
+        age("Constants", "User", "Indirect", "Other");
+        write("example/Other.java", "package example; public class Other { public static int get() { return 8; } }");
+        build();
+        assertTrue(recompiled("Other"));
+        assertFalse(recompiled("Constants"));
+        assertFalse(recompiled("User"));
+        assertFalse(recompiled("Indirect"));
+        assertEquals(8, call("Other"));
+    }
+
+    @Test
+    public void testRemovedSource() throws Exception {
+        build();
+        assertTrue(classFile("Other").exists());
+        assertTrue(new File(src, "example/Other.java").delete());
+        build();
+        assertFalse(classFile("Other").exists());
+        assertEquals(1, call("Indirect"));
+    }
+
+    @Test
+    public void testAddedSource() throws Exception {
+        build();
+        age("Constants", "User", "Indirect", "Other");
+        write("example/Added.java", "package example; public class Added { public static int get() { return Other.get() + 1; } }");
+        build();
+        assertEquals(8, call("Added"));
+        assertFalse(recompiled("Other"));
+        assertFalse(recompiled("User"));
+    }
+
+    @Test
+    public void testCorruptStateRecompilesEverything() throws Exception {
+        build();
+        age("Constants", "User", "Indirect", "Other");
+        Files.write(new File(cache, "javac.state").toPath(), new byte[] { 0x43, 0x43, 0x4a });
+        build();
+        assertTrue(recompiled("Constants"));
+        assertTrue(recompiled("User"));
+        assertTrue(recompiled("Indirect"));
+        assertTrue(recompiled("Other"));
+    }
+
+    @Test
+    public void testFailedCompileRetried() throws Exception {
+        build();
+        write("example/Other.java", "package example; public class Other { public static int get() { return nonsense; } }");
+        try {
+            build();
+            fail("Expected the compilation to fail");
+        } catch (RuntimeException ex) {
+            // correct!
+        }
+        write("example/Other.java", "package example; public class Other { public static int get() { return 9; } }");
+        build();
+        assertEquals(9, call("Other"));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.deployment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class JarBuilderTest {
+
+    // more than MAX_IN_FLIGHT on any machine this is likely to run on
+    private static final int MANY_ENTRIES = 1000;
+
+    private static Manifest manifest() {
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "example.Main");
+        return mf;
+    }
+
+    private static byte[] contents(int i) {
+        // a mix of compressible and incompressible entries of varying sizes
+        byte[] out = new byte[(i * 37) % 5000];
+        if (i % 2 == 0) {
+            new Random(i).nextBytes(out);
+        } else {
+            for (int j = 0; j < out.length; j++) {
+                out[j] = (byte) ('a' + j % 7);
+            }
+        }
+        return out;
+    }
+
+    private static void addMany(JarBuilder builder) throws IOException {
+        for (int i = 0; i < MANY_ENTRIES; i++) {
+            builder.addResource("res/entry-" + i + ".bin", new ByteArrayInputStream(contents(i)));
+        }
+    }
+
+    private static byte[] buildMany() throws IOException {
+        JarBuilder builder = new JarBuilder(manifest(), JarBuilder.DELETE);
+        addMany(builder);
+        try (Jar jar = builder.build()) {
+            return Files.readAllBytes(jar.toFile().toPath());
+        }
+    }
+
+    private static byte[] streamMany() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JarBuilder builder = new JarBuilder(manifest(), out);
+        addMany(builder);
+        builder.finish();
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testReadBackWithJarFile() throws IOException {
+        byte[] text = "hello, world! hello, world! hello, world!".getBytes(StandardCharsets.UTF_8);
+        JarBuilder builder = new JarBuilder(manifest(), JarBuilder.DELETE);
+        builder.addResource("dir/", new ByteArrayInputStream(new byte[0]));
+        builder.addResource("dir/text.txt", new ByteArrayInputStream(text));
+        builder.addResource("empty.txt", new ByteArrayInputStream(new byte[0]));
+        builder.addClass("example.Main", new ByteArrayInputStream(new byte[] { (byte) 0xCA, (byte) 0xFE }));
+        try (Jar jar = builder.build(); JarFile file = new JarFile(jar.toFile())) {
+            assertEquals("example.Main", file.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+
+            ArrayList<String> names = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(file.entries())) {
+                names.add(entry.getName());
+            }
+            assertEquals(5, names.size());
+            assertTrue(names.contains(JarFile.MANIFEST_NAME));
+
+            ZipEntry dir = file.getEntry("dir/");
+            assertTrue(dir.isDirectory());
+            assertEquals(ZipEntry.STORED, dir.getMethod());
+
+            ZipEntry textEntry = file.getEntry("dir/text.txt");
+            assertEquals(ZipEntry.DEFLATED, textEntry.getMethod());
+            assertEquals(text.length, textEntry.getSize());
+            try (InputStream in = file.getInputStream(textEntry)) {
+                assertArrayEquals(text, readAll(in));
+            }
+
+            ZipEntry empty = file.getEntry("empty.txt");
+            assertEquals(ZipEntry.STORED, empty.getMethod());
+            assertEquals(0, empty.getSize());
+
+            try (InputStream in = file.getInputStream(file.getEntry("example/Main.class"))) {
+                assertArrayEquals(new byte[] { (byte) 0xCA, (byte) 0xFE }, readAll(in));
+            }
+        }
+    }
+
+    @Test
+    public void testFixedTimestamps() throws IOException {
+        // DOS timestamps are in local time, as is the calendar
+        long expected = new GregorianCalendar(1980, 0, 1).getTimeInMillis();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(streamMany()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                assertEquals(entry.getName(), expected, entry.getTime());
+            }
+        }
+    }
+
+    @Test
+    public void testManifestFirst() throws IOException {
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(buildMany()))) {
+            assertEquals(JarFile.MANIFEST_NAME, in.getNextEntry().getName());
+        }
+        // JarInputStream only finds the manifest if it comes first
+        try (JarInputStream in = new JarInputStream(new ByteArrayInputStream(buildMany()))) {
+            assertNotNull(in.getManifest());
+            assertEquals("example.Main", in.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+        }
+    }
+
+    @Test
+    public void testNoManifest() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JarBuilder builder = new JarBuilder(null, out);
+        builder.addResource("only.txt", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+        builder.finish();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals("only.txt", in.getNextEntry().getName());
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testEntriesInOrder() throws IOException {
+        // compression happens in parallel, but the output must keep the order
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(streamMany()))) {
+            assertEquals(JarFile.MANIFEST_NAME, in.getNextEntry().getName());
+            for (int i = 0; i < MANY_ENTRIES; i++) {
+                ZipEntry entry = in.getNextEntry();
+                assertEquals("res/entry-" + i + ".bin", entry.getName());
+                assertArrayEquals(entry.getName(), contents(i), readAll(in));
+            }
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testReproducible() throws IOException {
+        byte[] first = buildMany();
+        assertArrayEquals(first, buildMany());
+        // and the streaming constructor produces the same bytes as a file
+        assertArrayEquals(first, streamMany());
+    }
+
+    @Test(expected = ZipException.class)
+    public void testDuplicateEntry() throws IOException {
+        JarBuilder builder = new JarBuilder(null, new ByteArrayOutputStream());
+        builder.addResource("twice.txt", new ByteArrayInputStream(new byte[] { 1 }));
+        builder.addResource("twice.txt", new ByteArrayInputStream(new byte[] { 2 }));
+    }
+
+    @Test
+    public void testAddAfterFinish() throws IOException {
+        JarBuilder builder = new JarBuilder(null, new ByteArrayOutputStream());
+        builder.finish();
+        try {
+            builder.addResource("late.txt", new ByteArrayInputStream(new byte[] { 1 }));
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // correct!
+        }
+    }
+
+    @Test
+    public void testStreamingClosesOutput() throws IOException {
+        boolean[] closed = new boolean[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        JarBuilder builder = new JarBuilder(manifest(), out);
+        builder.finish();
+        assertTrue(closed[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStreamingCannotBuild() throws IOException {
+        new JarBuilder(manifest(), new ByteArrayOutputStream()).build();
+    }
+}
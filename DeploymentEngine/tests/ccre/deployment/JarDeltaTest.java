@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.deployment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.frc.JarPatcher;
+
+@SuppressWarnings("javadoc")
+public class JarDeltaTest {
+
+    private File previous, next, patch, result;
+
+    @Before
+    public void setUp() throws IOException {
+        previous = File.createTempFile("jar-delta-previous-", ".jar");
+        next = File.createTempFile("jar-delta-next-", ".jar");
+        patch = File.createTempFile("jar-delta-patch-", ".zip");
+        result = File.createTempFile("jar-delta-result-", ".jar");
+    }
+
+    @After
+    public void tearDown() {
+        previous.delete();
+        next.delete();
+        patch.delete();
+        result.delete();
+    }
+
+    private static void writeJar(File file, Map<String, String> entries) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, String> ent : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(ent.getKey()));
+                out.write(ent.getValue().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = zip.getInputStream(entry)) {
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertSameEntries(File expected, File actual) throws IOException {
+        try (ZipFile e = new ZipFile(expected); ZipFile a = new ZipFile(actual)) {
+            ArrayList<String> expectedNames = new ArrayList<>(), actualNames = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(e.entries())) {
+                expectedNames.add(entry.getName());
+            }
+            for (ZipEntry entry : Collections.list(a.entries())) {
+                actualNames.add(entry.getName());
+            }
+            assertEquals(expectedNames, actualNames);
+            for (String name : expectedNames) {
+                assertArrayEquals(name, read(e, e.getEntry(name)), read(a, a.getEntry(name)));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        LinkedHashMap<String, String> before = new LinkedHashMap<>();
+        before.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n");
+        before.put("robot/Unchanged.class", "same contents");
+        before.put("robot/Changed.class", "old contents");
+        before.put("robot/Removed.class", "going away");
+        writeJar(previous, before);
+
+        LinkedHashMap<String, String> after = new LinkedHashMap<>();
+        after.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n");
+        after.put("robot/Unchanged.class", "same contents");
+        after.put("robot/Changed.class", "new contents");
+        after.put("robot/Added.class", "brand new");
+        writeJar(next, after);
+
+        assertEquals(2, JarDelta.create(previous, next, patch));
+        try (ZipFile zip = new ZipFile(patch)) {
+            assertNotNull(zip.getEntry(JarPatcher.LIST_NAME));
+            assertNotNull(zip.getEntry(JarPatcher.DATA_PREFIX + "robot/Changed.class"));
+            assertNotNull(zip.getEntry(JarPatcher.DATA_PREFIX + "robot/Added.class"));
+            assertNull(zip.getEntry(JarPatcher.DATA_PREFIX + "robot/Unchanged.class"));
+        }
+
+        JarPatcher.apply(previous.getPath(), patch.getPath(), result.getPath());
+        assertSameEntries(next, result);
+    }
+
+    @Test
+    public void testIdenticalJars() throws IOException {
+        LinkedHashMap<String, String> contents = new LinkedHashMap<>();
+        contents.put("robot/Main.class", "contents");
+        writeJar(previous, contents);
+        writeJar(next, contents);
+
+        assertEquals(0, JarDelta.create(previous, next, patch));
+        JarPatcher.apply(previous.getPath(), patch.getPath(), result.getPath());
+        assertSameEntries(next, result);
+    }
+
+    @Test
+    public void testWrongBaseRejected() throws IOException {
+        LinkedHashMap<String, String> base = new LinkedHashMap<>();
+        base.put("robot/Main.class", "version one");
+        base.put("robot/Other.class", "unchanged");
+        writeJar(previous, base);
+        LinkedHashMap<String, String> target = new LinkedHashMap<>(base);
+        target.put("robot/Main.class", "version two");
+        writeJar(next, target);
+        JarDelta.create(previous, next, patch);
+
+        // a patch applied to a Jar other than the one it was made against
+        LinkedHashMap<String, String> other = new LinkedHashMap<>(base);
+        other.put("robot/Other.class", "modified elsewhere");
+        File wrong = File.createTempFile("jar-delta-wrong-", ".jar");
+        try {
+            writeJar(wrong, other);
+            JarPatcher.apply(wrong.getPath(), patch.getPath(), result.getPath());
+            fail("patch should not apply to the wrong Jar");
+        } catch (IOException ex) {
+            // expected
+        } finally {
+            wrong.delete();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.verifier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ccre.deployment.Artifact;
+import ccre.deployment.Jar;
+import ccre.deployment.JarBuilder;
+
+@SuppressWarnings("javadoc")
+public class PhaseCacheTest {
+
+    private static final byte[] DEPS_A = hash("deps-a"), DEPS_B = hash("deps-b");
+
+    private File file;
+
+    private static byte[] hash(String text) {
+        return PhaseCache.newDigest().digest(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("phase-cache-", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    private PhaseCache populated() {
+        PhaseCache cache = PhaseCache.load(file, DEPS_A);
+        PhaseCache.Entry verified = new PhaseCache.Entry(hash("example.A"), new String[] { "example.B", "java.lang.Object" }, null);
+        verified.warnings.add(new PhaseCache.Warning("A.java", 12, "setup method called from flow phase"));
+        verified.warnings.add(new PhaseCache.Warning(null, -1, "no source"));
+        cache.entries.put("example.A", verified);
+        cache.entries.put("example.B", new PhaseCache.Entry(hash("example.B"), new String[0], "Could not phase-verify class: example.B: bad"));
+        // a dependency with a warning
+        PhaseCache.Entry dependency = new PhaseCache.Entry(null, new String[0], null);
+        dependency.warnings.add(new PhaseCache.Warning("Dep.java", 3, "dependency warning"));
+        cache.entries.put("dep.Dep", dependency);
+        return cache;
+    }
+
+    @Test
+    public void testMissingFile() {
+        assertTrue(PhaseCache.load(file, DEPS_A).entries.isEmpty());
+        assertTrue(PhaseCache.load(null, DEPS_A).entries.isEmpty());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        PhaseCache original = populated();
+        original.save(file);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        PhaseCache loaded = PhaseCache.load(file, DEPS_A);
+        assertEquals(original.entries.keySet(), loaded.entries.keySet());
+        for (String name : original.entries.keySet()) {
+            PhaseCache.Entry expected = original.entries.get(name), actual = loaded.entries.get(name);
+            assertArrayEquals(name, expected.hash, actual.hash);
+            assertArrayEquals(name, expected.references, actual.references);
+            assertEquals(name, expected.error, actual.error);
+            // in order, too
+            assertEquals(name, Arrays.asList(expected.warnings.toArray()), Arrays.asList(actual.warnings.toArray()));
+        }
+        assertNull(loaded.entries.get("dep.Dep").hash);
+    }
+
+    @Test
+    public void testDependenciesChanged() throws IOException {
+        populated().save(file);
+        assertTrue(PhaseCache.load(file, DEPS_B).entries.isEmpty());
+        // and still there for the original dependencies
+        assertEquals(3, PhaseCache.load(file, DEPS_A).entries.size());
+    }
+
+    @Test
+    public void testWrongMagic() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x12345678);
+            out.writeInt(1);
+        }
+        assertTrue(PhaseCache.load(file, DEPS_A).entries.isEmpty());
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        populated().save(file);
+        long length = file.length();
+        for (long cut : new long[] { 0, 3, 10, length / 2, length - 1 }) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(cut);
+            }
+            assertTrue("cut at " + cut, PhaseCache.load(file, DEPS_A).entries.isEmpty());
+            populated().save(file);
+        }
+    }
+
+    @Test
+    public void testCorruptCount() throws IOException {
+        populated().save(file);
+        // the entry count follows the magic, version, and dependency hash
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4 + 4 + 1 + DEPS_A.length);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+        // must not try to allocate or read billions of entries
+        assertTrue(PhaseCache.load(file, DEPS_A).entries.isEmpty());
+
+        populated().save(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4 + 4 + 1 + DEPS_A.length);
+            raf.writeInt(-1);
+        }
+        assertTrue(PhaseCache.load(file, DEPS_A).entries.isEmpty());
+    }
+
+    private static Jar jar(String contents) throws IOException {
+        JarBuilder builder = new JarBuilder(JarBuilder.DELETE);
+        builder.addResource("example/Data.class", new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8)));
+        return builder.build();
+    }
+
+    @Test
+    public void testHashDependencies() throws IOException {
+        try (Jar a1 = jar("one"); Jar a2 = jar("one"); Jar b = jar("two")) {
+            byte[] hashA = PhaseCache.hashDependencies(new Artifact[] { a1 });
+            assertArrayEquals(hashA, PhaseCache.hashDependencies(new Artifact[] { a2 }));
+            assertFalse(Arrays.equals(hashA, PhaseCache.hashDependencies(new Artifact[] { b })));
+            assertFalse(Arrays.equals(hashA, PhaseCache.hashDependencies(new Artifact[] { a1, b })));
+            assertFalse(Arrays.equals(hashA, PhaseCache.hashDependencies(new Artifact[0])));
+        }
+    }
+}
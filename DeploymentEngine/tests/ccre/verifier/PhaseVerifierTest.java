@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.verifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class PhaseVerifierTest {
+
+    private PhaseCache cache;
+    private HashMap<String, byte[]> hashes;
+
+    private static byte[] hash(String text) {
+        return PhaseCache.newDigest().digest(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Before
+    public void setUp() {
+        cache = PhaseCache.load(new File("nonexistent-phase-cache.bin"), hash("deps"));
+        hashes = new HashMap<>();
+        // A -> B -> C, and D on its own
+        add("example.A", "example.B");
+        add("example.B", "example.C");
+        add("example.C");
+        add("example.D", "java.lang.Object");
+        // a dependency with a cached warning
+        cache.entries.put("dep.Dep", new PhaseCache.Entry(null, new String[0], null));
+    }
+
+    private void add(String name, String... references) {
+        hashes.put(name, hash(name));
+        cache.entries.put(name, new PhaseCache.Entry(hash(name), references, null));
+    }
+
+    private void assertStale(String... expected) {
+        assertEquals(new TreeSet<>(Arrays.asList(expected)), PhaseVerifier.findStale(cache, hashes));
+    }
+
+    @Test
+    public void testUnchangedSkipped() {
+        assertStale();
+        assertEquals(5, cache.entries.size());
+    }
+
+    @Test
+    public void testChangedWithReferrers() {
+        hashes.put("example.C", hash("example.C, edited"));
+        assertStale("example.A", "example.B", "example.C");
+    }
+
+    @Test
+    public void testChangedLeaf() {
+        hashes.put("example.A", hash("example.A, edited"));
+        assertStale("example.A");
+    }
+
+    @Test
+    public void testAdded() {
+        hashes.put("example.E", hash("example.E"));
+        assertStale("example.E");
+    }
+
+    @Test
+    public void testRemoved() {
+        hashes.remove("example.B");
+        assertStale("example.A");
+        assertFalse(cache.entries.containsKey("example.B"));
+        // dependencies are never considered removed
+        assertTrue(cache.entries.containsKey("dep.Dep"));
+    }
+
+    @Test
+    public void testNoCachedHash() {
+        // a target class that was previously only known as a dependency
+        hashes.put("dep.Dep", hash("dep.Dep"));
+        assertStale("dep.Dep");
+    }
+
+    @Test
+    public void testEmptyCache() {
+        cache.entries.clear();
+        assertStale("example.A", "example.B", "example.C", "example.D");
+    }
+
+    @Test
+    public void testCycle() {
+        add("example.X", "example.Y");
+        add("example.Y", "example.X");
+        hashes.put("example.Y", hash("example.Y, edited"));
+        assertStale("example.X", "example.Y");
+    }
+}
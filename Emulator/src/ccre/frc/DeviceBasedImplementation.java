@@ -97,6 +97,16 @@ public class DeviceBasedImplementation implements FRCImplementation {
         Logger.addTarget(logger);
     }
 
+    /**
+     * Switch the emulated robot into the specified mode.
+     *
+     * @param target the mode to switch into.
+     * @see RobotModeDevice#switchMode(FRCMode)
+     */
+    void switchMode(FRCMode target) {
+        mode.switchMode(target);
+    }
+
     /**
      * Clear out all the lines in the Emulator's logging pane.
      */
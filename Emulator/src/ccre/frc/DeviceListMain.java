@@ -63,6 +63,7 @@ public class DeviceListMain {
             Cluck.setupServer();
         }
         Cluck.setupServer(1540);
+        Cluck.setupSharedMemoryServer(1540);
         // give a bit of time for network stuff to try to set itself up.
         Thread.sleep(500);
         try {
@@ -77,4 +78,53 @@ public class DeviceListMain {
             impl.panel.setErrorDisplay(thr);
         }
     }
+
+    /**
+     * Run the robot program without any user interface, spending
+     * <code>millisPerMode</code> in each mode, so that the classes it uses can
+     * be observed by the JVM. This is used to generate class lists for the
+     * roboRIO's class data sharing.
+     *
+     * @param mainClass the main program class to load.
+     * @param storageDir the storage directory for logs, etc.
+     * @param millisPerMode how long to run in each mode.
+     * @throws Throwable if the robot program cannot be set up.
+     */
+    public static void train(String mainClass, File storageDir, long millisPerMode) throws Throwable {
+        Logger.info("Starting training run of " + mainClass);
+        Class<? extends FRCApplication> asSubclass = DeviceListMain.class.getClassLoader().loadClass(mainClass).asSubclass(FRCApplication.class);
+        Storage.setBaseDir(storageDir);
+        EventCell onInit = new EventCell();
+        DeviceBasedImplementation impl = new DeviceBasedImplementation(onInit);
+        FRCImplementationHolder.setImplementation(impl);
+        asSubclass.getConstructor().newInstance().setupRobot();
+        onInit.event();
+        for (FRCMode mode : new FRCMode[] { FRCMode.DISABLED, FRCMode.AUTONOMOUS, FRCMode.DISABLED, FRCMode.TELEOP, FRCMode.TEST, FRCMode.DISABLED }) {
+            impl.switchMode(mode);
+            Thread.sleep(millisPerMode);
+        }
+        Logger.info("Training run complete.");
+    }
+
+    /**
+     * The entry point for a forked training run. See
+     * {@link #train(String, File, long)}.
+     *
+     * @param args the main class, storage directory, and milliseconds per
+     * mode.
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: DeviceListMain <main-class> <storage-dir> <millis-per-mode>");
+            System.exit(1);
+        }
+        try {
+            train(args[0], new File(args[1]), Long.parseLong(args[2]));
+        } catch (Throwable thr) {
+            Logger.severe("Training run failed", thr);
+            System.exit(2);
+        }
+        // the robot program's threads would otherwise keep us running
+        System.exit(0);
+    }
 }
@@ -83,6 +83,21 @@ public class RobotModeDevice extends Device {
         add(testLight);
     }
 
+    /**
+     * Switch the robot into the specified mode, as if the mode had been
+     * selected and then enabled by the user. DISABLED just disables the
+     * robot.
+     *
+     * @param mode the mode to switch into.
+     */
+    public void switchMode(FRCMode mode) {
+        enabled.safeSet(false);
+        if (mode != FRCMode.DISABLED) {
+            setMode(mode);
+            enabled.safeSet(true);
+        }
+    }
+
     /**
      * Return a BooleanInput representing if the robot is in the specified mode.
      *
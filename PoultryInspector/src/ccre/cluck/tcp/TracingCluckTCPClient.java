@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Cel Skeggs
+ * Copyright 2015-2016 Cel Skeggs
  *
  * This file is part of the CCRE, the Common Chicken Runtime Engine.
  *
@@ -84,6 +84,8 @@ public class TracingCluckTCPClient extends CluckTCPClient {
      */
     public TracingCluckTCPClient(String remote, CluckNode node, String linkName, String remoteNameHint) {
         super(remote, node, linkName, remoteNameHint);
+        // shared-memory connections would bypass the tracing
+        setUseSharedMemory(false);
     }
 
     @Override
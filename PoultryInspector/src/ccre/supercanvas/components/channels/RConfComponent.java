@@ -25,6 +25,8 @@ import java.util.Objects;
 
 import javax.swing.JOptionPane;
 
+import ccre.channel.CancelOutput;
+import ccre.channel.EventInput;
 import ccre.concurrency.CollapsingWorkerThread;
 import ccre.log.Logger;
 import ccre.rconf.RConf;
@@ -63,6 +65,7 @@ public class RConfComponent extends DraggableBoxComponent {
                 lastSignalSucceeded = true;
                 entries = out;
                 consecutiveUpdateFailures = 0;
+                subscribeToChanges();
             }
             showSignalSuccessUntil = System.currentTimeMillis() + SIGNAL_SUCCESS_FLASH_TIME;
         }
@@ -132,6 +135,7 @@ public class RConfComponent extends DraggableBoxComponent {
 
     private transient Integer autoRefreshDelay = null;
     private transient Ticker autoRefreshTicker = null;
+    private transient CancelOutput changeSubscription = null;
 
     @Override
     protected synchronized void onChangePanel(SuperCanvasPanel newPanel) {
@@ -145,6 +149,21 @@ public class RConfComponent extends DraggableBoxComponent {
                 updater = null;
             }
             setAutoRefreshDelay(null);
+            if (changeSubscription != null) {
+                changeSubscription.cancel();
+                changeSubscription = null;
+            }
+        }
+    }
+
+    private synchronized void subscribeToChanges() {
+        if (changeSubscription != null || getPanel() == null) {
+            return;
+        }
+        EventInput changes = device.getRConfChanges();
+        if (changes != null) {
+            // the device tells us when to refresh, so no need to poll it
+            changeSubscription = changes.send(() -> getUpdater().trigger());
         }
     }
 
@@ -260,7 +279,8 @@ public class RConfComponent extends DraggableBoxComponent {
             curY += 20;
             field++;
         }
-        setAutoRefreshDelay(newAutoRefreshDelay);
+        // keep polling while failing, in case change notifications are lost
+        setAutoRefreshDelay(changeSubscription != null && consecutiveUpdateFailures == 0 ? null : newAutoRefreshDelay);
         if (getPanel().editmode) {
             g.setColor(new Color(255, 0, 0, 128));
             g.fillOval(centerX + halfWidth - 10, centerY + halfHeight - 10, 8, 8);
@@ -158,6 +158,7 @@ public class CluckNetworkingComponent extends SuperCanvasComponent {
             client = useLoggingConnection ? new TracingCluckTCPClient(remote, Cluck.getNode(), "robot", null) : new CluckTCPClient(remote, Cluck.getNode(), "robot", null);
             client.setReconnectDelay(1000);
             client.setLogDuringNormalOperation(false);
+            client.setUseDatagrams(!useLoggingConnection);
             client.start();
         } else {
             if (!client.getRemote().equals(remote)) {
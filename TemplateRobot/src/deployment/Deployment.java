@@ -1,6 +1,9 @@
 package deployment;
 
+import java.io.File;
+
 import ccre.deployment.Artifact;
+import ccre.deployment.DepClassSharing;
 import ccre.deployment.DepEmulator;
 import ccre.deployment.DepProject;
 import ccre.deployment.DepRoboRIO;
@@ -46,6 +49,31 @@ public class Deployment {
         }
     }
 
+    /**
+     * A deployment task that works like deploy, but first runs your robot code
+     * briefly in the emulator to find out which classes it uses, so that the
+     * roboRIO can prepare them ahead of time and start your code faster.
+     *
+     * @throws Exception if the deployment cannot be completed
+     */
+    @DepTask
+    public static void deployFastStart() throws Exception {
+        Artifact result = DepRoboRIO.buildProject(robotMain);
+        File classList = DepClassSharing.train(result);
+
+        int number = robot.RobotTemplate.TEAM_NUMBER;
+
+        if (number == 0) {
+            throw new RuntimeException("You need to change your TEAM_NUMBER in RobotTemplate.java!");
+        }
+
+        try (DepRoboRIO.RIOShell rshell = DepRoboRIO.discoverAndVerify(number)) {
+            rshell.archiveLogsTo(DepProject.root());
+
+            rshell.downloadAndStart(result, classList);
+        }
+    }
+
     /**
      * A deployment task that runs your robot code in the CCRE's emulator.
      *
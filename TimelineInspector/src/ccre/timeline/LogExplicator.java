@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Cel Skeggs
+ *
+ * This file is part of the CCRE, the Common Chicken Runtime Engine.
+ *
+ * The CCRE is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * The CCRE is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the CCRE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ccre.timeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.regex.Pattern;
+
+import javax.swing.JFileChooser;
+
+import ccre.log.BinaryLogReader;
+import ccre.log.LogLevel;
+
+/**
+ * A command-line tool that converts binary logs written by
+ * {@link ccre.log.BinaryLogWriter} to text, optionally filtering them.
+ *
+ * Usage:
+ * <code>LogExplicator [-l LEVEL] [-s SINCE] [-u UNTIL] [-c SITE] [-e REGEX] FILE...</code>
+ *
+ * <ul>
+ * <li>-l: only show entries at or above this level, like WARNING.</li>
+ * <li>-s and -u: only show entries logged in this range of CCRE times, in
+ * milliseconds. The start time is found through the log index.</li>
+ * <li>-c: only show entries whose call site contains this string.</li>
+ * <li>-e: only show entries whose message or detail matches this regular
+ * expression.</li>
+ * </ul>
+ *
+ * With no files, a JFileChooser asks for one, and the whole log is converted.
+ *
+ * @author skeggsc
+ */
+public class LogExplicator {
+
+    private LogLevel minimumLevel = LogLevel.FINEST;
+    private long since = Long.MIN_VALUE, until = Long.MAX_VALUE;
+    private String site;
+    private Pattern pattern;
+
+    /**
+     * The main method, which converts and filters the logs named on the command
+     * line.
+     *
+     * @param args the options and files, as described above.
+     * @throws IOException if a log cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        LogExplicator explicator = new LogExplicator();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + args[i]);
+                return;
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "-l":
+                explicator.minimumLevel = parseLevel(value);
+                break;
+            case "-s":
+                explicator.since = Long.parseLong(value);
+                break;
+            case "-u":
+                explicator.until = Long.parseLong(value);
+                break;
+            case "-c":
+                explicator.site = value;
+                break;
+            case "-e":
+                explicator.pattern = Pattern.compile(value);
+                break;
+            default:
+                usage("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        if (i == args.length) {
+            JFileChooser chooser = new JFileChooser(".");
+            if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
+                explicator.explicate(chooser.getSelectedFile(), System.out);
+            }
+            return;
+        }
+        for (; i < args.length; i++) {
+            explicator.explicate(new File(args[i]), System.out);
+        }
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: LogExplicator [-l LEVEL] [-s SINCE] [-u UNTIL] [-c SITE] [-e REGEX] FILE...");
+    }
+
+    private static LogLevel parseLevel(String name) {
+        for (LogLevel level : LogLevel.allLevels) {
+            if (level.message.equalsIgnoreCase(name)) {
+                return level;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    /**
+     * Print out the matching entries of a binary log.
+     *
+     * @param file the data file of the log.
+     * @param out where to print the entries.
+     * @return the number of matching entries.
+     * @throws IOException if the log cannot be read.
+     */
+    public int explicate(File file, PrintStream out) throws IOException {
+        int count = 0;
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            if (since != Long.MIN_VALUE) {
+                reader.seek(since);
+            }
+            BinaryLogReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                // timestamps can go backwards at index points, so entries
+                // later in the file may still be in range
+                if (entry.timestamp < since || entry.timestamp > until || !entry.level.atLeastAsImportant(minimumLevel)) {
+                    continue;
+                }
+                if (site != null && (entry.callSite == null || !entry.callSite.contains(site))) {
+                    continue;
+                }
+                if (pattern != null && !pattern.matcher(entry.getMessage()).find() && (entry.detail == null || !pattern.matcher(entry.detail).find())) {
+                    continue;
+                }
+                out.println(entry);
+                count++;
+            }
+        }
+        return count;
+    }
+}
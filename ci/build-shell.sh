@@ -31,6 +31,15 @@ else
 	exit 1
 fi
 
+cd $(dirname $HERE)/DeploymentEngine
+if ant test -Djunit.dir=$HERE -Djunit-output.dir=$HERE/junit-output
+then
+	echo "Success!"
+else
+	echo "Failure!"
+	exit 1
+fi
+
 cd $(dirname $HERE)/PoultryInspector
 if ant test -Djunit.dir=$HERE -Djunit-output.dir=$HERE/junit-output
 then
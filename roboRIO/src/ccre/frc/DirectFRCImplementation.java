@@ -56,7 +56,9 @@ import ccre.discrete.DerivedDiscreteInput;
 import ccre.discrete.DiscreteInput;
 import ccre.drivers.ByteFiddling;
 import ccre.drivers.ctre.talon.TalonExtendedMotor;
+import ccre.log.BinaryLogWriter;
 import ccre.log.FileLogger;
+import ccre.log.LogLevel;
 import ccre.log.Logger;
 import ccre.log.NetworkAutologger;
 import ccre.storage.Storage;
@@ -79,7 +81,9 @@ public final class DirectFRCImplementation implements FRCImplementation {
      * @param args the program arguments. ignored.
      */
     public static void main(String[] args) {
+        BootProfile.begin();
         FRCNetworkCommunicationsLibrary.FRCNetworkCommunicationReserve();
+        BootProfile.mark("reserve network communications");
 
         try {
             File version = new File("/tmp/frc_versions/FRC_Lib_Version.ini");
@@ -100,6 +104,12 @@ public final class DirectFRCImplementation implements FRCImplementation {
             t.printStackTrace();
             Logger.severe("Uncaught exception!", t);
         }
+        try {
+            // give the last messages a chance to reach the network and flash
+            Logger.flushAsynchronous(1000);
+        } catch (InterruptedException e) {
+            // exiting anyway
+        }
         System.exit(1);
     }
 
@@ -107,23 +117,31 @@ public final class DirectFRCImplementation implements FRCImplementation {
         Logger.info("I am a CCRE-powered robot with version " + Version.getVersion() + "!");
         DirectFRCImplementation robot = new DirectFRCImplementation();
         FRCImplementationHolder.setImplementation(robot);
+        BootProfile.mark("create implementation");
         // Cluck de-facto off-FMS port.
         Cluck.setupServer(1540);
-        // SmartDashboard port, since it's unused with the CCRE
-        Cluck.setupServer(1735);
-        // First team-use port.
+        // First team-use port, and PoultryInspector's default target.
         Cluck.setupServer(5800);
-        // Another team-use port.
-        Cluck.setupServer(5805);
+        BootProfile.mark("primary cluck servers");
+        // the rest of the ports can wait until robot setup is over
+        BootProfile.defer("extra cluck servers", () -> {
+            // SmartDashboard port, since it's unused with the CCRE
+            Cluck.setupServer(1735);
+            // Another team-use port.
+            Cluck.setupServer(5805);
+        });
         try {
             robot.setupMain();
             Cluck.getNode().notifyNetworkModified();
+            BootProfile.mark("notify network");
         } catch (Throwable thr) {
             Logger.severe("Critical Code Failure in Robot Init", thr);
             return;
         }
+        BootProfile.runDeferredAfter(DEFERRED_DELAY_MILLIS);
 
         DirectDriverStation.init();
+        BootProfile.mark("driver station");
 
         FRCNetworkCommunicationsLibrary.FRCNetworkCommunicationObserveUserProgramStarting();
 
@@ -132,6 +150,7 @@ public final class DirectFRCImplementation implements FRCImplementation {
 
     private void mainloop() {
         activeMode = null;
+        boolean booted = false;
 
         while (true) {
             int word = FRCNetworkCommunicationsLibrary.NativeHALGetControlWord();
@@ -157,6 +176,10 @@ public final class DirectFRCImplementation implements FRCImplementation {
                     break;
                 }
                 activeMode.periodic(this);
+                if (!booted) {
+                    booted = true;
+                    BootProfile.ready();
+                }
             }
             try {
                 DirectDriverStation.waitForData();
@@ -166,6 +189,12 @@ public final class DirectFRCImplementation implements FRCImplementation {
         }
     }
 
+    /**
+     * How long after robot setup to start the deferred startup tasks, if no
+     * driver station has connected by then.
+     */
+    private static final long DEFERRED_DELAY_MILLIS = 1000;
+
     private static final EventCell globalPeriodic = new EventCell();
 
     /**
@@ -203,8 +232,19 @@ public final class DirectFRCImplementation implements FRCImplementation {
             Logger.warning("Could not create rootDir! Something might break...");
         }
         Storage.setBaseDir(rootDir);
+        // cheap, and most needed if something goes wrong during boot
         NetworkAutologger.register();
+        // the text logs are still what people read on the robot itself
         FileLogger.register();
+        BinaryLogWriter.register();
+        // keep flash writes and network logging off of the control loop
+        Logger.startAsynchronous(1024);
+        // collapse floods of repeated messages, except for severe errors
+        for (LogLevel level : LogLevel.allLevels) {
+            if (level != LogLevel.SEVERE) {
+                Logger.setRateLimit(level, 20);
+            }
+        }
     }
 
     private enum Mode {
@@ -271,8 +311,12 @@ public final class DirectFRCImplementation implements FRCImplementation {
             throw new RuntimeException("Could not find MANIFEST-specified launchee!");
         }
         Logger.info("Starting application: " + name);
-        ((FRCApplication) Class.forName(name).newInstance()).setupRobot();
+        FRCApplication application = (FRCApplication) Class.forName(name).newInstance();
+        BootProfile.mark("load application");
+        application.setupRobot();
+        BootProfile.mark("application setup");
         onInitComplete.event();
+        BootProfile.mark("init complete handlers");
         Logger.info("Hello, " + name + "!");
     }
 